@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.beans;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Creates the task executor used to query endpoints.
+ * Two modes are supported:
+ * <ul>
+ * <li><code>pool</code> - a bounded thread pool, sized by the pool properties</li>
+ * <li><code>virtual</code> - a new virtual thread for every task, so blocking
+ * endpoint calls don't need a pool sized for them. This needs a jvm with
+ * virtual threads (21+); on older jvms the bounded pool is used instead.</li>
+ * </ul>
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class TaskExecutorFactoryBean implements FactoryBean<TaskExecutor>, InitializingBean, DisposableBean
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(TaskExecutorFactoryBean.class);
+
+    /**
+     * Bounded thread pool mode.
+     */
+    public static final String MODE_POOL = "pool";
+
+    /**
+     * Virtual thread per task mode.
+     */
+    public static final String MODE_VIRTUAL = "virtual";
+
+    /**
+     * Selected mode.
+     */
+    private String mode = MODE_POOL;
+
+    /**
+     * Core pool size, used in pool mode.
+     */
+    private int corePoolSize = 5;
+
+    /**
+     * Maximum pool size, used in pool mode.
+     */
+    private int maxPoolSize = 10;
+
+    /**
+     * Queue capacity, used in pool mode.
+     */
+    private int queueCapacity = 20;
+
+    /**
+     * The thread pool, if used.
+     */
+    private ThreadPoolTaskExecutor pool;
+
+    /**
+     * The virtual thread executor, if used.
+     */
+    private ExecutorService virtualThreads;
+
+    /**
+     * The executor to hand out.
+     */
+    private TaskExecutor executor;
+
+    /**
+     * @param s Executor mode, either <code>pool</code> or <code>virtual</code>
+     */
+    public final void setMode(final String s)
+    {
+        this.mode = s == null ? MODE_POOL : s.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @param i Core pool size
+     */
+    public final void setCorePoolSize(final int i)
+    {
+        this.corePoolSize = i;
+    }
+
+    /**
+     * @param i Maximum pool size
+     */
+    public final void setMaxPoolSize(final int i)
+    {
+        this.maxPoolSize = i;
+    }
+
+    /**
+     * @param i Queue capacity
+     */
+    public final void setQueueCapacity(final int i)
+    {
+        this.queueCapacity = i;
+    }
+
+    /**
+     * @return <code>true</code> if tasks are being run on virtual threads
+     */
+    public final boolean isVirtual()
+    {
+        return virtualThreads != null;
+    }
+
+    /**
+     * Creates the executor for the selected mode.
+     */
+    public final void afterPropertiesSet()
+    {
+        if (MODE_VIRTUAL.equals(mode))
+        {
+            virtualThreads = newVirtualThreadExecutor();
+            if (virtualThreads != null)
+            {
+                LOG.info("Running endpoint tasks on virtual threads");
+                executor = new ConcurrentTaskExecutor(virtualThreads);
+                return;
+            }
+            LOG.warn("Virtual threads are not supported by this jvm, using a thread pool instead");
+        }
+        else if (!MODE_POOL.equals(mode))
+        {
+            LOG.warn("Unknown executor mode '" + mode + "', using a thread pool instead");
+        }
+
+        pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(corePoolSize);
+        pool.setMaxPoolSize(maxPoolSize);
+        pool.setQueueCapacity(queueCapacity);
+        pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.initialize();
+        executor = pool;
+    }
+
+    /**
+     * @return The task executor
+     */
+    public final TaskExecutor getObject()
+    {
+        return executor;
+    }
+
+    /**
+     * @return TaskExecutor class
+     */
+    public final Class<TaskExecutor> getObjectType()
+    {
+        return TaskExecutor.class;
+    }
+
+    /**
+     * @return <code>true</code>, a single executor is shared
+     */
+    public final boolean isSingleton()
+    {
+        return true;
+    }
+
+    /**
+     * Stops the executor.
+     */
+    public final void destroy()
+    {
+        if (pool != null) pool.shutdown();
+        if (virtualThreads != null) virtualThreads.shutdown();
+    }
+
+    /**
+     * Looks up <code>Executors.newVirtualThreadPerTaskExecutor()</code>, which
+     * is only present on jvms supporting virtual threads.
+     * @return A virtual thread per task executor, <code>null</code> if not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Unable to create virtual thread executor: " + ex.getMessage());
+            return null;
+        }
+    }
+}
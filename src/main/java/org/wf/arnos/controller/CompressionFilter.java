@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Compresses responses for clients that accept gzip or deflate encoded content.
+ * Output is buffered until it reaches the threshold, so small responses are sent
+ * as they are, without the cost of compressing them. Larger responses are
+ * compressed as they're written, but the deflater holds on to its output until
+ * it has filled a block, since a sync flush needs Java 7. Flushing therefore
+ * doesn't push the results written so far to the client, either before the
+ * threshold is reached or after, and a compressed response arrives in bursts
+ * rather than result by result.
+ * The filter is a spring bean, added to the servlet's filter chain through a
+ * <code>DelegatingFilterProxy</code>.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public class CompressionFilter extends OncePerRequestFilter
+{
+    /**
+     * Default size (bytes) a response must reach before it's compressed.
+     */
+    public static final int DEFAULT_THRESHOLD = 2048;
+
+    /**
+     * gzip content encoding.
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * deflate (zlib) content encoding.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Whether responses are compressed.
+     */
+    private volatile boolean enabled = true;
+
+    /**
+     * Size (bytes) a response must reach before it's compressed.
+     */
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * Compression level, from 1 (fastest) to 9 (smallest).
+     */
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Sets whether responses are compressed.
+     * @param b <code>true</code> to compress responses
+     */
+    @ManagedAttribute
+    public final void setEnabled(final boolean b)
+    {
+        enabled = b;
+    }
+
+    /**
+     * @return Whether responses are compressed
+     */
+    @ManagedAttribute
+    public final boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Sets the size a response must reach before it's compressed.
+     * @param bytes Threshold in bytes, 0 compresses every response
+     */
+    @ManagedAttribute
+    public final void setThreshold(final int bytes)
+    {
+        threshold = Math.max(0, bytes);
+    }
+
+    /**
+     * @return Threshold in bytes
+     */
+    @ManagedAttribute
+    public final int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Sets the compression level.
+     * @param i Level from 1 (fastest) to 9 (smallest), -1 for the default
+     */
+    @ManagedAttribute
+    public final void setLevel(final int i)
+    {
+        if (i < Deflater.DEFAULT_COMPRESSION || i > Deflater.BEST_COMPRESSION)
+        {
+            throw new IllegalArgumentException("Compression level " + i + " is not between -1 and 9");
+        }
+        level = i;
+    }
+
+    /**
+     * @return Compression level
+     */
+    @ManagedAttribute
+    public final int getLevel()
+    {
+        return level;
+    }
+
+    @Override
+    protected final void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+            final FilterChain chain) throws ServletException, IOException
+    {
+        if (!enabled)
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        // the response depends on the request's encodings, whether or not it's compressed
+        response.addHeader("Vary", "Accept-Encoding");
+
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null || "HEAD".equals(request.getMethod()))
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        CompressingResponse compressing = new CompressingResponse(response, encoding);
+        boolean completed = false;
+        try
+        {
+            chain.doFilter(request, compressing);
+            completed = true;
+        }
+        finally
+        {
+            // a failed response is left for the container to report, unterminated if already compressing
+            if (completed) compressing.finish();
+            else compressing.abort();
+        }
+    }
+
+    /**
+     * Picks the content encoding to use from an Accept-Encoding header.
+     * The encoding with the highest quality wins, gzip on a tie.
+     * @param acceptEncoding Accept-Encoding header, may be <code>null</code>
+     * @return gzip, deflate or <code>null</code> if neither is accepted
+     */
+    public static String negotiate(final String acceptEncoding)
+    {
+        if (acceptEncoding == null) return null;
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(","))
+        {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ENGLISH);
+            float q = 1;
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q="))
+                {
+                    try
+                    {
+                        q = Float.parseFloat(param.substring(2));
+                    }
+                    catch (NumberFormatException nfe)
+                    {
+                        q = 0;
+                    }
+                }
+            }
+
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) gzip = Math.max(gzip, q);
+            else if (coding.equals(DEFLATE)) deflate = Math.max(deflate, q);
+            else if (coding.equals("*")) any = q;
+        }
+
+        // encodings not listed take the wildcard's quality
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+
+        if (gzip > 0 && gzip >= deflate) return GZIP;
+        if (deflate > 0) return DEFLATE;
+        return null;
+    }
+
+    /**
+     * Response whose content goes through a {@link CompressingStream}.
+     */
+    private class CompressingResponse extends HttpServletResponseWrapper
+    {
+        /**
+         * Content encoding to use.
+         */
+        private final String encoding;
+
+        /**
+         * Compressing stream, created on first use.
+         */
+        private CompressingStream stream;
+
+        /**
+         * Writer over the stream, if the content is written as characters.
+         */
+        private PrintWriter writer;
+
+        /**
+         * Constructor.
+         * @param response Response being wrapped
+         * @param paramEncoding Content encoding to use
+         */
+        CompressingResponse(final HttpServletResponse response, final String paramEncoding)
+        {
+            super(response);
+            this.encoding = paramEncoding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+            if (stream == null) stream = new CompressingStream((HttpServletResponse) getResponse(), encoding);
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            if (writer == null)
+            {
+                if (stream != null) throw new IllegalStateException("getOutputStream() has already been called");
+                stream = new CompressingStream((HttpServletResponse) getResponse(), encoding);
+                writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(final int len)
+        {
+            // the length is only known once it's decided whether to compress
+        }
+
+        @Override
+        public void setHeader(final String name, final String value)
+        {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(final String name, final String value)
+        {
+            if (!"Content-Length".equalsIgnoreCase(name)) super.addHeader(name, value);
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            if (writer != null) writer.flush();
+            else if (stream != null) stream.flush();
+            else super.flushBuffer();
+        }
+
+        @Override
+        public void reset()
+        {
+            if (stream != null) stream.reset();
+            super.reset();
+        }
+
+        @Override
+        public void resetBuffer()
+        {
+            if (stream != null) stream.reset();
+            super.resetBuffer();
+        }
+
+        /**
+         * Writes out any buffered content and completes the compressed stream.
+         * @throws IOException thrown if the content can't be written
+         */
+        void finish() throws IOException
+        {
+            if (writer != null) writer.close();
+            else if (stream != null) stream.close();
+        }
+
+        /**
+         * Abandons the content after an error, see {@link CompressingStream#abort}.
+         */
+        void abort()
+        {
+            if (stream != null) stream.abort();
+        }
+    }
+
+    /**
+     * Buffers content up to the threshold, after which it's compressed as it's written.
+     */
+    private class CompressingStream extends ServletOutputStream
+    {
+        /**
+         * Response being written.
+         */
+        private final HttpServletResponse response;
+
+        /**
+         * Content encoding to use.
+         */
+        private final String encoding;
+
+        /**
+         * Content written before reaching the threshold.
+         */
+        private ByteArrayOutputStream buffer;
+
+        /**
+         * Where content goes once past the threshold.
+         */
+        private OutputStream out;
+
+        /**
+         * Deflater compressing the content, once past the threshold.
+         */
+        private Deflater deflater;
+
+        /**
+         * Set once the stream is closed.
+         */
+        private boolean closed = false;
+
+        /**
+         * Constructor.
+         * @param paramResponse Response being written
+         * @param paramEncoding Content encoding to use
+         */
+        CompressingStream(final HttpServletResponse paramResponse, final String paramEncoding)
+        {
+            this.response = paramResponse;
+            this.encoding = paramEncoding;
+            this.buffer = new ByteArrayOutputStream(Math.min(threshold, DEFAULT_THRESHOLD));
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            if (closed) throw new IOException("Stream closed");
+
+            if (out == null && buffer.size() + len > threshold) compress();
+
+            if (out == null) buffer.write(b, off, len);
+            else out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            // below the threshold it's still undecided whether to compress,
+            // above it the deflater keeps what it hasn't yet written out
+            if (out != null) out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed) return;
+            closed = true;
+
+            if (out == null)
+            {
+                // a small response is sent as it is
+                response.setContentLength(buffer.size());
+                buffer.writeTo(response.getOutputStream());
+                response.getOutputStream().flush();
+            }
+            else
+            {
+                try
+                {
+                    out.close();
+                }
+                finally
+                {
+                    if (deflater != null) deflater.end();
+                }
+            }
+        }
+
+        /**
+         * Closes the stream without completing the content, after the response failed.
+         * Buffered content is dropped, so the response is left uncommitted, and
+         * compressed content is left without its trailer, so the client can tell
+         * it's incomplete. The deflater is ended, freeing its native memory.
+         */
+        void abort()
+        {
+            if (closed) return;
+            closed = true;
+
+            reset();
+            if (deflater != null) deflater.end();
+        }
+
+        /**
+         * Discards buffered content, if the response hasn't been committed.
+         */
+        void reset()
+        {
+            if (out == null) buffer.reset();
+        }
+
+        /**
+         * Switches to compressing the content, writing out what's been buffered.
+         * @throws IOException thrown if the buffered content can't be written
+         */
+        private void compress() throws IOException
+        {
+            if (response.containsHeader("Content-Encoding"))
+            {
+                // already encoded
+                out = response.getOutputStream();
+            }
+            else
+            {
+                response.setHeader("Content-Encoding", encoding);
+                if (GZIP.equals(encoding))
+                {
+                    out = new GZIPOutputStream(response.getOutputStream())
+                    {
+                        {
+                            def.setLevel(level);
+                            deflater = def;
+                        }
+                    };
+                }
+                else
+                {
+                    deflater = new Deflater(level);
+                    out = new DeflaterOutputStream(response.getOutputStream(), deflater);
+                }
+            }
+            buffer.writeTo(out);
+            buffer = null;
+        }
+    }
+}
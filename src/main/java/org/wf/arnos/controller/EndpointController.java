@@ -172,6 +172,130 @@ public class EndpointController
     }
 
 
+    /**
+     * Method to add a replica to one of a project's endpoints. Queries to the
+     * endpoint are then balanced across it and its replicas.
+     * @param projectName Name of project
+     * @param endpoint uri of endpoint
+     * @param replica uri of an endpoint serving the same dataset
+     * @param model Supplied model to return data
+     * @return String representing view name
+     */
+    @RequestMapping(value = "/replicas/add", method = RequestMethod.POST)
+    public final String addReplica(@PathVariable final String projectName,
+                                                      @RequestParam("url") final String endpoint,
+                                                      @RequestParam("replica") final String replica,
+                                                      final Model model)
+    {
+        String message = "";
+
+        if (StringUtils.isEmpty(endpoint))
+        {
+            message = "Missing endpoint";
+        }
+        else if (StringUtils.isEmpty(replica))
+        {
+            message = "Missing replica";
+        }
+        else
+        {
+            checkProject(projectName);
+
+            if (manager.addReplica(projectName, endpoint, replica))
+            {
+                message = "replica '" + replica + "' added to endpoint '" + endpoint + "'";
+            }
+            else
+            {
+                message = "Unknown endpoint";
+            }
+        }
+
+        if (logger.isDebugEnabled()) logger.debug(message);
+
+        model.addAttribute("message", message);
+        return "";
+    }
+
+    /**
+     * Method to remove a replica from one of a project's endpoints.
+     * @param projectName Name of project
+     * @param endpoint uri of endpoint
+     * @param replica uri of replica to remove
+     * @param model Supplied model to return data
+     * @return String representing view name
+     */
+    @RequestMapping(value = "/replicas/remove", method = RequestMethod.DELETE)
+    public final String removeReplica(@PathVariable final String projectName,
+                                                       @RequestParam("url") final String endpoint,
+                                                       @RequestParam("replica") final String replica,
+                                                       final Model model)
+    {
+        String message = "";
+
+        if (StringUtils.isEmpty(endpoint))
+        {
+            message = "Missing endpoint";
+        }
+        else if (StringUtils.isEmpty(replica))
+        {
+            message = "Missing replica";
+        }
+        else
+        {
+            checkProject(projectName);
+
+            manager.removeReplica(projectName, endpoint, replica);
+
+            message = "replica '" + replica + "' removed";
+        }
+
+        if (logger.isDebugEnabled()) logger.debug(message);
+
+        model.addAttribute("message", message);
+        return "";
+    }
+
+    /**
+     * Method to set how long to wait for one of a project's endpoints to respond.
+     * @param projectName Name of project
+     * @param endpoint uri of endpoint
+     * @param timeout read timeout in milliseconds, 0 to learn it from the endpoint's response times
+     * @param model Supplied model to return data
+     * @return String representing view name
+     */
+    @RequestMapping(value = "/timeout", method = RequestMethod.POST)
+    public final String setReadTimeout(@PathVariable final String projectName,
+                                                       @RequestParam("url") final String endpoint,
+                                                       @RequestParam("timeout") final int timeout,
+                                                       final Model model)
+    {
+        String message = "";
+
+        if (StringUtils.isEmpty(endpoint))
+        {
+            message = "Missing endpoint";
+        }
+        else
+        {
+            checkProject(projectName);
+
+            if (manager.setReadTimeout(projectName, endpoint, timeout))
+            {
+                message = "endpoint '" + endpoint + "' read timeout set to " + timeout + "ms";
+            }
+            else
+            {
+                message = "Unknown endpoint";
+            }
+        }
+
+        if (logger.isDebugEnabled()) logger.debug(message);
+
+        model.addAttribute("message", message);
+        return "";
+    }
+
     /**
      * Flush caches for a given endpoint
      * @param projectName
@@ -33,23 +33,37 @@ package org.wf.arnos.controller;
 
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryParseException;
+import java.io.FilterWriter;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.wf.arnos.cachehandler.CacheHandlerInterface;
 import org.wf.arnos.controller.model.Endpoint;
 import org.wf.arnos.controller.model.ProjectsManager;
+import org.wf.arnos.exception.ArnosRuntimeException;
 import org.wf.arnos.exception.ResourceNotFoundException;
 import org.wf.arnos.logger.Logger;
+import org.wf.arnos.queryhandler.QueryFuture;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
+import org.wf.arnos.queryhandler.format.ResultFormat;
 
 /**
  *
@@ -58,6 +72,16 @@ import org.wf.arnos.queryhandler.QueryHandlerInterface;
 @Controller
 public class QueryController
 {
+    /**
+     * Response header listing the endpoints left out of a partial result.
+     */
+    public static final String MISSING_ENDPOINTS_HEADER = "X-Arnos-Missing-Endpoints";
+
+    /**
+     * Response header listing the endpoints skipped because their circuit breakers are open.
+     */
+    public static final String OPEN_CIRCUITS_HEADER = "X-Arnos-Open-Circuits";
+
     /**
      * Logger.
      */
@@ -82,33 +106,34 @@ public class QueryController
     @Autowired(required = false)
     public transient CacheHandlerInterface cacheHandler;
 
+    /**
+     * Federated queries being answered, by project, cache key and deadline.
+     */
+    private final transient ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
     /**
      * Primary SPARQL Endpoint of the arnos service. Runs the provided
      * query over all defined endpoints for that project.
      * @param projectName Name of project
      * @param query SPARQL Query
+     * @param timeout Optional deadline (ms) after which partial results are returned
+     * @param accept Accept header, choosing the format of SELECT and ASK results
      * @param writer Writer to send results to
+     * @param response Http response, used to flag partial results
      */
     @RequestMapping(value = "/{projectName}/query")
     public final void executeQueryAcrossAllEndpoints(@PathVariable final String projectName,
                                                  @RequestParam("query") final String query,
-                                                 final java.io.Writer writer)
+                                                 @RequestParam(value = "timeout", required = false) final Long timeout,
+                                                 @RequestHeader(value = "Accept", required = false) final String accept,
+                                                 final java.io.Writer writer,
+                                                 final HttpServletResponse response)
     {
         checkProject(projectName);
 
         List<Endpoint> endpoints = manager.getEndpoints(projectName);
 
-        String result = handleQuery(projectName, query, endpoints);
-
-        try
-        {
-            writer.append(result);
-            writer.flush();
-        }
-        catch (Exception e)
-        {
-            logger.error("Unable to write output", e);
-        }
+        writeQuery(projectName, query, endpoints, timeout, ResultFormat.negotiate(accept), writer, response);
     }
 
     /**
@@ -116,13 +141,19 @@ public class QueryController
      * @param projectName Name of project
      * @param endpointList set of endpoint ids seperated by plus symbol. E.g. id1+id2+id3
      * @param query SPARQL Query
+     * @param timeout Optional deadline (ms) after which partial results are returned
+     * @param accept Accept header, choosing the format of SELECT and ASK results
      * @param writer Writer to send results to
+     * @param response Http response, used to flag partial results
      */
     @RequestMapping(value = "/{projectName}/{endpointList}/query")
     public final void executeGetQuery(@PathVariable final String projectName,
                                                 @PathVariable final String endpointList,
                                                  @RequestParam("query") final String query,
-                                                 final java.io.Writer writer)
+                                                 @RequestParam(value = "timeout", required = false) final Long timeout,
+                                                 @RequestHeader(value = "Accept", required = false) final String accept,
+                                                 final java.io.Writer writer,
+                                                 final HttpServletResponse response)
     {
         checkProject(projectName);
 
@@ -143,17 +174,7 @@ public class QueryController
             }
         }
 
-        String result = handleQuery(projectName, query, endpointSubset);
-
-        try
-        {
-            writer.append(result);
-            writer.flush();
-        }
-        catch (Exception e)
-        {
-            logger.error("Unable to write output", e);
-        }
+        writeQuery(projectName, query, endpointSubset, timeout, ResultFormat.negotiate(accept), writer, response);
     }
 
     /**
@@ -197,7 +218,15 @@ public class QueryController
         {
             Endpoint ep = endpointSubset.get(0);
             logger.info("QueryType is SPARQL UPDATE");
-            result = queryHandler.handleUpdate(projectName, query, ep);
+            try
+            {
+                result = queryHandler.handleUpdate(projectName, query, ep);
+            }
+            catch (ArnosRuntimeException ex)
+            {
+                logger.error("Update failed", ex);
+                result = "<error>" + StringEscapeUtils.escapeXml(ex.getMessage()) + "</error>";
+            }
             // clear the cache elements for this project
             if (cacheHandler != null)
             {
@@ -225,30 +254,219 @@ public class QueryController
         // could this be limited to specific endpoint?
     }
 
+    /**
+     * Runs a query and writes its results.
+     * SELECT and ASK results are written in the format negotiated with the
+     * client, CONSTRUCT and DESCRIBE results as RDF/XML.
+     * @param projectName Name of project
+     * @param query SPARQL Query
+     * @param endpoints List of endpoints to run the query against
+     * @param timeout Deadline (ms) requested by the client, <code>null</code> to use the project's
+     * @param format Format of SELECT and ASK results
+     * @param writer Writer to send results to
+     * @param response Http response, may be <code>null</code>
+     */
+    private void writeQuery(final String projectName, final String query, final List<Endpoint> endpoints,
+            final Long timeout, final ResultFormat format, final java.io.Writer writer, final HttpServletResponse response)
+    {
+        // a query that can't be parsed is reported by handleQuery
+        Query parsed = null;
+        try
+        {
+            if (query != null) parsed = queryHandler.parseQuery(query);
+        }
+        catch (QueryParseException qpe)
+        {
+            logger.debug(qpe.getMessage());
+        }
+
+        if (parsed != null)
+        {
+            if (response != null)
+            {
+                boolean results = parsed.isSelectType() || parsed.isAskType();
+                response.setContentType(results ? format.getContentType() : ResultFormat.RDF_XML);
+            }
+
+            if (passThrough(projectName, query, parsed, endpoints, timeout, format, writer)) return;
+        }
+
+        handleQuery(projectName, query, endpoints, timeout, format, writer, response);
+    }
+
+    /**
+     * Copies the results of a query to a single endpoint straight from the
+     * endpoint to the writer, when they need no merging, see
+     * {@link QueryHandlerInterface#isPassThrough}.
+     * Results are only passed through without a deadline, since once written
+     * they can't be replaced with partial results. A result already cached is
+     * left to {@link #handleQuery}.
+     * @param project Name of project
+     * @param queryString SPARQL query to execute
+     * @param query The query, parsed
+     * @param endpoints List of endpoints to run the query against
+     * @param timeout Deadline (ms) requested by the client, <code>null</code> to use the project's
+     * @param format Format of SELECT and ASK results
+     * @param writer Writer to send results to
+     * @return <code>true</code> if the results were written
+     */
+    protected boolean passThrough(final String project, final String queryString, final Query query,
+            final List<Endpoint> endpoints, final Long timeout, final ResultFormat format, final java.io.Writer writer)
+    {
+        if (endpoints.size() != 1) return false;
+        if (getTimeout(project, timeout) > 0) return false;
+
+        if (!queryHandler.isPassThrough(query, endpoints)) return false;
+
+        if (cacheHandler != null && cacheHandler.contains(project, generateCacheKey(project, queryString, endpoints, format)))
+        {
+            return false;
+        }
+
+        return queryHandler.passThrough(project, query, endpoints.get(0), format, writer);
+    }
+
     /**
      * This implementation, simple contatinates all query results.
+     * The combined result is written to the client as the endpoints' results
+     * are merged, rather than built up as a string first.
+     * If the deadline passes before every endpoint has responded, the results
+     * received so far are returned, uncached, with the missing endpoints listed
+     * in the {@link #MISSING_ENDPOINTS_HEADER} response header. Endpoints skipped
+     * because their circuit breakers are open are listed in the
+     * {@link #OPEN_CIRCUITS_HEADER} response header, and the result isn't cached either.
+     * If the request thread stops waiting for any other reason, such as being
+     * interrupted when the client disconnects, the outstanding endpoint requests
+     * are cancelled.
+     * Identical queries missing the cache at the same time, with the same
+     * deadline, are answered once: the first request runs the query and the
+     * others wait for and share its result, headers included. Without a cache
+     * a copy of the result is only kept if another request is waiting for it by
+     * the time it's written, requests arriving after that run the query themselves.
      * @param queryString SPARQL query to execute
      * @param endpoints List of endpoint urls to run the query against
-     * @return An RDF model
+     * @param timeout Deadline (ms) requested by the client, <code>null</code> to use the project's
+     * @param format Format of SELECT and ASK results
+     * @param writer Writer to send results to
+     * @param response Http response, may be <code>null</code>
      */
-    protected final String handleQuery(final String project, final String queryString, List<Endpoint> endpoints)
+    protected final void handleQuery(final String project, final String queryString, final List<Endpoint> endpoints,
+            final Long timeout, final ResultFormat format, final java.io.Writer writer, final HttpServletResponse response)
     {
-        if (queryString == null) return "";
+        if (queryString == null) return;
 
-        String cacheString = generateCacheKey(project, queryString, endpoints);
+        if (writer == null)
+        {
+            logger.error("Unable to write output, no writer");
+            return;
+        }
+
+        final String cacheString = generateCacheKey(project, queryString, endpoints, format);
 
         if (cacheHandler != null && cacheHandler.contains(project, cacheString) )
         {
             logger.debug("Fetching result from cache");
-            return cacheHandler.get(project, cacheString);
+            write(writer, cacheHandler.get(project, cacheString));
+            return;
         }
 
-        String result = "";
-
         logger.info("Cache miss");
 
+        final long deadline = getTimeout(project, timeout);
+        String key = project + " " + deadline + " " + cacheString;
+
+        FederatedResult shared;
+        try
+        {
+            do
+            {
+                final Flight flight = new Flight();
+                flight.task = new FutureTask<FederatedResult>(new Callable<FederatedResult>()
+                {
+                    public FederatedResult call()
+                    {
+                        return executeQuery(project, queryString, endpoints, cacheString, deadline, format, writer, response,
+                                flight);
+                    }
+                });
+
+                Flight leader = inFlight.putIfAbsent(key, flight);
+                if (leader == null)
+                {
+                    try
+                    {
+                        flight.task.run();
+                    }
+                    finally
+                    {
+                        inFlight.remove(key, flight);
+                    }
+                    // the result has been written as it was merged
+                    flight.task.get();
+                    return;
+                }
+
+                if (!leader.follow())
+                {
+                    // the identical query is already being written without a copy to share
+                    logger.debug("Identical query already answering, running it again");
+                    executeQuery(project, queryString, endpoints, cacheString, deadline, format, writer, response, null);
+                    return;
+                }
+
+                logger.debug("Waiting for identical query");
+                shared = leader.task.get();
+            }
+            // the leading request was interrupted or kept no copy, so run the query again
+            while (shared.interrupted || shared.result == null);
+        }
+        catch (InterruptedException ie)
+        {
+            logger.warn("Interrupted while waiting for query results");
+            Thread.currentThread().interrupt();
+            write(writer, "<error>Query interrupted</error>");
+            return;
+        }
+        catch (ExecutionException ee)
+        {
+            // the query failed outright, as it would have without coalescing
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+            throw new ArnosRuntimeException(ee.getCause());
+        }
+
+        setHeaders(response, shared);
+        write(writer, shared.result);
+    }
+
+    /**
+     * Runs a query over its endpoints, writing the combined result as it is
+     * merged and caching it if it is complete.
+     * @param project Name of project
+     * @param queryString SPARQL query to execute
+     * @param endpoints List of endpoint urls to run the query against
+     * @param cacheString Key the result is cached under
+     * @param deadline Deadline (ms) after which partial results are returned, 0 to wait for every endpoint
+     * @param format Format of SELECT and ASK results
+     * @param writer Writer to send results to
+     * @param response Http response, may be <code>null</code>
+     * @param flight Identical requests sharing the result, <code>null</code> if not shared
+     * @return Which endpoints were left out, and a copy of the result if there's a cache or it's shared
+     */
+    private FederatedResult executeQuery(final String project, final String queryString, final List<Endpoint> endpoints,
+            final String cacheString, final long deadline, final ResultFormat format, final java.io.Writer writer,
+            final HttpServletResponse response, final Flight flight)
+    {
+        FederatedResult federated = new FederatedResult();
+
         logger.debug("Querying against " + endpoints.size() + " endpoints");
 
+        // a copy is only kept for the cache, and for identical queries waiting on this one
+        CopyingWriter out = new CopyingWriter(writer, cacheHandler != null);
+
+        // endpoints are queried in the background, this thread only waits for them and merges their results
+        QueryFuture pending = null;
+
         // process the SPARQL query to best determin how to handle this query
         try
         {
@@ -256,37 +474,275 @@ public class QueryController
 
             if (query.getQueryType() == Query.QueryTypeSelect)
             {
-                result = queryHandler.handleSelect(project, query, endpoints);
+                pending = queryHandler.handleSelectAsync(project, query, endpoints, format);
             }
             else if (query.getQueryType() == Query.QueryTypeConstruct)
             {
-                result = queryHandler.handleConstruct(project, query, endpoints);
+                pending = queryHandler.handleConstructAsync(project, query, endpoints);
             }
             else if (query.getQueryType() == Query.QueryTypeAsk)
             {
-                result = queryHandler.handleAsk(project, query, endpoints);
+                pending = queryHandler.handleAskAsync(project, query, endpoints, format);
             }
             else
             {
-                result = queryHandler.handleDescribe(project, query, endpoints);
+                pending = queryHandler.handleDescribeAsync(project, query, endpoints);
+            }
+
+            pending.settleWithin(deadline, TimeUnit.MILLISECONDS);
+
+            federated.openCircuits = pending.getOpenCircuits();
+            if (pending.isPartial())
+            {
+                federated.missingEndpoints = pending.getMissingEndpoints();
             }
 
+            // headers go before the first of the result, and which endpoints are
+            // missing isn't known until they settle, so nothing is written before then
+            setHeaders(response, federated);
+            if (flight != null && flight.startWriting()) out.keepCopy();
+
+            // already settled, so this only merges
+            pending.writeWithin(0, TimeUnit.MILLISECONDS, out);
+            out.flush();
+
+            if (pending.isPartial())
+            {
+                logger.debug("Not caching result, endpoints left out");
+            }
+            else if (!federated.openCircuits.isEmpty())
+            {
+                logger.debug("Not caching result, endpoints skipped");
+            }
             // put this result into the cache if available
-            if (cacheHandler != null)
+            else if (cacheHandler != null)
             {
                 logger.debug("Caching result");
-                cacheHandler.put(project, endpoints, cacheString, result);
+                cacheHandler.put(project, endpoints, cacheString, out.getCopy());
             }
         }
         catch (QueryParseException qpe)
         {
             logger.error(qpe.getMessage());
-            result = "<error>Unknown query type</error>";
+            write(out, "<error>Unknown query type</error>");
+        }
+        catch (InterruptedException ie)
+        {
+            logger.warn("Interrupted while waiting for query results");
+            Thread.currentThread().interrupt();
+            write(out, "<error>Query interrupted</error>");
+            federated.interrupted = true;
+        }
+        catch (ExecutionException ee)
+        {
+            logger.error("Unable to combine query results", ee.getCause());
+            write(out, "<error>Unable to combine query results</error>");
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Unable to write output", ioe);
+            out.discardCopy();
+        }
+        finally
+        {
+            // nobody is waiting for the result any more
+            if (pending != null && !pending.isDone()) pending.cancel(true);
+        }
+
+        federated.result = out.getCopy();
+        return federated;
+    }
+
+    /**
+     * Lists the endpoints left out of a result in the response headers.
+     * @param response Http response, may be <code>null</code>
+     * @param federated Result of the query
+     */
+    private void setHeaders(final HttpServletResponse response, final FederatedResult federated)
+    {
+        if (response == null) return;
+
+        if (!federated.openCircuits.isEmpty())
+        {
+            response.setHeader(OPEN_CIRCUITS_HEADER, StringUtils.join(federated.openCircuits.iterator(), ", "));
+        }
+        if (!federated.missingEndpoints.isEmpty())
+        {
+            response.setHeader(MISSING_ENDPOINTS_HEADER, StringUtils.join(federated.missingEndpoints.iterator(), ", "));
+        }
+    }
+
+    /**
+     * Writes a string to the client.
+     * @param writer Writer to send results to
+     * @param s String to write
+     */
+    private void write(final java.io.Writer writer, final String s)
+    {
+        try
+        {
+            writer.append(s);
+            writer.flush();
+        }
+        catch (Exception e)
+        {
+            logger.error("Unable to write output", e);
+        }
+    }
+
+    /**
+     * The result of a federated query, shared by identical requests.
+     */
+    private static final class FederatedResult
+    {
+        /**
+         * Copy of the combined result, <code>null</code> if none was kept.
+         */
+        private String result = null;
+
+        /**
+         * Endpoints left out because the deadline passed.
+         */
+        private List<String> missingEndpoints = Collections.emptyList();
+
+        /**
+         * Endpoints skipped because their circuit breakers are open.
+         */
+        private List<String> openCircuits = Collections.emptyList();
+
+        /**
+         * Set if the request running the query was interrupted.
+         */
+        private boolean interrupted = false;
+    }
+
+    /**
+     * A federated query being answered, and whether identical requests are
+     * waiting to share its result.
+     */
+    private static final class Flight
+    {
+        /**
+         * Runs the query.
+         */
+        private FutureTask<FederatedResult> task;
+
+        /**
+         * Set once an identical request is waiting for the result.
+         */
+        private boolean followed = false;
+
+        /**
+         * Set once the result has started to be written.
+         */
+        private boolean writing = false;
+
+        /**
+         * Waits on the result, if a copy of it can still be kept.
+         * @return <code>true</code> if the result will be shared, <code>false</code>
+         * if it's already being written without a copy
+         */
+        synchronized boolean follow()
+        {
+            if (writing && !followed) return false;
+            followed = true;
+            return true;
         }
 
-        return result;
+        /**
+         * Marks the result as being written, after which no copy can be started.
+         * @return <code>true</code> if a copy must be kept for the requests waiting on it
+         */
+        synchronized boolean startWriting()
+        {
+            writing = true;
+            return followed;
+        }
     }
 
+    /**
+     * Passes the result through to the client, optionally keeping a copy.
+     */
+    private static final class CopyingWriter extends FilterWriter
+    {
+        /**
+         * Copy of everything written, <code>null</code> if not kept.
+         */
+        private StringBuilder copy;
+
+        /**
+         * Constructor.
+         * @param out Writer to send results to
+         * @param keepCopy Whether to keep a copy of the result
+         */
+        CopyingWriter(final java.io.Writer out, final boolean keepCopy)
+        {
+            super(out);
+            if (keepCopy) copy = new StringBuilder();
+        }
+
+        @Override
+        public void write(final int c) throws IOException
+        {
+            out.write(c);
+            if (copy != null) copy.append((char) c);
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException
+        {
+            out.write(cbuf, off, len);
+            if (copy != null) copy.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException
+        {
+            out.write(str, off, len);
+            if (copy != null) copy.append(str, off, off + len);
+        }
+
+        /**
+         * Starts keeping a copy, before anything has been written.
+         */
+        void keepCopy()
+        {
+            if (copy == null) copy = new StringBuilder();
+        }
+
+        /**
+         * Stops keeping a copy, as the result didn't reach the client.
+         */
+        void discardCopy()
+        {
+            copy = null;
+        }
+
+        /**
+         * @return Copy of everything written, <code>null</code> if not kept
+         */
+        String getCopy()
+        {
+            return copy == null ? null : copy.toString();
+        }
+    }
+
+    /**
+     * Works out how long to wait for endpoints, preferring the request's deadline,
+     * then the project's, then the query handler's default.
+     * @param project Name of project
+     * @param timeout Deadline (ms) requested by the client, may be <code>null</code>
+     * @return Deadline in milliseconds, 0 to wait for every endpoint
+     */
+    protected long getTimeout(final String project, final Long timeout)
+    {
+        if (timeout != null && timeout > 0) return timeout;
+
+        long projectTimeout = manager.getTimeout(project);
+        if (projectTimeout > 0) return projectTimeout;
+
+        return queryHandler.getDefaultTimeout();
+    }
 
     /**
      * Checks for the existance of the project, throwing a runtime exception
@@ -353,4 +809,21 @@ public class QueryController
 
         return cacheString;
     }
+
+    /**
+     * Generates a unique key for this request, in a given format.
+     * XML results keep the key they've always had.
+     * @param project
+     * @param queryString
+     * @param endpoints
+     * @param format Format of SELECT and ASK results
+     * @return
+     */
+    protected String generateCacheKey(final String project, final String queryString, List<Endpoint> endpoints,
+            final ResultFormat format)
+    {
+        String cacheString = generateCacheKey(project, queryString, endpoints);
+        if (format == ResultFormat.XML) return cacheString;
+        return cacheString + " " + format;
+    }
 }
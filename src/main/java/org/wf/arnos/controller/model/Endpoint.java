@@ -32,6 +32,8 @@
 package org.wf.arnos.controller.model;
 
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -49,6 +51,16 @@ public class Endpoint implements Comparable<Endpoint>
      */
     private String id = "";
 
+    /**
+     * Locations of other endpoints serving the same dataset.
+     */
+    private List<String> replicas;
+
+    /**
+     * How long to wait for this endpoint to respond (ms), 0 to learn it from its response times.
+     */
+    private int readTimeout = 0;
+
     /**
      * The digest algorithm used to generate the id.
      */
@@ -87,6 +99,56 @@ public class Endpoint implements Comparable<Endpoint>
     public Endpoint(final String uri)
     {
         setLocation(uri);
+        replicas = new ArrayList<String>();
+    }
+
+    /**
+     * Returns the locations of other endpoints serving the same dataset, which
+     * may answer this endpoint's queries in its place.
+     * @return the replica URIs, empty if there are none
+     */
+    public final List<String> getReplicas()
+    {
+        // models persisted before replicas were introduced load without a list
+        if (replicas == null) replicas = new ArrayList<String>();
+        return replicas;
+    }
+
+    /**
+     * Adds a replica of this endpoint.
+     * @param uri Replica URI
+     */
+    public final void addReplica(final String uri)
+    {
+        if (!uri.equals(location) && !getReplicas().contains(uri))
+        {
+            replicas.add(uri);
+        }
+    }
+
+    /**
+     * Removes a replica of this endpoint.
+     * @param uri Replica URI
+     */
+    public final void removeReplica(final String uri)
+    {
+        getReplicas().remove(uri);
+    }
+
+    /**
+     * @return the read timeout in milliseconds, 0 if it is learned from the endpoint's response times
+     */
+    public final int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * @param ms the read timeout in milliseconds, 0 to learn it from the endpoint's response times
+     */
+    public final void setReadTimeout(final int ms)
+    {
+        this.readTimeout = Math.max(0, ms);
     }
 
     /**
@@ -52,6 +52,11 @@ public class Project
      */
     private String name;
 
+    /**
+     * Time (ms) to wait for endpoints before returning partial results, 0 for the default.
+     */
+    private long timeout;
+
     /**
      * @return the endpoints
      */
@@ -84,6 +89,22 @@ public class Project
         this.name = paramName;
     }
 
+    /**
+     * @return the query deadline in milliseconds, 0 if the default is used
+     */
+    public final long getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * @param ms the query deadline in milliseconds, 0 to use the default
+     */
+    public final void setTimeout(final long ms)
+    {
+        this.timeout = ms;
+    }
+
     /**
      * Default constructor which takes a project name.
      * @param paramName Name of project (should be unique)
@@ -120,6 +141,57 @@ public class Project
         }
     }
 
+    /**
+     * Declares a replica of one of this project's endpoints.
+     * @param uri Endpoint URI
+     * @param replicaUri URI of an endpoint serving the same dataset
+     * @return <code>true</code> if the endpoint is part of this project
+     */
+    public final boolean addReplica(final String uri, final String replicaUri)
+    {
+        Endpoint e = getEndpoint(uri);
+        if (e == null) return false;
+        e.addReplica(replicaUri);
+        return true;
+    }
+
+    /**
+     * Removes a replica of one of this project's endpoints.
+     * @param uri Endpoint URI
+     * @param replicaUri Replica URI
+     */
+    public final void removeReplica(final String uri, final String replicaUri)
+    {
+        Endpoint e = getEndpoint(uri);
+        if (e != null) e.removeReplica(replicaUri);
+    }
+
+    /**
+     * Sets how long to wait for one of this project's endpoints to respond.
+     * @param uri Endpoint URI
+     * @param ms Read timeout in milliseconds, 0 to learn it from the endpoint's response times
+     * @return <code>true</code> if the endpoint is part of this project
+     */
+    public final boolean setReadTimeout(final String uri, final int ms)
+    {
+        Endpoint e = getEndpoint(uri);
+        if (e == null) return false;
+        e.setReadTimeout(ms);
+        return true;
+    }
+
+    /**
+     * Looks up one of this project's endpoints.
+     * @param uri Endpoint URI
+     * @return the endpoint, <code>null</code> if it isn't part of this project
+     */
+    private Endpoint getEndpoint(final String uri)
+    {
+        int i = endpoints.indexOf(new Endpoint(uri));
+        if (i < 0) return null;
+        return endpoints.get(i);
+    }
+
     @Override
     public final boolean equals(final Object obj)
     {
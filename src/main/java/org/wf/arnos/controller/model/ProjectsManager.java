@@ -256,6 +256,61 @@ public class ProjectsManager
         save();
     }
 
+    /**
+     * Declares a replica of one of a managed project's endpoints.
+     * @param projectName Project name
+     * @param uri Endpoint location
+     * @param replicaUri Location of an endpoint serving the same dataset
+     * @return <code>true</code> if the endpoint is part of the project
+     */
+    public final boolean addReplica(final String projectName, final String uri, final String replicaUri)
+    {
+        Project p = getProject(projectName);
+
+        if (p == null) return false;
+
+        if (!p.addReplica(uri, replicaUri)) return false;
+
+        save();
+        return true;
+    }
+
+    /**
+     * Removes a replica of one of a managed project's endpoints.
+     * @param projectName Project name
+     * @param uri Endpoint location
+     * @param replicaUri Replica location to remove
+     */
+    public final void removeReplica(final String projectName, final String uri, final String replicaUri)
+    {
+        Project p = getProject(projectName);
+
+        if (p == null) return;
+
+        p.removeReplica(uri, replicaUri);
+
+        save();
+    }
+
+    /**
+     * Sets how long to wait for one of a managed project's endpoints to respond.
+     * @param projectName Project name
+     * @param uri Endpoint location
+     * @param ms Read timeout in milliseconds, 0 to learn it from the endpoint's response times
+     * @return <code>true</code> if the project has the endpoint
+     */
+    public final boolean setReadTimeout(final String projectName, final String uri, final int ms)
+    {
+        Project p = getProject(projectName);
+
+        if (p == null) return false;
+
+        if (!p.setReadTimeout(uri, ms)) return false;
+
+        save();
+        return true;
+    }
+
     /**
      * Gets the list of endpoints for a given project.
      * @param projectName Project name
@@ -270,6 +325,36 @@ public class ProjectsManager
         return p.getEndpoints();
     }
 
+    /**
+     * Gets the query deadline for a given project.
+     * @param projectName Project name
+     * @return Deadline in milliseconds, 0 if the project doesn't set one
+     */
+    public final long getTimeout(final String projectName)
+    {
+        Project p = getProject(projectName);
+
+        if (p == null) return 0;
+
+        return p.getTimeout();
+    }
+
+    /**
+     * Sets how long queries across a project's endpoints wait before returning partial results.
+     * @param projectName Project name
+     * @param ms Deadline in milliseconds, 0 to use the default
+     */
+    public final void setTimeout(final String projectName, final long ms)
+    {
+        Project p = getProject(projectName);
+
+        if (p == null) return;
+
+        p.setTimeout(ms);
+
+        save();
+    }
+
     /**
      * Returns the number of managed projects.
      * @return number of projects
@@ -32,11 +32,10 @@
 package org.wf.arnos.controller.model.sparql;
 
 import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.QuerySolution;
-import com.hp.hpl.jena.rdf.model.Literal;
-import com.hp.hpl.jena.rdf.model.RDFNode;
-import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.core.Var;
 import com.hp.hpl.jena.sparql.engine.binding.Binding;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -45,6 +44,8 @@ import org.apache.commons.lang.StringUtils;
 
 /**
  * A single SPARQL SELECT query result.
+ * The xml for each value is only rendered when it's first asked for, so results
+ * that are only sorted, merged or stored don't pay for it.
  * @author Chris Bailey (c.bailey@bristol.ac.uk)
  */
 public class Result
@@ -62,7 +63,17 @@ public class Result
     {
         return binding;
     }
-    
+
+    /**
+     * Dictionary holding the rendered terms, <code>null</code> to render them here.
+     */
+    private final transient TermDictionary dictionary;
+
+    /**
+     * Whether the bindings and values have been rendered.
+     */
+    private transient boolean rendered = false;
+
     /**
      * Bindings array.
      */
@@ -79,6 +90,7 @@ public class Result
      */
     public final List<String> getValues()
     {
+        render();
         return values;
     }
 
@@ -90,63 +102,103 @@ public class Result
      */
     private static final int DEFAULT_SB_LENGTH = 52;
 
+    /**
+     * URI of the integer datatype, as lowercase.
+     */
+    private static final String XSD_INTEGER = "http://www.w3.org/2001/xmlschema#integer";
+
     /**
      * Constructor which uses the provided query solution to form an internal model of this result.
      * @param sol Result to process
      */
     public Result(final QuerySolution sol)
     {
-        binding = ((ResultBinding) sol).getBinding();
+        this(((ResultBinding) sol).getBinding(), null);
+    }
 
-        Iterator vars = sol.varNames();
+    /**
+     * Constructor for a result read from a table, rendering its terms through
+     * the table's dictionary.
+     * @param paramBinding Binding of the result
+     * @param paramDictionary Dictionary holding the rendered terms, <code>null</code> to render them here
+     */
+    Result(final Binding paramBinding, final TermDictionary paramDictionary)
+    {
+        binding = paramBinding;
+        dictionary = paramDictionary;
+
+        Iterator<Var> vars = binding.vars();
         while (vars.hasNext())
         {
-            String var = vars.next().toString();
+            Node n = binding.get(vars.next());
+            if (n == null || !n.isLiteral()) continue;
 
-            bindings.add(escapeXMLEntities(var));
-
-            RDFNode n = sol.get(var);
-
-            if (n.isLiteral())
+            RDFDatatype dt = n.getLiteralDatatype();
+            if (dt != null && dt.getURI().toLowerCase().equals(XSD_INTEGER))
             {
-                StringBuffer lit = new StringBuffer(DEFAULT_SB_LENGTH);
-                lit.append("<literal");
-                
-                RDFDatatype dt = n.asNode().getLiteralDatatype();
-                String lang = n.asNode().getLiteralLanguage();
-                
-                if (dt != null && StringUtils.isNotEmpty(dt.toString()))
+                try
                 {
-                    lit.append(" datatype=\""+dt.getURI()+"\"");
-                    if (dt.getURI().toLowerCase().equals("http://www.w3.org/2001/xmlschema#integer"))
-                    {
-                        String s = ((Literal) n).getLexicalForm().toString();
-                        try
-                        {
-                            count = Integer.parseInt(s);
-                        }
-                        catch (NumberFormatException nfe) {}
-                    }
+                    count = Integer.parseInt(n.getLiteralLexicalForm());
                 }
-                if (StringUtils.isNotEmpty(lang))
-                {
-                    lit.append(" xml:lang=\""+lang+"\"");
-                }
-                
-                 lit.append(">" + escapeXMLEntities(((Literal) n).getLexicalForm()) + "</literal>");
-
-                 values.add(lit.toString());
+                catch (NumberFormatException nfe) {}
             }
-            else if (n.isURIResource())
+        }
+    }
+
+    /**
+     * Renders the bindings and values, the first time they're needed.
+     */
+    private synchronized void render()
+    {
+        if (rendered) return;
+
+        Iterator<Var> vars = binding.vars();
+        while (vars.hasNext())
+        {
+            Var var = vars.next();
+            Node n = binding.get(var);
+            if (n == null) continue;
+
+            bindings.add(escapeXMLEntities(var.getVarName()));
+            values.add(dictionary == null ? toXML(n) : dictionary.toXML(n));
+        }
+        rendered = true;
+    }
+
+    /**
+     * Renders a single term as a SPARQL results xml value.
+     * @param n Term
+     * @return XML string
+     */
+    public static String toXML(final Node n)
+    {
+        if (n.isLiteral())
+        {
+            StringBuffer lit = new StringBuffer(DEFAULT_SB_LENGTH);
+            lit.append("<literal");
+
+            RDFDatatype dt = n.getLiteralDatatype();
+            String lang = n.getLiteralLanguage();
+
+            if (dt != null && StringUtils.isNotEmpty(dt.toString()))
             {
-                values.add("<uri>" + escapeXMLEntities(((Resource) n).getURI()) + "</uri>");
+                lit.append(" datatype=\""+dt.getURI()+"\"");
             }
-            else
+            if (StringUtils.isNotEmpty(lang))
             {
-                // is a blank node
-                values.add("<bnode>" + ((Resource) n).asNode().getBlankNodeLabel() + "</bnode>");
+                lit.append(" xml:lang=\""+lang+"\"");
             }
+
+            lit.append(">" + escapeXMLEntities(n.getLiteralLexicalForm()) + "</literal>");
+            return lit.toString();
         }
+        else if (n.isURI())
+        {
+            return "<uri>" + escapeXMLEntities(n.getURI()) + "</uri>";
+        }
+
+        // is a blank node
+        return "<bnode>" + n.getBlankNodeLabel() + "</bnode>";
     }
 
     /**
@@ -155,6 +207,8 @@ public class Result
      */
     public final String toXML()
     {
+        render();
+
         StringBuffer representation = new StringBuffer(DEFAULT_SB_LENGTH);
 
         representation.append("<result>");
@@ -185,13 +239,15 @@ public class Result
 
         Result other = (Result) obj;
 
-        if (this.values.equals(other.getValues())) return true;
+        if (this.getValues().equals(other.getValues())) return true;
         return false;
     }
 
     @Override
     public int hashCode()
     {
+        render();
+
         int hash = 5;
         hash = 61 * hash + this.bindings.hashCode();
         hash = 61 * hash + this.values.hashCode();
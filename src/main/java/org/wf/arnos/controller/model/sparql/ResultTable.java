@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.controller.model.sparql;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A table of SELECT results, held by column.
+ * Each variable is a column of term ids from the table's own
+ * {@link TermDictionary}, so a result takes up an int per variable rather
+ * than a Result object with its own copy of every term. Results are only
+ * created again as they're read, and setting a result re-encodes it, so the
+ * table can be sorted in place.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class ResultTable extends AbstractList<Result>
+{
+    /**
+     * Id of a variable left unbound.
+     */
+    private static final int UNBOUND = -1;
+
+    /**
+     * Rows allocated when the first result is added.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Terms used by the table.
+     */
+    private final TermDictionary dictionary = new TermDictionary();
+
+    /**
+     * Variables, in the order their columns were added.
+     */
+    private final List<Var> vars = new ArrayList<Var>();
+
+    /**
+     * Term ids of each variable, indexed by row.
+     */
+    private final List<int[]> columns = new ArrayList<int[]>();
+
+    /**
+     * Rows allocated in each column.
+     */
+    private int capacity = 0;
+
+    /**
+     * Number of rows.
+     */
+    private int rows = 0;
+
+    /**
+     * Adds a result to the end of the table.
+     * @param r Result
+     * @return <code>true</code>
+     */
+    @Override
+    public boolean add(final Result r)
+    {
+        if (rows == capacity) grow();
+        encode(rows, r.getBinding());
+        rows++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Returns the result in a row.
+     * @param index Row
+     * @return Result
+     */
+    @Override
+    public Result get(final int index)
+    {
+        checkIndex(index);
+
+        BindingMap b = new BindingMap();
+        for (int c = 0; c < vars.size(); c++)
+        {
+            int id = columns.get(c)[index];
+            if (id != UNBOUND) b.add(vars.get(c), dictionary.term(id));
+        }
+        return new Result(b, dictionary);
+    }
+
+    /**
+     * Replaces the result in a row.
+     * @param index Row
+     * @param r Result
+     * @return The result replaced
+     */
+    @Override
+    public Result set(final int index, final Result r)
+    {
+        Result previous = get(index);
+        encode(index, r.getBinding());
+        return previous;
+    }
+
+    @Override
+    public int size()
+    {
+        return rows;
+    }
+
+    /**
+     * Removes all the results and the terms they used.
+     */
+    @Override
+    public void clear()
+    {
+        vars.clear();
+        columns.clear();
+        dictionary.clear();
+        capacity = 0;
+        rows = 0;
+        modCount++;
+    }
+
+    /**
+     * @return Number of distinct terms in the table
+     */
+    public int getTerms()
+    {
+        return dictionary.size();
+    }
+
+    /**
+     * @return Estimated bytes held by the table
+     */
+    public long getEstimatedSize()
+    {
+        return 4L * capacity * columns.size() + dictionary.getEstimatedSize();
+    }
+
+    /**
+     * Writes a binding's term ids into a row.
+     * @param row Row
+     * @param b Binding
+     */
+    private void encode(final int row, final Binding b)
+    {
+        for (int c = 0; c < columns.size(); c++) columns.get(c)[row] = UNBOUND;
+
+        Iterator<Var> it = b.vars();
+        while (it.hasNext())
+        {
+            Var var = it.next();
+            Node n = b.get(var);
+            if (n != null) columns.get(column(var))[row] = dictionary.id(n);
+        }
+    }
+
+    /**
+     * Returns the column of a variable, adding it if it's new.
+     * @param var Variable
+     * @return Column
+     */
+    private int column(final Var var)
+    {
+        int c = vars.indexOf(var);
+        if (c >= 0) return c;
+
+        int[] column = new int[capacity];
+        for (int i = 0; i < capacity; i++) column[i] = UNBOUND;
+        vars.add(var);
+        columns.add(column);
+        return vars.size() - 1;
+    }
+
+    /**
+     * Doubles the rows allocated in each column.
+     */
+    private void grow()
+    {
+        int newCapacity = capacity == 0 ? INITIAL_CAPACITY : capacity * 2;
+        for (int c = 0; c < columns.size(); c++)
+        {
+            int[] column = new int[newCapacity];
+            System.arraycopy(columns.get(c), 0, column, 0, capacity);
+            for (int i = capacity; i < newCapacity; i++) column[i] = UNBOUND;
+            columns.set(c, column);
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Checks a row exists.
+     * @param index Row
+     */
+    private void checkIndex(final int index)
+    {
+        if (index < 0 || index >= rows)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rows);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.controller.model.sparql;
+
+import com.hp.hpl.jena.graph.Node;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoding of RDF terms.
+ * Each distinct term is given an integer id, so a table of results holds ids
+ * rather than a copy of every term, and each term's xml is rendered once
+ * however many results it appears in.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class TermDictionary
+{
+    /**
+     * Estimated bytes per term, besides its characters.
+     */
+    private static final int TERM_OVERHEAD = 120;
+
+    /**
+     * Id of each term.
+     */
+    private final Map<Node, Integer> ids = new HashMap<Node, Integer>();
+
+    /**
+     * Terms, indexed by id.
+     */
+    private final List<Node> terms = new ArrayList<Node>();
+
+    /**
+     * Rendered xml of each term, indexed by id, <code>null</code> until first asked for.
+     */
+    private final List<String> rendered = new ArrayList<String>();
+
+    /**
+     * Estimated bytes held.
+     */
+    private long estimatedSize = 0;
+
+    /**
+     * Returns the id of a term, adding it if it's new.
+     * @param n Term
+     * @return Id of the term
+     */
+    public synchronized int id(final Node n)
+    {
+        Integer id = ids.get(n);
+        if (id != null) return id.intValue();
+
+        int next = terms.size();
+        ids.put(n, Integer.valueOf(next));
+        terms.add(n);
+        rendered.add(null);
+        estimatedSize += estimate(n);
+        return next;
+    }
+
+    /**
+     * Returns the term with the given id.
+     * @param id Id of the term
+     * @return Term
+     */
+    public synchronized Node term(final int id)
+    {
+        return terms.get(id);
+    }
+
+    /**
+     * Returns the xml for the term with the given id, rendering it the first time.
+     * @param id Id of the term
+     * @return XML string
+     */
+    public synchronized String toXML(final int id)
+    {
+        String xml = rendered.get(id);
+        if (xml == null)
+        {
+            xml = Result.toXML(terms.get(id));
+            rendered.set(id, xml);
+            estimatedSize += 2L * xml.length();
+        }
+        return xml;
+    }
+
+    /**
+     * Returns the xml for a term, adding it if it's new.
+     * @param n Term
+     * @return XML string
+     */
+    public synchronized String toXML(final Node n)
+    {
+        return toXML(id(n));
+    }
+
+    /**
+     * @return Number of distinct terms
+     */
+    public synchronized int size()
+    {
+        return terms.size();
+    }
+
+    /**
+     * @return Estimated bytes held by the dictionary
+     */
+    public synchronized long getEstimatedSize()
+    {
+        return estimatedSize;
+    }
+
+    /**
+     * Removes all the terms.
+     */
+    public synchronized void clear()
+    {
+        ids.clear();
+        terms.clear();
+        rendered.clear();
+        estimatedSize = 0;
+    }
+
+    /**
+     * Estimates the bytes a term takes up in memory.
+     * @param n Term
+     * @return Estimated bytes
+     */
+    public static long estimate(final Node n)
+    {
+        String s;
+        if (n.isLiteral()) s = n.getLiteralLexicalForm();
+        else if (n.isURI()) s = n.getURI();
+        else if (n.isBlank()) s = n.getBlankNodeLabel();
+        else s = n.toString();
+
+        // two bytes a character
+        return TERM_OVERHEAD + 2L * s.length();
+    }
+}
@@ -21,7 +21,10 @@ import com.hp.hpl.jena.sparql.expr.E_Aggregator;
 import com.hp.hpl.jena.sparql.expr.Expr;
 import com.hp.hpl.jena.sparql.expr.aggregate.Aggregator;
 import com.hp.hpl.jena.sparql.function.FunctionEnvBase;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -30,6 +33,14 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wf.arnos.controller.model.Endpoint;
 import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.controller.model.sparql.ResultTable;
+import org.wf.arnos.queryhandler.format.ResultFormat;
+import org.wf.arnos.queryhandler.format.ResultsWriter;
+import org.wf.arnos.queryhandler.merge.DistinctResults;
+import org.wf.arnos.queryhandler.merge.MemoryBudget;
+import org.wf.arnos.queryhandler.merge.ResultComparator;
+import org.wf.arnos.queryhandler.merge.SpillFile;
+import org.wf.arnos.queryhandler.merge.SpillingResults;
 
 /**
  *
@@ -51,17 +62,19 @@ public class ARQExtensionHandler extends ThreadedQueryHandler
     }
 
     /**
-     * This method overrides the default handleSelect to parse count queries to the handleCountQuery function
+     * This method overrides the default handleSelectAsync to parse count queries to the handleCountQueryAsync function
      * @param projectName Name of project
      * @param query SPARQL SELECT query
      * @param endpoints List of endpoints to query over
-     * @return Response string
+     * @param format Format to write the results in
+     * @return Future response string
      */
     @Override
-    public final String handleSelect(final String projectName, final Query query, final List<Endpoint> endpoints)
+    public final QueryFuture handleSelectAsync(final String projectName, final Query query, final List<Endpoint> endpoints,
+            final ResultFormat format)
     {
-        if (isCountQuery(query)) return handleCountQuery(projectName, query, endpoints);
-        else return super.handleSelect(projectName, query, endpoints);
+        if (isCountQuery(query)) return handleCountQueryAsync(projectName, query, endpoints, format);
+        else return super.handleSelectAsync(projectName, query, endpoints, format);
     }
 
     /**
@@ -72,11 +85,57 @@ public class ARQExtensionHandler extends ThreadedQueryHandler
      * @return
      */
     public String handleCountQuery(final String projectName, final Query query, final List<Endpoint> endpoints) {
+        return waitFor(handleCountQueryAsync(projectName, query, endpoints));
+    }
+
+    /**
+     * This method handles the ARQ count extensions, without waiting for the endpoints to respond.
+     * @param projectName Name of project
+     * @param query
+     * @param endpoints
+     * @return
+     */
+    public QueryFuture handleCountQueryAsync(final String projectName, final Query query, final List<Endpoint> endpoints) {
+        return handleCountQueryAsync(projectName, query, endpoints, ResultFormat.XML);
+    }
+
+    /**
+     * This method handles the ARQ count extensions, without waiting for the endpoints to respond.
+     * @param projectName Name of project
+     * @param query
+     * @param endpoints
+     * @param format Format to write the results in
+     * @return
+     */
+    public QueryFuture handleCountQueryAsync(final String projectName, final Query query, final List<Endpoint> endpoints,
+            final ResultFormat format) {
         LOG.info("handling SELECT (count)");
-                
-        List<Result> selectResultList = fetchResultSetAndWait(projectName, query, endpoints);
-        
-        StringBuffer content = new StringBuffer(DEFAULT_SB_LENGTH);
+
+        final List<Collection<Result>> endpointResults = new ArrayList<Collection<Result>>();
+        final MemoryBudget budget = createBudget();
+
+        return fetchResultSet(projectName, query, endpoints, endpointResults, budget, new ResponseWriter()
+        {
+            public void write(final Writer out) throws IOException
+            {
+                writeCountResults(query, endpointResults, budget, format.createWriter(out));
+            }
+        });
+    }
+
+    /**
+     * Totals up the results of a count query across all endpoints.
+     * Groups, and the grouped results, are spilled to disk if over the query's memory budget.
+     * @param query
+     * @param endpointResults Results of each endpoint
+     * The response is written as the grouped results are read back.
+     * @param budget The query's memory budget
+     * @param out Writer to send the response to
+     * @throws IOException thrown if the response can't be written
+     */
+    protected void writeCountResults(final Query query, final List<Collection<Result>> endpointResults,
+            final MemoryBudget budget, final ResultsWriter out) throws IOException {
+        Collection<Result> selectResultList;
         
         Map<Var, Agg> aggregators = new HashMap<Var, Agg>();
         for (Var var: query.getProject().getVars()) {
@@ -87,32 +146,23 @@ public class ARQExtensionHandler extends ThreadedQueryHandler
             }
         }
         
-        Grouper grouper = new Grouper(query.getGroupBy(), aggregators);
+        Grouper grouper = new Grouper(query.getGroupBy(), aggregators, budget);
         
-        for (Result r: selectResultList) {
-            grouper.group(r);
+        for (Collection<Result> results: endpointResults) {
+            for (Result r: results) {
+                grouper.group(r);
+            }
+            results.clear();
         }
         
-        selectResultList = new ArrayList<Result>();
-        Model solModel = ModelFactory.createDefaultModel();
-        for (Binding b: grouper.results.values()) {
-            Result r = new Result(new ResultBinding(solModel, b));
-            selectResultList.add(r);
+        if (budget.isLimited()) {
+            selectResultList = new SpillingResults(budget, query.hasOrderBy() ? new ResultComparator(query.getOrderBy()) : null);
+        } else {
+            selectResultList = new ResultTable();
         }
+        grouper.emit(selectResultList);
         
         
-        content.append("<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\"><head>");
-        
-        // add head info
-        List<String> vars = query.getResultVars();
-        for (String var : vars)
-        {
-            content.append("<variable name=\"");
-            content.append(Result.escapeXMLEntities(var));
-            content.append("\"/>");
-        }
-        content.append("</head><results>");
-
         // collate all responses
         boolean hasLimit = false;
         boolean distinct = false;
@@ -129,46 +179,39 @@ public class ARQExtensionHandler extends ThreadedQueryHandler
             distinct = true;
         }
 
-        if (query.hasOrderBy())
+        // spilled results are already sorted as they're read
+        if (query.hasOrderBy() && selectResultList instanceof List)
         {
-            sortResults(selectResultList, query.getOrderBy());
+            sortResults((List<Result>) selectResultList, query.getOrderBy());
         }
 
-        for (int i = 0; i < selectResultList.size(); i++)
+        List<String> vars = query.getResultVars();
+        DistinctResults distinctRows = null;
+        try
         {
-            Result r = selectResultList.get(i);
-            boolean add = true;
+            out.start(vars);
 
-            if (!hasLimit || limit > 0)
-            {
-                if (hasLimit) limit--;
-            }
-            else
+            Iterator<Result> rows = selectResultList.iterator();
+            if (distinct)
             {
-                add = false;
+                if (query.hasOrderBy()) distinctRows = new DistinctResults(rows, vars, new ResultComparator(query.getOrderBy()));
+                else distinctRows = new DistinctResults(rows, vars, budget);
+                rows = distinctRows;
             }
 
-            if (distinct)
+            while (rows.hasNext() && (!hasLimit || limit > 0))
             {
-                // check a duplicate result hasn't already been added
-                boolean match = false;
-                for (int j = 0; j < i; j++)
-                {
-                    if (r.equals(selectResultList.get(j))) match = true;
-                }
-                if (match) add = false;
+                if (hasLimit) limit--;
+                out.write(rows.next());
             }
 
-            if (add) content.append(r.toXML());
+            out.finish();
+        }
+        finally
+        {
+            if (distinctRows != null) distinctRows.close();
+            selectResultList.clear();
         }
-
-        content.append("</results></sparql>");
-
-        selectResultList.clear();
-
-        LOG.debug("Returning string: "+content.toString());
-        
-        return content.toString();
     }
 
     /**
@@ -181,26 +224,107 @@ public class ARQExtensionHandler extends ThreadedQueryHandler
         return q.hasAggregators();
     }
     
+    /**
+     * Combines the results of each group.
+     * Once the query's memory budget runs out, the groups so far and every
+     * result after are spilled to files partitioned by group, and each
+     * partition is grouped in turn. A group's partial totals are combined
+     * again like any other result, so each group's total comes out the same.
+     */
     static class Grouper {
         
+        private static final int PARTITIONS = 16;
+        
         private final Map<String, Binding> results = new HashMap<String, Binding>();
         private final List<Var> vars;
         private final Map<Var, Agg> aggs;
+        private final MemoryBudget budget;
+        private final Model model = ModelFactory.createDefaultModel();
+        private long held = 0;
+        private SpillFile[] partitions = null;
+        private boolean emitting = false;
               
         public Grouper(VarExprList groupExpr, Map<Var, Agg> aggs) {
+            this(groupExpr, aggs, null);
+        }
+        
+        public Grouper(VarExprList groupExpr, Map<Var, Agg> aggs, MemoryBudget budget) {
             this.vars = groupExpr.getVars();
             this.aggs = aggs;
+            this.budget = budget != null && budget.isLimited() ? budget : null;
+            if (this.budget != null) this.budget.register();
         }
         
         public void group(Result result) {
             Binding binding = result.getBinding();
             String key = makeKey(binding);
-            if (!results.containsKey(key)) results.put(key, binding);
+            if (partitions != null) {
+                partitions[partition(key)].write(result);
+                return;
+            }
+            if (!results.containsKey(key)) {
+                results.put(key, binding);
+                if (budget != null) {
+                    long bytes = MemoryBudget.estimate(result);
+                    held += bytes;
+                    budget.add(bytes);
+                    // a partition being read back is grouped in memory
+                    if (!emitting && budget.shouldSpill(held)) spill();
+                }
+            }
             else {
                 results.put(key, combine(results.get(key), binding));
             }
         }
         
+        /**
+         * Adds a result for each group to a collection, grouping each spilled partition in turn.
+         * @param out Collection of grouped results
+         */
+        public void emit(Collection<Result> out) {
+            SpillFile[] spilled = partitions;
+            partitions = null;
+            emitting = true;
+            
+            if (spilled == null) {
+                flush(out);
+                return;
+            }
+            for (SpillFile f: spilled) {
+                for (Result r: f) {
+                    group(r);
+                }
+                flush(out);
+                f.delete();
+            }
+        }
+        
+        private void flush(Collection<Result> out) {
+            for (Binding b: results.values()) {
+                out.add(new Result(new ResultBinding(model, b)));
+            }
+            results.clear();
+            if (budget != null) budget.release(held);
+            held = 0;
+        }
+        
+        private void spill() {
+            partitions = new SpillFile[PARTITIONS];
+            for (int i = 0; i < PARTITIONS; i++) {
+                partitions[i] = new SpillFile(budget.isMapped());
+            }
+            for (Map.Entry<String, Binding> group: results.entrySet()) {
+                partitions[partition(group.getKey())].write(new Result(new ResultBinding(model, group.getValue())));
+            }
+            results.clear();
+            budget.release(held);
+            held = 0;
+        }
+        
+        private int partition(String key) {
+            return (key.hashCode() & Integer.MAX_VALUE) % PARTITIONS;
+        }
+        
         private Binding combine(Binding left, Binding right) {
             Binding toReturn = new BindingMap();
             for (Var var: aggs.keySet()) {
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Works out how long to wait for each endpoint to respond.
+ * A rolling window of each endpoint's recent response times is kept, and its
+ * read timeout is a high percentile of them multiplied by a safety factor,
+ * kept between a floor and a ceiling. An endpoint that usually answers in a
+ * few milliseconds is therefore given up on long before one that routinely
+ * takes seconds. Endpoints with too few samples, or when adaptive timeouts are
+ * disabled, use the ceiling. Timeouts set on an individual url, through JMX,
+ * override the learned one. A project's own endpoint timeouts are carried with
+ * each request instead, see {@link RequestHandle#setReadTimeout}.
+ * The latency windows are shared with the {@link RequestHedger}, spring
+ * configures them through the <code>getInstance</code> factory method.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class AdaptiveTimeouts
+{
+    /**
+     * Default latency percentile the timeout is based on.
+     */
+    public static final double DEFAULT_PERCENTILE = 99;
+
+    /**
+     * Default factor the percentile is multiplied by.
+     */
+    public static final double DEFAULT_MULTIPLIER = 3;
+
+    /**
+     * Default shortest timeout (ms).
+     */
+    public static final int DEFAULT_FLOOR = 1000;
+
+    /**
+     * Number of latency samples needed before an endpoint's timeout is learned.
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    /**
+     * Number of latency samples kept for each endpoint.
+     */
+    private static final int WINDOW = 200;
+
+    /**
+     * The unique instance of this class.
+     */
+    private static final AdaptiveTimeouts INSTANCE = new AdaptiveTimeouts();
+
+    /**
+     * Recent response times of each endpoint url.
+     */
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<String, LatencyWindow>();
+
+    /**
+     * Timeouts set for individual endpoints, overriding the learned one.
+     */
+    private final Map<String, Integer> overrides = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Whether timeouts are learned from the latency samples.
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * Latency percentile the timeout is based on.
+     */
+    private volatile double percentile = DEFAULT_PERCENTILE;
+
+    /**
+     * Factor the percentile is multiplied by.
+     */
+    private volatile double multiplier = DEFAULT_MULTIPLIER;
+
+    /**
+     * Shortest timeout (ms).
+     */
+    private volatile int floor = DEFAULT_FLOOR;
+
+    /**
+     * Longest timeout (ms), 0 to use the query wrapper's read timeout.
+     */
+    private volatile int ceiling = 0;
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static AdaptiveTimeouts getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private AdaptiveTimeouts()
+    {
+    }
+
+    /**
+     * Records an endpoint's response time.
+     * @param url Endpoint url
+     * @param ms Response time in milliseconds
+     */
+    public void record(final String url, final long ms)
+    {
+        LatencyWindow window = latencies.get(url);
+        if (window == null)
+        {
+            LatencyWindow created = new LatencyWindow(WINDOW);
+            window = latencies.putIfAbsent(url, created);
+            if (window == null) window = created;
+        }
+        window.record(ms);
+    }
+
+    /**
+     * Records a failed request to an endpoint. A request that failed only once
+     * its read timeout had passed is taken to have timed out, and is recorded
+     * as a response time of the timeout, so an endpoint that has slowed down
+     * has its timeout grow rather than failing every request at the old one.
+     * @param url Endpoint url
+     * @param ms Time the request took in milliseconds
+     * @param timeout Read timeout the request was sent with (ms), 0 if none
+     */
+    public void recordFailure(final String url, final long ms, final int timeout)
+    {
+        if (timeout > 0 && ms >= timeout) record(url, timeout);
+    }
+
+    /**
+     * @param url Endpoint url
+     * @return Number of response times held for the endpoint
+     */
+    public int getSamples(final String url)
+    {
+        LatencyWindow window = latencies.get(url);
+        if (window == null) return 0;
+        return window.size();
+    }
+
+    /**
+     * @param url Endpoint url
+     * @param p Percentile, between 0 and 100
+     * @return The percentile of the endpoint's recent response times in ms, -1 if there are none
+     */
+    public long getLatency(final String url, final double p)
+    {
+        LatencyWindow window = latencies.get(url);
+        if (window == null) return -1;
+        return window.percentile(p);
+    }
+
+    /**
+     * Returns how long to wait for an endpoint's response.
+     * @param url Endpoint url
+     * @param defaultTimeout Timeout (ms) used when nothing better is known, 0 for none
+     * @return Read timeout in milliseconds
+     */
+    public int getReadTimeout(final String url, final int defaultTimeout)
+    {
+        Integer override = overrides.get(url);
+        if (override != null) return override;
+
+        int max = ceiling > 0 ? ceiling : defaultTimeout;
+        if (!enabled || getSamples(url) < MIN_SAMPLES) return max;
+
+        long learned = Math.max(floor, (long) Math.ceil(getLatency(url, percentile) * multiplier));
+        if (max > 0) learned = Math.min(max, learned);
+        return (int) Math.min(Integer.MAX_VALUE, learned);
+    }
+
+    /**
+     * Sets an endpoint's read timeout, rather than learning it.
+     * @param url Endpoint url
+     * @param ms Read timeout in milliseconds, 0 to learn it
+     */
+    @ManagedOperation
+    public void setEndpointTimeout(final String url, final int ms)
+    {
+        if (ms > 0) overrides.put(url, ms);
+        else overrides.remove(url);
+    }
+
+    /**
+     * @param url Endpoint url
+     * @return The endpoint's read timeout in milliseconds, 0 if learned
+     */
+    @ManagedOperation
+    public int getEndpointTimeout(final String url)
+    {
+        Integer override = overrides.get(url);
+        if (override == null) return 0;
+        return override;
+    }
+
+    /**
+     * @param b <code>true</code> to learn timeouts from the endpoints' response times
+     */
+    @ManagedAttribute
+    public void setEnabled(final boolean b)
+    {
+        enabled = b;
+    }
+
+    /**
+     * @return <code>true</code> if timeouts are learned from the endpoints' response times
+     */
+    @ManagedAttribute
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @param p Latency percentile the timeout is based on, between 0 and 100
+     */
+    @ManagedAttribute
+    public void setPercentile(final double p)
+    {
+        if (p < 0 || p > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        percentile = p;
+    }
+
+    /**
+     * @return Latency percentile the timeout is based on
+     */
+    @ManagedAttribute
+    public double getPercentile()
+    {
+        return percentile;
+    }
+
+    /**
+     * @param factor Factor the percentile is multiplied by
+     */
+    @ManagedAttribute
+    public void setMultiplier(final double factor)
+    {
+        if (factor <= 0) throw new IllegalArgumentException("Multiplier must be greater than 0");
+        multiplier = factor;
+    }
+
+    /**
+     * @return Factor the percentile is multiplied by
+     */
+    @ManagedAttribute
+    public double getMultiplier()
+    {
+        return multiplier;
+    }
+
+    /**
+     * @param ms Shortest learned timeout
+     */
+    @ManagedAttribute
+    public void setFloor(final int ms)
+    {
+        floor = ms;
+    }
+
+    /**
+     * @return Shortest learned timeout in milliseconds
+     */
+    @ManagedAttribute
+    public int getFloor()
+    {
+        return floor;
+    }
+
+    /**
+     * @param ms Longest timeout, 0 to use the query wrapper's read timeout
+     */
+    @ManagedAttribute
+    public void setCeiling(final int ms)
+    {
+        ceiling = ms;
+    }
+
+    /**
+     * @return Longest timeout in milliseconds, 0 if the query wrapper's read timeout is used
+     */
+    @ManagedAttribute
+    public int getCeiling()
+    {
+        return ceiling;
+    }
+
+    /**
+     * Lists the latency and timeout for each endpoint, a timeout of 0 being
+     * the query wrapper's read timeout.
+     * @return String list of per endpoint statistics
+     */
+    @ManagedOperation
+    public List<String> listTimeouts()
+    {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, LatencyWindow> entry : latencies.entrySet())
+        {
+            String url = entry.getKey();
+            LatencyWindow window = entry.getValue();
+            list.add(url
+                    + " [samples=" + window.size()
+                    + ", p50=" + window.percentile(50)
+                    + ", p" + Math.round(percentile) + "=" + window.percentile(percentile)
+                    + ", timeout=" + getReadTimeout(url, 0) + "]");
+        }
+        return list;
+    }
+
+    /**
+     * Forgets all latency samples and endpoint timeouts.
+     */
+    @ManagedOperation
+    public void reset()
+    {
+        latencies.clear();
+        overrides.clear();
+    }
+}
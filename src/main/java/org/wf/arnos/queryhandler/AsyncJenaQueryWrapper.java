@@ -0,0 +1,649 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import com.hp.hpl.jena.sparql.engine.http.Params;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.wf.arnos.exception.ArnosRuntimeException;
+
+/**
+ * A query wrapper using non-blocking, selector based I/O.
+ * Requests are multiplexed over a small number of I/O threads, so waiting on
+ * slow endpoints does not tie up a thread per request. The blocking methods
+ * inherited from {@link JenaQueryWrapper} are still available.
+ * A successful response is handed over as soon as its headers arrive, its body
+ * being streamed through a bounded buffer that holds up the connection while full.
+ * Connection limits are taken from the {@link HttpConnectionPool} settings
+ * when the wrapper is created, and the I/O threads started when it's first used.
+ * Spring calls {@link #shutdown} when the application stops.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class AsyncJenaQueryWrapper extends JenaQueryWrapper implements AsyncQueryWrapperInterface
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(AsyncJenaQueryWrapper.class);
+
+    /**
+     * Number of I/O dispatch threads.
+     */
+    private static final int IO_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How often (ms) the I/O reactor checks for timed out requests.
+     */
+    private static final long SELECT_INTERVAL = 100;
+
+    /**
+     * Size (bytes) of the buffer a response body is streamed through.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The unique instance of this class, created on first use.
+     */
+    private static AsyncJenaQueryWrapper instance;
+
+    /**
+     * Non-blocking connection manager.
+     */
+    private final PoolingNHttpClientConnectionManager manager;
+
+    /**
+     * Non-blocking http client.
+     */
+    private final CloseableHttpAsyncClient client;
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static synchronized AsyncJenaQueryWrapper getInstance()
+    {
+        if (instance == null) instance = new AsyncJenaQueryWrapper();
+        return instance;
+    }
+
+    /**
+     * The constructor, creates the I/O reactor.
+     */
+    protected AsyncJenaQueryWrapper()
+    {
+        super();
+
+        ThreadFactory threads = new DaemonThreadFactory();
+
+        try
+        {
+            IOReactorConfig config = IOReactorConfig.custom()
+                    .setIoThreadCount(IO_THREADS)
+                    .setSelectInterval(SELECT_INTERVAL)
+                    .setSoKeepAlive(true)
+                    .build();
+            manager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(config, threads));
+        }
+        catch (IOReactorException ex)
+        {
+            throw new ArnosRuntimeException("Unable to start non-blocking transport", ex);
+        }
+
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
+        manager.setDefaultMaxPerRoute(pool.getMaxConnectionsPerHost());
+        manager.setMaxTotal(pool.getMaxTotalConnections());
+
+        client = HttpAsyncClients.custom()
+                .setConnectionManager(manager)
+                .setThreadFactory(threads)
+                .build();
+    }
+
+    /**
+     * Sends the provided query to an endpoint and returns immediately.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @param callback Receives the response
+     * @return A handle on the request, which can be used to cancel it
+     */
+    public final Future<?> execQueryAsync(final String querystring, final String service, final QueryResponseCallback callback)
+    {
+        return execQueryAsync(querystring, service, 0, callback);
+    }
+
+    /**
+     * Sends the provided query to an endpoint and returns immediately.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @param readTimeout Read timeout set on the endpoint (ms), 0 to use the learned one
+     * @param callback Receives the response
+     * @return A handle on the request, which can be used to cancel it
+     */
+    public final Future<?> execQueryAsync(final String querystring, final String service, final int readTimeout,
+            final QueryResponseCallback callback)
+    {
+        try
+        {
+            if (LOG.isDebugEnabled()) LOG.debug("Query:\n" + querystring);
+
+            Params p = queryParams(querystring);
+            ChainedFuture pending = new ChainedFuture();
+            if (usesPOST(querystring, service)) send(createPost(p, service, readTimeout), service, null, readTimeout, callback, pending);
+            else send(createGet(p, service, readTimeout), service, p, readTimeout, callback, pending);
+            return pending;
+        }
+        catch (Exception ex)
+        {
+            LOG.error("Error querying " + service + ". " + ex.getMessage());
+            BasicFuture<HttpResponse> failed = new BasicFuture<HttpResponse>(null);
+            failed.failed(ex);
+            callback.failed(ex);
+            return failed;
+        }
+    }
+
+    /**
+     * @return Number of connections currently in use
+     */
+    public final int getLeasedConnections()
+    {
+        return manager.getTotalStats().getLeased();
+    }
+
+    /**
+     * @return Number of requests waiting for a connection
+     */
+    public final int getPendingRequests()
+    {
+        return manager.getTotalStats().getPending();
+    }
+
+    /**
+     * Stops the I/O reactor and closes all connections.
+     */
+    public final void shutdown()
+    {
+        try
+        {
+            client.close();
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Error closing non-blocking transport", ex);
+        }
+    }
+
+    /**
+     * Starts the I/O threads, if they haven't been started.
+     */
+    private void start()
+    {
+        if (client.isRunning()) return;
+
+        synchronized (this)
+        {
+            if (client.isRunning()) return;
+
+            client.start();
+            LOG.info("Non-blocking transport started with " + IO_THREADS + " I/O threads");
+        }
+    }
+
+    /**
+     * Sends a request.
+     * @param request Request to send
+     * @param service URL endpoint
+     * @param getParams Parameters of a GET request, so it can be re-sent as a POST
+     * @param callback Receives the response
+     * @param pending The caller's handle on the request, which is chained to this one
+     */
+    private void send(final HttpRequestBase request, final String service, final Params getParams,
+            final int readTimeout, final QueryResponseCallback callback, final ChainedFuture pending)
+    {
+        start();
+        ResponseHandler handler = new ResponseHandler(service, getParams, readTimeout, callback, pending);
+        pending.chain(client.execute(HttpAsyncMethods.create(request), new StreamingConsumer(handler, pending), handler));
+    }
+
+    /**
+     * The caller's handle on a request, which may be re-sent as a POST.
+     * Cancelling it cancels whichever request is in flight, including the body
+     * of a response that's still being streamed.
+     */
+    private static final class ChainedFuture extends BasicFuture<HttpResponse>
+    {
+        /**
+         * Request in flight.
+         */
+        private volatile Future<HttpResponse> current;
+
+        /**
+         * Constructor.
+         */
+        ChainedFuture()
+        {
+            super(null);
+        }
+
+        /**
+         * Sets the request in flight, cancelling it straight away if this has been cancelled.
+         * @param f Request in flight
+         */
+        void chain(final Future<HttpResponse> f)
+        {
+            current = f;
+            if (isCancelled()) f.cancel(true);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<HttpResponse> f = current;
+            if (f != null) f.cancel(true);
+            return cancelled;
+        }
+    }
+
+    /**
+     * Hands a successful response to the handler once its headers have arrived,
+     * streaming the body as it's received. Other responses are kept without their
+     * body and handed over once complete.
+     */
+    private static final class StreamingConsumer extends AbstractAsyncResponseConsumer<HttpResponse>
+    {
+        /**
+         * Receives the response.
+         */
+        private final ResponseHandler handler;
+
+        /**
+         * The caller's handle on the request.
+         */
+        private final ChainedFuture pending;
+
+        /**
+         * Response received.
+         */
+        private HttpResponse response;
+
+        /**
+         * Stream of the body, <code>null</code> unless the body is streamed.
+         */
+        private ResponseStream stream;
+
+        /**
+         * Buffer for discarded content.
+         */
+        private ByteBuffer discard;
+
+        /**
+         * Set once the whole body has been received.
+         */
+        private volatile boolean complete = false;
+
+        /**
+         * Constructor.
+         * @param paramHandler Receives the response
+         * @param paramPending The caller's handle on the request
+         */
+        StreamingConsumer(final ResponseHandler paramHandler, final ChainedFuture paramPending)
+        {
+            this.handler = paramHandler;
+            this.pending = paramPending;
+        }
+
+        @Override
+        protected void onResponseReceived(final HttpResponse paramResponse)
+        {
+            response = paramResponse;
+        }
+
+        @Override
+        protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType)
+        {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300)
+            {
+                response.setEntity(null);
+                return;
+            }
+
+            stream = new ResponseStream(new SharedInputBuffer(BUFFER_SIZE, HeapByteBufferAllocator.INSTANCE), pending);
+            BasicHttpEntity streamed = new BasicHttpEntity();
+            streamed.setContent(stream);
+            streamed.setContentLength(entity.getContentLength());
+            streamed.setContentType(entity.getContentType());
+            streamed.setContentEncoding(entity.getContentEncoding());
+            streamed.setChunked(entity.isChunked());
+            response.setEntity(streamed);
+
+            handler.stream(response);
+        }
+
+        @Override
+        protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException
+        {
+            if (stream != null)
+            {
+                stream.buffer.consumeContent(decoder, ioctrl);
+                return;
+            }
+
+            if (discard == null) discard = ByteBuffer.allocate(BUFFER_SIZE);
+            while (decoder.read(discard) > 0) discard.clear();
+        }
+
+        @Override
+        protected HttpResponse buildResult(final HttpContext context)
+        {
+            complete = true;
+            return response;
+        }
+
+        @Override
+        protected void releaseResources()
+        {
+            // a body cut short is an error, not the end of the results
+            if (stream != null && !complete)
+            {
+                Exception ex = getException();
+                stream.abort(ex == null ? new CancellationException() : ex);
+            }
+        }
+    }
+
+    /**
+     * A response body streamed through a shared buffer, filled by the I/O threads.
+     */
+    private static final class ResponseStream extends ContentInputStream
+    {
+        /**
+         * Buffer the body is received into.
+         */
+        private final SharedInputBuffer buffer;
+
+        /**
+         * The caller's handle on the request.
+         */
+        private final ChainedFuture pending;
+
+        /**
+         * Why the body was cut short, <code>null</code> if it wasn't.
+         */
+        private volatile Exception failure;
+
+        /**
+         * Set once the end of the body has been read.
+         */
+        private volatile boolean ended = false;
+
+        /**
+         * Constructor.
+         * @param paramBuffer Buffer the body is received into
+         * @param paramPending The caller's handle on the request
+         */
+        ResponseStream(final SharedInputBuffer paramBuffer, final ChainedFuture paramPending)
+        {
+            super(paramBuffer);
+            this.buffer = paramBuffer;
+            this.pending = paramPending;
+        }
+
+        /**
+         * Cuts the body short, waking any thread waiting to read it.
+         * @param ex Cause
+         */
+        void abort(final Exception ex)
+        {
+            failure = ex;
+            buffer.shutdown();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return check(super.read());
+        }
+
+        @Override
+        public int read(final byte[] b) throws IOException
+        {
+            return check(super.read(b));
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            return check(super.read(b, off, len));
+        }
+
+        /**
+         * Closes the stream, cancelling the request if the body hasn't all been read.
+         */
+        @Override
+        public void close()
+        {
+            if (!ended)
+            {
+                pending.cancel(true);
+                buffer.shutdown();
+            }
+        }
+
+        /**
+         * Checks the end of the stream is the end of the body.
+         * @param n Result of a read
+         * @return Result of the read
+         * @throws IOException thrown if the body was cut short
+         */
+        private int check(final int n) throws IOException
+        {
+            if (n == -1)
+            {
+                Exception ex = failure;
+                if (ex != null)
+                {
+                    IOException ioe = new IOException("Response body not completed");
+                    ioe.initCause(ex);
+                    throw ioe;
+                }
+                ended = true;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Passes the endpoint's response on to the query callback.
+     */
+    private class ResponseHandler implements FutureCallback<HttpResponse>
+    {
+        /**
+         * URL endpoint.
+         */
+        private final String service;
+
+        /**
+         * Parameters of a GET request, <code>null</code> for POST requests.
+         */
+        private final Params getParams;
+
+        /**
+         * Read timeout set on the endpoint (ms), 0 if none.
+         */
+        private final int readTimeout;
+
+        /**
+         * Receives the response.
+         */
+        private final QueryResponseCallback callback;
+
+        /**
+         * The caller's handle on the request.
+         */
+        private final ChainedFuture pending;
+
+        /**
+         * Set once the response has been handed to the callback while its body is streamed.
+         */
+        private volatile boolean streamed = false;
+
+        /**
+         * Constructor.
+         * @param paramService URL endpoint
+         * @param paramGetParams Parameters of a GET request
+         * @param paramReadTimeout Read timeout set on the endpoint (ms), 0 if none
+         * @param paramCallback Receives the response
+         * @param paramPending The caller's handle on the request
+         */
+        ResponseHandler(final String paramService, final Params paramGetParams, final int paramReadTimeout,
+                final QueryResponseCallback paramCallback, final ChainedFuture paramPending)
+        {
+            this.service = paramService;
+            this.getParams = paramGetParams;
+            this.readTimeout = paramReadTimeout;
+            this.callback = paramCallback;
+            this.pending = paramPending;
+        }
+
+        /**
+         * Hands over a successful response whose body is still being received.
+         * @param response Response, with a streamed body
+         */
+        void stream(final HttpResponse response)
+        {
+            streamed = true;
+            try
+            {
+                callback.completed(execCommon(response));
+            }
+            catch (Exception ex)
+            {
+                // nothing will read the body
+                pending.cancel(true);
+                LOG.error("Error querying " + service + ". " + ex.getMessage());
+                callback.failed(ex);
+            }
+        }
+
+        public void completed(final HttpResponse response)
+        {
+            if (streamed)
+            {
+                pending.completed(response);
+                return;
+            }
+
+            try
+            {
+                if (getParams != null && response.getStatusLine().getStatusCode() == 414) /*HttpServletResponse.SC_REQUEST_URI_TOO_LONG*/
+                {
+                    // Back-off and try POST if something complain about long URIs
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    send(createPost(getParams, service, readTimeout), service, null, readTimeout, callback, pending);
+                    return;
+                }
+                callback.completed(execCommon(response));
+                pending.completed(response);
+            }
+            catch (Exception ex)
+            {
+                failed(ex);
+            }
+        }
+
+        public void failed(final Exception ex)
+        {
+            // a streamed body that fails is reported to whoever is reading it
+            if (streamed) LOG.error("Error reading response from " + service + ". " + ex.getMessage());
+            else
+            {
+                LOG.error("Error querying " + service + ". " + ex.getMessage());
+                callback.failed(ex);
+            }
+            pending.failed(ex);
+        }
+
+        public void cancelled()
+        {
+            LOG.debug("Request to " + service + " cancelled");
+            if (!streamed) callback.failed(new CancellationException());
+            pending.cancel(true);
+        }
+    }
+
+    /**
+     * Creates daemon I/O threads, so that an idle transport does not keep the jvm alive.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        /**
+         * Thread counter, used for naming.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(final Runnable r)
+        {
+            Thread t = new Thread(r, "arnos-nio-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Stops queries being sent to endpoints that are failing.
+ * Each endpoint url has a circuit breaker which trips open after a run of
+ * consecutive failures, or once the error rate over its recent requests is too
+ * high. While open, queries skip the endpoint straight away rather than waiting
+ * for it to time out. Once <code>openTimeout</code> ms have passed the breaker
+ * lets a single probe request through: if it succeeds the breaker closes again,
+ * otherwise it stays open for another period.
+ * The breakers are shared by every query handler, spring configures them
+ * through the <code>getInstance</code> factory method.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class CircuitBreakers
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(CircuitBreakers.class);
+
+    /**
+     * State of a circuit breaker.
+     */
+    public enum State
+    {
+        /** Requests are sent as normal. */
+        CLOSED,
+        /** Requests are skipped. */
+        OPEN,
+        /** A probe request is deciding whether to close. */
+        HALF_OPEN
+    }
+
+    /**
+     * Default number of consecutive failures that trip a breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default error rate over the recent requests that trips a breaker.
+     */
+    public static final double DEFAULT_ERROR_RATE = 0.5;
+
+    /**
+     * Default number of recent requests needed before the error rate is used.
+     */
+    public static final int DEFAULT_MINIMUM_REQUESTS = 10;
+
+    /**
+     * Default time (ms) a breaker stays open before probing the endpoint.
+     */
+    public static final long DEFAULT_OPEN_TIMEOUT = 30000;
+
+    /**
+     * Number of recent requests the error rate is worked out over.
+     */
+    private static final int WINDOW = 20;
+
+    /**
+     * The unique instance of this class.
+     */
+    private static final CircuitBreakers INSTANCE = new CircuitBreakers();
+
+    /**
+     * Breaker for each endpoint url.
+     */
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+    /**
+     * Whether breakers are used, when disabled every endpoint is queried.
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * Consecutive failures that trip a breaker.
+     */
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    /**
+     * Error rate that trips a breaker.
+     */
+    private volatile double errorRate = DEFAULT_ERROR_RATE;
+
+    /**
+     * Recent requests needed before the error rate is used.
+     */
+    private volatile int minimumRequests = DEFAULT_MINIMUM_REQUESTS;
+
+    /**
+     * Time (ms) a breaker stays open before probing.
+     */
+    private volatile long openTimeout = DEFAULT_OPEN_TIMEOUT;
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static CircuitBreakers getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private CircuitBreakers()
+    {
+    }
+
+    /**
+     * Checks whether an endpoint could be queried, without claiming a probe.
+     * Used to choose between replicas.
+     * @param url Endpoint url
+     * @return <code>true</code> if the breaker is closed, or is ready to probe the endpoint
+     */
+    public boolean isAvailable(final String url)
+    {
+        if (!enabled) return true;
+        Breaker breaker = breakers.get(url);
+        return breaker == null || breaker.isAvailable();
+    }
+
+    /**
+     * Checks whether a request may be sent to an endpoint. If the breaker is
+     * ready to probe, this request becomes the probe.
+     * A successful call must be followed by a call to {@link #recordSuccess},
+     * {@link #recordFailure} or {@link #recordCancelled}.
+     * @param url Endpoint url
+     * @return <code>true</code> if the request may be sent
+     */
+    public boolean allowRequest(final String url)
+    {
+        if (!enabled) return true;
+        Breaker breaker = breakers.get(url);
+        if (breaker == null) return true;
+        return breaker.allowRequest(url);
+    }
+
+    /**
+     * Records a request the endpoint responded to.
+     * @param url Endpoint url
+     */
+    public void recordSuccess(final String url)
+    {
+        if (enabled) getBreaker(url).record(url, true);
+    }
+
+    /**
+     * Records a request that failed, because the endpoint couldn't be reached,
+     * returned an error, or timed out.
+     * @param url Endpoint url
+     */
+    public void recordFailure(final String url)
+    {
+        if (enabled) getBreaker(url).record(url, false);
+    }
+
+    /**
+     * Records a request cancelled before it finished, which says nothing about
+     * the endpoint. A cancelled probe lets another one through.
+     * @param url Endpoint url
+     */
+    public void recordCancelled(final String url)
+    {
+        Breaker breaker = breakers.get(url);
+        if (breaker != null) breaker.cancelled();
+    }
+
+    /**
+     * Returns the breaker for an endpoint, creating it on first use.
+     * @param url Endpoint url
+     * @return Endpoint's breaker
+     */
+    private Breaker getBreaker(final String url)
+    {
+        Breaker breaker = breakers.get(url);
+        if (breaker == null)
+        {
+            Breaker created = new Breaker();
+            breaker = breakers.putIfAbsent(url, created);
+            if (breaker == null) breaker = created;
+        }
+        return breaker;
+    }
+
+    /**
+     * @param url Endpoint url
+     * @return State of the endpoint's breaker
+     */
+    public State getState(final String url)
+    {
+        Breaker breaker = breakers.get(url);
+        if (breaker == null) return State.CLOSED;
+        return breaker.getState();
+    }
+
+    /**
+     * @param url Endpoint url
+     * @return State of the endpoint's breaker, as a string for JMX
+     */
+    @ManagedOperation
+    public String getCircuitState(final String url)
+    {
+        return getState(url).toString();
+    }
+
+    /**
+     * Opens an endpoint's breaker by hand, for example while it is being maintained.
+     * @param url Endpoint url
+     */
+    @ManagedOperation
+    public void tripCircuit(final String url)
+    {
+        getBreaker(url).trip(url);
+    }
+
+    /**
+     * Closes an endpoint's breaker by hand.
+     * @param url Endpoint url
+     */
+    @ManagedOperation
+    public void resetCircuit(final String url)
+    {
+        getBreaker(url).close(url);
+    }
+
+    /**
+     * @param b <code>true</code> to skip endpoints whose breakers are open
+     */
+    @ManagedAttribute
+    public void setEnabled(final boolean b)
+    {
+        enabled = b;
+    }
+
+    /**
+     * @return <code>true</code> if endpoints whose breakers are open are skipped
+     */
+    @ManagedAttribute
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @param n Number of consecutive failures that trip a breaker
+     */
+    @ManagedAttribute
+    public void setFailureThreshold(final int n)
+    {
+        if (n < 1) throw new IllegalArgumentException("Threshold must be at least 1");
+        failureThreshold = n;
+    }
+
+    /**
+     * @return Number of consecutive failures that trip a breaker
+     */
+    @ManagedAttribute
+    public int getFailureThreshold()
+    {
+        return failureThreshold;
+    }
+
+    /**
+     * @param rate Fraction of recent requests failing that trips a breaker, above 1 to disable
+     */
+    @ManagedAttribute
+    public void setErrorRate(final double rate)
+    {
+        if (rate <= 0) throw new IllegalArgumentException("Error rate must be greater than 0");
+        errorRate = rate;
+    }
+
+    /**
+     * @return Fraction of recent requests failing that trips a breaker
+     */
+    @ManagedAttribute
+    public double getErrorRate()
+    {
+        return errorRate;
+    }
+
+    /**
+     * @param n Number of recent requests needed before the error rate is used
+     */
+    @ManagedAttribute
+    public void setMinimumRequests(final int n)
+    {
+        if (n < 1 || n > WINDOW) throw new IllegalArgumentException("Minimum requests must be between 1 and " + WINDOW);
+        minimumRequests = n;
+    }
+
+    /**
+     * @return Number of recent requests needed before the error rate is used
+     */
+    @ManagedAttribute
+    public int getMinimumRequests()
+    {
+        return minimumRequests;
+    }
+
+    /**
+     * @param ms Time a breaker stays open before the endpoint is probed
+     */
+    @ManagedAttribute
+    public void setOpenTimeout(final long ms)
+    {
+        openTimeout = ms;
+    }
+
+    /**
+     * @return Time in milliseconds a breaker stays open before the endpoint is probed
+     */
+    @ManagedAttribute
+    public long getOpenTimeout()
+    {
+        return openTimeout;
+    }
+
+    /**
+     * @return Number of breakers that aren't closed
+     */
+    @ManagedAttribute
+    public int getOpenCircuits()
+    {
+        int open = 0;
+        for (Breaker breaker : breakers.values())
+        {
+            if (breaker.getState() != State.CLOSED) open++;
+        }
+        return open;
+    }
+
+    /**
+     * Lists the breaker state for each endpoint.
+     * @return String list of per endpoint states
+     */
+    @ManagedOperation
+    public List<String> listCircuits()
+    {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, Breaker> entry : breakers.entrySet())
+        {
+            list.add(entry.getKey() + " " + entry.getValue());
+        }
+        return list;
+    }
+
+    /**
+     * Forgets all endpoint breakers, closing them.
+     */
+    @ManagedOperation
+    public void reset()
+    {
+        breakers.clear();
+    }
+
+    /**
+     * The circuit breaker for a single endpoint.
+     */
+    private final class Breaker
+    {
+        /**
+         * Current state.
+         */
+        private State state = State.CLOSED;
+
+        /**
+         * Outcomes of the recent requests, used as a ring buffer.
+         */
+        private final boolean[] failures = new boolean[WINDOW];
+
+        /**
+         * Position the next outcome is written to.
+         */
+        private int next = 0;
+
+        /**
+         * Number of outcomes held.
+         */
+        private int count = 0;
+
+        /**
+         * Number of failures held.
+         */
+        private int failed = 0;
+
+        /**
+         * Number of failures since the last success.
+         */
+        private int consecutive = 0;
+
+        /**
+         * Time the breaker last opened.
+         */
+        private long openedAt;
+
+        /**
+         * Set while a probe request is in flight.
+         */
+        private boolean probing = false;
+
+        /**
+         * Number of times the breaker has tripped.
+         */
+        private int trips = 0;
+
+        /**
+         * @return Current state
+         */
+        synchronized State getState()
+        {
+            return state;
+        }
+
+        /**
+         * @return <code>true</code> if a request could be sent
+         */
+        synchronized boolean isAvailable()
+        {
+            if (state == State.CLOSED) return true;
+            if (state == State.OPEN) return System.currentTimeMillis() - openedAt >= openTimeout;
+            return !probing;
+        }
+
+        /**
+         * @param url Endpoint url
+         * @return <code>true</code> if the request may be sent, claiming the probe if needed
+         */
+        synchronized boolean allowRequest(final String url)
+        {
+            if (state == State.CLOSED) return true;
+            if (!isAvailable()) return false;
+
+            if (state == State.OPEN) LOG.info("Probing endpoint " + url);
+            state = State.HALF_OPEN;
+            probing = true;
+            return true;
+        }
+
+        /**
+         * Records the outcome of a request.
+         * @param url Endpoint url
+         * @param succeeded <code>true</code> if the endpoint responded
+         */
+        synchronized void record(final String url, final boolean succeeded)
+        {
+            if (state == State.HALF_OPEN)
+            {
+                probing = false;
+                if (succeeded) close(url);
+                else open();
+                return;
+            }
+            if (state == State.OPEN) return;
+
+            if (failures[next]) failed--;
+            failures[next] = !succeeded;
+            if (!succeeded) failed++;
+            next = (next + 1) % WINDOW;
+            if (count < WINDOW) count++;
+
+            if (succeeded)
+            {
+                consecutive = 0;
+                return;
+            }
+            consecutive++;
+
+            if (consecutive >= failureThreshold)
+            {
+                LOG.warn("Endpoint " + url + " failed " + consecutive + " times in a row, skipping it for " + openTimeout + "ms");
+                open();
+            }
+            else if (count >= minimumRequests && (double) failed / count >= errorRate)
+            {
+                LOG.warn("Endpoint " + url + " failed " + failed + " of its last " + count + " requests, skipping it for " + openTimeout + "ms");
+                open();
+            }
+        }
+
+        /**
+         * Records a cancelled request.
+         */
+        synchronized void cancelled()
+        {
+            if (state == State.HALF_OPEN) probing = false;
+        }
+
+        /**
+         * Opens the breaker by hand.
+         * @param url Endpoint url
+         */
+        synchronized void trip(final String url)
+        {
+            LOG.warn("Endpoint " + url + " circuit opened");
+            open();
+        }
+
+        /**
+         * Opens the breaker, starting a new period before the next probe.
+         */
+        private void open()
+        {
+            if (state == State.CLOSED) trips++;
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Closes the breaker, forgetting the recent failures.
+         * @param url Endpoint url
+         */
+        synchronized void close(final String url)
+        {
+            if (state != State.CLOSED) LOG.info("Endpoint " + url + " circuit closed");
+            state = State.CLOSED;
+            probing = false;
+            consecutive = 0;
+            failed = 0;
+            count = 0;
+            next = 0;
+            for (int i = 0; i < WINDOW; i++) failures[i] = false;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return "[state=" + state
+                    + ", failures=" + failed + "/" + count
+                    + ", consecutive=" + consecutive
+                    + ", trips=" + trips + "]";
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A latch which runs a completion action as soon as it reaches zero.
+ * Endpoint tasks count the latch down as they finish, and whichever finishes
+ * last runs the action, so no thread is blocked waiting on the latch. The
+ * action only signals that the query has settled, see {@link QueryFuture#run},
+ * the results are combined afterwards by the request thread.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+final class CompletionLatch extends CountDownLatch
+{
+    /**
+     * Action to run once the count reaches zero.
+     */
+    private final Runnable onCompletion;
+
+    /**
+     * Guards against the action being run more than once.
+     */
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+
+    /**
+     * Constructor.
+     * @param count Number of tasks to wait for
+     * @param paramOnCompletion Action to run once all tasks have finished
+     */
+    CompletionLatch(final int count, final Runnable paramOnCompletion)
+    {
+        super(count);
+        this.onCompletion = paramOnCompletion;
+    }
+
+    /**
+     * Decrements the count, running the completion action if it reaches zero.
+     */
+    @Override
+    public void countDown()
+    {
+        super.countDown();
+        checkCompletion();
+    }
+
+    /**
+     * Runs the completion action if the count has reached zero.
+     * Called once all tasks have been submitted, to cover there being no tasks at all.
+     */
+    void checkCompletion()
+    {
+        if (getCount() == 0 && completed.compareAndSet(false, true))
+        {
+            onCompletion.run();
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Limits the number of requests in flight to each endpoint, so that a slow or
+ * hung endpoint can only tie up its own share of the task executor's threads.
+ * Each endpoint url has its own bulkhead of permits. A request that finds its
+ * endpoint's bulkhead full waits for up to <code>waitTimeout</code> ms for a
+ * permit (failing fast if the wait is 0), and is otherwise rejected so that the
+ * query carries on without that endpoint's results.
+ * The bulkheads are shared by every query handler, spring configures them
+ * through the <code>getInstance</code> factory method.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class EndpointBulkheads
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(EndpointBulkheads.class);
+
+    /**
+     * Default maximum number of concurrent requests to a single endpoint.
+     */
+    public static final int DEFAULT_LIMIT = 5;
+
+    /**
+     * Default time (ms) a request waits for a free permit before being rejected.
+     */
+    public static final long DEFAULT_WAIT_TIMEOUT = 100;
+
+    /**
+     * The unique instance of this class.
+     */
+    private static final EndpointBulkheads INSTANCE = new EndpointBulkheads();
+
+    /**
+     * Bulkhead for each endpoint url.
+     */
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    /**
+     * Limits set for individual endpoints, overriding the default.
+     */
+    private final Map<String, Integer> endpointLimits = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Maximum concurrent requests for endpoints without their own limit.
+     */
+    private volatile int defaultLimit = DEFAULT_LIMIT;
+
+    /**
+     * Time (ms) a request waits for a permit.
+     */
+    private volatile long waitTimeout = DEFAULT_WAIT_TIMEOUT;
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static EndpointBulkheads getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private EndpointBulkheads()
+    {
+    }
+
+    /**
+     * Takes a permit to send a request to an endpoint, waiting up to the
+     * configured timeout if the endpoint is at its limit.
+     * The permit must be released once the request has finished, it goes back
+     * to the bulkhead it was taken from even if the bulkheads have since been reset.
+     * @param url Endpoint url
+     * @return The permit taken, <code>null</code> if the request was rejected
+     */
+    public Permit acquire(final String url)
+    {
+        Bulkhead bulkhead = getBulkhead(url);
+        boolean acquired;
+        try
+        {
+            if (waitTimeout <= 0) acquired = bulkhead.tryAcquire();
+            else acquired = bulkhead.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired)
+        {
+            bulkhead.rejected.incrementAndGet();
+            LOG.warn("Endpoint " + url + " is at its limit of " + bulkhead.getLimit() + " concurrent requests");
+            return null;
+        }
+        return new Permit(bulkhead);
+    }
+
+    /**
+     * Returns the bulkhead for an endpoint, creating it on first use.
+     * @param url Endpoint url
+     * @return Endpoint's bulkhead
+     */
+    private Bulkhead getBulkhead(final String url)
+    {
+        Bulkhead bulkhead = bulkheads.get(url);
+        if (bulkhead == null)
+        {
+            Bulkhead created = new Bulkhead(getEndpointLimit(url));
+            bulkhead = bulkheads.putIfAbsent(url, created);
+            if (bulkhead == null) bulkhead = created;
+        }
+        return bulkhead;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests for endpoints without their own limit.
+     * @param limit Maximum concurrent requests
+     */
+    @ManagedAttribute
+    public void setDefaultLimit(final int limit)
+    {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1");
+        defaultLimit = limit;
+        for (Map.Entry<String, Bulkhead> entry : bulkheads.entrySet())
+        {
+            if (!endpointLimits.containsKey(entry.getKey())) entry.getValue().setLimit(limit);
+        }
+    }
+
+    /**
+     * @return Maximum number of concurrent requests for endpoints without their own limit
+     */
+    @ManagedAttribute
+    public int getDefaultLimit()
+    {
+        return defaultLimit;
+    }
+
+    /**
+     * Sets how long a request waits for a permit when its endpoint is at its limit.
+     * @param ms Wait in milliseconds, 0 to reject straight away
+     */
+    @ManagedAttribute
+    public void setWaitTimeout(final long ms)
+    {
+        waitTimeout = ms;
+    }
+
+    /**
+     * @return Wait for a permit in milliseconds
+     */
+    @ManagedAttribute
+    public long getWaitTimeout()
+    {
+        return waitTimeout;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests to a single endpoint.
+     * @param url Endpoint url
+     * @param limit Maximum concurrent requests
+     */
+    @ManagedOperation
+    public void setEndpointLimit(final String url, final int limit)
+    {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1");
+        endpointLimits.put(url, limit);
+        getBulkhead(url).setLimit(limit);
+    }
+
+    /**
+     * Returns an endpoint to the default limit.
+     * @param url Endpoint url
+     */
+    @ManagedOperation
+    public void clearEndpointLimit(final String url)
+    {
+        endpointLimits.remove(url);
+        getBulkhead(url).setLimit(defaultLimit);
+    }
+
+    /**
+     * @param url Endpoint url
+     * @return Maximum number of concurrent requests to the endpoint
+     */
+    @ManagedOperation
+    public int getEndpointLimit(final String url)
+    {
+        Integer limit = endpointLimits.get(url);
+        if (limit == null) return defaultLimit;
+        return limit;
+    }
+
+    /**
+     * @param url Endpoint url
+     * @return Number of requests currently in flight to the endpoint
+     */
+    @ManagedOperation
+    public int getActiveRequests(final String url)
+    {
+        Bulkhead bulkhead = bulkheads.get(url);
+        if (bulkhead == null) return 0;
+        return bulkhead.getActive();
+    }
+
+    /**
+     * @return Total number of requests rejected across all endpoints
+     */
+    @ManagedAttribute
+    public long getRejectedRequests()
+    {
+        long total = 0;
+        for (Bulkhead bulkhead : bulkheads.values()) total += bulkhead.rejected.get();
+        return total;
+    }
+
+    /**
+     * Lists the bulkhead statistics for each endpoint.
+     * @return String list of per endpoint statistics
+     */
+    @ManagedOperation
+    public List<String> listBulkheads()
+    {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, Bulkhead> entry : bulkheads.entrySet())
+        {
+            Bulkhead bulkhead = entry.getValue();
+            list.add(entry.getKey()
+                    + " [active=" + bulkhead.getActive()
+                    + ", waiting=" + bulkhead.getQueueLength()
+                    + ", limit=" + bulkhead.getLimit()
+                    + ", rejected=" + bulkhead.rejected.get() + "]");
+        }
+        return list;
+    }
+
+    /**
+     * Forgets all endpoint bulkheads and limits. Requests already in flight
+     * return their permits to the discarded bulkheads.
+     */
+    @ManagedOperation
+    public void reset()
+    {
+        endpointLimits.clear();
+        bulkheads.clear();
+    }
+
+    /**
+     * A permit taken from an endpoint's bulkhead.
+     */
+    public static final class Permit
+    {
+        /**
+         * Bulkhead the permit was taken from.
+         */
+        private final Bulkhead bulkhead;
+
+        /**
+         * Set once the permit has been returned.
+         */
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        /**
+         * @param paramBulkhead Bulkhead the permit was taken from
+         */
+        private Permit(final Bulkhead paramBulkhead)
+        {
+            this.bulkhead = paramBulkhead;
+        }
+
+        /**
+         * Returns the permit to the bulkhead it was taken from. Only the first call has any effect.
+         */
+        public void release()
+        {
+            if (released.compareAndSet(false, true)) bulkhead.release();
+        }
+    }
+
+    /**
+     * A resizable semaphore guarding a single endpoint.
+     */
+    private static final class Bulkhead extends Semaphore
+    {
+        /**
+         * Serialisation id.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Number of requests rejected by this bulkhead.
+         */
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * Current number of permits, held or free.
+         */
+        private int limit;
+
+        /**
+         * @param paramLimit Initial number of permits
+         */
+        Bulkhead(final int paramLimit)
+        {
+            super(paramLimit, true);
+            limit = paramLimit;
+        }
+
+        /**
+         * Changes the number of permits. Lowering the limit takes effect as
+         * requests in flight return their permits.
+         * @param newLimit New number of permits
+         */
+        synchronized void setLimit(final int newLimit)
+        {
+            int delta = newLimit - limit;
+            if (delta > 0) release(delta);
+            else if (delta < 0) reducePermits(-delta);
+            limit = newLimit;
+        }
+
+        /**
+         * @return Current number of permits
+         */
+        synchronized int getLimit()
+        {
+            return limit;
+        }
+
+        /**
+         * @return Number of permits currently held
+         */
+        int getActive()
+        {
+            return Math.max(0, getLimit() - availablePermits());
+        }
+    }
+}
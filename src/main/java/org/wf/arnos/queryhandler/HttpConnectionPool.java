@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A shared, connection pooled http transport used when querying endpoints.
+ * Connections are kept alive between requests and re-used on a per host basis,
+ * with a background thread evicting connections that have been idle for too long.
+ * The pool is a singleton so that every query wrapper shares the same connections,
+ * spring configures it through the <code>getInstance</code> factory method.
+ * Compressed responses are asked for unless compression is turned off, and are
+ * decompressed by the query wrapper as they're read, whichever transport is used.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class HttpConnectionPool
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(HttpConnectionPool.class);
+
+    /**
+     * Default maximum number of connections kept open to a single host.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+    /**
+     * Default maximum number of connections across all hosts.
+     */
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 200;
+
+    /**
+     * Default time (ms) a connection may sit unused in the pool before being closed.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+    /**
+     * Default time (ms) a connection is kept alive if the endpoint doesn't say otherwise.
+     */
+    public static final long DEFAULT_KEEP_ALIVE = 60 * 1000;
+
+    /**
+     * Default period of inactivity (ms) after which a pooled connection is checked before re-use.
+     */
+    public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY = 1000;
+
+    /**
+     * How often (ms) the eviction thread checks for idle connections.
+     */
+    private static final long EVICTION_INTERVAL = 5 * 1000;
+
+    /**
+     * Context attribute marking a request that may be retried once sent.
+     */
+    static final String IDEMPOTENT = "org.wf.arnos.idempotent";
+
+    /**
+     * The unique instance of this class.
+     */
+    private static final HttpConnectionPool INSTANCE = new HttpConnectionPool();
+
+    /**
+     * Underlying connection manager.
+     */
+    private final PoolingHttpClientConnectionManager manager;
+
+    /**
+     * Shared client, backed by the pooled connection manager.
+     */
+    private final CloseableHttpClient client;
+
+    /**
+     * Time (ms) an unused connection is kept in the pool.
+     */
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * Time (ms) a connection is kept alive when not specified by the endpoint.
+     */
+    private volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+
+    /**
+     * Whether endpoints are asked for compressed responses.
+     */
+    private volatile boolean compression = true;
+
+    /**
+     * Number of requests sent through the pool.
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Number of new connections opened by the pool.
+     */
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    /**
+     * Background thread closing idle and expired connections.
+     */
+    private final Thread evictor;
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static HttpConnectionPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private HttpConnectionPool()
+    {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new CountingPlainSocketFactory())
+                .register("https", new CountingSSLSocketFactory())
+                .build();
+
+        manager = new PoolingHttpClientConnectionManager(registry);
+        manager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        manager.setMaxTotal(DEFAULT_MAX_TOTAL_CONNECTIONS);
+        manager.setValidateAfterInactivity(DEFAULT_VALIDATE_AFTER_INACTIVITY);
+
+        client = HttpClients.custom()
+                .setConnectionManager(manager)
+                .setKeepAliveStrategy(new KeepAliveStrategy())
+                .setRetryHandler(new StaleConnectionRetryHandler())
+                .disableContentCompression()
+                .build();
+
+        evictor = new Thread(new IdleConnectionEvictor(), "arnos-http-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Executes a request using a pooled connection.
+     * The connection is returned to the pool once the response content has been
+     * fully read or closed. The request is only retried if it was never sent,
+     * see {@link #execute(HttpUriRequest, boolean)}.
+     * @param request Request to send
+     * @return The endpoint's response
+     * @throws IOException thrown if the request fails
+     */
+    public CloseableHttpResponse execute(final HttpUriRequest request) throws IOException
+    {
+        return execute(request, false);
+    }
+
+    /**
+     * Executes a request using a pooled connection.
+     * The connection is returned to the pool once the response content has been
+     * fully read or closed. A request that can't be retried once sent is only
+     * sent over a pooled connection once it has been checked to still be open.
+     * @param request Request to send
+     * @param idempotent <code>true</code> if sending the request twice has the same
+     * effect as sending it once, so it may be retried even once sent
+     * @return The endpoint's response
+     * @throws IOException thrown if the request fails
+     */
+    public CloseableHttpResponse execute(final HttpUriRequest request, final boolean idempotent) throws IOException
+    {
+        requestCount.incrementAndGet();
+        if (!idempotent && request instanceof HttpRequestBase) checkStale((HttpRequestBase) request);
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(IDEMPOTENT, Boolean.valueOf(idempotent));
+        return client.execute(request, context);
+    }
+
+    /**
+     * Has the client check that a pooled connection is still open before
+     * sending the request over it.
+     * @param request Request to send
+     */
+    @SuppressWarnings("deprecation")
+    private static void checkStale(final HttpRequestBase request)
+    {
+        RequestConfig config = request.getConfig();
+        if (config == null) config = RequestConfig.DEFAULT;
+        request.setConfig(RequestConfig.copy(config).setStaleConnectionCheckEnabled(true).build());
+    }
+
+    /**
+     * Sets the maximum number of connections kept open to a single host.
+     * @param max Maximum connections per host
+     */
+    @ManagedAttribute
+    public void setMaxConnectionsPerHost(final int max)
+    {
+        manager.setDefaultMaxPerRoute(max);
+    }
+
+    /**
+     * @return Maximum number of connections kept open to a single host
+     */
+    @ManagedAttribute
+    public int getMaxConnectionsPerHost()
+    {
+        return manager.getDefaultMaxPerRoute();
+    }
+
+    /**
+     * Sets the maximum number of connections across all hosts.
+     * @param max Maximum connections
+     */
+    @ManagedAttribute
+    public void setMaxTotalConnections(final int max)
+    {
+        manager.setMaxTotal(max);
+    }
+
+    /**
+     * @return Maximum number of connections across all hosts
+     */
+    @ManagedAttribute
+    public int getMaxTotalConnections()
+    {
+        return manager.getMaxTotal();
+    }
+
+    /**
+     * Sets how long an unused connection is kept in the pool before being closed.
+     * @param ms Idle timeout in milliseconds
+     */
+    @ManagedAttribute
+    public void setIdleTimeout(final long ms)
+    {
+        idleTimeout = ms;
+    }
+
+    /**
+     * @return Idle timeout in milliseconds
+     */
+    @ManagedAttribute
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how long a connection is kept alive when the endpoint doesn't specify a value.
+     * @param ms Keep-alive duration in milliseconds
+     */
+    @ManagedAttribute
+    public void setKeepAlive(final long ms)
+    {
+        keepAlive = ms;
+    }
+
+    /**
+     * @return Keep-alive duration in milliseconds
+     */
+    @ManagedAttribute
+    public long getKeepAlive()
+    {
+        return keepAlive;
+    }
+
+    /**
+     * Sets whether endpoints are asked for gzip or deflate compressed responses.
+     * @param b <code>true</code> to ask for compressed responses
+     */
+    @ManagedAttribute
+    public void setCompression(final boolean b)
+    {
+        compression = b;
+    }
+
+    /**
+     * @return Whether endpoints are asked for compressed responses
+     */
+    @ManagedAttribute
+    public boolean isCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * Sets the period of inactivity after which a pooled connection is checked for staleness before re-use.
+     * @param ms Inactivity period in milliseconds
+     */
+    @ManagedAttribute
+    public void setValidateAfterInactivity(final int ms)
+    {
+        manager.setValidateAfterInactivity(ms);
+    }
+
+    /**
+     * @return Inactivity period in milliseconds
+     */
+    @ManagedAttribute
+    public int getValidateAfterInactivity()
+    {
+        return manager.getValidateAfterInactivity();
+    }
+
+    /**
+     * @return Number of connections currently in use
+     */
+    @ManagedAttribute
+    public int getLeasedConnections()
+    {
+        return manager.getTotalStats().getLeased();
+    }
+
+    /**
+     * @return Number of idle connections available for re-use
+     */
+    @ManagedAttribute
+    public int getAvailableConnections()
+    {
+        return manager.getTotalStats().getAvailable();
+    }
+
+    /**
+     * @return Number of requests waiting for a connection
+     */
+    @ManagedAttribute
+    public int getPendingRequests()
+    {
+        return manager.getTotalStats().getPending();
+    }
+
+    /**
+     * @return Total number of requests sent through the pool
+     */
+    @ManagedAttribute
+    public long getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * @return Total number of connections opened by the pool
+     */
+    @ManagedAttribute
+    public long getConnectionsOpened()
+    {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Lists the pool statistics for each host.
+     * @return String list of per host statistics
+     */
+    @ManagedOperation
+    public List<String> listHostStatistics()
+    {
+        List<String> list = new ArrayList<String>();
+        for (HttpRoute route : manager.getRoutes())
+        {
+            PoolStats stats = manager.getStats(route);
+            list.add(route.getTargetHost().toURI()
+                    + " [leased=" + stats.getLeased()
+                    + ", available=" + stats.getAvailable()
+                    + ", pending=" + stats.getPending()
+                    + ", max=" + stats.getMax() + "]");
+        }
+        return list;
+    }
+
+    /**
+     * Closes all idle connections immediately.
+     */
+    @ManagedOperation
+    public void closeIdleConnections()
+    {
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shuts down the pool, closing all connections.
+     */
+    public void shutdown()
+    {
+        evictor.interrupt();
+        try
+        {
+            client.close();
+        }
+        catch (IOException ioe)
+        {
+            LOG.warn("Error closing http connection pool", ioe);
+        }
+    }
+
+    /**
+     * Keeps connections alive for as long as the endpoint allows, capped at the configured keep-alive.
+     */
+    private class KeepAliveStrategy implements ConnectionKeepAliveStrategy
+    {
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context)
+        {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (duration > 0) return Math.min(duration, keepAlive);
+            return keepAlive;
+        }
+    }
+
+    /**
+     * Retries a request once if a pooled connection was closed or reset by the
+     * endpoint before any response was sent. The remaining idle connections are likely
+     * to be stale as well, so they are dropped before retrying.
+     * A request that reached the endpoint may have been acted on, so is only
+     * retried if it is idempotent, an update is never sent twice.
+     * Timeouts and other failures are not retried.
+     */
+    class StaleConnectionRetryHandler implements HttpRequestRetryHandler
+    {
+        public boolean retryRequest(final IOException exception, final int executionCount, final HttpContext context)
+        {
+            if (executionCount > 1) return false;
+            if (exception instanceof ConnectException) return false;
+            if (!(exception instanceof NoHttpResponseException || exception instanceof SocketException)) return false;
+
+            HttpClientContext clientContext = HttpClientContext.adapt(context);
+            if (clientContext.isRequestSent() && !Boolean.TRUE.equals(clientContext.getAttribute(IDEMPOTENT)))
+            {
+                LOG.debug("Not retrying request that may have been acted on");
+                return false;
+            }
+
+            manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    /**
+     * Periodically closes expired and idle connections.
+     */
+    private class IdleConnectionEvictor implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                while (!Thread.currentThread().isInterrupted())
+                {
+                    Thread.sleep(EVICTION_INTERVAL);
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                LOG.debug("Connection evictor stopped");
+            }
+        }
+    }
+
+    /**
+     * Plain socket factory which counts the connections opened.
+     */
+    private class CountingPlainSocketFactory extends PlainConnectionSocketFactory
+    {
+        @Override
+        public Socket connectSocket(final int connectTimeout, final Socket socket, final HttpHost host,
+                final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                final HttpContext context) throws IOException
+        {
+            connectionsOpened.incrementAndGet();
+            return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+    }
+
+    /**
+     * SSL socket factory which counts the connections opened.
+     */
+    private class CountingSSLSocketFactory extends SSLConnectionSocketFactory
+    {
+        /**
+         * Uses the default ssl context and hostname verifier.
+         */
+        CountingSSLSocketFactory()
+        {
+            super(SSLContexts.createDefault(), SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+        }
+
+        @Override
+        public Socket connectSocket(final int connectTimeout, final Socket socket, final HttpHost host,
+                final InetSocketAddress remoteAddress, final InetSocketAddress localAddress,
+                final HttpContext context) throws IOException
+        {
+            connectionsOpened.incrementAndGet();
+            return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+    }
+}
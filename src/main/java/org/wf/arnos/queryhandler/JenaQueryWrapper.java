@@ -31,30 +31,46 @@
  */
 package org.wf.arnos.queryhandler;
 
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.Syntax;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.sparql.engine.http.HttpParams;
 import com.hp.hpl.jena.sparql.engine.http.Params;
 import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
+import com.hp.hpl.jena.sparql.resultset.JSONInput;
 import com.hp.hpl.jena.sparql.util.Convert;
-import com.hp.hpl.jena.util.FileUtils;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.StringReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.Locale;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.wf.arnos.queryhandler.format.ResultFormat;
+import org.wf.arnos.queryhandler.format.TSVInput;
 
 /**
  * This class provides an customized version of Jena's execSelect and execConstruct methods.
@@ -70,9 +86,9 @@ public class JenaQueryWrapper implements QueryWrapperInterface
     private static final Log LOG = LogFactory.getLog(JenaQueryWrapper.class);
 
     /**
-     * Default content type requested from endpoints.
+     * Content encodings requested from endpoints, see {@link HttpConnectionPool#setCompression}.
      */
-    private static final String CONTENT_TYPE_RESULT = HttpParams.contentTypeResultsXML;
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
 
     /**
      * Default connection timeout.
@@ -85,9 +101,14 @@ public class JenaQueryWrapper implements QueryWrapperInterface
     private static int READ_TIMEOUT = 120 * 1000;
 
     /**
-     * URL connecction object.
+     * The unique instance of this class.
      */
-    private transient HttpURLConnection httpConnection = null;
+    private static final JenaQueryWrapper INSTANCE = new JenaQueryWrapper();
+
+    /**
+     * Shared, pooled http transport.
+     */
+    private final transient HttpConnectionPool pool = HttpConnectionPool.getInstance();
 
     /**
      * Max length a GET request can be before being converted into a POST request.
@@ -105,7 +126,7 @@ public class JenaQueryWrapper implements QueryWrapperInterface
     */
    public static JenaQueryWrapper getInstance()
    {
-        return new JenaQueryWrapper();
+        return INSTANCE;
     }
 
    /**
@@ -145,25 +166,163 @@ public class JenaQueryWrapper implements QueryWrapperInterface
      * @return Query result as a string
      */
     public final String execQuery(final String querystring, final String service)
+    {
+        return execQuery(querystring, service, null);
+    }
+
+    /**
+     * Executes the provided query against a given endpoint.
+     * This method returns the raw result as a string
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @param handle Handle to cancel the request through, may be <code>null</code>
+     * @return Query result as a string
+     */
+    public final String execQuery(final String querystring, final String service, final RequestHandle handle)
     {
         try
         {
             if (LOG.isDebugEnabled()) LOG.debug("Query:\n" + querystring);
-            InputStream in = exec(querystring, service);
+            InputStream in = exec(querystring, service, handle);
             String result = convertStreamToString(in);
             if (LOG.isDebugEnabled()) LOG.debug("Response:\n" + result);
             return result;
         }
         catch (Exception ex)
         {
-            LOG.error("Error querying " + service + ". " + ex.getMessage());
+            logFailure(service, handle, ex);
             return "";
         }
     }
 
+    /**
+     * Executes the provided query against a given endpoint.
+     * The response body is returned unread; the pooled connection is released
+     * once the stream has been consumed or closed.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @return Response body, <code>null</code> on error
+     */
+    public final InputStream execQueryStream(final String querystring, final String service)
+    {
+        return execQueryStream(querystring, service, null);
+    }
+
+    /**
+     * Executes the provided query against a given endpoint.
+     * The response body is returned unread. Cancelling the handle aborts the
+     * request, whether it is waiting for the response or the body is being read.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @param handle Handle to cancel the request through, may be <code>null</code>
+     * @return Response body, <code>null</code> on error
+     */
+    public final InputStream execQueryStream(final String querystring, final String service, final RequestHandle handle)
+    {
+        try
+        {
+            if (LOG.isDebugEnabled()) LOG.debug("Query:\n" + querystring);
+            return exec(querystring, service, handle);
+        }
+        catch (Exception ex)
+        {
+            logFailure(service, handle, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Logs a failed request and marks it failed on its handle.
+     * Cancelled requests aren't treated as errors.
+     * @param service URL endpoint
+     * @param handle Handle the request could be cancelled through, may be <code>null</code>
+     * @param ex Cause of the failure
+     */
+    private static void logFailure(final String service, final RequestHandle handle, final Exception ex)
+    {
+        if (handle != null) handle.fail();
+
+        if (handle != null && handle.isCancelled())
+        {
+            LOG.debug("Request to " + service + " cancelled");
+        }
+        else
+        {
+            LOG.error("Error querying " + service + ". " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Pull-parses a sparql select query result stream into a resultSet object.
+     * The stream may be in any of the formats asked for, XML, JSON or TSV,
+     * see {@link ResultFormat#sniff(PushbackInputStream)}.
+     * @param in Raw result stream
+     * @return ResultSet object, <code>null</code> if the stream could not be parsed
+     */
+    public final ResultSet streamToResultSet(final InputStream in)
+    {
+        try
+        {
+            if (in != null)
+            {
+                PushbackInputStream body = new PushbackInputStream(in, ResultFormat.SNIFF_LIMIT);
+                ResultFormat format = ResultFormat.sniff(body);
+                if (format == ResultFormat.JSON) return JSONInput.fromJSON(body);
+                if (format == ResultFormat.TSV) return TSVInput.fromTSV(body);
+                if (format != null) return ResultSetFactory.fromXML(body);
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.warn("Unable to parse result set");
+        }
+        return null;
+    }
+
+    /**
+     * Reads an rdf result stream into a model.
+     * @param in Raw xml result stream
+     * @return Model representation
+     */
+    public final Model streamToModel(final InputStream in)
+    {
+        Model model = ModelFactory.createDefaultModel();
+
+        try
+        {
+            InputStream body = nonEmpty(in);
+            if (body != null)
+            {
+                model.read(body, null);
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Unable to read model");
+        }
+        return model;
+    }
+
+    /**
+     * Checks whether a stream has any content, without losing the first byte.
+     * @param in Stream to check
+     * @return A stream positioned at the start of the content, <code>null</code> if empty
+     * @throws IOException thrown if the stream can't be read
+     */
+    private static InputStream nonEmpty(final InputStream in) throws IOException
+    {
+        if (in == null) return null;
+
+        PushbackInputStream body = new PushbackInputStream(in);
+        int b = body.read();
+        if (b < 0) return null;
+        body.unread(b);
+        return body;
+    }
+
     /**
      * Converts a sparql select query result into a resultSet object.
-     * @param s Raw xml result
+     * @param s Raw result, in XML, JSON or TSV
      * @return ResultSet object
      */
     public final ResultSet stringToResultSet(final String s)
@@ -172,6 +331,9 @@ public class JenaQueryWrapper implements QueryWrapperInterface
         {
             if (StringUtils.isNotEmpty(s))
             {
+                ResultFormat format = ResultFormat.sniff(s);
+                if (format == ResultFormat.JSON) return JSONInput.fromJSON(new ByteArrayInputStream(s.getBytes("UTF-8")));
+                if (format == ResultFormat.TSV) return TSVInput.fromTSV(new StringReader(s));
                 return ResultSetFactory.fromXML(s);
             }
         }
@@ -202,7 +364,8 @@ public class JenaQueryWrapper implements QueryWrapperInterface
 
     /**
      * Interprets the response of an ASK query to a boolean value.
-     * @param s Raw xml result
+     * The response may be XML or JSON, or a TSV or CSV answer column.
+     * @param s Raw result
      * @return Boolean value representation
      */
     public final boolean stringToBoolean(final String s)
@@ -213,8 +376,13 @@ public class JenaQueryWrapper implements QueryWrapperInterface
         check = check.replace("\n", "");
         check = check.replace("\r", "");
         check = check.replace(" ", "");
+        check = check.replace("\t", "");
         if (check.indexOf("<boolean>true</boolean>") > 0) return true;
-        return false;
+        if (check.indexOf("\"boolean\":true") > 0) return true;
+
+        // the last value of a tsv or csv answer column
+        ResultFormat format = ResultFormat.sniff(check);
+        return format != ResultFormat.XML && format != ResultFormat.JSON && check.endsWith("true");
     }
 
     /**
@@ -265,12 +433,9 @@ public class JenaQueryWrapper implements QueryWrapperInterface
      * @param serviceURL Endpoint address
      * @return boolean
      */
-    private boolean usesPOST(final String queryString, final String serviceURL)
+    protected final boolean usesPOST(final String queryString, final String serviceURL)
     {
-        Params p = new Params();
-        p.addParam(HttpParams.pQuery, queryString);
-
-        String s = p.httpString();
+        String s = queryParams(queryString).httpString();
 
         return serviceURL.length() + s.length() >= URL_LIMIT;
     }
@@ -280,14 +445,14 @@ public class JenaQueryWrapper implements QueryWrapperInterface
      * @return Model    The resulting model
      * @throws QueryExceptionHTTP
      */
-    private InputStream exec(final String queryString, final String serviceURL) throws QueryExceptionHTTP
+    private InputStream exec(final String queryString, final String serviceURL, final RequestHandle handle) throws QueryExceptionHTTP
     {
-        Params p = new Params();
-        p.addParam(HttpParams.pQuery, queryString);
+        Params p = queryParams(queryString);
+        boolean readOnly = isReadOnly(queryString);
 
         try {
-            if (usesPOST(queryString, serviceURL)) return execPost(p, serviceURL);
-            return execGet(p, serviceURL);
+            if (usesPOST(queryString, serviceURL)) return execPost(p, serviceURL, handle, readOnly);
+            return execGet(p, serviceURL, handle, readOnly);
         } catch (QueryExceptionHTTP httpEx)
         {
             LOG.trace("Exception in exec", httpEx);
@@ -301,35 +466,24 @@ public class JenaQueryWrapper implements QueryWrapperInterface
     }
 
 
-    private InputStream execGet(final Params p, final String serviceURL) throws QueryExceptionHTTP
+    private InputStream execGet(final Params p, final String serviceURL, final RequestHandle handle,
+            final boolean readOnly) throws QueryExceptionHTTP
     {
-        URL target = null ;
-
-        try {
-            target = new URL(serviceURL+"?"+p.httpString()) ;
-        }
-        catch (MalformedURLException malEx)
-        { throw new QueryExceptionHTTP(0, "Malformed URL: "+malEx) ; }
-
-        LOG.debug("GET "+target.toExternalForm()) ;
+        HttpGet get = createGet(p, serviceURL, readTimeout(handle));
+        attach(get, handle);
 
         try
         {
-            httpConnection = (HttpURLConnection) target.openConnection();
-            httpConnection.setRequestProperty("Accept", CONTENT_TYPE_RESULT) ;
-            httpConnection.setConnectTimeout(CONNECTION_TIMEOUT);
-            httpConnection.setReadTimeout(READ_TIMEOUT);
-            httpConnection.setDoInput(true);
-            httpConnection.connect();
-            if (httpConnection.getResponseCode() == 414) /*HttpServletResponse.SC_REQUEST_URI_TOO_LONG*/
+            HttpResponse response = pool.execute(get, readOnly);
+            if (response.getStatusLine().getStatusCode() == 414) /*HttpServletResponse.SC_REQUEST_URI_TOO_LONG*/
             {
                 // Back-off and try POST if something complain about long URIs
-                // Broken
-                return execPost(p, serviceURL);
+                EntityUtils.consumeQuietly(response.getEntity());
+                return execPost(p, serviceURL, handle, readOnly);
             }
             else
             {
-                return execCommon();
+                return execCommon(response);
             }
         }
         catch (java.net.ConnectException connEx)
@@ -338,32 +492,15 @@ public class JenaQueryWrapper implements QueryWrapperInterface
         { throw new QueryExceptionHTTP(ioEx); }
     }
 
-    private InputStream execPost(final Params p, final String serviceURL) throws QueryExceptionHTTP
+    private InputStream execPost(final Params p, final String serviceURL, final RequestHandle handle,
+            final boolean readOnly) throws QueryExceptionHTTP
     {
-        URL target = null;
-
-        try { target = new URL(serviceURL); }
-        catch (MalformedURLException malEx)
-        { throw new QueryExceptionHTTP(0, "Malformed URL: " + malEx); }
-
-        LOG.debug("POST "+target.toExternalForm()) ;
+        HttpPost post = createPost(p, serviceURL, readTimeout(handle));
+        attach(post, handle);
 
         try
         {
-            httpConnection = (HttpURLConnection) target.openConnection();
-            httpConnection.setRequestMethod("POST") ;
-            httpConnection.setRequestProperty("Accept", CONTENT_TYPE_RESULT) ;
-            httpConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded") ;
-            httpConnection.setConnectTimeout(CONNECTION_TIMEOUT);
-            httpConnection.setReadTimeout(READ_TIMEOUT);
-            httpConnection.setDoOutput(true) ;
-
-            OutputStream out = httpConnection.getOutputStream();
-            String s = p.httpString();
-            out.write(s.getBytes());
-            out.flush() ;
-            httpConnection.connect() ;
-            return execCommon() ;
+            return execCommon(pool.execute(post, readOnly)) ;
         }
         catch (java.net.ConnectException connEx)
         { throw new QueryExceptionHTTP(-1, "Failed to connect to remote server"); }
@@ -371,11 +508,180 @@ public class JenaQueryWrapper implements QueryWrapperInterface
         { throw new QueryExceptionHTTP(ioEx); }
     }
 
-    private InputStream execCommon() throws QueryExceptionHTTP
+    /**
+     * Lets a request be aborted through a handle.
+     * @param request Request about to be sent
+     * @param handle Handle to cancel the request through, may be <code>null</code>
+     */
+    private static void attach(final HttpRequestBase request, final RequestHandle handle)
+    {
+        if (handle == null) return;
+
+        handle.attach(new Cancellable()
+        {
+            public boolean cancel()
+            {
+                request.abort();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns the read timeout requests to an endpoint are sent with.
+     * @param serviceURL Endpoint address
+     * @param readTimeout Read timeout set on the endpoint (ms), 0 if none
+     * @return The timeout set on the endpoint, if any, otherwise the one learned for it, in milliseconds
+     */
+    public static int getReadTimeout(final String serviceURL, final int readTimeout)
+    {
+        if (readTimeout > 0) return readTimeout;
+        return AdaptiveTimeouts.getInstance().getReadTimeout(serviceURL, READ_TIMEOUT);
+    }
+
+    /**
+     * @param handle Handle the request is sent through, may be <code>null</code>
+     * @return Read timeout set on the endpoint in milliseconds, 0 if none
+     */
+    private static int readTimeout(final RequestHandle handle)
+    {
+        if (handle == null) return 0;
+        return handle.getReadTimeout();
+    }
+
+    /**
+     * Builds the request parameters for a query.
+     * @param queryString Query string
+     * @return Parameters
+     */
+    protected final Params queryParams(final String queryString)
+    {
+        Params p = new Params();
+        p.addParam(HttpParams.pQuery, queryString);
+        return p;
+    }
+
+    /**
+     * Creates a GET request for a query.
+     * @param p Query parameters
+     * @param serviceURL Endpoint address
+     * @param readTimeout Read timeout set on the endpoint (ms), 0 if none
+     * @return Configured request
+     * @throws QueryExceptionHTTP thrown if the endpoint address is malformed
+     */
+    protected final HttpGet createGet(final Params p, final String serviceURL, final int readTimeout) throws QueryExceptionHTTP
+    {
+        HttpGet get = null;
+
+        try {
+            get = new HttpGet(serviceURL+"?"+p.httpString()) ;
+        }
+        catch (IllegalArgumentException malEx)
+        { throw new QueryExceptionHTTP(0, "Malformed URL: "+malEx) ; }
+
+        LOG.debug("GET "+get.getURI()) ;
+
+        configure(get, p, serviceURL, readTimeout);
+        return get;
+    }
+
+    /**
+     * Creates a POST request for a query.
+     * @param p Query parameters
+     * @param serviceURL Endpoint address
+     * @param readTimeout Read timeout set on the endpoint (ms), 0 if none
+     * @return Configured request
+     * @throws QueryExceptionHTTP thrown if the endpoint address is malformed
+     */
+    protected final HttpPost createPost(final Params p, final String serviceURL, final int readTimeout) throws QueryExceptionHTTP
+    {
+        HttpPost post = null;
+
+        try { post = new HttpPost(serviceURL); }
+        catch (IllegalArgumentException malEx)
+        { throw new QueryExceptionHTTP(0, "Malformed URL: " + malEx); }
+
+        LOG.debug("POST "+post.getURI()) ;
+
+        configure(post, p, serviceURL, readTimeout);
+        post.setEntity(new StringEntity(p.httpString(), ContentType.APPLICATION_FORM_URLENCODED));
+        return post;
+    }
+
+    /**
+     * Sets the headers and timeouts common to all endpoint requests.
+     * The read timeout is the one set on the endpoint, if any, otherwise
+     * the one learned for it, see {@link AdaptiveTimeouts}.
+     * @param request GET or POST request
+     * @param p Query parameters
+     * @param serviceURL Endpoint address
+     * @param readTimeout Read timeout set on the endpoint (ms), 0 if none
+     */
+    private void configure(final HttpRequestBase request, final Params p, final String serviceURL, final int readTimeout)
+    {
+        request.setHeader("Accept", accept(p.getValue(HttpParams.pQuery)));
+        if (pool.isCompression()) request.setHeader("Accept-Encoding", ACCEPT_ENCODING);
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(CONNECTION_TIMEOUT)
+                .setConnectionRequestTimeout(CONNECTION_TIMEOUT)
+                .setSocketTimeout(getReadTimeout(serviceURL, readTimeout))
+                .build());
+    }
+
+    /**
+     * Chooses the content types to ask an endpoint for, results for SELECT and
+     * ASK queries, a graph syntax for CONSTRUCT and DESCRIBE queries.
+     * @param queryString Query being sent
+     * @return Accept header
+     */
+    private static String accept(final String queryString)
+    {
+        try
+        {
+            Query query = QueryFactory.create(queryString, Syntax.syntaxARQ);
+            if (query.isConstructType() || query.isDescribeType()) return ResultFormat.GRAPH_ACCEPT;
+        }
+        catch (Exception ex)
+        {
+            LOG.debug("Unable to parse query, asking for results");
+        }
+        return ResultFormat.UPSTREAM_ACCEPT;
+    }
+
+    /**
+     * Checks whether a request only reads the endpoint's data, so may safely
+     * be sent again. Anything that doesn't parse as a query, such as an
+     * update, is taken to change the data.
+     * @param queryString Query being sent
+     * @return <code>true</code> if the request is a query
+     */
+    static boolean isReadOnly(final String queryString)
+    {
+        try
+        {
+            QueryFactory.create(queryString, Syntax.syntaxARQ);
+            return true;
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Checks the response status and returns the response body.
+     * A compressed body is decompressed as it's read, and a graph sent in
+     * a syntax other than RDF/XML is converted to RDF/XML.
+     * The pooled connection is released once the returned stream has been read or closed.
+     * @param response Endpoint response
+     * @return Response body, or <code>null</code> if the response had no content
+     * @throws QueryExceptionHTTP thrown if the endpoint returned an error status
+     */
+    protected final InputStream execCommon(final HttpResponse response) throws QueryExceptionHTTP
     {
         try {
-            int responseCode = httpConnection.getResponseCode() ;
-            String responseMessage = Convert.decWWWForm(httpConnection.getResponseMessage()) ;
+            int responseCode = response.getStatusLine().getStatusCode() ;
+            String responseMessage = Convert.decWWWForm(response.getStatusLine().getReasonPhrase()) ;
 
             // 1xx: Informational
             // 2xx: Success
@@ -385,6 +691,7 @@ public class JenaQueryWrapper implements QueryWrapperInterface
 
             if ( 300 <= responseCode && responseCode < 400 )
             {
+                EntityUtils.consumeQuietly(response.getEntity());
                 throw new QueryExceptionHTTP(responseCode, responseMessage) ;
             }
 
@@ -392,25 +699,21 @@ public class JenaQueryWrapper implements QueryWrapperInterface
 
             if ( responseCode >= 400 )
             {
+                EntityUtils.consumeQuietly(response.getEntity());
                 throw new QueryExceptionHTTP(responseCode, responseMessage) ;
             }
 
             // Request suceeded
-            InputStream in = httpConnection.getInputStream() ;
+            HttpEntity entity = response.getEntity();
+            if (entity == null) return null;
 
-            // Dump response body
-            StringBuffer b = new StringBuffer(1000) ;
-            byte[] chars = new byte[1000] ;
-            while(true)
-            {
-                int x = in.read(chars) ;
-                if ( x < 0 ) break ;
-                b.append(new String(chars, 0, x, FileUtils.encodingUTF8)) ;
-            }
-            // Reset
-            in = new ByteArrayInputStream(b.toString().getBytes(FileUtils.encodingUTF8)) ;
+            InputStream body = decompress(entity).getContent();
+            if (body == null) return null;
 
-            return in ;
+            Header contentType = entity.getContentType();
+            String lang = ResultFormat.rdfLanguage(contentType == null ? null : contentType.getValue());
+            if (lang == null) return body;
+            return new ConvertingStream(body, lang);
         }
         catch (IOException ioEx)
         {
@@ -421,4 +724,106 @@ public class JenaQueryWrapper implements QueryWrapperInterface
             throw new JenaException(rdfEx) ;
         }
     }
+
+    /**
+     * Wraps a compressed response body so it's decompressed as it's read.
+     * @param entity Response body
+     * @return Decompressing body, or the body itself if it isn't compressed
+     * @throws QueryExceptionHTTP thrown if the body uses an unknown encoding
+     */
+    private static HttpEntity decompress(final HttpEntity entity) throws QueryExceptionHTTP
+    {
+        Header header = entity.getContentEncoding();
+        if (header == null) return entity;
+
+        String encoding = header.getValue().trim().toLowerCase(Locale.ENGLISH);
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) return new GzipDecompressingEntity(entity);
+        if (encoding.equals("deflate")) return new DeflateDecompressingEntity(entity);
+        if (encoding.length() == 0 || encoding.equals("identity")) return entity;
+
+        EntityUtils.consumeQuietly(entity);
+        throw new QueryExceptionHTTP(0, "Unsupported content encoding " + encoding);
+    }
+
+    /**
+     * A graph read in another RDF syntax and handed on as RDF/XML, which is
+     * what models are read from, cached and passed through to clients in.
+     * The graph is only read once the stream is, as the response may be
+     * handed over on a thread that mustn't block.
+     */
+    private static final class ConvertingStream extends InputStream
+    {
+        /**
+         * Response body.
+         */
+        private final InputStream body;
+
+        /**
+         * Jena reader language of the body.
+         */
+        private final String lang;
+
+        /**
+         * The graph as RDF/XML, <code>null</code> until first read.
+         */
+        private InputStream converted;
+
+        /**
+         * Constructor.
+         * @param paramBody Response body
+         * @param paramLang Jena reader language of the body
+         */
+        ConvertingStream(final InputStream paramBody, final String paramLang)
+        {
+            this.body = paramBody;
+            this.lang = paramLang;
+        }
+
+        /**
+         * @return The graph as RDF/XML
+         * @throws IOException thrown if the body can't be read or parsed
+         */
+        private InputStream converted() throws IOException
+        {
+            if (converted != null) return converted;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try
+            {
+                Model model = ModelFactory.createDefaultModel();
+                model.read(body, null, lang);
+                model.write(out, "RDF/XML");
+            }
+            catch (JenaException ex)
+            {
+                IOException ioe = new IOException("Unable to read " + lang + " response");
+                ioe.initCause(ex);
+                throw ioe;
+            }
+            finally
+            {
+                body.close();
+            }
+            converted = new ByteArrayInputStream(out.toByteArray());
+            return converted;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return converted().read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            return converted().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            body.close();
+        }
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.Arrays;
+
+/**
+ * A rolling window of an endpoint's most recent response times, from which
+ * latency percentiles are read. Older samples are overwritten once the window
+ * is full, so the percentiles follow changes in the endpoint's behaviour.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class LatencyWindow
+{
+    /**
+     * Default number of samples kept.
+     */
+    public static final int DEFAULT_SIZE = 100;
+
+    /**
+     * Response times (ms), used as a ring buffer.
+     */
+    private final long[] samples;
+
+    /**
+     * Position the next sample is written to.
+     */
+    private int next = 0;
+
+    /**
+     * Number of samples held, at most the window size.
+     */
+    private int count = 0;
+
+    /**
+     * Creates a window holding the default number of samples.
+     */
+    public LatencyWindow()
+    {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size Number of samples kept
+     */
+    public LatencyWindow(final int size)
+    {
+        if (size < 1) throw new IllegalArgumentException("Window must hold at least 1 sample");
+        samples = new long[size];
+    }
+
+    /**
+     * Records a response time, replacing the oldest once the window is full.
+     * @param ms Response time in milliseconds
+     */
+    public synchronized void record(final long ms)
+    {
+        samples[next] = ms;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    /**
+     * @return Number of samples held
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the response times held, using the nearest rank.
+     * @param percentile Percentile, between 0 and 100
+     * @return Response time in milliseconds, -1 if no samples have been recorded
+     */
+    public long percentile(final double percentile)
+    {
+        long[] sorted;
+        synchronized (this)
+        {
+            if (count == 0) return -1;
+            sorted = new long[count];
+            System.arraycopy(samples, 0, sorted, 0, count);
+        }
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wf.arnos.queryhandler.task.AbstractResponseTask;
+
+/**
+ * The pending result of a federated query.
+ * Completes once every endpoint has responded, or earlier if a deadline
+ * passes, in which case whatever results have arrived are combined and the
+ * endpoints still outstanding are reported as missing. Queries whose answer
+ * can be settled by a single endpoint may also complete early. Endpoints skipped
+ * because their circuit breakers are open are reported separately; endpoints
+ * too busy to be queried are reported as missing.
+ * The results are combined by the thread asking for them, once the endpoints
+ * are settled, either into a string or written straight to a client, see
+ * {@link #writeWithin}.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class QueryFuture extends FutureTask<String>
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(QueryFuture.class);
+
+    /**
+     * Lock the endpoint tasks hold while adding results.
+     */
+    private final Object lock;
+
+    /**
+     * Tasks querying each endpoint.
+     */
+    private final List<AbstractResponseTask> tasks = new ArrayList<AbstractResponseTask>();
+
+    /**
+     * Endpoints left out of the result because the deadline passed.
+     */
+    private final List<String> missingEndpoints = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Combines the endpoint results into the response.
+     */
+    private final ResponseWriter merge;
+
+    /**
+     * Released once every endpoint has finished or been abandoned.
+     */
+    private final CountDownLatch settled = new CountDownLatch(1);
+
+    /**
+     * Set once a thread has started combining the results.
+     */
+    private final AtomicBoolean merging = new AtomicBoolean(false);
+
+    /**
+     * Set once the answer is known without waiting for the remaining endpoints.
+     */
+    private volatile boolean answered = false;
+
+    /**
+     * Constructor.
+     * @param paramMerge Combines the endpoint results into the response
+     * @param paramLock Lock the endpoint tasks hold while adding results
+     */
+    public QueryFuture(final ResponseWriter paramMerge, final Object paramLock)
+    {
+        super(new Callable<String>()
+        {
+            public String call() throws IOException
+            {
+                StringWriter out = new StringWriter();
+                paramMerge.write(out);
+                return out.toString();
+            }
+        });
+        this.merge = paramMerge;
+        this.lock = paramLock;
+    }
+
+    /**
+     * Registers a task querying one of the endpoints.
+     * @param task Endpoint task
+     */
+    void track(final AbstractResponseTask task)
+    {
+        synchronized (lock)
+        {
+            tasks.add(task);
+        }
+    }
+
+    /**
+     * Waits for the result until the deadline passes, after which the results
+     * received so far are combined and returned.
+     * @param timeout Maximum time to wait, 0 or less to wait for every endpoint
+     * @param unit Unit of the timeout
+     * @return The combined result, partial if the deadline passed
+     * @throws InterruptedException thrown if interrupted while waiting
+     * @throws ExecutionException thrown if the results couldn't be combined
+     */
+    public final String getWithin(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException
+    {
+        if (timeout <= 0) return get();
+
+        try
+        {
+            return get(timeout, unit);
+        }
+        catch (TimeoutException te)
+        {
+            expire();
+            return get();
+        }
+    }
+
+    /**
+     * Waits for the endpoints until the deadline passes, after which the
+     * outstanding endpoints are left out, as {@link #getWithin} but without
+     * combining the results. Whether the result is partial is known once this returns.
+     * @param timeout Maximum time to wait, 0 or less to wait for every endpoint
+     * @param unit Unit of the timeout
+     * @throws InterruptedException thrown if interrupted while waiting
+     */
+    public final void settleWithin(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        if (timeout <= 0) settled.await();
+        else if (!settled.await(timeout, unit))
+        {
+            expire();
+        }
+    }
+
+    /**
+     * Waits until the deadline passes, as {@link #getWithin}, then writes the
+     * combined result as the results are merged, rather than building it up
+     * as a string. If another thread has already started combining the
+     * results, its string is written once complete.
+     * Once written the result isn't kept, {@link #get} returns an empty string.
+     * @param timeout Maximum time to wait, 0 or less to wait for every endpoint
+     * @param unit Unit of the timeout
+     * @param out Writer to send the result to
+     * @throws InterruptedException thrown if interrupted while waiting
+     * @throws ExecutionException thrown if the results couldn't be combined
+     * @throws IOException thrown if the result can't be written
+     */
+    public final void writeWithin(final long timeout, final TimeUnit unit, final Writer out)
+            throws InterruptedException, ExecutionException, IOException
+    {
+        settleWithin(timeout, unit);
+
+        if (!merging.compareAndSet(false, true))
+        {
+            out.write(get());
+            return;
+        }
+
+        try
+        {
+            merge.write(out);
+        }
+        catch (IOException ioe)
+        {
+            setException(ioe);
+            throw ioe;
+        }
+        catch (RuntimeException re)
+        {
+            setException(re);
+            throw new ExecutionException(re);
+        }
+        set("");
+    }
+
+    /**
+     * Marks the endpoints as settled. Called once every endpoint has finished,
+     * or when the outstanding endpoints are abandoned. The results are
+     * combined by the thread waiting for them, not the one settling them.
+     */
+    @Override
+    public void run()
+    {
+        settled.countDown();
+    }
+
+    /**
+     * Waits for the endpoints to settle, then combines the results.
+     * @return The combined result
+     * @throws InterruptedException thrown if interrupted while waiting
+     * @throws ExecutionException thrown if the results couldn't be combined
+     */
+    @Override
+    public String get() throws InterruptedException, ExecutionException
+    {
+        settled.await();
+        if (merging.compareAndSet(false, true)) super.run();
+        return super.get();
+    }
+
+    /**
+     * Waits for the endpoints to settle, then combines the results.
+     * The time taken to combine them isn't counted against the timeout.
+     * @param timeout Maximum time to wait for the endpoints
+     * @param unit Unit of the timeout
+     * @return The combined result
+     * @throws InterruptedException thrown if interrupted while waiting
+     * @throws ExecutionException thrown if the results couldn't be combined
+     * @throws TimeoutException thrown if the endpoints didn't settle in time
+     */
+    @Override
+    public String get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!settled.await(timeout, unit)) throw new TimeoutException();
+        if (merging.compareAndSet(false, true)) super.run();
+        return super.get();
+    }
+
+    /**
+     * Stops waiting for outstanding endpoints, so the results received so far are combined.
+     * Requests still in flight are aborted.
+     * Does nothing if the result is already complete.
+     */
+    public final void expire()
+    {
+        if (isDone()) return;
+
+        List<AbstractResponseTask> abandoned = abandonTasks(missingEndpoints);
+
+        if (!abandoned.isEmpty())
+        {
+            LOG.warn("Deadline passed, returning partial results without " + missingEndpoints);
+        }
+
+        run();
+    }
+
+    /**
+     * Stops waiting for outstanding endpoints straight away, because the results
+     * received so far already settle the answer. Requests still in flight are aborted, but as their
+     * results wouldn't change the answer it isn't treated as partial.
+     * Does nothing if the result is already complete.
+     */
+    public final void completeEarly()
+    {
+        if (isDone()) return;
+        answered = true;
+
+        List<AbstractResponseTask> abandoned = abandonTasks(null);
+        if (!abandoned.isEmpty()) LOG.debug("Answer known, stopped " + abandoned.size() + " endpoint requests");
+
+        run();
+    }
+
+    /**
+     * Cancels the query, aborting requests still in flight so their threads
+     * and connections are freed straight away.
+     * @param mayInterruptIfRunning Whether a thread combining the results should be interrupted
+     * @return <code>false</code> if the result was already complete
+     */
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning)
+    {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled)
+        {
+            settled.countDown();
+            List<AbstractResponseTask> abandoned = abandonTasks(null);
+            if (!abandoned.isEmpty()) LOG.debug("Query cancelled, stopped " + abandoned.size() + " endpoint requests");
+        }
+        return cancelled;
+    }
+
+    /**
+     * Abandons the tasks that haven't finished and aborts their requests.
+     * @param missing List to record the abandoned endpoints in, may be <code>null</code>
+     * @return Tasks abandoned
+     */
+    private List<AbstractResponseTask> abandonTasks(final List<String> missing)
+    {
+        List<AbstractResponseTask> abandoned = new ArrayList<AbstractResponseTask>();
+        synchronized (lock)
+        {
+            for (AbstractResponseTask task : tasks)
+            {
+                if (task.abandon())
+                {
+                    abandoned.add(task);
+                    if (missing != null) missing.add(task.getUrl());
+                }
+            }
+        }
+
+        // abort outside the lock, so other queries' tasks can carry on adding results
+        for (AbstractResponseTask task : abandoned)
+        {
+            task.cancel();
+        }
+        return abandoned;
+    }
+
+    /**
+     * @return <code>true</code> if some endpoints were left out of the result
+     */
+    public final boolean isPartial()
+    {
+        return !getMissingEndpoints().isEmpty();
+    }
+
+    /**
+     * @return Urls of the endpoints skipped because their circuit breakers are open
+     */
+    public final List<String> getOpenCircuits()
+    {
+        List<String> open = new ArrayList<String>();
+        synchronized (lock)
+        {
+            for (AbstractResponseTask task : tasks)
+            {
+                if (task.isCircuitOpen()) open.add(task.getUrl());
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return Urls of the endpoints left out of the result because the deadline
+     * passed, or because they were too busy to be queried
+     */
+    public final List<String> getMissingEndpoints()
+    {
+        List<String> missing;
+        synchronized (missingEndpoints)
+        {
+            missing = new ArrayList<String>(missingEndpoints);
+        }
+
+        // busy endpoints can't change an answer that's already known
+        if (answered) return missing;
+
+        synchronized (lock)
+        {
+            for (AbstractResponseTask task : tasks)
+            {
+                if (task.isRejected() && !missing.contains(task.getUrl())) missing.add(task.getUrl());
+            }
+        }
+        return missing;
+    }
+}
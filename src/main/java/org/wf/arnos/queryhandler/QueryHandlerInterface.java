@@ -32,9 +32,11 @@
 package org.wf.arnos.queryhandler;
 
 import com.hp.hpl.jena.query.Query;
+import java.io.Writer;
 import java.util.List;
 import org.wf.arnos.cachehandler.CacheHandlerInterface;
 import org.wf.arnos.controller.model.Endpoint;
+import org.wf.arnos.queryhandler.format.ResultFormat;
 
 /**
  *
@@ -88,6 +90,98 @@ public interface QueryHandlerInterface
      */
     String handleDescribe(String projectName, Query query, List<Endpoint> endpoints);
 
+    /**
+     * Asynchronous version of {@link #handleConstruct}.
+     * Returns as soon as the endpoints have been queried, the future completes
+     * once every endpoint has responded and the results have been combined,
+     * or with partial results if {@link QueryFuture#expire} is called first.
+     * @param projectName Name of project
+     * @param query SPARQL CONSTRUCT query
+     * @param endpoints List of endpoints to conduct query accross
+     * @return Future result as an xml string
+     */
+    QueryFuture handleConstructAsync(String projectName, Query query, List<Endpoint> endpoints);
+
+    /**
+     * Asynchronous version of {@link #handleSelect}.
+     * @param projectName Name of project
+     * @param query SPARQL SELECT query
+     * @param endpoints List of endpoints to query over
+     * @return Future response string
+     */
+    QueryFuture handleSelectAsync(String projectName, Query query, List<Endpoint> endpoints);
+
+    /**
+     * Asynchronous version of {@link #handleSelect}, with the results written in the given format.
+     * @param projectName Name of project
+     * @param query SPARQL SELECT query
+     * @param endpoints List of endpoints to query over
+     * @param format Format to write the results in
+     * @return Future response string
+     */
+    QueryFuture handleSelectAsync(String projectName, Query query, List<Endpoint> endpoints, ResultFormat format);
+
+    /**
+     * Asynchronous version of {@link #handleAsk}.
+     * @param projectName Name of project
+     * @param query SPARQL ASK query
+     * @param endpoints List of endpoints to query over
+     * @return Future response string
+     */
+    QueryFuture handleAskAsync(String projectName, Query query, List<Endpoint> endpoints);
+
+    /**
+     * Asynchronous version of {@link #handleAsk}, with the answer written in the given format.
+     * @param projectName Name of project
+     * @param query SPARQL ASK query
+     * @param endpoints List of endpoints to query over
+     * @param format Format to write the answer in
+     * @return Future response string
+     */
+    QueryFuture handleAskAsync(String projectName, Query query, List<Endpoint> endpoints, ResultFormat format);
+
+    /**
+     * Asynchronous version of {@link #handleDescribe}.
+     * @param projectName Name of project
+     * @param query SPARQL DESCRIBE query
+     * @param endpoints List of endpoints to query over
+     * @return Future response string
+     */
+    QueryFuture handleDescribeAsync(String projectName, Query query, List<Endpoint> endpoints);
+
+    /**
+     * Checks whether a query's results can be passed straight through from its
+     * endpoint, with no merging.
+     * @param query SPARQL query
+     * @param endpoints List of endpoints to query over
+     * @return <code>true</code> if the endpoint's response can be passed through
+     */
+    boolean isPassThrough(Query query, List<Endpoint> endpoints);
+
+    /**
+     * Queries a single endpoint, copying its response to the writer as it
+     * arrives without parsing it.
+     * @param projectName Name of project
+     * @param query SPARQL query, see {@link #isPassThrough}
+     * @param endpoint Endpoint to query
+     * @param out Writer to copy the response to
+     * @return <code>true</code> if the response was written, <code>false</code> if nothing was
+     */
+    boolean passThrough(String projectName, Query query, Endpoint endpoint, Writer out);
+
+    /**
+     * Queries a single endpoint, copying its response to the writer as it
+     * arrives. Only a response in another format is parsed, to be written
+     * out again in the one asked for.
+     * @param projectName Name of project
+     * @param query SPARQL query, see {@link #isPassThrough}
+     * @param endpoint Endpoint to query
+     * @param format Format to write the results in
+     * @param out Writer to copy the response to
+     * @return <code>true</code> if the response was written, <code>false</code> if nothing was
+     */
+    boolean passThrough(String projectName, Query query, Endpoint endpoint, ResultFormat format, Writer out);
+
     /**
      * This method handles a SPARQL UPDATE query.
      * It forward the query onto the provided endpoint and returns any response.
@@ -95,9 +189,17 @@ public interface QueryHandlerInterface
      * @param query SPARQL UPDATE query (not a Query object as it can't parse UPDATE statements)
      * @param endpoints List of endpoints to query over
      * @return Response string
+     * @throws org.wf.arnos.exception.ArnosRuntimeException thrown if the update wasn't sent or the endpoint failed to apply it
      */
     String handleUpdate(String projectName, String query, Endpoint endpoint);
 
+    /**
+     * Returns how long to wait for endpoints before returning partial results,
+     * used when neither the request nor the project sets a deadline.
+     * @return Deadline in milliseconds, 0 to wait for every endpoint
+     */
+    long getDefaultTimeout();
+
     /**
      * Public accessor for cache (if present).
      * @return CacheHandler supplied by spring, or <code>null</code> otherwise
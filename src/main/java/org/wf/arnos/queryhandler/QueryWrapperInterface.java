@@ -33,6 +33,7 @@ package org.wf.arnos.queryhandler;
 
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
+import java.io.InputStream;
 
 /**
  * This class provides an customized version of Jena's execSelect and execConstruct methods.
@@ -51,6 +52,37 @@ public interface QueryWrapperInterface
      */
     String execQuery(final String querystring, final String service);
 
+    /**
+     * Executes the provided query against an endpoint.
+     * This method returns the raw response body as a stream, so that results
+     * can be parsed as they arrive rather than buffered into a string first.
+     * The caller is responsible for closing the stream.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @return Response body, <code>null</code> if the endpoint could not be queried
+     */
+    InputStream execQueryStream(final String querystring, final String service);
+
+    /**
+     * Executes the provided query against an endpoint, returning the raw result as a string.
+     * The request can be aborted through the given handle.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @param handle Handle to cancel the request through, may be <code>null</code>
+     * @return Query result as a string, empty if the request failed or was cancelled
+     */
+    String execQuery(final String querystring, final String service, final RequestHandle handle);
+
+    /**
+     * Executes the provided query against an endpoint, returning the raw response body as a stream.
+     * The request can be aborted through the given handle, including while the body is being read.
+     * @param querystring SPARQL query
+     * @param service URL endpoint
+     * @param handle Handle to cancel the request through, may be <code>null</code>
+     * @return Response body, <code>null</code> if the endpoint could not be queried or the request was cancelled
+     */
+    InputStream execQueryStream(final String querystring, final String service, final RequestHandle handle);
+
     /**
      * Converts a string into a model.
      * @param s Raw xml result
@@ -65,6 +97,21 @@ public interface QueryWrapperInterface
      */
     ResultSet stringToResultSet(final String s);
 
+    /**
+     * Pull-parses a sparql select query result stream into a resultSet object.
+     * Solutions are read from the stream as the result set is iterated.
+     * @param in Raw xml result stream
+     * @return ResultSet object
+     */
+    ResultSet streamToResultSet(final InputStream in);
+
+    /**
+     * Reads an rdf result stream into a model.
+     * @param in Raw xml result stream
+     * @return Model representation
+     */
+    Model streamToModel(final InputStream in);
+
     /**
      * Converts an ASK response into a boolean value.
      * @param s Raw xml result
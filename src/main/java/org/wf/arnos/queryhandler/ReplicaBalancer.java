@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Chooses which replica of an endpoint a query is sent to.
+ * Each endpoint url keeps an exponentially weighted moving average of its
+ * response times and a count of the requests it has in flight. A replica is
+ * chosen by the power of two choices: two members of the group are picked at
+ * random and the one with the lower expected wait (average latency scaled by
+ * its load) is used. This steers queries away from slow or busy replicas while
+ * avoiding every query herding onto the single fastest one.
+ * The balancer is shared by every query handler, spring configures it
+ * through the <code>getInstance</code> factory method.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class ReplicaBalancer
+{
+    /**
+     * Default latency (ms) assumed for replicas that haven't responded yet.
+     */
+    public static final long DEFAULT_LATENCY = 100;
+
+    /**
+     * Default latency (ms) recorded for a failed request.
+     */
+    public static final long DEFAULT_FAILURE_PENALTY = 5000;
+
+    /**
+     * Default weight given to the latest response time in the moving average.
+     */
+    public static final double DEFAULT_SMOOTHING = 0.3;
+
+    /**
+     * The unique instance of this class.
+     */
+    private static final ReplicaBalancer INSTANCE = new ReplicaBalancer();
+
+    /**
+     * Statistics for each endpoint url.
+     */
+    private final ConcurrentMap<String, Replica> replicas = new ConcurrentHashMap<String, Replica>();
+
+    /**
+     * Picks the candidates.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Latency assumed for replicas without samples.
+     */
+    private volatile long defaultLatency = DEFAULT_LATENCY;
+
+    /**
+     * Latency recorded for a failed request.
+     */
+    private volatile long failurePenalty = DEFAULT_FAILURE_PENALTY;
+
+    /**
+     * Weight of the latest response time in the moving average.
+     */
+    private volatile double smoothing = DEFAULT_SMOOTHING;
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static ReplicaBalancer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private ReplicaBalancer()
+    {
+    }
+
+    /**
+     * Chooses the replica to send a query to.
+     * @param urls Urls of the endpoints in the group
+     * @return The chosen url
+     */
+    public String choose(final List<String> urls)
+    {
+        if (urls.size() == 1) return urls.get(0);
+
+        int first;
+        int second;
+        synchronized (random)
+        {
+            first = random.nextInt(urls.size());
+            second = random.nextInt(urls.size() - 1);
+        }
+        if (second >= first) second++;
+
+        String a = urls.get(first);
+        String b = urls.get(second);
+        if (getCost(b) < getCost(a)) return b;
+        return a;
+    }
+
+    /**
+     * Returns the expected wait for a new request to an endpoint.
+     * @param url Endpoint url
+     * @return Average latency in ms, scaled by the number of requests in flight
+     */
+    public double getCost(final String url)
+    {
+        Replica replica = replicas.get(url);
+        if (replica == null) return defaultLatency + 1;
+        return replica.getCost();
+    }
+
+    /**
+     * Records a request being sent to an endpoint.
+     * Must be followed by a call to {@link #complete} or {@link #abort}.
+     * @param url Endpoint url
+     * @return Time the request was sent
+     */
+    public long begin(final String url)
+    {
+        getReplica(url).begin();
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Records the outcome of a request.
+     * @param url Endpoint url
+     * @param start Time returned by {@link #begin}
+     * @param succeeded <code>true</code> if the endpoint responded
+     */
+    public void complete(final String url, final long start, final boolean succeeded)
+    {
+        long latency = System.currentTimeMillis() - start;
+        if (!succeeded) latency = Math.max(latency, failurePenalty);
+        getReplica(url).complete(latency);
+    }
+
+    /**
+     * Records a request that was cancelled, which says nothing about the endpoint.
+     * @param url Endpoint url
+     */
+    public void abort(final String url)
+    {
+        getReplica(url).abort();
+    }
+
+    /**
+     * Returns the statistics for an endpoint, creating them on first use.
+     * @param url Endpoint url
+     * @return Endpoint's statistics
+     */
+    private Replica getReplica(final String url)
+    {
+        Replica replica = replicas.get(url);
+        if (replica == null)
+        {
+            Replica created = new Replica();
+            replica = replicas.putIfAbsent(url, created);
+            if (replica == null) replica = created;
+        }
+        return replica;
+    }
+
+    /**
+     * @param ms Latency assumed for replicas that haven't responded yet
+     */
+    @ManagedAttribute
+    public void setDefaultLatency(final long ms)
+    {
+        defaultLatency = ms;
+    }
+
+    /**
+     * @return Latency in milliseconds assumed for replicas that haven't responded yet
+     */
+    @ManagedAttribute
+    public long getDefaultLatency()
+    {
+        return defaultLatency;
+    }
+
+    /**
+     * @param ms Latency recorded for a failed request
+     */
+    @ManagedAttribute
+    public void setFailurePenalty(final long ms)
+    {
+        failurePenalty = ms;
+    }
+
+    /**
+     * @return Latency in milliseconds recorded for a failed request
+     */
+    @ManagedAttribute
+    public long getFailurePenalty()
+    {
+        return failurePenalty;
+    }
+
+    /**
+     * Sets how quickly the moving average follows changes in latency.
+     * @param weight Weight given to the latest response time, between 0 and 1
+     */
+    @ManagedAttribute
+    public void setSmoothing(final double weight)
+    {
+        if (weight <= 0 || weight > 1) throw new IllegalArgumentException("Smoothing must be greater than 0 and at most 1");
+        smoothing = weight;
+    }
+
+    /**
+     * @return Weight given to the latest response time
+     */
+    @ManagedAttribute
+    public double getSmoothing()
+    {
+        return smoothing;
+    }
+
+    /**
+     * Lists the balancing statistics for each endpoint.
+     * @return String list of per endpoint statistics
+     */
+    @ManagedOperation
+    public List<String> listReplicas()
+    {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, Replica> entry : replicas.entrySet())
+        {
+            Replica replica = entry.getValue();
+            synchronized (replica)
+            {
+                list.add(entry.getKey()
+                        + " [latency=" + Math.round(replica.latency)
+                        + ", active=" + replica.active + "]");
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Forgets all endpoint statistics. Requests already in flight are recorded
+     * against the discarded statistics.
+     */
+    @ManagedOperation
+    public void reset()
+    {
+        replicas.clear();
+    }
+
+    /**
+     * Latency and load of a single endpoint.
+     */
+    private final class Replica
+    {
+        /**
+         * Moving average of response times (ms), negative until the first response.
+         */
+        private double latency = -1;
+
+        /**
+         * Number of requests in flight.
+         */
+        private int active = 0;
+
+        /**
+         * Records a request being sent.
+         */
+        synchronized void begin()
+        {
+            active++;
+        }
+
+        /**
+         * Records a response.
+         * @param ms Response time in milliseconds
+         */
+        synchronized void complete(final long ms)
+        {
+            if (active > 0) active--;
+            if (latency < 0) latency = ms;
+            else latency += smoothing * (ms - latency);
+        }
+
+        /**
+         * Records a cancelled request.
+         */
+        synchronized void abort()
+        {
+            if (active > 0) active--;
+        }
+
+        /**
+         * @return Expected wait for a new request
+         */
+        synchronized double getCost()
+        {
+            double expected = latency;
+            if (expected < 0) expected = defaultLatency;
+            return (expected + 1) * (active + 1);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Coalesces identical endpoint requests made at the same time.
+ * The first task to miss the cache for a query leads a flight and sends the
+ * request, later tasks with the same key follow it and are given the leader's
+ * response rather than sending their own. Only the leader caches the response,
+ * so a popular query arriving at a cold or just flushed cache reaches the
+ * endpoint once rather than once per client.
+ * If the leader is cancelled its followers are told, and one of them leads a
+ * new flight. If the leader's request fails, its followers fail with it.
+ * The coalescer is shared by every query handler, spring configures it
+ * through the <code>getInstance</code> factory method.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class RequestCoalescer
+{
+    /**
+     * The unique instance of this class.
+     */
+    private static final RequestCoalescer INSTANCE = new RequestCoalescer();
+
+    /**
+     * Requests in flight, by key.
+     */
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * Whether identical requests are coalesced.
+     */
+    private volatile boolean enabled = true;
+
+    /**
+     * Number of requests sent by leaders.
+     */
+    private final AtomicLong leaders = new AtomicLong();
+
+    /**
+     * Number of requests that followed a leader instead of being sent.
+     */
+    private final AtomicLong followers = new AtomicLong();
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static RequestCoalescer getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private RequestCoalescer()
+    {
+    }
+
+    /**
+     * Receives the response of a request led by another task.
+     */
+    public interface Listener
+    {
+        /**
+         * Called once the leader has the whole response.
+         * @param response Response body, <code>null</code> if the request failed
+         */
+        void completed(final String response);
+
+        /**
+         * Called if the leader was cancelled before it had a response.
+         * The follower should join again.
+         */
+        void abandoned();
+    }
+
+    /**
+     * Joins the flight for a request, leading a new one if there is none.
+     * A leader must settle its flight with {@link Flight#complete} or
+     * {@link Flight#abandon} once it is done with the endpoint.
+     * @param key Key identifying identical requests
+     * @param listener Told of the response if another task leads
+     * @return The flight led by the caller, <code>null</code> if it follows another task
+     */
+    public Flight join(final String key, final Listener listener)
+    {
+        while (true)
+        {
+            Flight flight = flights.get(key);
+            if (flight == null)
+            {
+                Flight created = new Flight(key);
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null)
+                {
+                    leaders.incrementAndGet();
+                    return created;
+                }
+            }
+
+            if (flight.follow(listener))
+            {
+                followers.incrementAndGet();
+                return null;
+            }
+
+            // the flight landed while joining, it is leaving the table
+            Thread.yield();
+        }
+    }
+
+    /**
+     * A request in flight and the tasks waiting on its response.
+     */
+    public final class Flight
+    {
+        /**
+         * Key identifying identical requests.
+         */
+        private final String key;
+
+        /**
+         * Tasks waiting on the response, <code>null</code> once settled.
+         */
+        private List<Listener> listeners = new ArrayList<Listener>();
+
+        /**
+         * Constructor.
+         * @param paramKey Key identifying identical requests
+         */
+        private Flight(final String paramKey)
+        {
+            this.key = paramKey;
+        }
+
+        /**
+         * Adds a follower.
+         * @param listener Follower
+         * @return <code>false</code> if the flight has already been settled
+         */
+        private synchronized boolean follow(final Listener listener)
+        {
+            if (listeners == null) return false;
+            listeners.add(listener);
+            return true;
+        }
+
+        /**
+         * Removes the flight from the table and takes its followers.
+         * @return Followers to notify, empty if already settled
+         */
+        private List<Listener> settle()
+        {
+            flights.remove(key, this);
+            synchronized (this)
+            {
+                if (listeners == null) return Collections.emptyList();
+                List<Listener> waiting = listeners;
+                listeners = null;
+                return waiting;
+            }
+        }
+
+        /**
+         * Hands the leader's response to its followers.
+         * @param response Response body, <code>null</code> if the request failed
+         */
+        public void complete(final String response)
+        {
+            for (Listener listener : settle()) listener.completed(response);
+        }
+
+        /**
+         * Tells the followers the leader was cancelled, so they can join again.
+         */
+        public void abandon()
+        {
+            for (Listener listener : settle()) listener.abandoned();
+        }
+    }
+
+    /**
+     * @param b <code>true</code> to coalesce identical requests
+     */
+    @ManagedAttribute
+    public void setEnabled(final boolean b)
+    {
+        enabled = b;
+    }
+
+    /**
+     * @return <code>true</code> if identical requests are coalesced
+     */
+    @ManagedAttribute
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return Number of requests sent by leaders
+     */
+    @ManagedAttribute
+    public long getLeaders()
+    {
+        return leaders.get();
+    }
+
+    /**
+     * @return Number of requests that followed a leader instead of being sent
+     */
+    @ManagedAttribute
+    public long getFollowers()
+    {
+        return followers.get();
+    }
+
+    /**
+     * @return Number of requests currently in flight
+     */
+    @ManagedAttribute
+    public int getInFlight()
+    {
+        return flights.size();
+    }
+
+    /**
+     * Clears the statistics and abandons any flights, so that their followers
+     * send their own requests.
+     */
+    @ManagedOperation
+    public void reset()
+    {
+        for (Flight flight : flights.values()) flight.abandon();
+        leaders.set(0);
+        followers.set(0);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import org.apache.http.concurrent.Cancellable;
+
+/**
+ * A handle on the request an endpoint task has in flight, allowing the task
+ * to be cancelled from another thread. Cancelling aborts the http request,
+ * closing its connection and waking the thread waiting on it, so abandoned
+ * work stops straight away rather than once the endpoint has responded.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class RequestHandle
+{
+    /**
+     * Set once cancelled.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * Set once a request sent through this handle has failed.
+     */
+    private volatile boolean failed = false;
+
+    /**
+     * Request in flight, <code>null</code> if none.
+     */
+    private Cancellable request;
+
+    /**
+     * Read timeout set on the endpoint (ms), 0 if none.
+     */
+    private volatile int readTimeout = 0;
+
+    /**
+     * Registers the request in flight, replacing any earlier one.
+     * If the handle has already been cancelled the request is cancelled straight away.
+     * @param paramRequest Request to cancel along with this handle
+     */
+    public void attach(final Cancellable paramRequest)
+    {
+        synchronized (this)
+        {
+            if (!cancelled)
+            {
+                request = paramRequest;
+                return;
+            }
+        }
+        paramRequest.cancel();
+    }
+
+    /**
+     * Cancels the request in flight, and any attached later on.
+     */
+    public void cancel()
+    {
+        Cancellable inFlight;
+        synchronized (this)
+        {
+            if (cancelled) return;
+            cancelled = true;
+            inFlight = request;
+            request = null;
+        }
+        if (inFlight != null) inFlight.cancel();
+    }
+
+    /**
+     * Sets the read timeout of requests sent through this handle, overriding
+     * the one learned for the endpoint.
+     * @param ms Read timeout in milliseconds, 0 to use the learned one
+     */
+    public void setReadTimeout(final int ms)
+    {
+        readTimeout = Math.max(0, ms);
+    }
+
+    /**
+     * @return Read timeout of requests sent through this handle in milliseconds, 0 if not set
+     */
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * Records that a request sent through this handle failed, whether it
+     * couldn't be sent, timed out or the endpoint returned an error status.
+     */
+    public void fail()
+    {
+        failed = true;
+    }
+
+    /**
+     * Whether a request sent through this handle failed. A successful
+     * response may have an empty body, as an update's often does, so this
+     * rather than the body tells whether the endpoint handled the request.
+     * @return <code>true</code> if a request failed
+     */
+    public boolean hasFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * @return <code>true</code> if the handle has been cancelled
+     */
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+}
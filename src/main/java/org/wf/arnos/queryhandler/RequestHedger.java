@@ -0,0 +1,748 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.Cancellable;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Sends hedged requests to replicas of slow endpoints.
+ * A query is sent to its endpoint as usual, and if no response has arrived
+ * after the endpoint's usual response time (a percentile of its recent
+ * latencies) the same query is sent to a replica. Whichever responds first is
+ * used and the other request is cancelled. The replica hedged to is chosen by
+ * the {@link ReplicaBalancer}. The outcome of both requests is recorded with the
+ * balancer and the endpoints' {@link CircuitBreakers}, the latencies hedge
+ * delays are based on are shared with the {@link AdaptiveTimeouts}.
+ * Hedges are paid for from a budget: every request earns a fraction of a hedge,
+ * so hedging adds at most that fraction of extra load to the replicas.
+ * The hedger is shared by every query handler, spring configures it
+ * through the <code>getInstance</code> factory method.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@ManagedResource
+public final class RequestHedger
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(RequestHedger.class);
+
+    /**
+     * Default latency percentile after which a hedge is sent.
+     */
+    public static final double DEFAULT_PERCENTILE = 95;
+
+    /**
+     * Default fraction of requests that may be hedged.
+     */
+    public static final double DEFAULT_BUDGET = 0.05;
+
+    /**
+     * Default delay (ms) before hedging requests to endpoints with too few latency samples.
+     */
+    public static final long DEFAULT_DELAY = 1000;
+
+    /**
+     * Number of latency samples needed before an endpoint's percentile is used.
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    /**
+     * Maximum number of hedges the budget can save up for.
+     */
+    private static final double MAX_CREDIT = 10;
+
+    /**
+     * The unique instance of this class.
+     */
+    private static final RequestHedger INSTANCE = new RequestHedger();
+
+    /**
+     * Fires hedges once their delay has passed.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new HedgeThreadFactory("arnos-hedge-timer"));
+
+    /**
+     * Threads waiting on hedged requests.
+     */
+    private final ExecutorService senders = Executors.newCachedThreadPool(new HedgeThreadFactory("arnos-hedge"));
+
+    /**
+     * Whether requests to endpoints with replicas are hedged.
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * Latency percentile after which a hedge is sent.
+     */
+    private volatile double percentile = DEFAULT_PERCENTILE;
+
+    /**
+     * Fraction of requests that may be hedged.
+     */
+    private volatile double budget = DEFAULT_BUDGET;
+
+    /**
+     * Delay (ms) used until an endpoint has enough latency samples.
+     */
+    private volatile long defaultDelay = DEFAULT_DELAY;
+
+    /**
+     * Hedges that may currently be sent, guarded by this.
+     */
+    private double credit = 0;
+
+    /**
+     * Number of requests that could have been hedged.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of hedges sent.
+     */
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Number of hedges that responded before the original request.
+     */
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Number of hedges not sent because the budget was spent.
+     */
+    private final AtomicLong hedgesDenied = new AtomicLong();
+
+    /**
+     * @return The unique instance of this class.
+     */
+    public static RequestHedger getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The constructor, made private to prevent others from instantiating this class.
+     */
+    private RequestHedger()
+    {
+    }
+
+    /**
+     * Executes a query against an endpoint, hedging it to a replica if the endpoint is slow.
+     * @param wrapper Query wrapper used to send the requests
+     * @param query SPARQL query
+     * @param url Endpoint url
+     * @param replicas Urls of endpoints serving the same dataset
+     * @param handle Handle to cancel the requests through
+     * @return Query result as a string, empty if neither endpoint responded
+     */
+    public String execQuery(final QueryWrapperInterface wrapper, final String query, final String url,
+            final List<String> replicas, final RequestHandle handle)
+    {
+        return race(new Leg<String>()
+        {
+            String send(final String service, final RequestHandle request)
+            {
+                return wrapper.execQuery(query, service, request);
+            }
+
+            String failure()
+            {
+                return "";
+            }
+        }, url, ReplicaBalancer.getInstance().choose(replicas), handle);
+    }
+
+    /**
+     * Executes a query against an endpoint, hedging it to a replica if the endpoint is slow.
+     * The race is decided once the response headers arrive, the body is returned unread.
+     * @param wrapper Query wrapper used to send the requests
+     * @param query SPARQL query
+     * @param url Endpoint url
+     * @param replicas Urls of endpoints serving the same dataset
+     * @param handle Handle to cancel the requests through
+     * @return Response body, <code>null</code> if neither endpoint responded
+     */
+    public InputStream execQueryStream(final QueryWrapperInterface wrapper, final String query, final String url,
+            final List<String> replicas, final RequestHandle handle)
+    {
+        return race(new Leg<InputStream>()
+        {
+            InputStream send(final String service, final RequestHandle request)
+            {
+                return wrapper.execQueryStream(query, service, request);
+            }
+
+            InputStream failure()
+            {
+                return null;
+            }
+        }, url, ReplicaBalancer.getInstance().choose(replicas), handle);
+    }
+
+    /**
+     * Sends a request to the endpoint on the calling thread, racing it against
+     * a hedge to the replica if it is slow.
+     * @param leg Sends the request
+     * @param url Endpoint url
+     * @param replica Replica url
+     * @param handle Handle to cancel the requests through
+     * @param <T> Response type
+     * @return The first successful response; if neither succeeded the handle is marked failed
+     */
+    private <T> T race(final Leg<T> leg, final String url, final String replica, final RequestHandle handle)
+    {
+        requests.incrementAndGet();
+        earnCredit();
+
+        Race<T> race = new Race<T>(leg, replica);
+        race.primary.setReadTimeout(handle.getReadTimeout());
+        race.hedge.setReadTimeout(handle.getReadTimeout());
+        handle.attach(race);
+        race.schedule(getHedgeDelay(url));
+
+        T response = race.primaryDone(race.send(url, race.primary));
+        if (!race.isDecided()) handle.fail();
+        return response;
+    }
+
+    /**
+     * Adds a request's share of the budget to the hedges that may be sent.
+     */
+    private synchronized void earnCredit()
+    {
+        credit = Math.min(MAX_CREDIT, credit + budget);
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     * @return <code>true</code> if a hedge may be sent
+     */
+    private synchronized boolean spendCredit()
+    {
+        if (credit < 1) return false;
+        credit--;
+        return true;
+    }
+
+    /**
+     * Returns how long a request to an endpoint waits before being hedged.
+     * @param url Endpoint url
+     * @return Delay in milliseconds
+     */
+    @ManagedOperation
+    public long getHedgeDelay(final String url)
+    {
+        AdaptiveTimeouts timeouts = AdaptiveTimeouts.getInstance();
+        if (timeouts.getSamples(url) < MIN_SAMPLES) return defaultDelay;
+        return timeouts.getLatency(url, percentile);
+    }
+
+    /**
+     * @param b <code>true</code> to hedge requests to endpoints with replicas
+     */
+    @ManagedAttribute
+    public void setEnabled(final boolean b)
+    {
+        enabled = b;
+    }
+
+    /**
+     * @return <code>true</code> if requests to endpoints with replicas are hedged
+     */
+    @ManagedAttribute
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Sets the latency percentile a request must exceed before it is hedged.
+     * @param p Percentile, between 0 and 100
+     */
+    @ManagedAttribute
+    public void setPercentile(final double p)
+    {
+        if (p < 0 || p > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        percentile = p;
+    }
+
+    /**
+     * @return Latency percentile after which a hedge is sent
+     */
+    @ManagedAttribute
+    public double getPercentile()
+    {
+        return percentile;
+    }
+
+    /**
+     * Sets the fraction of extra requests hedging may add.
+     * @param fraction Fraction of requests that may be hedged, 0.05 allows 5% extra load
+     */
+    @ManagedAttribute
+    public void setBudget(final double fraction)
+    {
+        if (fraction < 0) throw new IllegalArgumentException("Budget can't be negative");
+        budget = fraction;
+    }
+
+    /**
+     * @return Fraction of requests that may be hedged
+     */
+    @ManagedAttribute
+    public double getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Sets the delay used until an endpoint has enough latency samples for its percentile.
+     * @param ms Delay in milliseconds
+     */
+    @ManagedAttribute
+    public void setDefaultDelay(final long ms)
+    {
+        defaultDelay = ms;
+    }
+
+    /**
+     * @return Delay in milliseconds used for endpoints with few latency samples
+     */
+    @ManagedAttribute
+    public long getDefaultDelay()
+    {
+        return defaultDelay;
+    }
+
+    /**
+     * @return Number of requests to endpoints with replicas
+     */
+    @ManagedAttribute
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return Number of hedges sent
+     */
+    @ManagedAttribute
+    public long getHedges()
+    {
+        return hedges.get();
+    }
+
+    /**
+     * @return Number of hedges that responded before the original request
+     */
+    @ManagedAttribute
+    public long getHedgesWon()
+    {
+        return hedgesWon.get();
+    }
+
+    /**
+     * @return Number of hedges not sent because the budget was spent
+     */
+    @ManagedAttribute
+    public long getHedgesDenied()
+    {
+        return hedgesDenied.get();
+    }
+
+    /**
+     * Forgets all statistics and saved up budget.
+     */
+    @ManagedOperation
+    public void reset()
+    {
+        requests.set(0);
+        hedges.set(0);
+        hedgesWon.set(0);
+        hedgesDenied.set(0);
+        synchronized (this)
+        {
+            credit = 0;
+        }
+    }
+
+    /**
+     * Sends a request and interprets its response.
+     * @param <T> Response type
+     */
+    private abstract static class Leg<T>
+    {
+        /**
+         * @param service Endpoint url
+         * @param request Handle to cancel the request through
+         * @return Response
+         */
+        abstract T send(String service, RequestHandle request);
+
+        /**
+         * @return Response returned when neither endpoint responded
+         */
+        abstract T failure();
+
+        /**
+         * Releases a response that lost the race.
+         * @param response Response
+         */
+        void discard(final T response)
+        {
+            if (response instanceof InputStream) IOUtils.closeQuietly((InputStream) response);
+        }
+    }
+
+    /**
+     * A request to an endpoint and the hedge to its replica.
+     * Cancelling the race cancels both.
+     * @param <T> Response type
+     */
+    private final class Race<T> implements Cancellable
+    {
+        /**
+         * Handle on the request to the endpoint.
+         */
+        final RequestHandle primary = new RequestHandle();
+
+        /**
+         * Handle on the hedge.
+         */
+        final RequestHandle hedge = new RequestHandle();
+
+        /**
+         * Sends the requests.
+         */
+        private final Leg<T> leg;
+
+        /**
+         * Replica url.
+         */
+        private final String replica;
+
+        /**
+         * The scheduled hedge.
+         */
+        private Future<?> pending;
+
+        /**
+         * Set once the request to the endpoint has returned.
+         */
+        private boolean primaryDone = false;
+
+        /**
+         * Set once the hedge has been sent.
+         */
+        private boolean hedgeSent = false;
+
+        /**
+         * Set once the hedge has returned.
+         */
+        private boolean hedgeDone = false;
+
+        /**
+         * The hedge's response, once it has won.
+         */
+        private T hedgeResponse;
+
+        /**
+         * Set once a successful response has been taken.
+         */
+        private boolean decided = false;
+
+        /**
+         * @param paramLeg Sends the requests
+         * @param paramReplica Replica url
+         */
+        Race(final Leg<T> paramLeg, final String paramReplica)
+        {
+            this.leg = paramLeg;
+            this.replica = paramReplica;
+        }
+
+        /**
+         * Schedules the hedge.
+         * @param delay Delay in milliseconds
+         */
+        synchronized void schedule(final long delay)
+        {
+            pending = timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    fire();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Sends the hedge, if the endpoint still hasn't responded and the budget allows.
+         */
+        private void fire()
+        {
+            synchronized (this)
+            {
+                if (primaryDone || primary.isCancelled()) return;
+
+                if (!spendCredit())
+                {
+                    hedgesDenied.incrementAndGet();
+                    return;
+                }
+                hedgeSent = true;
+            }
+            hedges.incrementAndGet();
+            LOG.debug("Hedging request to " + replica);
+
+            senders.execute(new Runnable()
+            {
+                public void run()
+                {
+                    sendHedge();
+                }
+            });
+        }
+
+        /**
+         * Sends the request to the replica, within the replica's bulkhead.
+         */
+        private void sendHedge()
+        {
+            T response = leg.failure();
+            boolean succeeded = false;
+            if (!CircuitBreakers.getInstance().allowRequest(replica))
+            {
+                LOG.debug("Hedge to " + replica + " skipped, circuit open");
+            }
+            else
+            {
+                EndpointBulkheads.Permit permit = EndpointBulkheads.getInstance().acquire(replica);
+                if (permit == null)
+                {
+                    CircuitBreakers.getInstance().recordCancelled(replica);
+                }
+                else
+                {
+                    try
+                    {
+                        response = send(replica, hedge);
+                        succeeded = !hedge.hasFailed();
+                    }
+                    finally
+                    {
+                        permit.release();
+                    }
+                }
+            }
+
+            boolean won = false;
+            synchronized (this)
+            {
+                hedgeDone = true;
+                if (!decided && succeeded && !hedge.isCancelled())
+                {
+                    decided = true;
+                    hedgeResponse = response;
+                    won = true;
+                }
+                notifyAll();
+            }
+
+            if (won)
+            {
+                hedgesWon.incrementAndGet();
+                primary.cancel();
+            }
+            else
+            {
+                hedge.cancel();
+                leg.discard(response);
+            }
+        }
+
+        /**
+         * Sends one of the requests, recording its response time, or its
+         * timeout if it timed out.
+         * @param service Endpoint url
+         * @param request Handle to cancel the request through
+         * @return Response
+         */
+        T send(final String service, final RequestHandle request)
+        {
+            ReplicaBalancer balancer = ReplicaBalancer.getInstance();
+            CircuitBreakers breakers = CircuitBreakers.getInstance();
+            long start = balancer.begin(service);
+            T response = leg.send(service, request);
+            if (request.isCancelled())
+            {
+                balancer.abort(service);
+                breakers.recordCancelled(service);
+            }
+            else if (!request.hasFailed())
+            {
+                balancer.complete(service, start, true);
+                breakers.recordSuccess(service);
+                AdaptiveTimeouts.getInstance().record(service, System.currentTimeMillis() - start);
+            }
+            else
+            {
+                balancer.complete(service, start, false);
+                breakers.recordFailure(service);
+                AdaptiveTimeouts.getInstance().recordFailure(service, System.currentTimeMillis() - start,
+                        JenaQueryWrapper.getReadTimeout(service, request.getReadTimeout()));
+            }
+            return response;
+        }
+
+        /**
+         * Settles the race once the request to the endpoint has returned,
+         * waiting for a hedge in flight if the endpoint didn't respond.
+         * @param response The endpoint's response
+         * @return The response to use
+         */
+        T primaryDone(final T response)
+        {
+            boolean won = false;
+            T other = null;
+            Future<?> scheduled;
+            synchronized (this)
+            {
+                primaryDone = true;
+                scheduled = pending;
+                if (!decided && !primary.hasFailed() && !primary.isCancelled())
+                {
+                    decided = true;
+                    won = true;
+                }
+                else
+                {
+                    try
+                    {
+                        while (hedgeSent && !hedgeDone) wait();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        hedge.cancel();
+                    }
+                    other = hedgeResponse;
+                }
+            }
+            if (scheduled != null) scheduled.cancel(false);
+
+            if (won)
+            {
+                hedge.cancel();
+                return response;
+            }
+
+            primary.cancel();
+            leg.discard(response);
+            if (other != null) return other;
+            return leg.failure();
+        }
+
+        /**
+         * @return <code>true</code> if a successful response has been taken
+         */
+        synchronized boolean isDecided()
+        {
+            return decided;
+        }
+
+        /**
+         * Cancels the request to the endpoint and the hedge.
+         * @return <code>true</code>
+         */
+        public boolean cancel()
+        {
+            Future<?> scheduled;
+            synchronized (this)
+            {
+                scheduled = pending;
+            }
+            if (scheduled != null) scheduled.cancel(false);
+            primary.cancel();
+            hedge.cancel();
+            return true;
+        }
+    }
+
+    /**
+     * Creates the daemon threads used for hedging.
+     */
+    private static final class HedgeThreadFactory implements ThreadFactory
+    {
+        /**
+         * Thread name prefix.
+         */
+        private final String prefix;
+
+        /**
+         * Number of threads created.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * @param paramPrefix Thread name prefix
+         */
+        HedgeThreadFactory(final String paramPrefix)
+        {
+            this.prefix = paramPrefix;
+        }
+
+        public Thread newThread(final Runnable r)
+        {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -38,26 +38,46 @@ import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.SortCondition;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.sparql.engine.binding.Binding;
-import com.hp.hpl.jena.sparql.engine.binding.BindingComparator;
+import java.io.IOException;
 import java.io.StringWriter;
-import java.util.Comparator;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 import org.wf.arnos.cachehandler.CacheHandlerInterface;
 import org.wf.arnos.controller.model.Endpoint;
 import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.controller.model.sparql.ResultTable;
+import org.wf.arnos.exception.ArnosRuntimeException;
+import org.wf.arnos.queryhandler.format.ResultFormat;
+import org.wf.arnos.queryhandler.format.ResultsWriter;
+import org.wf.arnos.queryhandler.merge.ConcatenatedResults;
+import org.wf.arnos.queryhandler.merge.DistinctResults;
+import org.wf.arnos.queryhandler.merge.MemoryBudget;
+import org.wf.arnos.queryhandler.merge.ResultComparator;
+import org.wf.arnos.queryhandler.merge.SortedMerge;
+import org.wf.arnos.queryhandler.merge.SpillingResults;
+import org.wf.arnos.queryhandler.merge.TopK;
+import org.wf.arnos.queryhandler.task.AbstractResponseTask;
 import org.wf.arnos.queryhandler.task.FetchBooleanResponseTask;
 import org.wf.arnos.queryhandler.task.FetchModelResponseTask;
 import org.wf.arnos.queryhandler.task.FetchResultSetResponseTask;
 import org.wf.arnos.queryhandler.task.FetchUpdateResponseTask;
+import org.wf.arnos.queryhandler.task.PassThroughResponseTask;
 
 /**
  * A query handler that uses multithreading to handle endpoint quering.
@@ -86,17 +106,124 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
      * Spring's taskexecutor for handling threads.
      */
     @Autowired
-    private transient ThreadPoolTaskExecutor taskExecutor;
+    private transient TaskExecutor taskExecutor;
+
+    /**
+     * Whether endpoints are queried through the non-blocking transport.
+     */
+    private boolean nonBlocking = false;
+
+    /**
+     * Non-blocking transport, created on first use.
+     */
+    private transient AsyncQueryWrapperInterface asyncQueryWrapper;
+
+    /**
+     * Time (ms) to wait for endpoints before returning partial results, 0 to wait for all of them.
+     */
+    private long defaultTimeout = 0;
+
+    /**
+     * Estimated bytes of results a query may hold before spilling them to disk, 0 to never spill.
+     */
+    private long spillThreshold = 0;
+
+    /**
+     * Whether spilled results are read back through a memory mapping.
+     */
+    private boolean spillMapped = false;
 
     /**
      * Sets the task executor.
      * @param paramTaskExecutor A given task executor
      */
-    public final void setTaskExecutor(final ThreadPoolTaskExecutor paramTaskExecutor)
+    public final void setTaskExecutor(final TaskExecutor paramTaskExecutor)
     {
         this.taskExecutor = paramTaskExecutor;
     }
 
+    /**
+     * Selects the transport used to query endpoints.
+     * When non-blocking, requests are sent over selector based I/O and executor
+     * threads are only used to process responses once they have arrived, so
+     * slow endpoints don't tie up the executor.
+     * @param b <code>true</code> to use the non-blocking transport
+     */
+    public final void setNonBlocking(final boolean b)
+    {
+        this.nonBlocking = b;
+    }
+
+    /**
+     * @return <code>true</code> if endpoints are queried through the non-blocking transport
+     */
+    public final boolean isNonBlocking()
+    {
+        return nonBlocking;
+    }
+
+    /**
+     * Sets how long the blocking handle methods wait for endpoints to respond.
+     * Once the deadline passes the results received so far are returned.
+     * @param ms Deadline in milliseconds, 0 to wait for every endpoint
+     */
+    public final void setDefaultTimeout(final long ms)
+    {
+        this.defaultTimeout = ms;
+    }
+
+    /**
+     * @return Deadline in milliseconds, 0 if every endpoint is waited for
+     */
+    public final long getDefaultTimeout()
+    {
+        return defaultTimeout;
+    }
+
+    /**
+     * Sets how much memory a query's results may take up before they're
+     * spilled to temporary files, to be sorted, made distinct or grouped there.
+     * @param bytes Estimated bytes, 0 to always hold the results in memory
+     */
+    public final void setSpillThreshold(final long bytes)
+    {
+        this.spillThreshold = Math.max(0, bytes);
+    }
+
+    /**
+     * @return Estimated bytes of results a query may hold, 0 if never spilled
+     */
+    public final long getSpillThreshold()
+    {
+        return spillThreshold;
+    }
+
+    /**
+     * Selects how spilled results are read back.
+     * @param b <code>true</code> to read spill files through a memory mapping
+     */
+    public final void setSpillMapped(final boolean b)
+    {
+        this.spillMapped = b;
+    }
+
+    /**
+     * @return <code>true</code> if spill files are read through a memory mapping
+     */
+    public final boolean isSpillMapped()
+    {
+        return spillMapped;
+    }
+
+    /**
+     * Creates the memory budget for a query's results.
+     * @return New budget
+     */
+    protected MemoryBudget createBudget()
+    {
+        return new MemoryBudget(spillThreshold, spillMapped);
+    }
+
     /**
      * Public accessor for cache (if present).
      * @return CacheHandler supplied by spring, or <code>null</code> otherwise
@@ -143,21 +270,22 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
      */
     public final String handleConstruct(final String projectName, final Query query, final List<Endpoint> endpoints)
     {
-        LOG.info("handling CONSTRUCT");
-
-        Model model = fetchModelsAndWait(projectName, query, endpoints);
-
-        // create a string writer to print the model to
-        StringWriter wr = new StringWriter();
-
-        // write out the model
-        model.write(wr);
+        return waitFor(handleConstructAsync(projectName, query, endpoints));
+    }
 
-        // close the models as we don't need them any more
-        model.close();
+    /**
+     * Handles the federated CONSTRUCT sparql query across endpoints, without
+     * waiting for the endpoints to respond.
+     * @param projectName Name of project
+     * @param query SPARQL CONSTRUCT query
+     * @param endpoints List of endpoints to conduct query accross
+     * @return Future result as an xml string
+     */
+    public QueryFuture handleConstructAsync(final String projectName, final Query query, final List<Endpoint> endpoints)
+    {
+        LOG.info("handling CONSTRUCT");
 
-        // return our string results
-        return wr.toString();
+        return fetchModels(projectName, query, endpoints);
     }
 
     /**
@@ -169,25 +297,145 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
      * @return Response string
      */
     public String handleSelect(final String projectName, final Query query, final List<Endpoint> endpoints)
+    {
+        return waitFor(handleSelectAsync(projectName, query, endpoints));
+    }
+
+    /**
+     * This method handles a SELECT SPARQL query, without waiting for the endpoints to respond.
+     * The responses are combined, as XML, once the last endpoint has finished.
+     * @param projectName Name of project
+     * @param query SPARQL SELECT query
+     * @param endpoints List of endpoints to query over
+     * @return Future response string
+     */
+    public QueryFuture handleSelectAsync(final String projectName, final Query query, final List<Endpoint> endpoints)
+    {
+        return handleSelectAsync(projectName, query, endpoints, ResultFormat.XML);
+    }
+
+    /**
+     * This method handles a SELECT SPARQL query, without waiting for the endpoints to respond.
+     * The responses are combined once the last endpoint has finished.
+     * @param projectName Name of project
+     * @param query SPARQL SELECT query
+     * @param endpoints List of endpoints to query over
+     * @param format Format to write the results in
+     * @return Future response string
+     */
+    public QueryFuture handleSelectAsync(final String projectName, final Query query, final List<Endpoint> endpoints,
+            final ResultFormat format)
     {
         LOG.info("handling SELECT");
 
-        List<Result> selectResultList = fetchResultSetAndWait(projectName, query, endpoints);
+        final List<Collection<Result>> endpointResults = new ArrayList<Collection<Result>>();
+        final MemoryBudget budget = createBudget();
 
-        StringBuffer content = new StringBuffer(DEFAULT_SB_LENGTH);
+        return fetchResultSet(projectName, pushDown(query), endpoints, endpointResults, budget, new ResponseWriter()
+        {
+            public void write(final Writer out) throws IOException
+            {
+                writeSelectResults(query, endpointResults, budget, format.createWriter(out));
+            }
+        });
+    }
 
-        content.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\"><head>");
+    /**
+     * Rewrites a SELECT query for sending to each endpoint.
+     * The OFFSET applies to the federated results rather than to each endpoint's,
+     * so each endpoint of a query with an OFFSET is asked for its first
+     * OFFSET + LIMIT results instead, any of which may be among the federated
+     * results. The OFFSET is applied once the results are merged.
+     * @param query SPARQL SELECT query
+     * @return Query to send to each endpoint
+     */
+    protected Query pushDown(final Query query)
+    {
+        if (!isOffsetMerged(query)) return query;
 
-        // add head info
-        List<String> vars = query.getResultVars();
-        for (String var : vars)
+        Query endpointQuery = query.cloneQuery();
+        endpointQuery.setOffset(Query.NOLIMIT);
+        if (query.hasLimit()) endpointQuery.setLimit(query.getLimit() + query.getOffset());
+        return endpointQuery;
+    }
+
+    /**
+     * Checks whether a query's OFFSET is applied when the endpoints' results are
+     * merged, rather than being sent to each endpoint.
+     * @param query SPARQL SELECT query
+     * @return <code>true</code> if the OFFSET is applied by the merge
+     */
+    protected boolean isOffsetMerged(final Query query)
+    {
+        // aggregates are combined across endpoints, so are sent as they are
+        return query.hasOffset() && !query.hasAggregators();
+    }
+
+    /**
+     * Creates a latch counted down as each endpoint result arrives, which
+     * completes the query as soon as enough results have arrived.
+     * Only unordered queries with a LIMIT can be answered before every endpoint
+     * has responded, and of those only ones without DISTINCT, as a result may
+     * turn out to be a duplicate of one from another endpoint.
+     * @param query Query sent to the endpoints
+     * @param future Pending result of the query
+     * @return Latch, or <code>null</code> if every endpoint has to respond
+     */
+    protected CompletionLatch createRowSignal(final Query query, final QueryFuture future)
+    {
+        if (!query.hasLimit() || query.hasOrderBy() || query.isDistinct() || query.hasAggregators()) return null;
+
+        return new CompletionLatch((int) Math.min(Integer.MAX_VALUE, query.getLimit()), new Runnable()
         {
-            content.append("<variable name=\"");
-            content.append(Result.escapeXMLEntities(var));
-            content.append("\"/>");
+            public void run()
+            {
+                future.completeEarly();
+            }
+        });
+    }
+
+    /**
+     * Creates the collection an endpoint's results are gathered in.
+     * Only the results that may be in the federated results of an ordered
+     * query with a LIMIT are kept, however many the endpoint returns.
+     * Otherwise the results are spilled to disk once the query's budget runs out,
+     * or held in a dictionary encoded table when there's no budget.
+     * @param query Query sent to the endpoint
+     * @param budget The query's memory budget
+     * @return Collection to add the endpoint's results to
+     */
+    protected Collection<Result> createEndpointResults(final Query query, final MemoryBudget budget)
+    {
+        // aggregates are combined across endpoints, so no endpoint's rows can be dropped
+        if (query.hasOrderBy() && query.hasLimit() && !query.hasAggregators())
+        {
+            return new TopK((int) Math.min(Integer.MAX_VALUE, query.getLimit()), new ResultComparator(query.getOrderBy()));
+        }
+        if (budget.isLimited())
+        {
+            return new SpillingResults(budget, query.hasOrderBy() ? new ResultComparator(query.getOrderBy()) : null);
         }
-        content.append("</head><results>");
+        return new ResultTable();
+    }
 
+    /**
+     * Combines the results of a SELECT query from all endpoints.
+     * The ORDER BY is sent to each endpoint, so ordered results are combined
+     * with a merge of the endpoints' already sorted results.
+     * The response is written as the results are merged, but the merge only
+     * starts once every endpoint has settled, and each endpoint's results are
+     * gathered in full beforehand, see {@link #createEndpointResults}. Only the
+     * output is streamed, memory is bounded by keeping just the top results of
+     * an ordered query with a LIMIT, or by spilling to disk.
+     * @param query SPARQL SELECT query
+     * @param endpointResults Results of each endpoint
+     * @param budget The query's memory budget
+     * @param out Writer to send the response to
+     * @throws IOException thrown if the response can't be written
+     */
+    protected void writeSelectResults(final Query query, final List<? extends Collection<Result>> endpointResults,
+            final MemoryBudget budget, final ResultsWriter out) throws IOException
+    {
         // collate all responses
         boolean hasLimit = false;
         boolean distinct = false;
@@ -204,46 +452,51 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
             distinct = true;
         }
 
-        if (query.hasOrderBy())
+        // the offset isn't sent to the endpoints, see pushDown
+        long offset = 0;
+        if (isOffsetMerged(query))
         {
-            sortResults(selectResultList, query.getOrderBy());
+            offset = query.getOffset();
         }
 
-        for (int i = 0; i < selectResultList.size(); i++)
+        List<String> vars = query.getResultVars();
+        DistinctResults distinctRows = null;
+        try
         {
-            Result r = selectResultList.get(i);
-            boolean add = true;
+            out.start(vars);
 
-            if (!hasLimit || limit > 0)
-            {
-                if (hasLimit) limit--;
-            }
-            else
+            Iterator<Result> rows = mergeResults(query, endpointResults);
+
+            // duplicates are dropped as the results are merged
+            if (distinct)
             {
-                add = false;
+                if (query.hasOrderBy()) distinctRows = new DistinctResults(rows, vars, new ResultComparator(query.getOrderBy()));
+                else distinctRows = new DistinctResults(rows, vars, budget);
+                rows = distinctRows;
             }
 
-            if (distinct)
+            while (rows.hasNext() && (!hasLimit || limit > 0))
             {
-                // check a duplicate result hasn't already been added
-                boolean match = false;
-                for (int j = 0; j < i; j++)
+                Result r = rows.next();
+
+                if (offset > 0)
                 {
-                    if (r.equals(selectResultList.get(j))) match = true;
+                    offset--;
+                    continue;
                 }
-                if (match) add = false;
+
+                if (hasLimit) limit--;
+                out.write(r);
             }
 
-            if (add) content.append(r.toXML());
+            out.finish();
+        }
+        finally
+        {
+            // spill files are deleted even if the client has gone
+            if (distinctRows != null) distinctRows.close();
+            for (Collection<Result> results : endpointResults) results.clear();
         }
-
-        content.append("</results></sparql>");
-
-        selectResultList.clear();
-
-        LOG.debug("Returning string: "+content.toString());
-        
-        return content.toString();
     }
 
     /**
@@ -254,11 +507,57 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
      * @return Response string
      */
     public String handleAsk(final String projectName, final Query query, final List<Endpoint> endpoints)
+    {
+        return waitFor(handleAskAsync(projectName, query, endpoints));
+    }
+
+    /**
+     * This method handles a ASK SPARQL query, without waiting for the endpoints to respond.
+     * The answer is returned, as XML, as soon as any endpoint answers true,
+     * the remaining requests are cancelled.
+     * @param query SPARQL ASK query
+     * @param endpoints List of endpoints to query over
+     * @return Future response string
+     */
+    public QueryFuture handleAskAsync(final String projectName, final Query query, final List<Endpoint> endpoints)
+    {
+        return handleAskAsync(projectName, query, endpoints, ResultFormat.XML);
+    }
+
+    /**
+     * This method handles a ASK SPARQL query, without waiting for the endpoints to respond.
+     * The answer is returned as soon as any endpoint answers true, the remaining
+     * requests are cancelled.
+     * @param query SPARQL ASK query
+     * @param endpoints List of endpoints to query over
+     * @param format Format to write the answer in
+     * @return Future response string
+     */
+    public QueryFuture handleAskAsync(final String projectName, final Query query, final List<Endpoint> endpoints,
+            final ResultFormat format)
     {
         LOG.info("handling ASK");
 
-        List <Boolean> askResultList = new LinkedList<Boolean>();
-        CountDownLatch doneSignal = new CountDownLatch(endpoints.size());
+        final List <Boolean> askResultList = new LinkedList<Boolean>();
+
+        final QueryFuture future = new QueryFuture(new ResponseWriter()
+        {
+            public void write(final Writer out) throws IOException
+            {
+                format.createWriter(out).writeBoolean(mergeAskResults(askResultList));
+            }
+        }, this);
+
+        CompletionLatch doneSignal = new CompletionLatch(endpoints.size(), future);
+
+        // the first true answer settles the query
+        CompletionLatch answerSignal = new CompletionLatch(1, new Runnable()
+        {
+            public void run()
+            {
+                future.completeEarly();
+            }
+        });
 
         // fire off a thread to handle quering each endpoint
         for (Endpoint ep : endpoints)
@@ -266,26 +565,28 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
             String url = ep.getLocation();
             LOG.debug("Querying " + url);
 
-            taskExecutor.execute(new FetchBooleanResponseTask(this, askResultList, query.serialize(), url, projectName, doneSignal));
+            AbstractResponseTask task = new FetchBooleanResponseTask(this, askResultList, query.serialize(), url, projectName, doneSignal, answerSignal);
+            task.setReplicas(ep.getReplicas());
+            task.setReadTimeout(ep.getReadTimeout());
+            future.track(task);
+            execute(task);
         }
 
-        // block until all threads have finished
-        try
-        {
-            doneSignal.await();
-        }
-        catch (InterruptedException ex)
-        {
-            LOG.warn("Error while waiting on threads", ex);
-        }
+        doneSignal.checkCompletion();
+
+        return future;
+    }
 
+    /**
+     * Combines the answers to an ASK query from all endpoints.
+     * @param askResultList Answers from all endpoints
+     * @return Combined answer
+     */
+    protected boolean mergeAskResults(final List<Boolean> askResultList)
+    {
         // once threads have compeleted, construct results
         LOG.debug("Threads completed, constructing results");
 
-        StringBuffer content = new StringBuffer(DEFAULT_SB_LENGTH);
-
-        content.append("<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\"><head></head>");
-
         // calculate the response to provide (in this case, any single yes from
         // one of the endpoints indicates we can handle this query, so return true.
         boolean finalResult = false;
@@ -294,11 +595,9 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
             if (b) finalResult = true;
         }
 
-        content.append("<results><boolean>" + finalResult + "</boolean></results></sparql>");
-
         askResultList.clear();
 
-        return content.toString();
+        return finalResult;
     }
 
     /**
@@ -309,22 +608,79 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
      * @return Response string
      */
     public String handleDescribe(final String projectName, final Query query, final List<Endpoint> endpoints)
+    {
+        return waitFor(handleDescribeAsync(projectName, query, endpoints));
+    }
+
+    /**
+     * This method handles a DESCRIBE SPARQL query, without waiting for the endpoints to respond.
+     * @param query SPARQL DESCRIBE query
+     * @param endpoints List of endpoints to query over
+     * @return Future response string
+     */
+    public QueryFuture handleDescribeAsync(final String projectName, final Query query, final List<Endpoint> endpoints)
     {
         LOG.info("handling DESCRIBE");
 
-        Model model = fetchModelsAndWait(projectName, query, endpoints);
+        return fetchModels(projectName, query, endpoints);
+    }
 
-        // create a string writer to print the model to
-        StringWriter wr = new StringWriter();
+    /**
+     * Checks whether a query's results can be passed straight through from its endpoint.
+     * Only a SELECT or ASK query sent to a single endpoint qualifies, as the
+     * endpoint's sparql results are then the query's results. Aggregates are
+     * combined here rather than trusted to the endpoint, so aren't passed through.
+     * @param query SPARQL query
+     * @param endpoints List of endpoints to query over
+     * @return <code>true</code> if the endpoint's response can be passed through
+     */
+    public boolean isPassThrough(final Query query, final List<Endpoint> endpoints)
+    {
+        if (endpoints.size() != 1) return false;
+        if (!query.isSelectType() && !query.isAskType()) return false;
+        return !query.hasAggregators();
+    }
 
-        // write out the model
-        model.write(wr);
+    /**
+     * Queries a single endpoint, copying its response to the writer, as XML, as it arrives.
+     * @param projectName Name of project
+     * @param query SPARQL SELECT or ASK query
+     * @param endpoint Endpoint to query
+     * @param out Writer to copy the response to
+     * @return <code>true</code> if the response was written, <code>false</code> if nothing was
+     */
+    public boolean passThrough(final String projectName, final Query query, final Endpoint endpoint, final Writer out)
+    {
+        return passThrough(projectName, query, endpoint, ResultFormat.XML, out);
+    }
 
-        // close the models as we don't need them any more
-        model.close();
+    /**
+     * Queries a single endpoint, copying its response to the writer as it arrives.
+     * The request is made on the calling thread, through the same cache,
+     * circuit breakers and replicas as any other. A response in another format
+     * is written out again in the one asked for.
+     * @param projectName Name of project
+     * @param query SPARQL SELECT or ASK query
+     * @param endpoint Endpoint to query
+     * @param format Format to write the results in
+     * @param out Writer to copy the response to
+     * @return <code>true</code> if the response was written, <code>false</code> if nothing was
+     */
+    public boolean passThrough(final String projectName, final Query query, final Endpoint endpoint,
+            final ResultFormat format, final Writer out)
+    {
+        LOG.info("passing results through");
 
-        // return our string results
-        return wr.toString();
+        String url = endpoint.getLocation();
+        LOG.debug("Querying " + url);
+
+        PassThroughResponseTask task = new PassThroughResponseTask(this, out, format, query.isAskType(), query.serialize(), url,
+                projectName, new CountDownLatch(1));
+        task.setReplicas(endpoint.getReplicas());
+        task.setReadTimeout(endpoint.getReadTimeout());
+        task.run();
+
+        return task.isWritten();
     }
 
     /**
@@ -333,12 +689,13 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
      * @param s Update query
      * @param endpoint Endpoint to query
      * @return Response string
+     * @throws ArnosRuntimeException thrown if the update wasn't applied
      */
     public String handleUpdate(final String projectName, final String s, final Endpoint endpoint)
     {
         LOG.info("handling UPDATE");
 
-        return fetchUpdateQueryAndWait(projectName, s, endpoint);
+        return waitFor(fetchUpdateQuery(projectName, s, endpoint));
     }
 
     /**
@@ -380,18 +737,42 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
 
     /**
      * Issues the query across all given endpoints.
-     * This method blocks until all results are returned
+     * The returned future completes once all results have been returned, with
+     * the combined set of results serialised as a string.
      * @param query Query returning a RDF model (CONSTRUCT or DESCRIBE)
      * @param endpoints Set of endpoints
-     * @return Combined set of results as a Jena Model
+     * @return Future combined results
      */
-    protected Model fetchModelsAndWait(final String projectName, final Query query, final List<Endpoint> endpoints)
+    protected QueryFuture fetchModels(final String projectName, final Query query, final List<Endpoint> endpoints)
     {
         // start a new model
-        Model mergedResults = ModelFactory.createDefaultModel();
+        final Model mergedResults = ModelFactory.createDefaultModel();
+
+        final CountDownLatch countSignal = new CountDownLatch(endpoints.size());
+
+        QueryFuture future = new QueryFuture(new ResponseWriter()
+        {
+            public void write(final Writer out)
+            {
+                if (query.isDescribeType() && query.hasLimit())
+                {
+                    if (endpoints.size() - countSignal.getCount() > 1) LOG.warn("DESCRIBE query issued with LIMIT. Multiple endpoints returned valid responses, LIMIT not guaranteed to be upheld.");
+                }
+
+                try
+                {
+                    // write out the model
+                    mergedResults.write(out);
+                }
+                finally
+                {
+                    // close the models as we don't need them any more
+                    mergedResults.close();
+                }
+            }
+        }, this);
 
-        CountDownLatch doneSignal = new CountDownLatch(endpoints.size());
-        CountDownLatch countSignal = new CountDownLatch(endpoints.size());
+        CompletionLatch doneSignal = new CompletionLatch(endpoints.size(), future);
 
         // fire off a thread to handle quering each endpoint
         for (Endpoint ep : endpoints)
@@ -399,37 +780,35 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
             String url = ep.getLocation();
             LOG.debug("Querying " + url);
 
-            taskExecutor.execute(new FetchModelResponseTask(this, mergedResults, query.serialize(), url, projectName, doneSignal, countSignal));
+            AbstractResponseTask task = new FetchModelResponseTask(this, mergedResults, query.serialize(), url, projectName, doneSignal, countSignal);
+            task.setReplicas(ep.getReplicas());
+            task.setReadTimeout(ep.getReadTimeout());
+            future.track(task);
+            execute(task);
         }
 
-        // block until all threads have finished
-        try
-        {
-            doneSignal.await();
-        }
-        catch (InterruptedException ex)
-        {
-            LOG.warn("Error while waiting on threads", ex);
-        }
+        doneSignal.checkCompletion();
 
-        if (query.isDescribeType() && query.hasLimit())
-        {
-            if (endpoints.size() - countSignal.getCount() > 1) LOG.warn("DESCRIBE query issued with LIMIT. Multiple endpoints returned valid responses, LIMIT not guaranteed to be upheld.");
-        }
-        
-        return mergedResults;
+        return future;
     }
 
     /**
      * Issues the query across all given endpoints.
-     * This method blocks until all results are returned
-     * @param query Query returning a RDF model (CONSTRUCT or DESCRIBE)
+     * The merge is run once all results have been returned.
+     * @param query SPARQL SELECT query
      * @param endpoints Set of endpoints
+     * @param endpointResults List to collect the results of each endpoint in, in endpoint order
+     * @param budget The query's memory budget
+     * @param merge Writes the combined results
+     * @return Future response
      */
-    protected List<Result> fetchResultSetAndWait(final String projectName, final Query query, final List<Endpoint> endpoints)
+    protected QueryFuture fetchResultSet(final String projectName, final Query query, final List<Endpoint> endpoints,
+            final List<Collection<Result>> endpointResults, final MemoryBudget budget, final ResponseWriter merge)
     {
-        List<Result> selectResultList = new LinkedList<Result>();
-        CountDownLatch doneSignal = new CountDownLatch(endpoints.size());
+        QueryFuture future = new QueryFuture(merge, this);
+        CompletionLatch doneSignal = new CompletionLatch(endpoints.size(), future);
+        CompletionLatch rowSignal = createRowSignal(query, future);
+        String queryString = query.serialize();
 
         // fire off a thread to handle quering each endpoint
         for (Endpoint ep : endpoints)
@@ -437,89 +816,146 @@ public class ThreadedQueryHandler implements QueryHandlerInterface
             String url = ep.getLocation();
             LOG.debug("Querying " + url);
 
-            taskExecutor.execute(new FetchResultSetResponseTask(this, selectResultList, query.serialize(), url, projectName, doneSignal));
-        }
+            Collection<Result> results = createEndpointResults(query, budget);
+            endpointResults.add(results);
 
-        // block until all threads have finished
-        try
-        {
-            doneSignal.await();
-        }
-        catch (InterruptedException ex)
-        {
-            LOG.warn("Error while waiting on threads", ex);
+            AbstractResponseTask task = new FetchResultSetResponseTask(this, results, queryString, url, projectName, doneSignal, rowSignal);
+            task.setReplicas(ep.getReplicas());
+            task.setReadTimeout(ep.getReadTimeout());
+            future.track(task);
+            execute(task);
         }
 
-        // once threads have compeleted, construct results
-        LOG.debug("Threads completed, constructing results");
+        // a LIMIT of 0 needs no results at all
+        if (rowSignal != null) rowSignal.checkCompletion();
+        doneSignal.checkCompletion();
 
-        return selectResultList;
+        return future;
     }
 
    /**
      * Issues the update query to the given endpoint.
-     * This method blocks until the query has finished
      * @param query U{DATE Query (INSERT, DELETE, etc)
      * @param endpoint Endpoint to query
-    * @return the result (if any)
+    * @return the future result (if any), failing with an {@link ArnosRuntimeException} if the update wasn't applied
      */
-    protected String fetchUpdateQueryAndWait(final String projectName, final String query, final Endpoint endpoint)
+    protected Future<String> fetchUpdateQuery(final String projectName, final String query, final Endpoint endpoint)
     {
-        CountDownLatch doneSignal = new CountDownLatch(1);
+        final StringBuffer result = new StringBuffer();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        FutureTask<String> future = new FutureTask<String>(new Callable<String>()
+        {
+            public String call()
+            {
+                RuntimeException ex = failure.get();
+                if (ex != null) throw ex;
+                return result.toString();
+            }
+        });
 
-        StringBuffer result = new StringBuffer();
+        CompletionLatch doneSignal = new CompletionLatch(1, future);
 
         // fire off a thread to handle quering each endpoint
         String url = endpoint.getLocation();
         LOG.debug("Querying " + url);
 
-        taskExecutor.execute(new FetchUpdateResponseTask(this, result, query, url, projectName, doneSignal));
+        AbstractResponseTask task = new FetchUpdateResponseTask(this, result, failure, query, url, projectName, doneSignal);
+        task.setReadTimeout(endpoint.getReadTimeout());
+        execute(task);
+
+        return future;
+    }
 
-        // block until all threads have finished
+    /**
+     * Blocks until a result is available, or the default deadline passes.
+     * The endpoint requests are cancelled if the wait is interrupted.
+     * @param future Pending result
+     * @return The result, partial if the deadline passed, an empty string if interrupted while waiting
+     */
+    protected final String waitFor(final QueryFuture future)
+    {
         try
         {
-            doneSignal.await();
+            return future.getWithin(defaultTimeout, TimeUnit.MILLISECONDS);
         }
         catch (InterruptedException ex)
         {
-            LOG.warn("Error while waiting on thread", ex);
+            LOG.warn("Error while waiting on threads", ex);
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return "";
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new ArnosRuntimeException(ex.getCause());
         }
-
-        return result.toString();
     }
 
     /**
-     * Uses Jena's SortedResultSet to sort the results.
-     * @param selectResultList Reference to the list of results to sort
-     * @param conditions The sort conditions from the query
+     * Blocks until a result is available.
+     * @param future Pending result
+     * @return The result, an empty string if interrupted while waiting
      */
-    protected void sortResults(List<Result> selectResultList, final List<SortCondition> conditions)
+    protected final String waitFor(final Future<String> future)
     {
-        Comparator<Binding> comparator = new BindingComparator(conditions);
-        SortedSet<Binding> sorted = new TreeSet<Binding>(comparator);
-
-        List<Result> sortedResultList = new LinkedList<Result>();
-
-        for (Result r : selectResultList)
+        try
         {
-            Binding b = r.getBinding();
-            sorted.add(b);
+            return future.get();
         }
+        catch (InterruptedException ex)
+        {
+            LOG.warn("Error while waiting on threads", ex);
+            Thread.currentThread().interrupt();
+            return "";
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new ArnosRuntimeException(ex.getCause());
+        }
+    }
 
-        for (Binding b : sorted)
+    /**
+     * Runs an endpoint task, using the configured transport.
+     * @param task Task to run
+     */
+    protected void execute(final AbstractResponseTask task)
+    {
+        if (nonBlocking)
         {
-            for (Result r : selectResultList)
+            synchronized (this)
             {
-                if (r.getBinding().equals(b))
-                {
-                    sortedResultList.add(r);
-                    selectResultList.remove(r);
-                    break;
-                }
+                if (asyncQueryWrapper == null) asyncQueryWrapper = AsyncJenaQueryWrapper.getInstance();
             }
+            task.execute(asyncQueryWrapper, taskExecutor);
+        }
+        else
+        {
+            taskExecutor.execute(task);
         }
+    }
+
+    /**
+     * Returns the results of all endpoints in the order the query asks for.
+     * @param query SPARQL SELECT query
+     * @param endpointResults Results of each endpoint
+     * @return Iterator over all the results, merged in order if the query has an ORDER BY
+     */
+    protected Iterator<Result> mergeResults(final Query query, final List<? extends Collection<Result>> endpointResults)
+    {
+        if (!query.hasOrderBy()) return new ConcatenatedResults(endpointResults);
+        return new SortedMerge(endpointResults, new ResultComparator(query.getOrderBy()));
+    }
 
-        selectResultList.clear();
-        selectResultList.addAll(sortedResultList);
+    /**
+     * Sorts results with a stable sort, keeping results that compare equal.
+     * @param selectResultList Reference to the list of results to sort
+     * @param conditions The sort conditions from the query
+     */
+    protected void sortResults(List<Result> selectResultList, final List<SortCondition> conditions)
+    {
+        Collections.sort(selectResultList, new ResultComparator(conditions));
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.graph.Node;
+import java.io.IOException;
+import java.io.Writer;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Writes results in the SPARQL query results CSV format.
+ * Only each term's text is written, leaving out datatypes and languages.
+ * CSV has no form for an ASK answer, so it's written as a single
+ * <code>_askResult</code> column.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class CSVResultsWriter extends ResultsWriter
+{
+    /**
+     * Line ending, as the format requires.
+     */
+    private static final String EOL = "\r\n";
+
+    /**
+     * Constructor.
+     * @param paramOut Writer to send the results to
+     */
+    public CSVResultsWriter(final Writer paramOut)
+    {
+        super(paramOut);
+    }
+
+    @Override
+    protected void writeHead() throws IOException
+    {
+        for (int i = 0; i < vars.length; i++)
+        {
+            if (i > 0) out.write(',');
+            writeField(vars[i].getVarName());
+        }
+        out.write(EOL);
+    }
+
+    @Override
+    protected void writeRow(final Result r, final Node[] row) throws IOException
+    {
+        for (int i = 0; i < row.length; i++)
+        {
+            if (i > 0) out.write(',');
+            if (row[i] == null) continue;
+
+            if (row[i].isURI()) writeField(row[i].getURI());
+            else if (row[i].isBlank()) writeField("_:" + row[i].getBlankNodeLabel());
+            else writeField(row[i].getLiteralLexicalForm());
+        }
+        out.write(EOL);
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        // nothing follows the last row
+    }
+
+    @Override
+    public void writeBoolean(final boolean answer) throws IOException
+    {
+        out.write("_askResult" + EOL + answer + EOL);
+    }
+
+    /**
+     * Writes a field, quoted if it holds a separator, quote or line break.
+     * @param s Field
+     * @throws IOException thrown if the results can't be written
+     */
+    private void writeField(final String s) throws IOException
+    {
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++)
+        {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quote)
+        {
+            out.write(s);
+            return;
+        }
+
+        out.write('"');
+        out.write(s.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.graph.Node;
+import java.io.IOException;
+import java.io.Writer;
+import org.apache.commons.lang.StringUtils;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Writes results in the SPARQL query results JSON format.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class JSONResultsWriter extends ResultsWriter
+{
+    /**
+     * Digits of a unicode escape.
+     */
+    private static final String HEX = "0123456789abcdef";
+
+    /**
+     * Whether a row has been written, so the next needs a separator.
+     */
+    private boolean rows = false;
+
+    /**
+     * Constructor.
+     * @param paramOut Writer to send the results to
+     */
+    public JSONResultsWriter(final Writer paramOut)
+    {
+        super(paramOut);
+    }
+
+    @Override
+    protected void writeHead() throws IOException
+    {
+        out.write("{\"head\":{\"vars\":[");
+        for (int i = 0; i < vars.length; i++)
+        {
+            if (i > 0) out.write(',');
+            writeString(vars[i].getVarName());
+        }
+        out.write("]},\"results\":{\"bindings\":[");
+    }
+
+    @Override
+    protected void writeRow(final Result r, final Node[] row) throws IOException
+    {
+        if (rows) out.write(",\n");
+        rows = true;
+
+        out.write('{');
+        boolean first = true;
+        for (int i = 0; i < row.length; i++)
+        {
+            if (row[i] == null) continue;
+
+            if (!first) out.write(',');
+            first = false;
+
+            writeString(vars[i].getVarName());
+            out.write(':');
+            writeNode(row[i]);
+        }
+        out.write('}');
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        out.write("]}}");
+    }
+
+    @Override
+    public void writeBoolean(final boolean answer) throws IOException
+    {
+        out.write("{\"head\":{},\"boolean\":" + answer + "}");
+    }
+
+    /**
+     * Writes an RDF term as a JSON object.
+     * @param n Term
+     * @throws IOException thrown if the results can't be written
+     */
+    private void writeNode(final Node n) throws IOException
+    {
+        if (n.isURI())
+        {
+            out.write("{\"type\":\"uri\",\"value\":");
+            writeString(n.getURI());
+        }
+        else if (n.isBlank())
+        {
+            out.write("{\"type\":\"bnode\",\"value\":");
+            writeString(n.getBlankNodeLabel());
+        }
+        else
+        {
+            out.write("{\"type\":\"literal\"");
+            if (StringUtils.isNotEmpty(n.getLiteralLanguage()))
+            {
+                out.write(",\"xml:lang\":");
+                writeString(n.getLiteralLanguage());
+            }
+            else if (n.getLiteralDatatypeURI() != null)
+            {
+                out.write(",\"datatype\":");
+                writeString(n.getLiteralDatatypeURI());
+            }
+            out.write(",\"value\":");
+            writeString(n.getLiteralLexicalForm());
+        }
+        out.write('}');
+    }
+
+    /**
+     * Writes a quoted JSON string.
+     * @param s String
+     * @throws IOException thrown if the results can't be written
+     */
+    private void writeString(final String s) throws IOException
+    {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                case '\b': out.write("\\b"); break;
+                case '\f': out.write("\\f"); break;
+                default:
+                    if (c < 0x20)
+                    {
+                        out.write("\\u00");
+                        out.write(HEX.charAt(c >> 4));
+                        out.write(HEX.charAt(c & 0xF));
+                    }
+                    else out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
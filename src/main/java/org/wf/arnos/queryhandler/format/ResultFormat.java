@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.io.Writer;
+import java.util.Locale;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The formats SELECT and ASK results can be written in.
+ * Clients choose one through their Accept header, see {@link #negotiate}.
+ * Endpoints are asked for the cheapest to parse they can produce, see
+ * {@link #UPSTREAM_ACCEPT}, and their responses are read in whichever
+ * format they sent, see {@link #sniff}.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public enum ResultFormat
+{
+    /** SPARQL query results XML format. */
+    XML("application/sparql-results+xml"),
+    /** SPARQL query results JSON format. */
+    JSON("application/sparql-results+json"),
+    /** SPARQL query results CSV format, which leaves out datatypes and languages. */
+    CSV("text/csv"),
+    /** SPARQL query results TSV format. */
+    TSV("text/tab-separated-values");
+
+    /**
+     * Content type of CONSTRUCT and DESCRIBE results.
+     */
+    public static final String RDF_XML = "application/rdf+xml";
+
+    /**
+     * Accept header sent to endpoints for SELECT and ASK queries. TSV is
+     * preferred, as it's the quickest to parse, then JSON, then XML. CSV isn't
+     * asked for as it loses terms' types.
+     */
+    public static final String UPSTREAM_ACCEPT = TSV.contentType + ", " + JSON.contentType + ";q=0.9, "
+            + XML.contentType + ";q=0.8";
+
+    /**
+     * Accept header sent to endpoints for CONSTRUCT and DESCRIBE queries.
+     * RDF/XML is preferred, as that's what graphs are cached and passed on in,
+     * the other syntaxes Jena reads are converted to it, see {@link #rdfLanguage}.
+     */
+    public static final String GRAPH_ACCEPT = RDF_XML + ", text/turtle;q=0.9, application/x-turtle;q=0.9, "
+            + "application/n-triples;q=0.8, text/rdf+n3;q=0.7, text/n3;q=0.7";
+
+    /**
+     * Most bytes read while looking for the first character of a response.
+     * Streams passed to {@link #sniff(PushbackInputStream)} need room to push this many back.
+     */
+    public static final int SNIFF_LIMIT = 64;
+
+    /**
+     * Media type of the format.
+     */
+    private final String contentType;
+
+    /**
+     * Constructor.
+     * @param paramContentType Media type of the format
+     */
+    private ResultFormat(final String paramContentType)
+    {
+        this.contentType = paramContentType;
+    }
+
+    /**
+     * @return Media type of the format
+     */
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * Creates a writer for results in this format.
+     * @param out Writer to send the results to
+     * @return Results writer
+     */
+    public ResultsWriter createWriter(final Writer out)
+    {
+        switch (this)
+        {
+            case JSON: return new JSONResultsWriter(out);
+            case CSV: return new CSVResultsWriter(out);
+            case TSV: return new TSVResultsWriter(out);
+            default: return new XMLResultsWriter(out);
+        }
+    }
+
+    /**
+     * Works out the Jena reader language of a graph from its content type.
+     * @param contentType Content type of an endpoint's response, may be <code>null</code>
+     * @return Reader language, <code>null</code> for RDF/XML or anything that isn't a graph syntax
+     */
+    public static String rdfLanguage(final String contentType)
+    {
+        if (contentType == null) return null;
+
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ENGLISH);
+        if (type.equals("text/turtle") || type.equals("application/x-turtle")) return "TURTLE";
+        if (type.equals("application/n-triples")) return "N-TRIPLE";
+        if (type.equals("text/rdf+n3") || type.equals("text/n3")) return "N3";
+        return null;
+    }
+
+    /**
+     * Chooses the format to send a client from its Accept header.
+     * The format with the highest quality wins, the first listed if there's a tie.
+     * XML is used if the client will take anything, or nothing it asks for is supported.
+     * @param accept Accept header, may be <code>null</code>
+     * @return Format to write results in
+     */
+    public static ResultFormat negotiate(final String accept)
+    {
+        if (StringUtils.isBlank(accept)) return XML;
+
+        ResultFormat best = XML;
+        float bestQuality = 0;
+
+        for (String range : accept.split(","))
+        {
+            String[] params = range.split(";");
+            ResultFormat format = forMediaType(params[0].trim().toLowerCase(Locale.ENGLISH));
+            if (format == null) continue;
+
+            float quality = 1;
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+                if (param.startsWith("q="))
+                {
+                    try
+                    {
+                        quality = Float.parseFloat(param.substring(2));
+                    }
+                    catch (NumberFormatException nfe)
+                    {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (quality > bestQuality)
+            {
+                best = format;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Matches a media range to a format.
+     * @param mediaType Media range, in lower case
+     * @return Format, <code>null</code> if none is served for the range
+     */
+    private static ResultFormat forMediaType(final String mediaType)
+    {
+        for (ResultFormat format : values())
+        {
+            if (format.contentType.equals(mediaType)) return format;
+        }
+        if (mediaType.equals("application/json")) return JSON;
+        if (mediaType.equals("text/tsv")) return TSV;
+        if (mediaType.equals("application/xml") || mediaType.equals("text/xml")) return XML;
+        if (mediaType.equals("*/*") || mediaType.equals("application/*")) return XML;
+        if (mediaType.equals("text/*")) return TSV;
+        return null;
+    }
+
+    /**
+     * Works out the format of a response from its first character.
+     * CSV isn't recognised, as it isn't asked for.
+     * @param c First character that isn't white space
+     * @return Format, <code>null</code> if not recognised
+     */
+    public static ResultFormat sniff(final int c)
+    {
+        if (c == '<') return XML;
+        if (c == '{') return JSON;
+        if (c == '?' || c == '$') return TSV;
+        return null;
+    }
+
+    /**
+     * Works out the format of a response.
+     * @param s Response
+     * @return Format, <code>null</code> if not recognised
+     */
+    public static ResultFormat sniff(final String s)
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (!Character.isWhitespace(c) && c != '\uFEFF') return sniff(c);
+        }
+        return null;
+    }
+
+    /**
+     * Works out the format of a response stream, without losing any of it.
+     * White space and byte order marks are skipped, up to {@link #SNIFF_LIMIT} bytes.
+     * @param in Response stream, with room to push back {@link #SNIFF_LIMIT} bytes
+     * @return Format, <code>null</code> if not recognised or the stream is empty
+     * @throws IOException thrown if the stream can't be read
+     */
+    public static ResultFormat sniff(final PushbackInputStream in) throws IOException
+    {
+        byte[] start = new byte[SNIFF_LIMIT];
+        int n = 0;
+        int b = -1;
+        while (n < SNIFF_LIMIT && (b = in.read()) >= 0)
+        {
+            start[n++] = (byte) b;
+
+            // any non-ascii byte this early is part of a byte order mark
+            if (!Character.isWhitespace(b) && b < 0x80) break;
+        }
+        in.unread(start, 0, n);
+
+        if (n == 0) return null;
+        return sniff(start[n - 1] & 0xFF);
+    }
+}
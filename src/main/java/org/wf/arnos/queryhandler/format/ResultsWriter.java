@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Writes SELECT or ASK results in one of the {@link ResultFormat}s as they're
+ * produced, rather than building up the whole document first.
+ * A SELECT result is written with {@link #start}, a {@link #write} for each
+ * row and then {@link #finish}. An ASK result is written with {@link #writeBoolean}.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public abstract class ResultsWriter
+{
+    /**
+     * Where the results are written.
+     */
+    protected final Writer out;
+
+    /**
+     * Variables of the results, in column order.
+     */
+    protected Var[] vars = new Var[0];
+
+    /**
+     * Constructor.
+     * @param paramOut Writer to send the results to
+     */
+    protected ResultsWriter(final Writer paramOut)
+    {
+        this.out = paramOut;
+    }
+
+    /**
+     * Writes the head of the results.
+     * @param varNames Names of the result variables
+     * @throws IOException thrown if the results can't be written
+     */
+    public final void start(final List<String> varNames) throws IOException
+    {
+        vars = new Var[varNames.size()];
+        for (int i = 0; i < vars.length; i++) vars[i] = Var.alloc(varNames.get(i));
+
+        writeHead();
+    }
+
+    /**
+     * Writes a row of the results.
+     * @param r Result
+     * @throws IOException thrown if the results can't be written
+     */
+    public final void write(final Result r) throws IOException
+    {
+        Node[] row = new Node[vars.length];
+        for (int i = 0; i < vars.length; i++) row[i] = r.getBinding().get(vars[i]);
+
+        writeRow(r, row);
+    }
+
+    /**
+     * Writes the head, once the variables are known.
+     * @throws IOException thrown if the results can't be written
+     */
+    protected abstract void writeHead() throws IOException;
+
+    /**
+     * Writes a row of the results.
+     * @param r Result
+     * @param row Value of each variable, <code>null</code> where unbound
+     * @throws IOException thrown if the results can't be written
+     */
+    protected abstract void writeRow(final Result r, final Node[] row) throws IOException;
+
+    /**
+     * Writes the end of the results.
+     * @throws IOException thrown if the results can't be written
+     */
+    public abstract void finish() throws IOException;
+
+    /**
+     * Writes the answer to an ASK query.
+     * @param answer Answer
+     * @throws IOException thrown if the results can't be written
+     */
+    public abstract void writeBoolean(final boolean answer) throws IOException;
+}
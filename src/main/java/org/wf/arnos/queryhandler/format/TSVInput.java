@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.commons.io.IOUtils;
+import org.wf.arnos.exception.ArnosRuntimeException;
+
+/**
+ * Reads results in the SPARQL query results TSV format.
+ * Each row is read from the stream as the result set is iterated, so results
+ * are parsed as they arrive. Terms are written as in Turtle, including the
+ * bare forms of numbers and booleans.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class TSVInput
+{
+    /**
+     * Encoding of the format.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Hidden constructor.
+     */
+    private TSVInput()
+    {
+        // static methods only
+    }
+
+    /**
+     * Reads TSV results from a stream.
+     * @param in Response stream
+     * @return Result set, read from the stream as it's iterated
+     * @throws IOException thrown if the head can't be read
+     */
+    public static ResultSet fromTSV(final InputStream in) throws IOException
+    {
+        return fromTSV(new InputStreamReader(in, ENCODING));
+    }
+
+    /**
+     * Reads TSV results.
+     * @param in Response
+     * @return Result set, read as it's iterated
+     * @throws IOException thrown if the head can't be read
+     */
+    public static ResultSet fromTSV(final Reader in) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(in);
+
+        String head = reader.readLine();
+        if (head == null) throw new ArnosRuntimeException("Missing TSV head");
+
+        // a byte order mark isn't part of the first variable
+        if (head.length() > 0 && head.charAt(0) == '\uFEFF') head = head.substring(1);
+
+        List<String> varNames = new ArrayList<String>();
+        if (head.trim().length() > 0)
+        {
+            for (String field : head.split("\t"))
+            {
+                String name = field.trim();
+                if (name.startsWith("?") || name.startsWith("$")) name = name.substring(1);
+                varNames.add(name);
+            }
+        }
+
+        return new ResultSetStream(varNames, ModelFactory.createDefaultModel(),
+                new QueryIterPlainWrapper(new Rows(reader, varNames)));
+    }
+
+    /**
+     * Parses a single term.
+     * @param s Term, as written in a TSV field
+     * @return Node, <code>null</code> if the field is empty
+     */
+    public static Node parseNode(final String s)
+    {
+        String term = s.trim();
+        if (term.length() == 0) return null;
+
+        char c = term.charAt(0);
+        if (c == '<' && term.endsWith(">"))
+        {
+            return Node.createURI(unescape(term.substring(1, term.length() - 1)));
+        }
+        if (term.startsWith("_:"))
+        {
+            return Node.createAnon(new AnonId(term.substring(2)));
+        }
+        if (c == '"' || c == '\'')
+        {
+            return parseLiteral(term, c);
+        }
+        if (term.equals("true") || term.equals("false"))
+        {
+            return Node.createLiteral(term, "", XSDDatatype.XSDboolean);
+        }
+        if (c == '+' || c == '-' || c == '.' || Character.isDigit(c))
+        {
+            if (term.indexOf('e') >= 0 || term.indexOf('E') >= 0)
+            {
+                return Node.createLiteral(term, "", XSDDatatype.XSDdouble);
+            }
+            if (term.indexOf('.') >= 0) return Node.createLiteral(term, "", XSDDatatype.XSDdecimal);
+            return Node.createLiteral(term, "", XSDDatatype.XSDinteger);
+        }
+        throw new ArnosRuntimeException("Unable to read TSV term " + term);
+    }
+
+    /**
+     * Parses a quoted literal, with its language or datatype.
+     * @param term Term
+     * @param quote Quote character the literal starts with
+     * @return Node
+     */
+    private static Node parseLiteral(final String term, final char quote)
+    {
+        // long quotes may also hold bare quotes, a field still has no line breaks
+        String longQuote = "" + quote + quote + quote;
+        int open = term.startsWith(longQuote) && term.length() >= 6 ? 3 : 1;
+
+        int end = open;
+        while (end < term.length())
+        {
+            char c = term.charAt(end);
+            if (c == '\\') end++;
+            else if (c == quote && (open == 1 || term.startsWith(longQuote, end)))
+            {
+                // quotes before the closing three are part of the literal
+                while (open == 3 && term.startsWith(longQuote, end + 1)) end++;
+                break;
+            }
+            end++;
+        }
+        if (end + open > term.length()) throw new ArnosRuntimeException("Unterminated TSV literal " + term);
+
+        String lex = unescape(term.substring(open, end));
+        String rest = term.substring(end + open);
+
+        if (rest.startsWith("@")) return Node.createLiteral(lex, rest.substring(1), null);
+        if (rest.startsWith("^^<") && rest.endsWith(">"))
+        {
+            String datatype = unescape(rest.substring(3, rest.length() - 1));
+            return Node.createLiteral(lex, "", TypeMapper.getInstance().getSafeTypeByName(datatype));
+        }
+        return Node.createLiteral(lex, "", null);
+    }
+
+    /**
+     * Replaces the escape sequences in a literal or IRI.
+     * @param s Escaped text
+     * @return Text
+     */
+    private static String unescape(final String s)
+    {
+        if (s.indexOf('\\') < 0) return s;
+
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length())
+            {
+                sb.append(c);
+                continue;
+            }
+
+            c = s.charAt(++i);
+            switch (c)
+            {
+                case 't': sb.append('\t'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                case 'U':
+                    sb.appendCodePoint(Integer.parseInt(s.substring(i + 1, i + 9), 16));
+                    i += 8;
+                    break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a row at a time from the stream.
+     */
+    private static final class Rows implements Iterator<Binding>
+    {
+        /**
+         * Response, positioned after the head.
+         */
+        private final BufferedReader reader;
+
+        /**
+         * Variable of each column.
+         */
+        private final Var[] vars;
+
+        /**
+         * Next line, <code>null</code> once the response has been read.
+         */
+        private String line;
+
+        /**
+         * Constructor.
+         * @param paramReader Response, positioned after the head
+         * @param varNames Variable of each column
+         */
+        Rows(final BufferedReader paramReader, final List<String> varNames)
+        {
+            this.reader = paramReader;
+            this.vars = new Var[varNames.size()];
+            for (int i = 0; i < vars.length; i++) vars[i] = Var.alloc(varNames.get(i));
+            advance();
+        }
+
+        /**
+         * Reads the next line, closing the response once there are no more.
+         */
+        private void advance()
+        {
+            try
+            {
+                line = reader.readLine();
+            }
+            catch (IOException ioe)
+            {
+                IOUtils.closeQuietly(reader);
+                throw new ArnosRuntimeException("Unable to read TSV results", ioe);
+            }
+            if (line == null) IOUtils.closeQuietly(reader);
+        }
+
+        public boolean hasNext()
+        {
+            return line != null;
+        }
+
+        public Binding next()
+        {
+            if (line == null) throw new NoSuchElementException();
+
+            BindingMap b = new BindingMap();
+            String[] fields = line.split("\t", -1);
+            for (int i = 0; i < vars.length && i < fields.length; i++)
+            {
+                Node n = parseNode(fields[i]);
+                if (n != null) b.add(vars[i], n);
+            }
+
+            advance();
+            return b;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.graph.Node;
+import java.io.IOException;
+import java.io.Writer;
+import org.apache.commons.lang.StringUtils;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Writes results in the SPARQL query results TSV format.
+ * Terms are written in full, as they'd be in N-Triples, so they can be read
+ * back exactly by {@link TSVInput}. TSV has no form for an ASK answer, so
+ * it's written as a single <code>?_askResult</code> column.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class TSVResultsWriter extends ResultsWriter
+{
+    /**
+     * Constructor.
+     * @param paramOut Writer to send the results to
+     */
+    public TSVResultsWriter(final Writer paramOut)
+    {
+        super(paramOut);
+    }
+
+    @Override
+    protected void writeHead() throws IOException
+    {
+        for (int i = 0; i < vars.length; i++)
+        {
+            if (i > 0) out.write('\t');
+            out.write('?');
+            out.write(vars[i].getVarName());
+        }
+        out.write('\n');
+    }
+
+    @Override
+    protected void writeRow(final Result r, final Node[] row) throws IOException
+    {
+        for (int i = 0; i < row.length; i++)
+        {
+            if (i > 0) out.write('\t');
+            if (row[i] != null) writeNode(row[i]);
+        }
+        out.write('\n');
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        // nothing follows the last row
+    }
+
+    @Override
+    public void writeBoolean(final boolean answer) throws IOException
+    {
+        out.write("?_askResult\n" + answer + "\n");
+    }
+
+    /**
+     * Writes an RDF term.
+     * @param n Term
+     * @throws IOException thrown if the results can't be written
+     */
+    private void writeNode(final Node n) throws IOException
+    {
+        if (n.isURI())
+        {
+            out.write('<');
+            out.write(n.getURI());
+            out.write('>');
+        }
+        else if (n.isBlank())
+        {
+            out.write("_:");
+            out.write(n.getBlankNodeLabel());
+        }
+        else
+        {
+            out.write('"');
+            writeEscaped(n.getLiteralLexicalForm());
+            out.write('"');
+            if (StringUtils.isNotEmpty(n.getLiteralLanguage()))
+            {
+                out.write('@');
+                out.write(n.getLiteralLanguage());
+            }
+            else if (n.getLiteralDatatypeURI() != null)
+            {
+                out.write("^^<");
+                out.write(n.getLiteralDatatypeURI());
+                out.write('>');
+            }
+        }
+    }
+
+    /**
+     * Writes a literal's text, escaping the characters that would end it or the field.
+     * @param s Text
+     * @throws IOException thrown if the results can't be written
+     */
+    private void writeEscaped(final String s) throws IOException
+    {
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default: out.write(c);
+            }
+        }
+    }
+}
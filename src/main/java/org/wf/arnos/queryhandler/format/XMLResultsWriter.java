@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import java.io.IOException;
+import java.io.Writer;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Writes results in the SPARQL query results XML format.
+ * Rows are written with {@link Result#toXML()}, so share its rendered terms.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class XMLResultsWriter extends ResultsWriter
+{
+    /**
+     * Start of the document.
+     */
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">";
+
+    /**
+     * Constructor.
+     * @param paramOut Writer to send the results to
+     */
+    public XMLResultsWriter(final Writer paramOut)
+    {
+        super(paramOut);
+    }
+
+    @Override
+    protected void writeHead() throws IOException
+    {
+        out.write(HEADER);
+        out.write("<head>");
+        for (Var var : vars)
+        {
+            out.write("<variable name=\"");
+            out.write(Result.escapeXMLEntities(var.getVarName()));
+            out.write("\"/>");
+        }
+        out.write("</head><results>");
+    }
+
+    @Override
+    protected void writeRow(final Result r, final Node[] row) throws IOException
+    {
+        out.write(r.toXML());
+    }
+
+    @Override
+    public void finish() throws IOException
+    {
+        out.write("</results></sparql>");
+    }
+
+    @Override
+    public void writeBoolean(final boolean answer) throws IOException
+    {
+        out.write(HEADER);
+        out.write("<head></head><results><boolean>" + answer + "</boolean></results></sparql>");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Runs through the results of several endpoints one endpoint after another,
+ * for queries without an ORDER BY.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class ConcatenatedResults implements Iterator<Result>
+{
+    /**
+     * Results of the endpoints not yet started.
+     */
+    private final Iterator<? extends Collection<Result>> endpoints;
+
+    /**
+     * Remaining results of the current endpoint.
+     */
+    private Iterator<Result> current = Collections.<Result>emptyList().iterator();
+
+    /**
+     * Constructor.
+     * @param endpointResults Results of each endpoint, in endpoint order
+     */
+    public ConcatenatedResults(final List<? extends Collection<Result>> endpointResults)
+    {
+        this.endpoints = endpointResults.iterator();
+    }
+
+    public boolean hasNext()
+    {
+        while (!current.hasNext())
+        {
+            if (!endpoints.hasNext()) return false;
+            current = endpoints.next().iterator();
+        }
+        return true;
+    }
+
+    public Result next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
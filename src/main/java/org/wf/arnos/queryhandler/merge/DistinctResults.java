@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Drops the duplicates from a run of results, for DISTINCT queries.
+ * Each result is reduced to a key of the RDF terms bound to the query's
+ * variables, which is looked up in a hash set, so removing the duplicates
+ * costs O(1) per result rather than a scan of every result seen so far.
+ * The first of each set of duplicates is kept, in the order the results run.
+ * <p>
+ * Results in order have their duplicates next to each other, among the
+ * results comparing equal, so only the keys of those are kept. Otherwise
+ * the keys are kept until the query's memory budget runs out, after which
+ * the remaining results are spilled to files partitioned by the hash of
+ * their key, and each partition has its duplicates dropped in turn. The
+ * results then come out of order, which an unordered query allows.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class DistinctResults implements Iterator<Result>
+{
+    /**
+     * Number of partitions spilled results are split into.
+     */
+    private static final int PARTITIONS = 16;
+
+    /**
+     * Results, possibly with duplicates.
+     */
+    private final Iterator<Result> results;
+
+    /**
+     * Variables making up each result's key.
+     */
+    private final Var[] vars;
+
+    /**
+     * Order of the results, <code>null</code> if they're in no order.
+     */
+    private final Comparator<Result> comparator;
+
+    /**
+     * The query's memory budget, <code>null</code> to keep every key in memory.
+     */
+    private final MemoryBudget budget;
+
+    /**
+     * Keys of the results returned so far, or since the last change in order.
+     */
+    private Set<List<Node>> seen = new HashSet<List<Node>>();
+
+    /**
+     * Estimated bytes held by the keys.
+     */
+    private long held = 0;
+
+    /**
+     * Keys of the results returned before spilling.
+     */
+    private Set<List<Node>> spilled = null;
+
+    /**
+     * Estimated bytes held by the keys of the results returned before spilling.
+     */
+    private long spilledHeld = 0;
+
+    /**
+     * Spilled results, partitioned by key.
+     */
+    private SpillFile[] partitions = null;
+
+    /**
+     * Index of the next partition to read.
+     */
+    private int partition = 0;
+
+    /**
+     * Results currently being read, either the original results or a partition.
+     */
+    private Iterator<Result> current;
+
+    /**
+     * Last result read, for ordered results.
+     */
+    private Result previous = null;
+
+    /**
+     * Next result to return, <code>null</code> if not yet found.
+     */
+    private Result next = null;
+
+    /**
+     * Constructor, keeping every key in memory.
+     * @param paramResults Results, possibly with duplicates
+     * @param resultVars Variables of the query
+     */
+    public DistinctResults(final Iterator<Result> paramResults, final List<String> resultVars)
+    {
+        this(paramResults, resultVars, null, null);
+    }
+
+    /**
+     * Constructor for results in order.
+     * @param paramResults Results in order, possibly with duplicates
+     * @param resultVars Variables of the query
+     * @param paramComparator Order of the results
+     */
+    public DistinctResults(final Iterator<Result> paramResults, final List<String> resultVars,
+            final Comparator<Result> paramComparator)
+    {
+        this(paramResults, resultVars, paramComparator, null);
+    }
+
+    /**
+     * Constructor for results in no order, spilling if over budget.
+     * @param paramResults Results, possibly with duplicates
+     * @param resultVars Variables of the query
+     * @param paramBudget The query's memory budget
+     */
+    public DistinctResults(final Iterator<Result> paramResults, final List<String> resultVars,
+            final MemoryBudget paramBudget)
+    {
+        this(paramResults, resultVars, null, paramBudget);
+    }
+
+    /**
+     * Constructor.
+     * @param paramResults Results, possibly with duplicates
+     * @param resultVars Variables of the query
+     * @param paramComparator Order of the results, may be <code>null</code>
+     * @param paramBudget The query's memory budget, may be <code>null</code>
+     */
+    private DistinctResults(final Iterator<Result> paramResults, final List<String> resultVars,
+            final Comparator<Result> paramComparator, final MemoryBudget paramBudget)
+    {
+        this.results = paramResults;
+        this.current = paramResults;
+        this.comparator = paramComparator;
+        this.budget = paramBudget != null && paramBudget.isLimited() ? paramBudget : null;
+        this.vars = new Var[resultVars.size()];
+        for (int i = 0; i < vars.length; i++)
+        {
+            vars[i] = Var.alloc(resultVars.get(i));
+        }
+        if (budget != null) budget.register();
+    }
+
+    public boolean hasNext()
+    {
+        while (next == null)
+        {
+            if (!current.hasNext())
+            {
+                if (!nextPartition()) break;
+                continue;
+            }
+
+            Result r = current.next();
+
+            // a result comparing differently can't be a duplicate of any before it
+            if (comparator != null)
+            {
+                if (previous != null && comparator.compare(previous, r) != 0) seen.clear();
+                previous = r;
+            }
+
+            List<Node> key = key(r);
+            if (spilled != null && spilled.contains(key)) continue;
+            if (!seen.add(key)) continue;
+
+            next = r;
+            if (budget != null) keep(r);
+        }
+        return next != null;
+    }
+
+    public Result next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+        Result r = next;
+        next = null;
+        return r;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Deletes any spill files and releases the memory accounted for.
+     * Called once the results have been read, or aren't wanted any more.
+     */
+    public void close()
+    {
+        if (partitions != null)
+        {
+            for (SpillFile f : partitions) f.delete();
+        }
+        if (budget != null)
+        {
+            budget.release(held + spilledHeld);
+            held = 0;
+            spilledHeld = 0;
+        }
+    }
+
+    /**
+     * Accounts for a kept key, partitioning the remaining results if over budget.
+     * @param r Result whose key was kept
+     */
+    private void keep(final Result r)
+    {
+        long bytes = MemoryBudget.estimate(r);
+        held += bytes;
+        budget.add(bytes);
+
+        if (partitions == null && budget.shouldSpill(held)) partition();
+    }
+
+    /**
+     * Spills the remaining results into partitions by the hash of their key.
+     * The keys seen so far are kept to drop later duplicates of them.
+     */
+    private void partition()
+    {
+        spilled = seen;
+        spilledHeld = held;
+        seen = new HashSet<List<Node>>();
+        held = 0;
+
+        partitions = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) partitions[i] = new SpillFile(budget.isMapped());
+
+        while (results.hasNext())
+        {
+            Result r = results.next();
+            List<Node> key = key(r);
+            if (spilled.contains(key)) continue;
+            partitions[(key.hashCode() & Integer.MAX_VALUE) % PARTITIONS].write(r);
+        }
+        current = Collections.<Result>emptyList().iterator();
+    }
+
+    /**
+     * Moves on to the next partition of spilled results.
+     * Each partition's keys are distinct from every other's, so are dropped.
+     * @return <code>false</code> if there are no partitions left
+     */
+    private boolean nextPartition()
+    {
+        if (partitions == null) return false;
+        if (partition > 0) partitions[partition - 1].delete();
+
+        seen.clear();
+        budget.release(held);
+        held = 0;
+
+        if (partition >= PARTITIONS)
+        {
+            close();
+            return false;
+        }
+        current = partitions[partition++].iterator();
+        return true;
+    }
+
+    /**
+     * Reduces a result to the RDF terms bound to each variable.
+     * Terms are only equal if they're the same term, so "1"^^xsd:integer and
+     * "01"^^xsd:integer are distinct, as they are in SPARQL.
+     * @param r Result
+     * @return Key, with <code>null</code> for each unbound variable
+     */
+    private List<Node> key(final Result r)
+    {
+        Binding b = r.getBinding();
+        Node[] terms = new Node[vars.length];
+        for (int i = 0; i < vars.length; i++)
+        {
+            terms[i] = b.get(vars[i]);
+        }
+        return Arrays.asList(terms);
+    }
+}
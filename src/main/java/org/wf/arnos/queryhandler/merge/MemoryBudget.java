@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.controller.model.sparql.TermDictionary;
+
+/**
+ * The memory a single query's results may take up before the merge operators
+ * spill them to temporary files.
+ * Shared by everything holding the query's results, which add the estimated
+ * size of each result they keep and release it once the result is spilled
+ * or no longer needed. Once over the threshold, each holder spills when it
+ * holds at least its share, so the largest holders spill first. The sizes are
+ * estimates, so the threshold is a guide rather than a hard limit.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class MemoryBudget
+{
+    /**
+     * Estimated size of a result with no bindings.
+     */
+    private static final int RESULT_OVERHEAD = 160;
+
+    /**
+     * Estimated size of each binding, besides its value.
+     */
+    private static final int BINDING_OVERHEAD = 120;
+
+    /**
+     * Bytes that may be held before spilling, 0 or less never spills.
+     */
+    private final long threshold;
+
+    /**
+     * Whether spill files are read through a memory mapping.
+     */
+    private final boolean mapped;
+
+    /**
+     * Estimated bytes held.
+     */
+    private final AtomicLong used = new AtomicLong(0);
+
+    /**
+     * Number of holders sharing the budget.
+     */
+    private final AtomicInteger holders = new AtomicInteger(0);
+
+    /**
+     * Constructor.
+     * @param paramThreshold Bytes that may be held before spilling, 0 or less never spills
+     * @param paramMapped Whether spill files are read through a memory mapping
+     */
+    public MemoryBudget(final long paramThreshold, final boolean paramMapped)
+    {
+        this.threshold = paramThreshold;
+        this.mapped = paramMapped;
+    }
+
+    /**
+     * @return <code>true</code> if results may be spilled at all
+     */
+    public boolean isLimited()
+    {
+        return threshold > 0;
+    }
+
+    /**
+     * @return <code>true</code> if spill files are read through a memory mapping
+     */
+    public boolean isMapped()
+    {
+        return mapped;
+    }
+
+    /**
+     * Registers something that will hold results.
+     */
+    public void register()
+    {
+        holders.incrementAndGet();
+    }
+
+    /**
+     * Checks whether a holder should spill the results it holds.
+     * @param held Estimated bytes the holder holds
+     * @return <code>true</code> if over the threshold, and the holder holds at least its share
+     */
+    public boolean shouldSpill(final long held)
+    {
+        return isExceeded() && held > 0 && held >= used.get() / Math.max(1, holders.get());
+    }
+
+    /**
+     * Records memory taken up.
+     * @param bytes Estimated bytes
+     */
+    public void add(final long bytes)
+    {
+        used.addAndGet(bytes);
+    }
+
+    /**
+     * Records memory freed.
+     * @param bytes Estimated bytes
+     */
+    public void release(final long bytes)
+    {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * @return Estimated bytes held
+     */
+    public long getUsed()
+    {
+        return used.get();
+    }
+
+    /**
+     * @return <code>true</code> if results should be spilled
+     */
+    public boolean isExceeded()
+    {
+        return isLimited() && used.get() > threshold;
+    }
+
+    /**
+     * Estimates the memory a result takes up, from the length of its terms.
+     * @param r Result
+     * @return Estimated bytes
+     */
+    public static long estimate(final Result r)
+    {
+        long bytes = RESULT_OVERHEAD;
+        Binding b = r.getBinding();
+        Iterator<Var> vars = b.vars();
+        while (vars.hasNext())
+        {
+            Node n = b.get(vars.next());
+            if (n == null) continue;
+
+            // the term is held as a node and, once rendered, as xml
+            bytes += BINDING_OVERHEAD + 2L * TermDictionary.estimate(n);
+        }
+        return bytes;
+    }
+}
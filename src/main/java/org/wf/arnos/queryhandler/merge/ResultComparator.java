@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.sparql.engine.binding.BindingComparator;
+import java.util.Comparator;
+import java.util.List;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Orders results by a query's ORDER BY conditions, comparing their bindings.
+ * Unlike a sorted set of bindings, results that compare equal are kept.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class ResultComparator implements Comparator<Result>
+{
+    /**
+     * Compares the bindings.
+     */
+    private final BindingComparator comparator;
+
+    /**
+     * Constructor.
+     * @param conditions The sort conditions from the query
+     */
+    public ResultComparator(final List<SortCondition> conditions)
+    {
+        this.comparator = new BindingComparator(conditions);
+    }
+
+    /**
+     * Compares two results.
+     * @param r1 First result
+     * @param r2 Second result
+     * @return Negative if <code>r1</code> sorts first, positive if <code>r2</code> does, 0 if they are equal
+     */
+    public int compare(final Result r1, final Result r2)
+    {
+        return comparator.compare(r1.getBinding(), r2.getBinding());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Merges the results of several endpoints, each already in order, into one
+ * ordered sequence.
+ * The next result of each endpoint is held in a heap, so producing a result
+ * costs O(log k) for k endpoints and the combined results are never sorted or
+ * copied as a whole. Results are produced as they are asked for, so a LIMIT
+ * stops the merge early.
+ * The merge is stable and keeps duplicates: results comparing equal come out
+ * in endpoint order, and in their endpoint's order within that. (ARQ breaks
+ * ties on the sort conditions by comparing the other bindings, so only
+ * identical results compare equal.)
+ * An endpoint whose results aren't in the expected order, because it collates
+ * differently or ignored the ORDER BY, has its results sorted first.
+ * The same merge combines the sorted runs of spilled results.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class SortedMerge implements Iterator<Result>
+{
+    /**
+     * The next result of each endpoint with results left.
+     */
+    private final PriorityQueue<Cursor> heap;
+
+    /**
+     * Constructor.
+     * Results held in lists are checked, and sorted if need be. Other
+     * collections, such as {@link TopK} and {@link SpillingResults}, must
+     * already iterate in order.
+     * @param endpointResults Results of each endpoint, in endpoint order
+     * @param comparator Order of the results
+     */
+    public SortedMerge(final List<? extends Collection<Result>> endpointResults, final Comparator<Result> comparator)
+    {
+        heap = new PriorityQueue<Cursor>(Math.max(1, endpointResults.size()), new Comparator<Cursor>()
+        {
+            public int compare(final Cursor c1, final Cursor c2)
+            {
+                int c = comparator.compare(c1.head, c2.head);
+                if (c != 0) return c;
+                return c1.source - c2.source;
+            }
+        });
+
+        for (int i = 0; i < endpointResults.size(); i++)
+        {
+            Collection<Result> source = endpointResults.get(i);
+            if (source instanceof List)
+            {
+                List<Result> results = (List<Result>) source;
+                if (!isSorted(results, comparator)) Collections.sort(results, comparator);
+            }
+
+            Cursor cursor = new Cursor(i, source.iterator());
+            if (cursor.advance()) heap.add(cursor);
+        }
+    }
+
+    /**
+     * Checks whether a list is in order.
+     * @param results Results of an endpoint
+     * @param comparator Order of the results
+     * @return <code>true</code> if no result sorts before the one preceding it
+     */
+    static boolean isSorted(final List<Result> results, final Comparator<Result> comparator)
+    {
+        Result previous = null;
+        for (Result r : results)
+        {
+            if (previous != null && comparator.compare(previous, r) > 0) return false;
+            previous = r;
+        }
+        return true;
+    }
+
+    public boolean hasNext()
+    {
+        return !heap.isEmpty();
+    }
+
+    public Result next()
+    {
+        Cursor cursor = heap.poll();
+        if (cursor == null) throw new NoSuchElementException();
+
+        Result r = cursor.head;
+        if (cursor.advance()) heap.add(cursor);
+        return r;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Position in the results of one endpoint.
+     */
+    private static final class Cursor
+    {
+        /**
+         * Index of the endpoint, breaking ties between equal results.
+         */
+        private final int source;
+
+        /**
+         * Remaining results of the endpoint.
+         */
+        private final Iterator<Result> rest;
+
+        /**
+         * Next result of the endpoint.
+         */
+        private Result head;
+
+        /**
+         * Constructor.
+         * @param paramSource Index of the endpoint
+         * @param paramRest Results of the endpoint
+         */
+        Cursor(final int paramSource, final Iterator<Result> paramRest)
+        {
+            this.source = paramSource;
+            this.rest = paramRest;
+        }
+
+        /**
+         * Moves on to the endpoint's next result.
+         * @return <code>false</code> if there are none left
+         */
+        boolean advance()
+        {
+            if (!rest.hasNext()) return false;
+            head = rest.next();
+            return true;
+        }
+    }
+}
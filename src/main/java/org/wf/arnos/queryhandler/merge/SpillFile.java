@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.exception.ArnosRuntimeException;
+
+/**
+ * A temporary file holding results spilled out of memory.
+ * Results are written one after another and can then be read back, in the
+ * same order, any number of times. Each binding is stored as its variable
+ * and RDF term, so the results read back sort and compare as the originals did.
+ * The file is read through a buffered stream or, if asked, a memory mapping,
+ * which leaves the caching of its pages to the operating system.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class SpillFile extends AbstractCollection<Result>
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(SpillFile.class);
+
+    /**
+     * Marks a uri.
+     */
+    private static final byte URI = 'U';
+
+    /**
+     * Marks a blank node.
+     */
+    private static final byte BLANK = 'B';
+
+    /**
+     * Marks a literal.
+     */
+    private static final byte LITERAL = 'L';
+
+    /**
+     * Encoding of strings.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Size of the read and write buffers.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The temporary file.
+     */
+    private final File file;
+
+    /**
+     * Whether the file is read through a memory mapping.
+     */
+    private final boolean mapped;
+
+    /**
+     * Stream writing the file, <code>null</code> once finished.
+     */
+    private DataOutputStream out;
+
+    /**
+     * Number of results written.
+     */
+    private int size = 0;
+
+    /**
+     * Streams reading the file, closed when it's deleted.
+     */
+    private final List<InputStream> readers = new ArrayList<InputStream>();
+
+    /**
+     * Constructor, creating the temporary file.
+     * @param paramMapped Whether the file is read through a memory mapping
+     */
+    public SpillFile(final boolean paramMapped)
+    {
+        this.mapped = paramMapped;
+        try
+        {
+            file = File.createTempFile("arnos", ".spill");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+        catch (IOException ioe)
+        {
+            throw new ArnosRuntimeException("Unable to create spill file", ioe);
+        }
+    }
+
+    /**
+     * Appends a result to the file.
+     * @param r Result
+     */
+    public void write(final Result r)
+    {
+        if (out == null) throw new IllegalStateException("Spill file already read");
+
+        Binding b = r.getBinding();
+        List<Var> vars = new ArrayList<Var>();
+        Iterator<Var> it = b.vars();
+        while (it.hasNext()) vars.add(it.next());
+
+        try
+        {
+            out.writeInt(vars.size());
+            for (Var var : vars)
+            {
+                writeString(var.getVarName());
+                writeNode(b.get(var));
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new ArnosRuntimeException("Unable to write spill file " + file, ioe);
+        }
+        size++;
+    }
+
+    /**
+     * @return Number of results written
+     */
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Reads the results back, in the order they were written.
+     * No more results can be written once the file has been read.
+     * @return Iterator over the results
+     */
+    @Override
+    public Iterator<Result> iterator()
+    {
+        try
+        {
+            if (out != null)
+            {
+                out.close();
+                out = null;
+            }
+
+            final DataInputStream in = new DataInputStream(open());
+            synchronized (readers)
+            {
+                readers.add(in);
+            }
+            return new Reader(in);
+        }
+        catch (IOException ioe)
+        {
+            throw new ArnosRuntimeException("Unable to read spill file " + file, ioe);
+        }
+    }
+
+    /**
+     * Deletes the file, closing any streams still reading it.
+     */
+    public void delete()
+    {
+        IOUtils.closeQuietly(out);
+        out = null;
+        synchronized (readers)
+        {
+            for (InputStream in : readers) IOUtils.closeQuietly(in);
+            readers.clear();
+        }
+        if (!file.delete()) LOG.debug("Unable to delete " + file);
+    }
+
+    /**
+     * Opens the file for reading.
+     * @return Stream over the file's content
+     * @throws IOException thrown if the file can't be opened
+     */
+    private InputStream open() throws IOException
+    {
+        if (mapped && file.length() <= Integer.MAX_VALUE)
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                // the mapping stays valid once the channel is closed
+                return new BufferInputStream(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+    }
+
+    /**
+     * Writes an RDF term.
+     * @param n Node
+     * @throws IOException thrown if unable to write
+     */
+    private void writeNode(final Node n) throws IOException
+    {
+        if (n.isURI())
+        {
+            out.writeByte(URI);
+            writeString(n.getURI());
+        }
+        else if (n.isBlank())
+        {
+            out.writeByte(BLANK);
+            writeString(n.getBlankNodeLabel());
+        }
+        else
+        {
+            out.writeByte(LITERAL);
+            writeString(n.getLiteralLexicalForm());
+            writeString(n.getLiteralLanguage() == null ? "" : n.getLiteralLanguage());
+            writeString(n.getLiteralDatatypeURI() == null ? "" : n.getLiteralDatatypeURI());
+        }
+    }
+
+    /**
+     * Writes a string of any length.
+     * @param s String
+     * @throws IOException thrown if unable to write
+     */
+    private void writeString(final String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(ENCODING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     * @param in Stream
+     * @return String
+     * @throws IOException thrown if unable to read
+     */
+    private static String readString(final DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ENCODING);
+    }
+
+    /**
+     * Reads an RDF term written by {@link #writeNode}.
+     * @param in Stream
+     * @return Node
+     * @throws IOException thrown if unable to read
+     */
+    private static Node readNode(final DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        if (type == URI) return Node.createURI(readString(in));
+        if (type == BLANK) return Node.createAnon(new AnonId(readString(in)));
+
+        String lex = readString(in);
+        String lang = readString(in);
+        String datatype = readString(in);
+        if (datatype.length() == 0) return Node.createLiteral(lex, lang, null);
+        return Node.createLiteral(lex, lang, TypeMapper.getInstance().getSafeTypeByName(datatype));
+    }
+
+    /**
+     * Iterates over the results in the file.
+     */
+    private final class Reader implements Iterator<Result>
+    {
+        /**
+         * Stream over the file.
+         */
+        private final DataInputStream in;
+
+        /**
+         * Model the results are read into.
+         */
+        private final Model model = ModelFactory.createDefaultModel();
+
+        /**
+         * Number of results still to read.
+         */
+        private int remaining = size;
+
+        /**
+         * Constructor.
+         * @param paramIn Stream over the file
+         */
+        Reader(final DataInputStream paramIn)
+        {
+            this.in = paramIn;
+        }
+
+        public boolean hasNext()
+        {
+            return remaining > 0;
+        }
+
+        public Result next()
+        {
+            if (remaining <= 0) throw new NoSuchElementException();
+            try
+            {
+                BindingMap b = new BindingMap();
+                int vars = in.readInt();
+                for (int i = 0; i < vars; i++)
+                {
+                    Var var = Var.alloc(readString(in));
+                    b.add(var, readNode(in));
+                }
+
+                if (--remaining == 0)
+                {
+                    IOUtils.closeQuietly(in);
+                    synchronized (readers)
+                    {
+                        readers.remove(in);
+                    }
+                }
+                return new Result(new ResultBinding(model, b));
+            }
+            catch (IOException ioe)
+            {
+                throw new ArnosRuntimeException("Unable to read spill file " + file, ioe);
+            }
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads a buffer, such as a memory mapped file, as a stream.
+     */
+    private static final class BufferInputStream extends InputStream
+    {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         * @param paramBuffer The buffer
+         */
+        BufferInputStream(final ByteBuffer paramBuffer)
+        {
+            this.buffer = paramBuffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+        {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
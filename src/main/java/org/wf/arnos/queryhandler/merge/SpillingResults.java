@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.controller.model.sparql.ResultTable;
+
+/**
+ * Collects results in memory until the query's memory budget runs out, then
+ * spills them to temporary files. Results in memory are held in a
+ * {@link ResultTable}, which is emptied, dictionary and all, by each spill.
+ * For an ordered query each spilled run is sorted first, and the runs are
+ * merged back together as the collection is read, making this an external
+ * sort. Otherwise the results are read back in the order they were added.
+ * The spill files are deleted when the collection is cleared.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class SpillingResults extends AbstractCollection<Result>
+{
+    /**
+     * The query's memory budget.
+     */
+    private final MemoryBudget budget;
+
+    /**
+     * Order of the results, <code>null</code> to keep them in the order added.
+     */
+    private final Comparator<Result> comparator;
+
+    /**
+     * Results held in memory.
+     */
+    private final ResultTable buffer = new ResultTable();
+
+    /**
+     * Estimated bytes held in memory.
+     */
+    private long held = 0;
+
+    /**
+     * Results spilled, in the order they were spilled.
+     */
+    private final List<SpillFile> runs = new ArrayList<SpillFile>();
+
+    /**
+     * Number of results added.
+     */
+    private int size = 0;
+
+    /**
+     * Constructor.
+     * @param paramBudget The query's memory budget
+     * @param paramComparator Order of the results, <code>null</code> to keep them in the order added
+     */
+    public SpillingResults(final MemoryBudget paramBudget, final Comparator<Result> paramComparator)
+    {
+        this.budget = paramBudget;
+        this.comparator = paramComparator;
+        budget.register();
+    }
+
+    /**
+     * Adds a result, spilling the results held if over budget.
+     * @param r Result
+     * @return <code>true</code>
+     */
+    @Override
+    public boolean add(final Result r)
+    {
+        long before = buffer.getEstimatedSize();
+        buffer.add(r);
+        long bytes = buffer.getEstimatedSize() - before;
+        held += bytes;
+        budget.add(bytes);
+        size++;
+
+        if (budget.shouldSpill(held)) spill();
+        return true;
+    }
+
+    /**
+     * Writes the results held in memory to a new run.
+     */
+    private void spill()
+    {
+        if (comparator != null) Collections.sort(buffer, comparator);
+
+        SpillFile run = new SpillFile(budget.isMapped());
+        for (Result r : buffer) run.write(r);
+        runs.add(run);
+
+        buffer.clear();
+        budget.release(held);
+        held = 0;
+    }
+
+    /**
+     * @return Number of runs spilled
+     */
+    public int getRuns()
+    {
+        return runs.size();
+    }
+
+    /**
+     * @return Iterator over the results, in order if there's a comparator
+     */
+    @Override
+    public Iterator<Result> iterator()
+    {
+        if (comparator != null) Collections.sort(buffer, comparator);
+        if (runs.isEmpty()) return Collections.unmodifiableList(buffer).iterator();
+
+        List<Collection<Result>> sources = new ArrayList<Collection<Result>>(runs);
+        sources.add(Collections.unmodifiableList(buffer));
+
+        if (comparator == null) return new ConcatenatedResults(sources);
+        return new SortedMerge(sources, comparator);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Discards the results, deleting any spill files.
+     */
+    @Override
+    public void clear()
+    {
+        for (SpillFile run : runs) run.delete();
+        runs.clear();
+        buffer.clear();
+        budget.release(held);
+        held = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.wf.arnos.controller.model.sparql.Result;
+
+/**
+ * Keeps the first K results in a query's order, out of however many are added.
+ * The results are held in a bounded heap with the worst kept result on top,
+ * so each result added costs O(log K) and at most K are held, whether or not
+ * the endpoint honoured the LIMIT it was sent.
+ * Results comparing equal are kept in the order they were added, and the
+ * collection iterates in sorted order, ready to be merged.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public final class TopK extends AbstractCollection<Result>
+{
+    /**
+     * Largest initial heap size, the heap grows to K as results are added.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Number of results kept.
+     */
+    private final int capacity;
+
+    /**
+     * Kept results, the worst first.
+     */
+    private final PriorityQueue<Entry> heap;
+
+    /**
+     * Order the results are kept in.
+     */
+    private final Comparator<Entry> order;
+
+    /**
+     * Number of results added so far, used to keep equal results in order.
+     */
+    private long added = 0;
+
+    /**
+     * Constructor.
+     * @param k Number of results kept
+     * @param comparator Order of the results
+     */
+    public TopK(final int k, final Comparator<Result> comparator)
+    {
+        if (k < 0) throw new IllegalArgumentException("K must not be negative");
+        this.capacity = k;
+        this.order = new Comparator<Entry>()
+        {
+            public int compare(final Entry e1, final Entry e2)
+            {
+                int c = comparator.compare(e1.result, e2.result);
+                if (c != 0) return c;
+                return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+            }
+        };
+        this.heap = new PriorityQueue<Entry>(Math.max(1, Math.min(k, INITIAL_CAPACITY)), Collections.reverseOrder(order));
+    }
+
+    /**
+     * Adds a result if it is among the first K seen so far.
+     * @param r Result
+     * @return <code>true</code> if the result was kept
+     */
+    @Override
+    public boolean add(final Result r)
+    {
+        Entry e = new Entry(r, added++);
+        if (heap.size() < capacity)
+        {
+            heap.add(e);
+            return true;
+        }
+        if (capacity == 0 || order.compare(e, heap.peek()) >= 0) return false;
+
+        heap.poll();
+        heap.add(e);
+        return true;
+    }
+
+    /**
+     * @return Iterator over the kept results, in order
+     */
+    @Override
+    public Iterator<Result> iterator()
+    {
+        List<Entry> entries = new ArrayList<Entry>(heap);
+        Collections.sort(entries, order);
+
+        List<Result> results = new ArrayList<Result>(entries.size());
+        for (Entry e : entries) results.add(e.result);
+        return Collections.unmodifiableList(results).iterator();
+    }
+
+    @Override
+    public int size()
+    {
+        return heap.size();
+    }
+
+    @Override
+    public void clear()
+    {
+        heap.clear();
+    }
+
+    /**
+     * A kept result and when it was added.
+     */
+    private static final class Entry
+    {
+        /**
+         * The result.
+         */
+        private final Result result;
+
+        /**
+         * Position the result was added in.
+         */
+        private final long seq;
+
+        /**
+         * Constructor.
+         * @param paramResult The result
+         * @param paramSeq Position the result was added in
+         */
+        Entry(final Result paramResult, final long paramSeq)
+        {
+            this.result = paramResult;
+            this.seq = paramSeq;
+        }
+    }
+}
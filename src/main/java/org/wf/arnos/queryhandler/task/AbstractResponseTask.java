@@ -31,27 +31,56 @@
  */
 package org.wf.arnos.queryhandler.task;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.concurrent.Cancellable;
 import org.wf.arnos.controller.model.Endpoint;
+import org.wf.arnos.exception.ArnosRuntimeException;
+import org.wf.arnos.queryhandler.AdaptiveTimeouts;
+import org.wf.arnos.queryhandler.AsyncQueryWrapperInterface;
+import org.wf.arnos.queryhandler.CircuitBreakers;
+import org.wf.arnos.queryhandler.EndpointBulkheads;
 import org.wf.arnos.queryhandler.JenaQueryWrapper;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
+import org.wf.arnos.queryhandler.QueryResponseCallback;
 import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.ReplicaBalancer;
+import org.wf.arnos.queryhandler.RequestCoalescer;
+import org.wf.arnos.queryhandler.RequestHandle;
+import org.wf.arnos.queryhandler.RequestHedger;
 
 /**
  * Task to handle sparql query.
  * @author Chris Bailey (c.bailey@bristol.ac.uk)
  */
 
-abstract class AbstractResponseTask implements Runnable
+public abstract class AbstractResponseTask implements Runnable
 {
     /**
      * Logger.
      */
     private static Log LOG;
 
+    /**
+     * Character encoding of cached endpoint responses.
+     */
+    private static final String CACHE_ENCODING = "UTF-8";
+
     /**
      * Handle to query processor for caching
      */
@@ -87,6 +116,68 @@ abstract class AbstractResponseTask implements Runnable
      */
     protected final transient QueryWrapperInterface querywrapper;
 
+    /**
+     * Urls of endpoints serving the same dataset, which the query may be sent to instead.
+     */
+    private transient List<String> replicas = Collections.emptyList();
+
+    /**
+     * Url the query is sent to, the endpoint or one of its replicas.
+     */
+    private transient volatile String target;
+
+    /**
+     * Set if the endpoint was skipped because its circuit breaker is open.
+     */
+    private transient volatile boolean circuitOpen = false;
+
+    /**
+     * Set if the endpoint wasn't queried because its bulkhead was full.
+     */
+    private transient volatile boolean rejected = false;
+
+    /**
+     * Set once a response has been received through a non-blocking transport.
+     */
+    private transient volatile boolean received = false;
+
+    /**
+     * Response received through a non-blocking transport, <code>null</code> if the request failed.
+     */
+    private transient volatile InputStream response;
+
+    /**
+     * Flight this task leads, <code>null</code> if it isn't leading one or it has been settled.
+     */
+    private transient volatile RequestCoalescer.Flight flight;
+
+    /**
+     * Set if the response was received from an identical request made by another task.
+     */
+    private transient volatile boolean coalesced = false;
+
+    /**
+     * Permit held from the bulkhead of the endpoint queried, <code>null</code> if none.
+     */
+    private transient volatile EndpointBulkheads.Permit permit;
+
+    /**
+     * Set once the handler has stopped waiting for this task's results.
+     * Guarded by the handler's lock, as are the results.
+     */
+    private transient boolean abandoned = false;
+
+    /**
+     * Set once this task has finished with its endpoint.
+     * Guarded by the handler's lock.
+     */
+    private transient boolean finished = false;
+
+    /**
+     * Handle on the request sent to the endpoint, used to cancel it.
+     */
+    private final transient RequestHandle request = new RequestHandle();
+
     /**
      * Constructor for thread.
      * @param paramHandler handling class
@@ -127,11 +218,427 @@ abstract class AbstractResponseTask implements Runnable
         return JenaQueryWrapper.getInstance();
     }
 
+    /**
+     * Returns the bulkheads limiting concurrent requests to each endpoint.
+     * We do this as an aid to unit testing.
+     * @return EndpointBulkheads
+     */
+    protected EndpointBulkheads getBulkheads()
+    {
+        return EndpointBulkheads.getInstance();
+    }
+
+    /**
+     * Returns the circuit breakers used to skip failing endpoints.
+     * We do this as an aid to unit testing.
+     * @return CircuitBreakers
+     */
+    protected CircuitBreakers getBreakers()
+    {
+        return CircuitBreakers.getInstance();
+    }
+
+    /**
+     * Returns the hedger used to send requests to replicas of slow endpoints.
+     * We do this as an aid to unit testing.
+     * @return RequestHedger
+     */
+    protected RequestHedger getHedger()
+    {
+        return RequestHedger.getInstance();
+    }
+
+    /**
+     * Returns the coalescer sharing responses between identical requests.
+     * We do this as an aid to unit testing.
+     * @return RequestCoalescer
+     */
+    protected RequestCoalescer getCoalescer()
+    {
+        return RequestCoalescer.getInstance();
+    }
+
+    /**
+     * Checks whether the task may share the response of an identical request.
+     * @return <code>true</code> unless the request has side effects
+     */
+    protected boolean isCoalescable()
+    {
+        return true;
+    }
+
+    /**
+     * Returns the balancer choosing which replica the query is sent to.
+     * We do this as an aid to unit testing.
+     * @return ReplicaBalancer
+     */
+    protected ReplicaBalancer getBalancer()
+    {
+        return ReplicaBalancer.getInstance();
+    }
+
+    /**
+     * Sets the replicas of the endpoint. The query is sent to whichever member
+     * of the group the balancer chooses, and a slow request can be hedged to
+     * another. Only requests sent through the blocking transport are hedged.
+     * Results are cached against the endpoint whichever replica answered.
+     * @param paramReplicas Urls of endpoints serving the same dataset
+     */
+    public final void setReplicas(final List<String> paramReplicas)
+    {
+        this.replicas = new ArrayList<String>(paramReplicas);
+    }
+
+    /**
+     * Sets the read timeout of the requests sent to the endpoint and its
+     * replicas, rather than using the one learned for them.
+     * @param ms Read timeout in milliseconds, 0 to use the learned one
+     */
+    public final void setReadTimeout(final int ms)
+    {
+        request.setReadTimeout(ms);
+    }
+
+    /**
+     * @return <code>true</code> if requests to the endpoint are hedged
+     */
+    private boolean isHedged()
+    {
+        return !replicas.isEmpty() && getHedger().isEnabled() && !getAlternatives().isEmpty();
+    }
+
+    /**
+     * Chooses the member of the endpoint's replica group to send the query to,
+     * from those whose circuit breakers aren't open.
+     * @return Url to query, <code>null</code> if every member's breaker is open
+     */
+    private String chooseTarget()
+    {
+        List<String> group = new ArrayList<String>(replicas.size() + 1);
+        if (getBreakers().isAvailable(url)) group.add(url);
+        for (String replica : replicas)
+        {
+            if (getBreakers().isAvailable(replica)) group.add(replica);
+        }
+
+        if (group.isEmpty()) return null;
+        return getBalancer().choose(group);
+    }
+
+    /**
+     * @return The available members of the endpoint's replica group the query wasn't sent to
+     */
+    private List<String> getAlternatives()
+    {
+        List<String> alternatives = new ArrayList<String>(replicas.size());
+        if (!url.equals(target) && getBreakers().isAvailable(url)) alternatives.add(url);
+        for (String replica : replicas)
+        {
+            if (!replica.equals(target) && getBreakers().isAvailable(replica)) alternatives.add(replica);
+        }
+        return alternatives;
+    }
+
+    /**
+     * Records the outcome of a request sent to the target with the balancer,
+     * the target's circuit breaker and, if it responded or timed out, its latency window.
+     * @param start Time returned when the request was sent
+     * @param succeeded <code>true</code> if the endpoint handled the request
+     */
+    private void completeRequest(final long start, final boolean succeeded)
+    {
+        if (isCancelled())
+        {
+            getBalancer().abort(target);
+            getBreakers().recordCancelled(target);
+        }
+        else
+        {
+            getBalancer().complete(target, start, succeeded);
+            if (succeeded)
+            {
+                getBreakers().recordSuccess(target);
+                AdaptiveTimeouts.getInstance().record(target, System.currentTimeMillis() - start);
+            }
+            else
+            {
+                getBreakers().recordFailure(target);
+                AdaptiveTimeouts.getInstance().recordFailure(target, System.currentTimeMillis() - start,
+                        JenaQueryWrapper.getReadTimeout(target, request.getReadTimeout()));
+            }
+        }
+    }
+
     /**
      * Worker's run method.
+     * Implementations must call {@link #finish} once they are finished with the endpoint.
      */
     public abstract void run();
 
+    /**
+     * Runs the task without holding a thread while the endpoint responds.
+     * The query is sent through the non-blocking transport, and the task is
+     * handed to the executor to process the response once it has arrived.
+     * Cached results are processed straight away.
+     * @param transport Non-blocking query wrapper
+     * @param executor Executor to process the response on
+     */
+    public final void execute(final AsyncQueryWrapperInterface transport, final Executor executor)
+    {
+        if (isCached())
+        {
+            executor.execute(this);
+            return;
+        }
+
+        if (joinFlight(new Follower()
+        {
+            @Override
+            protected void resume(final boolean retry)
+            {
+                if (retry) execute(transport, executor);
+                else executor.execute(AbstractResponseTask.this);
+            }
+        })) return;
+
+        if (!acquirePermit())
+        {
+            receive(null);
+            executor.execute(this);
+            return;
+        }
+
+        final long start = getBalancer().begin(target);
+        final Future<?> pending = transport.execQueryAsync(query, target, request.getReadTimeout(), new QueryResponseCallback()
+        {
+            public void completed(final InputStream in)
+            {
+                completeRequest(start, true);
+                receive(in);
+                executor.execute(AbstractResponseTask.this);
+            }
+
+            public void failed(final Exception ex)
+            {
+                request.fail();
+                completeRequest(start, false);
+                receive(null);
+                executor.execute(AbstractResponseTask.this);
+            }
+        });
+
+        request.attach(new Cancellable()
+        {
+            public boolean cancel()
+            {
+                return pending.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Records the response received through the non-blocking transport.
+     * @param in Response body, <code>null</code> if the request failed
+     */
+    private void receive(final InputStream in)
+    {
+        response = in;
+        received = true;
+    }
+
+    /**
+     * Joins the flight of an identical request, leading a new one if there is none.
+     * Only tasks that cache their responses are coalesced.
+     * @param follower Receives the response if another task leads
+     * @return <code>true</code> if this task follows another, <code>false</code> if it must query the endpoint itself
+     */
+    private boolean joinFlight(final Follower follower)
+    {
+        if (!isCoalescable() || !handler.hasCache() || !getCoalescer().isEnabled() || request.isCancelled()) return false;
+
+        flight = getCoalescer().join(project + " " + cacheKey, follower);
+        if (flight != null) return false;
+
+        LOG.debug("Following identical request to " + url);
+        request.attach(follower);
+        return true;
+    }
+
+    /**
+     * Waits for the response of an identical request made by another task, if there is one.
+     * @return <code>true</code> if the response was received, <code>false</code> if this task must query the endpoint itself
+     */
+    private boolean followFlight()
+    {
+        while (true)
+        {
+            Follower follower = new Follower();
+            if (!joinFlight(follower)) return false;
+            if (!follower.await()) return true;
+        }
+    }
+
+    /**
+     * Hands the response this task received to any tasks following it.
+     * @param s Response body
+     */
+    private void completeFlight(final String s)
+    {
+        RequestCoalescer.Flight led = flight;
+        flight = null;
+        if (led != null) led.complete(s);
+    }
+
+    /**
+     * Settles a flight this task still leads once it is done with the endpoint.
+     * Followers of a cancelled task join again, those of a failed one fail too.
+     */
+    private void settleFlight()
+    {
+        RequestCoalescer.Flight led = flight;
+        flight = null;
+        if (led == null) return;
+        if (isCancelled()) led.abandon();
+        else led.complete(null);
+    }
+
+    /**
+     * Chooses the replica to query and takes a permit from its bulkhead.
+     * @return <code>true</code> if the replica may be queried
+     */
+    private boolean acquirePermit()
+    {
+        if (request.isCancelled()) return false;
+
+        target = chooseTarget();
+        if (target == null || !getBreakers().allowRequest(target))
+        {
+            LOG.debug("Skipping " + url + ", circuit open");
+            circuitOpen = true;
+            return false;
+        }
+
+        permit = getBulkheads().acquire(target);
+        if (permit == null)
+        {
+            LOG.warn("Skipping " + url + ", too many requests in flight");
+            rejected = true;
+            getBreakers().recordCancelled(target);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the permit taken when the endpoint was queried, if any.
+     */
+    private void releasePermit()
+    {
+        EndpointBulkheads.Permit held = permit;
+        if (held != null)
+        {
+            permit = null;
+            held.release();
+        }
+    }
+
+    /**
+     * Marks this task as finished and signals the handler.
+     * Must be called exactly once, whether or not the endpoint responded.
+     */
+    protected final void finish()
+    {
+        releasePermit();
+        settleFlight();
+        synchronized (handler)
+        {
+            finished = true;
+        }
+        doneSignal.countDown();
+    }
+
+    /**
+     * Tells the task its results are no longer wanted, because the query's
+     * deadline has passed or it has been cancelled. Any results not yet added
+     * are discarded. The request itself is stopped by {@link #cancel}.
+     * Must be called holding the handler's lock.
+     * @return <code>true</code> if the task was abandoned, <code>false</code> if it had already finished
+     */
+    public final boolean abandon()
+    {
+        if (finished) return false;
+        abandoned = true;
+        return true;
+    }
+
+    /**
+     * Checks whether results may still be added.
+     * Must be called holding the handler's lock, and the results added under the same lock.
+     * @return <code>true</code> if the handler has stopped waiting for this task
+     */
+    protected final boolean isAbandoned()
+    {
+        return abandoned;
+    }
+
+    /**
+     * Aborts the request to the endpoint, releasing its connection.
+     * A task that hasn't yet queried its endpoint won't do so.
+     */
+    public final void cancel()
+    {
+        request.cancel();
+    }
+
+    /**
+     * @return <code>true</code> if the endpoint was skipped because its circuit breaker is open
+     */
+    public final boolean isCircuitOpen()
+    {
+        return circuitOpen;
+    }
+
+    /**
+     * @return <code>true</code> if the endpoint wasn't queried because its bulkhead was full
+     */
+    public final boolean isRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * @return <code>true</code> if the request to the endpoint failed, see {@link RequestHandle#hasFailed}
+     */
+    public final boolean hasFailed()
+    {
+        return request.hasFailed();
+    }
+
+    /**
+     * @return <code>true</code> if the task has been cancelled
+     */
+    public final boolean isCancelled()
+    {
+        return request.isCancelled();
+    }
+
+    /**
+     * @return Endpoint url
+     */
+    public final String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * Check whether the result of this query is held in the cache.
+     * @return <code>true</code> if a cached copy exists
+     */
+    public boolean isCached()
+    {
+        return handler.hasCache() && handler.getCache().contains(project, cacheKey);
+    }
+
     /**
      * Lookup a string from cache.
      * @return Value in cache, <code>null</code> if missing/cache not present
@@ -139,7 +646,7 @@ abstract class AbstractResponseTask implements Runnable
     public String getFromCache()
     {
         // check cache copy
-        if (handler.hasCache() && handler.getCache().contains(project, cacheKey))
+        if (isCached())
         {
             LOG.debug("Lookup query from cache");
 
@@ -154,7 +661,8 @@ abstract class AbstractResponseTask implements Runnable
      */
     public void putInCache(final String s)
     {
-        if (handler.hasCache())
+        // the leading task caches a coalesced response
+        if (handler.hasCache() && !coalesced)
         {
             LOG.debug("Putting result in cache");
 
@@ -164,4 +672,166 @@ abstract class AbstractResponseTask implements Runnable
         }
     }
 
+    /**
+     * Queries the endpoint, returning the response as a stream to be parsed directly.
+     * If a cache is present the raw bytes are copied into <code>cacheCopy</code>
+     * as the stream is read, see {@link #putStreamInCache}.
+     * @param cacheCopy Buffer to receive a copy of the response
+     * @return Response stream, <code>null</code> if the endpoint could not be queried
+     */
+    protected InputStream openStream(final ByteArrayOutputStream cacheCopy)
+    {
+        InputStream in;
+        if (received || followFlight()) in = response;
+        else if (!acquirePermit()) in = null;
+        else if (isHedged()) in = getHedger().execQueryStream(getQueryWrapper(), query, target, getAlternatives(), request);
+        else
+        {
+            long start = getBalancer().begin(target);
+            in = getQueryWrapper().execQueryStream(query, target, request);
+            completeRequest(start, !request.hasFailed());
+        }
+
+        if (in == null || !handler.hasCache() || coalesced) return in;
+
+        return new TeeInputStream(in, cacheCopy, true);
+    }
+
+    /**
+     * Queries the endpoint, returning the whole response as a string.
+     * @return Response, an empty string if the endpoint could not be queried
+     * @throws IOException thrown if a response received through the non-blocking transport can't be read
+     */
+    protected String fetchResponse() throws IOException
+    {
+        String s;
+        if (received || followFlight())
+        {
+            if (response == null) return "";
+            s = JenaQueryWrapper.convertStreamToString(response);
+        }
+        else if (isCancelled()) return "";
+        else if (!acquirePermit())
+        {
+            if (circuitOpen) return "";
+            throw new ArnosRuntimeException("Endpoint " + target + " is busy");
+        }
+        else if (isHedged()) s = getHedger().execQuery(getQueryWrapper(), query, target, getAlternatives(), request);
+        else
+        {
+            long start = getBalancer().begin(target);
+            s = getQueryWrapper().execQuery(query, target, request);
+            completeRequest(start, !request.hasFailed());
+        }
+
+        if (StringUtils.isNotEmpty(s) && !isCancelled()) completeFlight(s);
+        return s;
+    }
+
+    /**
+     * Reads any remaining content from a stream obtained through {@link #openStream}
+     * and puts the copied response into the cache.
+     * @param in Response stream
+     * @param cacheCopy Buffer holding the copy of the response
+     * @throws IOException thrown if the remaining content can't be read
+     */
+    protected void putStreamInCache(final InputStream in, final ByteArrayOutputStream cacheCopy) throws IOException
+    {
+        if (handler.hasCache() && !coalesced && !isCancelled())
+        {
+            IOUtils.copy(in, new NullOutputStream());
+            String s = cacheCopy.toString(CACHE_ENCODING);
+            putInCache(s);
+            completeFlight(s);
+        }
+    }
+
+    /**
+     * Waits for the response of an identical request led by another task.
+     * The response is received as if through the non-blocking transport.
+     */
+    private class Follower implements RequestCoalescer.Listener, Cancellable
+    {
+        /**
+         * Set once the leader has been heard from, or this task cancelled.
+         */
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+
+        /**
+         * Released once settled.
+         */
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        /**
+         * Set if the leader was cancelled and this task should join again.
+         */
+        private volatile boolean retry = false;
+
+        public void completed(final String s)
+        {
+            if (!settled.compareAndSet(false, true)) return;
+            coalesced = true;
+            receive(s == null ? null : new ByteArrayInputStream(getBytes(s)));
+            resume(false);
+        }
+
+        public void abandoned()
+        {
+            if (!settled.compareAndSet(false, true)) return;
+            retry = true;
+            resume(true);
+        }
+
+        public boolean cancel()
+        {
+            if (!settled.compareAndSet(false, true)) return false;
+            receive(null);
+            resume(false);
+            return true;
+        }
+
+        /**
+         * Called once settled, releases the task waiting in {@link #await}.
+         * @param paramRetry <code>true</code> if the task should join again
+         */
+        protected void resume(final boolean paramRetry)
+        {
+            latch.countDown();
+        }
+
+        /**
+         * Blocks until settled.
+         * @return <code>true</code> if the task should join again
+         */
+        boolean await()
+        {
+            try
+            {
+                latch.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                cancel();
+            }
+            return retry;
+        }
+
+        /**
+         * @param s Response body
+         * @return The body in the encoding responses are cached in
+         */
+        private byte[] getBytes(final String s)
+        {
+            try
+            {
+                return s.getBytes(CACHE_ENCODING);
+            }
+            catch (java.io.UnsupportedEncodingException ex)
+            {
+                throw new ArnosRuntimeException(ex);
+            }
+        }
+    }
+
 }
@@ -53,6 +53,11 @@ public class FetchBooleanResponseTask extends AbstractResponseTask
      */
     private List <Boolean> askResults;
 
+    /**
+     * A latch to signal as soon as an endpoint answers true, may be <code>null</code>.
+     */
+    private final CountDownLatch answerSignal;
+
     /**
      * Constructor for thread.
      * @param paramHandler handling class
@@ -66,9 +71,29 @@ public class FetchBooleanResponseTask extends AbstractResponseTask
                                                 final String paramUrl,
                                                 final String projectName,
                                                 final CountDownLatch paramDoneSignal)
+    {
+        this(paramHandler, askResultList, paramQuery, paramUrl, projectName, paramDoneSignal, null);
+    }
+
+    /**
+     * Constructor for thread.
+     * @param paramHandler handling class
+     * @param paramQuery SPARQL query
+     * @param paramUrl Endpoint url
+     * @param paramDoneSignal Latch signal to use to notify parent when completed
+     * @param paramAnswerSignal Latch signal to notify parent of a true answer, may be <code>null</code>
+     */
+    public FetchBooleanResponseTask(final QueryHandlerInterface paramHandler,
+                                                List <Boolean> askResultList,
+                                                final String paramQuery,
+                                                final String paramUrl,
+                                                final String projectName,
+                                                final CountDownLatch paramDoneSignal,
+                                                final CountDownLatch paramAnswerSignal)
     {
         super(paramHandler, paramQuery, paramUrl, projectName, paramDoneSignal);
         this.askResults = askResultList;
+        this.answerSignal = paramAnswerSignal;
     }
 
     /**
@@ -87,7 +112,11 @@ public class FetchBooleanResponseTask extends AbstractResponseTask
             if (resultsString == null)
             {
                 LOG.debug("Cache miss");
-                resultsString = getQueryWrapper().execQuery(query, url);
+                resultsString = fetchResponse();
+
+                // an aborted or skipped request has no answer to cache
+                if (isCancelled() || isCircuitOpen() || resultsString.length() == 0) return;
+
                 ans = getQueryWrapper().stringToBoolean(resultsString);
                 putInCache(ans.toString());
             }
@@ -99,16 +128,21 @@ public class FetchBooleanResponseTask extends AbstractResponseTask
 
             synchronized(handler)
             {
+                if (isAbandoned()) return;
                 askResults.add(ans);
             }
+
+            // a single true answer settles the federated answer
+            if (ans && answerSignal != null) answerSignal.countDown();
         }
         catch (Exception ex)
         {
-            LOG.error("Unable to execute query against " + url, ex);
+            if (isCancelled()) LOG.debug("Query against " + url + " cancelled");
+            else LOG.error("Unable to execute query against " + url, ex);
         }
         finally
         {
-            doneSignal.countDown();
+            finish();
         }
     }
 }
\ No newline at end of file
@@ -32,7 +32,10 @@
 package org.wf.arnos.queryhandler.task;
 
 import com.hp.hpl.jena.rdf.model.Model;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.concurrent.CountDownLatch;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
@@ -82,40 +85,53 @@ public class FetchModelResponseTask extends AbstractResponseTask
     @Override
     public final void run()
     {
+        InputStream in = null;
         try
         {
             String resultsString = getFromCache();
+            Model model = null;
 
             // check cache copy
             if (resultsString == null)
             {
                 LOG.debug("Cache miss");
-                resultsString = getQueryWrapper().execQuery(query, url);
-                putInCache(resultsString);
-            }
-
-            LOG.debug("Cache hit");
+                ByteArrayOutputStream cacheCopy = new ByteArrayOutputStream();
+                in = openStream(cacheCopy);
+                if (in == null) return;
 
-            if (resultsString != null && resultsString.length() > 0)
+                model = getQueryWrapper().streamToModel(in);
+                putStreamInCache(in, cacheCopy);
+            }
+            else
             {
-                Model model  = getQueryWrapper().stringToModel(resultsString);
-
-                // record if results have been returned so that warning can be issued
-                if (model.size() > 0) countSignal.countDown();
+                LOG.debug("Cache hit");
+                if (resultsString.length() > 0)
+                {
+                    model = getQueryWrapper().stringToModel(resultsString);
+                }
+            }
 
+            if (model != null)
+            {
                 synchronized(handler)
                 {
+                    if (isAbandoned()) return;
                     mergedModel.add(model);
                 }
+
+                // record if results have been returned so that warning can be issued
+                if (model.size() > 0) countSignal.countDown();
             }
         }
         catch (Exception ex)
         {
-            LOG.error("Unable to execute query against " + url, ex);
+            if (isCancelled()) LOG.debug("Query against " + url + " cancelled");
+            else LOG.error("Unable to execute query against " + url, ex);
         }
         finally
         {
-            doneSignal.countDown();
+            IOUtils.closeQuietly(in);
+            finish();
         }
     }
 }
\ No newline at end of file
@@ -33,8 +33,11 @@ package org.wf.arnos.queryhandler.task;
 
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wf.arnos.controller.model.sparql.Result;
@@ -52,9 +55,14 @@ public class FetchResultSetResponseTask extends AbstractResponseTask
     private static final Log LOG = LogFactory.getLog(FetchResultSetResponseTask.class);
 
     /**
-     * A reference to the list of results
+     * A reference to the collection of results
      */
-    private List<Result> resultObject;
+    private Collection<Result> resultObject;
+
+    /**
+     * A latch counted down as each result is added, may be <code>null</code>.
+     */
+    private final CountDownLatch rowSignal;
 
     /**
      * Constructor for thread.
@@ -64,14 +72,34 @@ public class FetchResultSetResponseTask extends AbstractResponseTask
      * @param paramDoneSignal Latch signal to use to notify parent when completed
      */
     public FetchResultSetResponseTask(final QueryHandlerInterface paramHandler,
-                                                final List<Result> resultObject,
+                                                final Collection<Result> resultObject,
                                                 final String paramQuery,
                                                 final String paramUrl,
                                                 final String projectName,
                                                 final CountDownLatch paramDoneSignal)
+    {
+        this(paramHandler, resultObject, paramQuery, paramUrl, projectName, paramDoneSignal, null);
+    }
+
+    /**
+     * Constructor for thread.
+     * @param paramHandler handling class
+     * @param paramQuery SPARQL query
+     * @param paramUrl Endpoint url
+     * @param paramDoneSignal Latch signal to use to notify parent when completed
+     * @param paramRowSignal Latch signal to count down as each result is added, may be <code>null</code>
+     */
+    public FetchResultSetResponseTask(final QueryHandlerInterface paramHandler,
+                                                final Collection<Result> resultObject,
+                                                final String paramQuery,
+                                                final String paramUrl,
+                                                final String projectName,
+                                                final CountDownLatch paramDoneSignal,
+                                                final CountDownLatch paramRowSignal)
     {
         super(paramHandler, paramQuery, paramUrl, projectName, paramDoneSignal);
         this.resultObject = resultObject;
+        this.rowSignal = paramRowSignal;
     }
 
     /**
@@ -81,45 +109,65 @@ public class FetchResultSetResponseTask extends AbstractResponseTask
     @Override
     public final void run()
     {
+        InputStream in = null;
         try
         {
             String resultsString = getFromCache();
+            ResultSet resultSet;
 
             // check cache copy
             if (resultsString == null)
             {
                 LOG.debug("Cache miss");
-                resultsString = getQueryWrapper().execQuery(query, url);
-                
-                LOG.debug("Got " + resultsString.length());
-                putInCache(resultsString);
+                ByteArrayOutputStream cacheCopy = new ByteArrayOutputStream();
+                in = openStream(cacheCopy);
+                if (in == null) return;
+
+                // solutions are parsed from the response as they arrive
+                resultSet = querywrapper.streamToResultSet(in);
+                addResults(resultSet);
+
+                putStreamInCache(in, cacheCopy);
             }
             else
             {
                 LOG.debug("Cache hit");
-            }
-
-            if (resultsString != null && resultsString.length() > 0)
-            {
-                ResultSet resultSet = querywrapper.stringToResultSet(resultsString);
-
-                while (resultSet != null && resultSet.hasNext())
+                if (resultsString.length() > 0)
                 {
-                    QuerySolution sol = resultSet.next();
-                    synchronized(handler)
-                    {
-                        resultObject.add(new Result(sol));
-                    }
+                    resultSet = querywrapper.stringToResultSet(resultsString);
+                    addResults(resultSet);
                 }
             }
         }
         catch (Exception ex)
         {
-            LOG.error("Unable to execute query against " + url, ex);
+            if (isCancelled()) LOG.debug("Query against " + url + " cancelled");
+            else LOG.error("Unable to execute query against " + url, ex);
         }
         finally
         {
-            doneSignal.countDown();
+            IOUtils.closeQuietly(in);
+            finish();
+        }
+    }
+
+    /**
+     * Adds each solution in a result set to the shared list of results.
+     * @param resultSet Endpoint results, may be <code>null</code>
+     */
+    private void addResults(final ResultSet resultSet)
+    {
+        while (resultSet != null && resultSet.hasNext())
+        {
+            QuerySolution sol = resultSet.next();
+            synchronized(handler)
+            {
+                if (isAbandoned()) return;
+                resultObject.add(new Result(sol));
+            }
+
+            // may settle the query, abandoning this and the other endpoints' tasks
+            if (rowSignal != null) rowSignal.countDown();
         }
     }
 }
\ No newline at end of file
@@ -32,8 +32,10 @@
 package org.wf.arnos.queryhandler.task;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.wf.arnos.exception.ArnosRuntimeException;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
 
 /**
@@ -52,6 +54,11 @@ public class FetchUpdateResponseTask extends AbstractResponseTask
      */
     private StringBuffer result;
 
+    /**
+     * Receives the reason the update wasn't applied, if it wasn't.
+     */
+    private final AtomicReference<RuntimeException> failure;
+
     /**
      * Constructor for thread.
      * @param paramHandler handling class
@@ -65,13 +72,49 @@ public class FetchUpdateResponseTask extends AbstractResponseTask
                                                         final String paramUrl,
                                                         final String projectName,
                                                         final CountDownLatch paramDoneSignal)
+    {
+        this(paramHandler, result, new AtomicReference<RuntimeException>(), paramQuery, paramUrl, projectName,
+                paramDoneSignal);
+    }
+
+    /**
+     * Constructor for thread, reporting an update that wasn't applied.
+     * @param paramHandler handling class
+     * @param result Buffer receiving the endpoint's response
+     * @param paramFailure Receives the reason the update wasn't applied, if it wasn't
+     * @param paramQuery SPARQL query
+     * @param paramUrl Endpoint url
+     * @param projectName Name of project
+     * @param paramDoneSignal Latch signal to use to notify parent when completed
+     */
+    public FetchUpdateResponseTask(final QueryHandlerInterface paramHandler,
+                                                        final StringBuffer result,
+                                                        final AtomicReference<RuntimeException> paramFailure,
+                                                        final String paramQuery,
+                                                        final String paramUrl,
+                                                        final String projectName,
+                                                        final CountDownLatch paramDoneSignal)
     {
         super(paramHandler, paramQuery, paramUrl, projectName, paramDoneSignal);
         this.result = result;
+        this.failure = paramFailure;
+    }
+
+    /**
+     * Updates change the endpoint's data, so each one must be sent.
+     * @return <code>false</code>
+     */
+    @Override
+    protected boolean isCoalescable()
+    {
+        return false;
     }
 
     /**
      * Executes the query on the specified endpoint and processes the results.
+     * An update that wasn't sent, or that the endpoint didn't accept, is
+     * reported through the failure reference rather than dropped.
+     * A successful update's response may well be empty.
      */
     @Override
     public final void run()
@@ -80,15 +123,41 @@ public class FetchUpdateResponseTask extends AbstractResponseTask
         {
             LOG.debug("Querying " + url);
 
-            result.append(getQueryWrapper().execQuery(query, url));
+            String s = fetchResponse();
+            String error = getError();
+            if (error == null) result.append(s);
+            else fail(error, null);
         }
         catch (Exception ex)
         {
-            LOG.error("Unable to execute update query against " + url, ex);
+            fail("Unable to execute update query against " + url, ex);
         }
         finally
         {
-            doneSignal.countDown();
+            finish();
         }
     }
+
+    /**
+     * @return Why the update wasn't applied, <code>null</code> if it was
+     */
+    private String getError()
+    {
+        if (isCircuitOpen()) return "Update not sent to " + url + ", circuit open";
+        if (isRejected()) return "Update not sent to " + url + ", too many requests in flight";
+        if (isCancelled()) return "Update to " + url + " cancelled";
+        if (hasFailed()) return "Unable to execute update query against " + url;
+        return null;
+    }
+
+    /**
+     * Logs and records an update that wasn't applied.
+     * @param message Why the update wasn't applied
+     * @param cause Exception thrown, may be <code>null</code>
+     */
+    private void fail(final String message, final Exception cause)
+    {
+        LOG.error(message, cause);
+        failure.set(new ArnosRuntimeException(message, cause));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.task;
+
+import com.hp.hpl.jena.query.ResultSet;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.queryhandler.QueryHandlerInterface;
+import org.wf.arnos.queryhandler.format.ResultFormat;
+import org.wf.arnos.queryhandler.format.ResultsWriter;
+
+/**
+ * Copies an endpoint's response straight to the client, for queries whose
+ * results need no merging. The response is written as it arrives, without
+ * being parsed, and copied into the cache as it's read.
+ * A response in a different format to the one the client asked for, see
+ * {@link ResultFormat}, is parsed and written out again in the client's format,
+ * as are ASK answers, which are cached as the answer alone.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class PassThroughResponseTask extends AbstractResponseTask
+{
+    /**
+     * Logger.
+     */
+    private static final Log LOG = LogFactory.getLog(PassThroughResponseTask.class);
+
+    /**
+     * Encoding of sparql results.
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Characters copied at a time.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Where the response is written.
+     */
+    private final Writer out;
+
+    /**
+     * Format the client asked for.
+     */
+    private final ResultFormat format;
+
+    /**
+     * Whether the query is an ASK query.
+     */
+    private final boolean ask;
+
+    /**
+     * Set once any of the response has been written.
+     */
+    private volatile boolean written = false;
+
+    /**
+     * Constructor for thread, writing SELECT results as XML.
+     * @param paramHandler handling class
+     * @param paramOut Writer to copy the response to
+     * @param paramQuery SPARQL query
+     * @param paramUrl Endpoint url
+     * @param paramDoneSignal Latch signal to use to notify parent when completed
+     */
+    public PassThroughResponseTask(final QueryHandlerInterface paramHandler,
+                                                final Writer paramOut,
+                                                final String paramQuery,
+                                                final String paramUrl,
+                                                final String projectName,
+                                                final CountDownLatch paramDoneSignal)
+    {
+        this(paramHandler, paramOut, ResultFormat.XML, false, paramQuery, paramUrl, projectName, paramDoneSignal);
+    }
+
+    /**
+     * Constructor for thread.
+     * @param paramHandler handling class
+     * @param paramOut Writer to copy the response to
+     * @param paramFormat Format the client asked for
+     * @param paramAsk <code>true</code> for an ASK query, <code>false</code> for a SELECT
+     * @param paramQuery SPARQL query
+     * @param paramUrl Endpoint url
+     * @param paramDoneSignal Latch signal to use to notify parent when completed
+     */
+    public PassThroughResponseTask(final QueryHandlerInterface paramHandler,
+                                                final Writer paramOut,
+                                                final ResultFormat paramFormat,
+                                                final boolean paramAsk,
+                                                final String paramQuery,
+                                                final String paramUrl,
+                                                final String projectName,
+                                                final CountDownLatch paramDoneSignal)
+    {
+        super(paramHandler, paramQuery, paramUrl, projectName, paramDoneSignal);
+        this.out = paramOut;
+        this.format = paramFormat;
+        this.ask = paramAsk;
+    }
+
+    /**
+     * Executes the query on the specified endpoint and copies the response to the writer.
+     * Caches results.
+     */
+    @Override
+    public final void run()
+    {
+        InputStream in = null;
+        try
+        {
+            String resultsString = getFromCache();
+
+            // check cache copy
+            if (resultsString == null && ask)
+            {
+                LOG.debug("Cache miss");
+
+                // the answer is cached rather than the response, as FetchBooleanResponseTask does
+                resultsString = fetchResponse();
+                if (isCancelled() || resultsString.length() == 0) return;
+
+                Boolean ans = querywrapper.stringToBoolean(resultsString);
+                writeAnswer(ans);
+                putInCache(ans.toString());
+            }
+            else if (resultsString == null)
+            {
+                LOG.debug("Cache miss");
+                ByteArrayOutputStream cacheCopy = new ByteArrayOutputStream();
+                in = openStream(cacheCopy);
+                if (in == null) return;
+
+                PushbackInputStream body = new PushbackInputStream(in, ResultFormat.SNIFF_LIMIT);
+                if (ResultFormat.sniff(body) == format)
+                {
+                    Reader reader = new InputStreamReader(body, ENCODING);
+                    char[] buffer = new char[BUFFER_SIZE];
+                    int n;
+                    while ((n = reader.read(buffer)) != -1)
+                    {
+                        out.write(buffer, 0, n);
+                        written = true;
+                    }
+                }
+                else
+                {
+                    writeResults(querywrapper.streamToResultSet(body));
+                }
+                out.flush();
+
+                putStreamInCache(in, cacheCopy);
+            }
+            else
+            {
+                LOG.debug("Cache hit");
+                if (resultsString.length() == 0) return;
+
+                if (ask)
+                {
+                    writeAnswer(Boolean.valueOf(resultsString));
+                }
+                else if (ResultFormat.sniff(resultsString) == format)
+                {
+                    out.write(resultsString);
+                    written = true;
+                }
+                else
+                {
+                    writeResults(querywrapper.stringToResultSet(resultsString));
+                }
+                out.flush();
+            }
+        }
+        catch (Exception ex)
+        {
+            if (isCancelled()) LOG.debug("Query against " + url + " cancelled");
+            else LOG.error("Unable to pass through results from " + url, ex);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+            finish();
+        }
+    }
+
+    /**
+     * Writes an ASK answer in the client's format.
+     * @param ans Endpoint's answer
+     * @throws IOException thrown if the answer can't be written
+     */
+    private void writeAnswer(final boolean ans) throws IOException
+    {
+        format.createWriter(out).writeBoolean(ans);
+        written = true;
+        out.flush();
+    }
+
+    /**
+     * Writes SELECT results in the client's format.
+     * @param resultSet Endpoint's results, <code>null</code> if they couldn't be read
+     * @throws IOException thrown if the results can't be written
+     */
+    private void writeResults(final ResultSet resultSet) throws IOException
+    {
+        if (resultSet == null) return;
+
+        ResultsWriter results = format.createWriter(out);
+        results.start(resultSet.getResultVars());
+        written = true;
+        while (resultSet.hasNext())
+        {
+            results.write(new Result(resultSet.next()));
+        }
+        results.finish();
+    }
+
+    /**
+     * Check whether the response was written. Nothing is written if the
+     * endpoint couldn't be queried or sent an empty response.
+     * @return <code>true</code> if any of the response was written
+     */
+    public final boolean isWritten()
+    {
+        return written;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.beans;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class TaskExecutorFactoryBeanTest {
+
+    @BeforeClass
+    public static void setUp()
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+    }
+
+    /**
+     * @return <code>true</code> if the running jvm has virtual threads
+     */
+    public static boolean hasVirtualThreads()
+    {
+        try
+        {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return true;
+        }
+        catch (Exception ex)
+        {
+            return false;
+        }
+    }
+
+    @Test
+    public void testPoolMode()
+    {
+        TaskExecutorFactoryBean factory = new TaskExecutorFactoryBean();
+        factory.setCorePoolSize(2);
+        factory.setMaxPoolSize(4);
+        factory.setQueueCapacity(8);
+        factory.afterPropertiesSet();
+
+        assertFalse(factory.isVirtual());
+        assertTrue(factory.isSingleton());
+        assertEquals(TaskExecutor.class, factory.getObjectType());
+
+        ThreadPoolTaskExecutor pool = (ThreadPoolTaskExecutor) factory.getObject();
+        assertEquals(2, pool.getCorePoolSize());
+        assertEquals(4, pool.getMaxPoolSize());
+
+        factory.destroy();
+    }
+
+    @Test
+    public void testVirtualMode() throws InterruptedException
+    {
+        TaskExecutorFactoryBean factory = new TaskExecutorFactoryBean();
+        factory.setMode(" Virtual ");
+        factory.afterPropertiesSet();
+
+        // falls back to a pool on jvms without virtual threads
+        assertEquals(hasVirtualThreads(), factory.isVirtual());
+
+        final CountDownLatch done = new CountDownLatch(1);
+        factory.getObject().execute(new Runnable()
+        {
+            public void run()
+            {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        factory.destroy();
+    }
+
+    @Test
+    public void testUnknownMode()
+    {
+        TaskExecutorFactoryBean factory = new TaskExecutorFactoryBean();
+        factory.setMode("unknown");
+        factory.afterPropertiesSet();
+        assertFalse(factory.isVirtual());
+        assertTrue(factory.getObject() instanceof ThreadPoolTaskExecutor);
+        factory.destroy();
+
+        factory = new TaskExecutorFactoryBean();
+        factory.setMode(null);
+        factory.afterPropertiesSet();
+        assertTrue(factory.getObject() instanceof ThreadPoolTaskExecutor);
+        factory.destroy();
+    }
+}
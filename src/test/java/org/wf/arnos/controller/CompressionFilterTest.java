@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class CompressionFilterTest {
+
+    private static final String SMALL = "<sparql/>";
+
+    private static final String LARGE = StringUtils.repeat(Sparql.SELECT_RESULT_7_BOOKS, 10);
+
+    CompressionFilter filter;
+
+    @Before
+    public void setUp()
+    {
+        filter = new CompressionFilter();
+    }
+
+    /**
+     * Runs the filter over a chain that writes the given content.
+     */
+    private MockHttpServletResponse filter(final String acceptEncoding, final String content, final boolean flush)
+            throws Exception
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/projects/test/query/select");
+        if (acceptEncoding != null) request.addHeader("Accept-Encoding", acceptEncoding);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setCharacterEncoding("UTF-8");
+
+        filter.doFilter(request, response, new FilterChain()
+        {
+            public void doFilter(ServletRequest req, ServletResponse res) throws IOException, ServletException
+            {
+                res.setContentType("application/sparql-results+xml");
+                res.getWriter().write(content);
+                if (flush) res.getWriter().flush();
+            }
+        });
+        return response;
+    }
+
+    private String decompress(MockHttpServletResponse response) throws IOException
+    {
+        InputStream in = new ByteArrayInputStream(response.getContentAsByteArray());
+        if ("gzip".equals(response.getHeader("Content-Encoding"))) in = new GZIPInputStream(in);
+        else if ("deflate".equals(response.getHeader("Content-Encoding"))) in = new InflaterInputStream(in);
+        return IOUtils.toString(in, "UTF-8");
+    }
+
+    @Test
+    public void testNegotiate()
+    {
+        assertNull(CompressionFilter.negotiate(null));
+        assertNull(CompressionFilter.negotiate(""));
+        assertNull(CompressionFilter.negotiate("identity"));
+        assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0"));
+        assertEquals("gzip", CompressionFilter.negotiate("gzip"));
+        assertEquals("gzip", CompressionFilter.negotiate("gzip, deflate"));
+        assertEquals("gzip", CompressionFilter.negotiate("deflate, gzip"));
+        assertEquals("gzip", CompressionFilter.negotiate("*"));
+        assertEquals("deflate", CompressionFilter.negotiate("deflate"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, *"));
+        assertNull(CompressionFilter.negotiate("*;q=0"));
+    }
+
+    @Test
+    public void testCompression() throws Exception
+    {
+        MockHttpServletResponse response = filter("gzip, deflate", LARGE, false);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertTrue(response.getContentAsByteArray().length < LARGE.getBytes("UTF-8").length);
+        assertEquals(LARGE, decompress(response));
+
+        response = filter("deflate", LARGE, false);
+        assertEquals("deflate", response.getHeader("Content-Encoding"));
+        assertEquals(LARGE, decompress(response));
+
+        // content flushed once over the threshold is still compressed
+        response = filter("gzip", LARGE, true);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(LARGE, decompress(response));
+    }
+
+    @Test
+    public void testThreshold() throws Exception
+    {
+        // small responses are sent as they are, flushed or not
+        MockHttpServletResponse response = filter("gzip", SMALL, true);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(SMALL.length(), response.getContentLength());
+        assertEquals(SMALL, response.getContentAsString());
+
+        filter.setThreshold(0);
+        response = filter("gzip", SMALL, false);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(SMALL, decompress(response));
+
+        // nothing written
+        response = filter("gzip", "", false);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    /**
+     * Runs the filter over a chain that writes the given content and then fails.
+     */
+    private MockHttpServletResponse filterFailing(final String content) throws Exception
+    {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/projects/test/query/select");
+        request.addHeader("Accept-Encoding", "gzip");
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setCharacterEncoding("UTF-8");
+
+        try
+        {
+            filter.doFilter(request, response, new FilterChain()
+            {
+                public void doFilter(ServletRequest req, ServletResponse res) throws IOException, ServletException
+                {
+                    res.getWriter().write(content);
+                    res.getWriter().flush();
+                    throw new ServletException("Query failed");
+                }
+            });
+            fail("ServletException not thrown");
+        }
+        catch (ServletException ex)
+        {
+            assertEquals("Query failed", ex.getMessage());
+        }
+        return response;
+    }
+
+    @Test
+    public void testFailure() throws Exception
+    {
+        // buffered content is dropped, leaving the response to the container
+        MockHttpServletResponse response = filterFailing(SMALL);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        // compressed content is left incomplete rather than terminated
+        response = filterFailing(LARGE);
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        try
+        {
+            decompress(response);
+            fail("Failed response decompressed");
+        }
+        catch (IOException ex)
+        {
+            // expected, the stream has no trailer
+        }
+    }
+
+    @Test
+    public void testUncompressed() throws Exception
+    {
+        MockHttpServletResponse response = filter(null, LARGE, false);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(LARGE, response.getContentAsString());
+
+        filter.setEnabled(false);
+        response = filter("gzip", LARGE, false);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertNull(response.getHeader("Vary"));
+        assertEquals(LARGE, response.getContentAsString());
+    }
+
+    @Test
+    public void testSettings()
+    {
+        filter.setLevel(9);
+        assertEquals(9, filter.getLevel());
+
+        try
+        {
+            filter.setLevel(10);
+            fail("IllegalArgumentException not thrown");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected result
+        }
+        assertEquals(9, filter.getLevel());
+
+        filter.setThreshold(-1);
+        assertEquals(0, filter.getThreshold());
+    }
+}
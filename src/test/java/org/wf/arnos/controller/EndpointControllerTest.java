@@ -118,6 +118,45 @@ public class EndpointControllerTest extends EasyMockSupport {
         assertEquals(1,getNumOfEndpoints());
     }
 
+    @Test
+    public void testReplicas()
+    {
+        Model model = new ExtendedModelMap();
+        String mirror = Sparql.ENDPOINT1_URL + "/mirror";
+
+        controller.addReplica(PROJECT_NAME, Sparql.ENDPOINT1_URL, mirror, model);
+        assertEquals(true,model.asMap().get("message").toString().contains("added"));
+
+        // replicas are grouped with their endpoint rather than listed separately
+        assertEquals(2,getNumOfEndpoints());
+        assertEquals(1,getEndpoint(Sparql.ENDPOINT1_URL).getReplicas().size());
+        assertEquals(mirror,getEndpoint(Sparql.ENDPOINT1_URL).getReplicas().get(0));
+
+        model = new ExtendedModelMap();
+        controller.addReplica(PROJECT_NAME, Sparql.ENDPOINT3_URL, mirror, model);
+        assertEquals("Unknown endpoint",model.asMap().get("message"));
+
+        model = new ExtendedModelMap();
+        controller.addReplica(PROJECT_NAME, Sparql.ENDPOINT1_URL, "", model);
+        assertEquals("Missing replica",model.asMap().get("message"));
+
+        model = new ExtendedModelMap();
+        controller.removeReplica(PROJECT_NAME, "", mirror, model);
+        assertEquals("Missing endpoint",model.asMap().get("message"));
+
+        controller.removeReplica(PROJECT_NAME, Sparql.ENDPOINT1_URL, mirror, model);
+        assertEquals(0,getEndpoint(Sparql.ENDPOINT1_URL).getReplicas().size());
+    }
+
+    private Endpoint getEndpoint(String url)
+    {
+        Model model = new ExtendedModelMap();
+        controller.listEndpoints(PROJECT_NAME, (Model)model);
+        List<Endpoint> endpointList = (List<Endpoint>) model.asMap().get("endpoints");
+
+        return endpointList.get(endpointList.indexOf(new Endpoint(url)));
+    }
+
     private int getNumOfEndpoints()
     {
         Model model = new ExtendedModelMap();
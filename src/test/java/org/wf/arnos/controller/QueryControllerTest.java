@@ -31,9 +31,17 @@
  */
 package org.wf.arnos.controller;
 
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.sparql.resultset.JSONInput;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
 import java.io.File;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
@@ -46,6 +54,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.wf.arnos.cachehandler.CacheHandlerInterface;
 import org.wf.arnos.cachehandler.SimpleCacheHandler;
@@ -54,7 +63,12 @@ import org.wf.arnos.controller.model.Endpoint;
 import org.wf.arnos.controller.model.Project;
 import org.wf.arnos.controller.model.ProjectsManager;
 import org.wf.arnos.exception.ResourceNotFoundException;
+import org.wf.arnos.queryhandler.CircuitBreakers;
+import org.wf.arnos.queryhandler.EndpointBulkheads;
+import org.wf.arnos.queryhandler.QueryFuture;
 import org.wf.arnos.queryhandler.ThreadedQueryHandler;
+import org.wf.arnos.queryhandler.format.ResultFormat;
+import org.wf.arnos.queryhandler.format.TSVInput;
 import org.wf.arnos.utils.LocalServer;
 import org.wf.arnos.utils.Sparql;
 
@@ -130,7 +144,7 @@ public class QueryControllerTest extends EasyMockSupport
     public void testExecuteQueryAcrossAllEndpoints()
     {
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         int countReturnedInstances = StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">");
         System.out.println("testExecuteQueryAcrossAllEndpoints\n"+buffer.toString());
@@ -145,7 +159,7 @@ public class QueryControllerTest extends EasyMockSupport
     {
         controller.cacheHandler = null;
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         int countReturnedInstances = StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">");
         assertEquals(Sparql.MAX_LIMIT,countReturnedInstances);
@@ -165,7 +179,7 @@ public class QueryControllerTest extends EasyMockSupport
 
         replayAll();
 
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
 
         verifyAll();
 
@@ -177,7 +191,7 @@ public class QueryControllerTest extends EasyMockSupport
 
         replayAll();
 
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
 
         verifyAll();
 
@@ -186,6 +200,261 @@ public class QueryControllerTest extends EasyMockSupport
     }
 
 
+    @Test
+    public void testPartialResults()
+    {
+        // endpoint 4 never responds, and without a LIMIT the other endpoints' results aren't enough
+        String query = Sparql.SELECT_QUERY_BOOKS_NO_LIMIT;
+        controller.manager.addEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+
+        CacheHandlerInterface mockCache = createMock(CacheHandlerInterface.class);
+        controller.cacheHandler = mockCache;
+
+        // partial results aren't cached
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
+
+        replayAll();
+
+        StringWriter writer = new StringWriter();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        long start = System.currentTimeMillis();
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, 200L, null, writer, response);
+        long end = System.currentTimeMillis();
+
+        verifyAll();
+
+        assertTrue("Deadline honoured ("+(end-start)+")", end-start < 500);
+        assertEquals(7 + 4, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+        assertEquals(Sparql.ENDPOINT4_URL, response.getHeader(QueryController.MISSING_ENDPOINTS_HEADER));
+
+        // the project's deadline is used when the request doesn't set one
+        resetAll();
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
+        replayAll();
+
+        controller.manager.setTimeout(PROJECT_NAME, 200);
+        writer = new StringWriter();
+        response = new MockHttpServletResponse();
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, null, null, writer, response);
+
+        verifyAll();
+
+        assertEquals(7 + 4, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+        assertEquals(Sparql.ENDPOINT4_URL, response.getHeader(QueryController.MISSING_ENDPOINTS_HEADER));
+
+        controller.manager.removeEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+    }
+
+    @Test
+    public void testCoalescing() throws Exception
+    {
+        // endpoint 4 never responds, so the query runs until its deadline
+        final String query = Sparql.SELECT_QUERY_BOOKS_NO_LIMIT;
+        controller.manager.addEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+
+        final AtomicInteger fanOuts = new AtomicInteger();
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler()
+        {
+            @Override
+            public QueryFuture handleSelectAsync(final String projectName, final Query query, final List<Endpoint> endpoints,
+                    final ResultFormat format)
+            {
+                fanOuts.incrementAndGet();
+                return super.handleSelectAsync(projectName, query, endpoints, format);
+            }
+        };
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(10);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+        controller.queryHandler = queryHandler;
+
+        final List<StringWriter> writers = new ArrayList<StringWriter>();
+        final List<MockHttpServletResponse> responses = new ArrayList<MockHttpServletResponse>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++)
+        {
+            final StringWriter writer = new StringWriter();
+            final MockHttpServletResponse response = new MockHttpServletResponse();
+            writers.add(writer);
+            responses.add(response);
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, 300L, null, writer, response);
+                }
+            });
+        }
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            threads.get(0).start();
+            Thread.sleep(50);
+            threads.get(1).start();
+            threads.get(2).start();
+            for (Thread t : threads) t.join();
+            long end = System.currentTimeMillis();
+
+            // the followers finish with the leader
+            assertTrue("Shared result ("+(end-start)+")", end-start < 500);
+            assertEquals(1, fanOuts.get());
+            for (int i = 0; i < 3; i++)
+            {
+                assertEquals(7 + 4, StringUtils.countMatches(writers.get(i).toString(), "<binding name=\"title\">"));
+                assertEquals(Sparql.ENDPOINT4_URL, responses.get(i).getHeader(QueryController.MISSING_ENDPOINTS_HEADER));
+            }
+
+            // a different deadline runs its own query
+            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, 100L, null, new StringWriter(), null);
+            assertEquals(2, fanOuts.get());
+        }
+        finally
+        {
+            controller.manager.removeEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+        }
+    }
+
+    @Test
+    public void testCoalescingWithoutCache() throws Exception
+    {
+        // endpoint 4 never responds, so the query runs until its deadline
+        final String query = Sparql.SELECT_QUERY_BOOKS_NO_LIMIT;
+        controller.manager.addEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+        controller.cacheHandler = null;
+
+        final AtomicInteger fanOuts = new AtomicInteger();
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler()
+        {
+            @Override
+            public QueryFuture handleSelectAsync(final String projectName, final Query query, final List<Endpoint> endpoints,
+                    final ResultFormat format)
+            {
+                fanOuts.incrementAndGet();
+                return super.handleSelectAsync(projectName, query, endpoints, format);
+            }
+        };
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(10);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+        controller.queryHandler = queryHandler;
+
+        final List<StringWriter> writers = new ArrayList<StringWriter>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 3; i++)
+        {
+            final StringWriter writer = new StringWriter();
+            writers.add(writer);
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, 300L, null, writer, null);
+                }
+            });
+        }
+
+        try
+        {
+            threads.get(0).start();
+            Thread.sleep(50);
+            threads.get(1).start();
+            threads.get(2).start();
+            for (Thread t : threads) t.join();
+
+            // with nothing to cache, a copy is still kept for the followers
+            assertEquals(1, fanOuts.get());
+            for (StringWriter writer : writers)
+            {
+                assertEquals(7 + 4, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+            }
+        }
+        finally
+        {
+            controller.manager.removeEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+        }
+    }
+
+    @Test
+    public void testBusyEndpoint()
+    {
+        // endpoint 1's only permit is taken, so it's refused rather than queried
+        EndpointBulkheads bulkheads = EndpointBulkheads.getInstance();
+        bulkheads.setEndpointLimit(Sparql.ENDPOINT1_URL, 1);
+        EndpointBulkheads.Permit held = bulkheads.acquire(Sparql.ENDPOINT1_URL);
+        assertNotNull(held);
+
+        CacheHandlerInterface mockCache = createMock(CacheHandlerInterface.class);
+        controller.cacheHandler = mockCache;
+
+        // results missing a busy endpoint aren't cached
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
+
+        replayAll();
+
+        try
+        {
+            StringWriter writer = new StringWriter();
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, null, null, writer, response);
+
+            verifyAll();
+
+            assertEquals(4, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+            assertEquals(Sparql.ENDPOINT1_URL, response.getHeader(QueryController.MISSING_ENDPOINTS_HEADER));
+        }
+        finally
+        {
+            held.release();
+            bulkheads.clearEndpointLimit(Sparql.ENDPOINT1_URL);
+        }
+    }
+
+    @Test
+    public void testOpenCircuits()
+    {
+        CircuitBreakers breakers = CircuitBreakers.getInstance();
+        breakers.setEnabled(true);
+        breakers.tripCircuit(Sparql.ENDPOINT4_URL);
+
+        // endpoint 4 never responds, but its circuit is open so it isn't waited for
+        controller.manager.addEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+
+        CacheHandlerInterface mockCache = createMock(CacheHandlerInterface.class);
+        controller.cacheHandler = mockCache;
+
+        // results without skipped endpoints aren't cached
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
+
+        replayAll();
+
+        try
+        {
+            StringWriter writer = new StringWriter();
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            long start = System.currentTimeMillis();
+            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, response);
+            long end = System.currentTimeMillis();
+
+            verifyAll();
+
+            assertTrue("Endpoint skipped ("+(end-start)+")", end-start < 500);
+            assertEquals(Sparql.MAX_LIMIT, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+            assertEquals(Sparql.ENDPOINT4_URL, response.getHeader(QueryController.OPEN_CIRCUITS_HEADER));
+            assertNull(response.getHeader(QueryController.MISSING_ENDPOINTS_HEADER));
+        }
+        finally
+        {
+            controller.manager.removeEndpoint(PROJECT_NAME, Sparql.ENDPOINT4_URL);
+            breakers.reset();
+            breakers.setEnabled(false);
+        }
+    }
+
     @Test
     public void testExecuteQueryWithSpecificEndpoints()
     {
@@ -196,7 +465,7 @@ public class QueryControllerTest extends EasyMockSupport
         String noEndPoints = "";
         int expected_noEndPoints = 0;
         
-        controller.executeGetQuery(PROJECT_NAME, noEndPoints, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, noEndPoints, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_noEndPoints,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
         writer = new StringWriter();
@@ -204,7 +473,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test with the first endpoint
         String oneEndpoint = ep1.getIdentifier();
         int expected_oneEndpoint = 7;
-        controller.executeGetQuery(PROJECT_NAME, oneEndpoint, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, oneEndpoint, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_oneEndpoint,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
         writer = new StringWriter();
@@ -212,7 +481,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test with endpoints 1 & 2
         String twoEndpoints = ep1.getIdentifier() + "+" + ep2.getIdentifier();
         int expected_twoEndpoints = 7;
-        controller.executeGetQuery(PROJECT_NAME, twoEndpoints, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, twoEndpoints, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_twoEndpoints,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
         writer = new StringWriter();
@@ -220,7 +489,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test with endpoints 1 & 3
         String anotherTwoEndpoints = ep1.getIdentifier() + "+" + ep3.getIdentifier();
         int expected_anotherTwoEndpoints = Sparql.MAX_LIMIT;
-        controller.executeGetQuery(PROJECT_NAME, anotherTwoEndpoints, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, anotherTwoEndpoints, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_anotherTwoEndpoints,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
         writer = new StringWriter();
@@ -228,7 +497,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test with endpoints 2 & 3
         String thirdEndpoint = ep2.getIdentifier() + "+" + ep3.getIdentifier();
         int expected_thirdEndpoint = 4;
-        controller.executeGetQuery(PROJECT_NAME, thirdEndpoint, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, thirdEndpoint, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_thirdEndpoint,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
         writer = new StringWriter();
@@ -236,7 +505,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test with all endpoints 1, 2 & 3
         String allEndpoints = ep1.getIdentifier() + "+" + ep2.getIdentifier() + "+" + ep3.getIdentifier();
         int expected_allEndpoints = Sparql.MAX_LIMIT;
-        controller.executeGetQuery(PROJECT_NAME, allEndpoints, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, allEndpoints, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_allEndpoints,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
         writer = new StringWriter();
@@ -244,7 +513,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test with duplicate endpoints 3, 2 & 3
         String duplicateEndpoints = ep3.getIdentifier() + "+" + ep2.getIdentifier() + "+" + ep3.getIdentifier();
         int expected_duplicateEndpoints = 8;
-        controller.executeGetQuery(PROJECT_NAME, duplicateEndpoints, QueryString, writer);
+        controller.executeGetQuery(PROJECT_NAME, duplicateEndpoints, QueryString, null, null, writer, null);
         buffer = writer.getBuffer();
         assertEquals(expected_duplicateEndpoints,StringUtils.countMatches(buffer.toString(),"<binding name=\"title\">"));
 
@@ -254,6 +523,62 @@ public class QueryControllerTest extends EasyMockSupport
         assertTrue(buffer.toString().toLowerCase().contains("error"));
     }
 
+    @Test
+    public void testPassThrough()
+    {
+        String endpointResult = new Sparql().getResult(Sparql.ENDPOINT1_URL, QueryString);
+
+        // a single endpoint's response is written as it was sent
+        StringWriter writer = new StringWriter();
+        controller.executeGetQuery(PROJECT_NAME, ep1.getIdentifier(), QueryString, null, null, writer, null);
+        assertEquals(endpointResult, writer.toString());
+
+        // results from more than one endpoint are merged
+        writer = new StringWriter();
+        controller.executeGetQuery(PROJECT_NAME, ep1.getIdentifier() + "+" + ep2.getIdentifier(), QueryString, null, null, writer, null);
+        assertFalse(endpointResult.equals(writer.toString()));
+        assertEquals(7, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+
+        // as are the results of a query with a deadline, which may be partial
+        writer = new StringWriter();
+        controller.executeGetQuery(PROJECT_NAME, ep1.getIdentifier(), QueryString, 1000L, null, writer, null);
+        assertFalse(endpointResult.equals(writer.toString()));
+        assertEquals(7, StringUtils.countMatches(writer.toString(), "<binding name=\"title\">"));
+    }
+
+    @Test
+    public void testContentNegotiation() throws Exception
+    {
+        // merged results are written in the format asked for
+        StringWriter writer = new StringWriter();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, "application/sparql-results+json", writer, response);
+        assertEquals(ResultFormat.JSON.getContentType(), response.getContentType());
+        ResultSet resultSet = JSONInput.fromJSON(new ByteArrayInputStream(writer.toString().getBytes("UTF-8")));
+        assertEquals(Sparql.MAX_LIMIT, ResultSetFormatter.consume(resultSet));
+
+        writer = new StringWriter();
+        response = new MockHttpServletResponse();
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, "text/tab-separated-values", writer, response);
+        assertEquals(ResultFormat.TSV.getContentType(), response.getContentType());
+        assertEquals(Sparql.MAX_LIMIT, ResultSetFormatter.consume(TSVInput.fromTSV(new StringReader(writer.toString()))));
+
+        // and cached apart from the xml results
+        writer = new StringWriter();
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
+        assertTrue("Is valid xml", Sparql.validateXML(writer.toString()));
+
+        // a single endpoint's response is rewritten when it isn't in the format asked for
+        writer = new StringWriter();
+        controller.executeGetQuery(PROJECT_NAME, ep1.getIdentifier(), QueryString, null, "text/tab-separated-values", writer, null);
+        assertTrue(writer.toString().startsWith("?"));
+        assertEquals(7, ResultSetFormatter.consume(TSVInput.fromTSV(new StringReader(writer.toString()))));
+
+        writer = new StringWriter();
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, Sparql.ASK_QUERY_ALICE, null, "application/json", writer, null);
+        assertTrue(writer.toString().contains("\"boolean\":true"));
+    }
+
     @Test
     public void testUTF8Handling()
     {
@@ -262,7 +587,7 @@ public class QueryControllerTest extends EasyMockSupport
 
         String expectedResponse = "我叫柯睿思";
 
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
     
         buffer = writer.getBuffer();
         System.out.println(expectedResponse);
@@ -276,7 +601,7 @@ public class QueryControllerTest extends EasyMockSupport
         StringWriter writer = new StringWriter();
         try
         {
-            controller.executeQueryAcrossAllEndpoints(null, QueryString, writer);
+            controller.executeQueryAcrossAllEndpoints(null, QueryString, null, null, writer, null);
             fail("ResourceNotFoundException not thrown");
         }
         catch (ResourceNotFoundException e)
@@ -286,7 +611,7 @@ public class QueryControllerTest extends EasyMockSupport
 
         try
         {
-            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null);
+            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, null, null);
         }
         catch (Exception e)
         {
@@ -295,7 +620,7 @@ public class QueryControllerTest extends EasyMockSupport
 
         try
         {
-            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME+"other", QueryString, writer);
+            controller.executeQueryAcrossAllEndpoints(PROJECT_NAME+"other", QueryString, null, null, writer, null);
             fail("ResourceNotFoundException not thrown");
         }
         catch (ResourceNotFoundException e)
@@ -304,12 +629,12 @@ public class QueryControllerTest extends EasyMockSupport
         }
 
         writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, null, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, null, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         assertEquals("",buffer.toString());
         
         writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, "", writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, "", null, null, writer, null);
         buffer = writer.getBuffer();
         assertTrue(buffer.toString().toLowerCase().contains("error"));
     }
@@ -319,7 +644,7 @@ public class QueryControllerTest extends EasyMockSupport
     {
         String query = Sparql.ASK_QUERY_ALICE;
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         assertTrue(buffer.toString().toLowerCase().contains("true"));
 
@@ -331,7 +656,7 @@ public class QueryControllerTest extends EasyMockSupport
     {
         String query = Sparql.DESCRIBE_QUERY_BOOK_2;
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         assertTrue(buffer.toString().toLowerCase().contains("j.k. rowling"));
 
@@ -343,19 +668,42 @@ public class QueryControllerTest extends EasyMockSupport
     {
         String query = Sparql.UPDATE_QUERY;
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         assertTrue(buffer.toString().contains("error"));
 
         assertTrue("Is valid xml", Sparql.validateXML(buffer.toString()));
     }
 
+    @Test
+    public void testUpdateNotSent()
+    {
+        CircuitBreakers breakers = CircuitBreakers.getInstance();
+        breakers.setEnabled(true);
+        breakers.tripCircuit(Sparql.ENDPOINT1_URL);
+        try
+        {
+            StringWriter writer = new StringWriter();
+            controller.executePostQuery(PROJECT_NAME, ep1.getIdentifier(), Sparql.UPDATE_QUERY, writer);
+            String result = writer.toString();
+            assertTrue(result.startsWith("<error>"));
+            assertTrue(result.contains("circuit open"));
+
+            assertTrue("Is valid xml", Sparql.validateXML(result));
+        }
+        finally
+        {
+            breakers.reset();
+            breakers.setEnabled(false);
+        }
+    }
+
     @Test
     public void testConstructQuery()
     {
         String query = Sparql.CONSTRUCT_QUERY_BOOKS;
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         assertTrue(buffer.toString().toLowerCase().contains("semantic web programming"));
 
@@ -367,7 +715,7 @@ public class QueryControllerTest extends EasyMockSupport
     {
         String query = Sparql.UPDATE_QUERY;
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, query, null, null, writer, null);
         StringBuffer buffer = writer.getBuffer();
         assertTrue(buffer.toString().toLowerCase().contains("error"));
 
@@ -381,7 +729,7 @@ public class QueryControllerTest extends EasyMockSupport
         // test sending an update as a get
         writer = new StringWriter();
         buffer = writer.getBuffer();
-        controller.executeGetQuery(PROJECT_NAME, ep1.getIdentifier(), query, writer);
+        controller.executeGetQuery(PROJECT_NAME, ep1.getIdentifier(), query, null, null, writer, null);
         buffer = writer.getBuffer();
         assertTrue(buffer.toString().toLowerCase().contains("error"));
 
@@ -65,6 +65,39 @@ public class EndpointTest {
         assertEquals(true,0 < ep.compareTo(new Endpoint("S")));
   }
 
+    @Test
+    public void testReplicas()
+    {
+        System.out.println("testReplicas");
+
+        Endpoint ep = new Endpoint("TestURI");
+        assertTrue(ep.getReplicas().isEmpty());
+
+        ep.addReplica("MirrorURI");
+        ep.addReplica("MirrorURI");
+        ep.addReplica("TestURI");
+        assertEquals(1, ep.getReplicas().size());
+        assertEquals("MirrorURI", ep.getReplicas().get(0));
+
+        ep.removeReplica("MirrorURI");
+        assertTrue(ep.getReplicas().isEmpty());
+    }
+
+    @Test
+    public void testReadTimeout()
+    {
+        System.out.println("testReadTimeout");
+
+        Endpoint ep = new Endpoint("TestURI");
+        assertEquals(0, ep.getReadTimeout());
+
+        ep.setReadTimeout(2000);
+        assertEquals(2000, ep.getReadTimeout());
+
+        ep.setReadTimeout(-1);
+        assertEquals(0, ep.getReadTimeout());
+    }
+
     @Test
     public void testIdentifierGeneration()
     {
@@ -86,4 +86,16 @@ public class ProjectTest {
         p2.removeEndpoint(endpoint1);
         assertEquals(0,p2.getEndpoints().size());
     }
+
+    @Test
+    public void testReplicas()
+    {
+        assertTrue(p1.addReplica(endpoint1, endpoint2 + "/mirror"));
+        assertFalse(p1.addReplica("blablabla", endpoint2 + "/mirror"));
+        assertEquals(1,p1.getEndpoints().get(0).getReplicas().size());
+        assertEquals(0,p1.getEndpoints().get(1).getReplicas().size());
+
+        p1.removeReplica(endpoint1, endpoint2 + "/mirror");
+        assertEquals(0,p1.getEndpoints().get(0).getReplicas().size());
+    }
 }
\ No newline at end of file
@@ -34,6 +34,7 @@ package org.wf.arnos.controller.model;
 import java.io.File;
 import java.util.Date;
 import java.util.List;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.xml.DOMConfigurator;
 import org.junit.AfterClass;
@@ -156,6 +157,35 @@ public class ProjectsManagerTest {
 
     }
 
+    @Test
+    public void testReplicaPersistance() throws Exception
+    {
+        File f = File.createTempFile("junit_replicas", "test");
+        f.deleteOnExit();
+
+        manager = new ProjectsManager();
+        manager.setFileName(f.getAbsolutePath());
+        manager.addProject(p2);
+
+        assertFalse(manager.addReplica(projectName1, endpoint1, endpoint2));
+        assertFalse(manager.addReplica(projectName2, endpoint2, endpoint1));
+        assertTrue(manager.addReplica(projectName2, endpoint1, endpoint2));
+
+        List <Endpoint> endpoints = manager.getEndpoints(projectName2);
+        assertEquals(1,endpoints.size());
+        assertEquals(1,endpoints.get(0).getReplicas().size());
+        assertEquals(endpoint2,endpoints.get(0).getReplicas().get(0));
+
+        // replicas are stored with their endpoint
+        assertTrue(FileUtils.readFileToString(f).contains("<replicas>"));
+        assertTrue(FileUtils.readFileToString(f).contains(endpoint2));
+
+        manager.removeReplica(projectName2, endpoint1, endpoint2);
+
+        assertEquals(0,manager.getEndpoints(projectName2).get(0).getReplicas().size());
+        assertFalse(FileUtils.readFileToString(f).contains(endpoint2));
+    }
+
     @Test
     public void testRemoveProject()
     {
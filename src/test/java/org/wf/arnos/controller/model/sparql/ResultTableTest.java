@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.controller.model.sparql;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.wf.arnos.queryhandler.merge.ResultComparator;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class ResultTableTest {
+
+    public static String SELECT_RESULT_UNBOUND = "<?xml version=\"1.0\"?>\n"
+        + "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n"
+        + "  <head>\n"
+        + "    <variable name=\"book\"/>\n"
+        + "    <variable name=\"title\"/>\n"
+        + "  </head>\n"
+        + "  <results>\n"
+        + "    <result>\n"
+        + "      <binding name=\"book\">\n"
+        + "        <uri>http://example.org/book/book1</uri>\n"
+        + "      </binding>\n"
+        + "    </result>\n"
+        + "    <result>\n"
+        + "      <binding name=\"title\">\n"
+        + "        <literal>Harry Potter</literal>\n"
+        + "      </binding>\n"
+        + "      <binding name=\"book\">\n"
+        + "        <uri>http://example.org/book/book1</uri>\n"
+        + "      </binding>\n"
+        + "    </result>\n"
+        + "  </results>\n"
+        + "</sparql>";
+
+    private List<Result> read(String xml)
+    {
+        List<Result> results = new ArrayList<Result>();
+        ResultSet resultSet = ResultSetFactory.fromXML(xml);
+        while (resultSet.hasNext())
+        {
+            results.add(new Result(resultSet.next()));
+        }
+        return results;
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        List<Result> results = read(ResultTest.SELECT_RESULT_7_BOOKS);
+        ResultTable table = new ResultTable();
+        table.addAll(results);
+
+        assertEquals(results.size(), table.size());
+        for (int i = 0; i < results.size(); i++)
+        {
+            assertEquals(results.get(i).toXML(), table.get(i).toXML());
+        }
+
+        // 7 books, 4 titles and 2 blank nodes
+        assertEquals(13, table.getTerms());
+        assertTrue(table.getEstimatedSize() > 0);
+    }
+
+    @Test
+    public void testUnbound()
+    {
+        List<Result> results = read(SELECT_RESULT_UNBOUND);
+        ResultTable table = new ResultTable();
+        table.addAll(results);
+
+        assertEquals(2, table.size());
+        assertEquals(1, table.get(0).getValues().size());
+        assertEquals(2, table.get(1).getValues().size());
+        assertEquals(results.get(0).toXML(), table.get(0).toXML());
+        assertTrue(table.get(1).toXML().contains("<literal>Harry Potter</literal>"));
+
+        // the book is only held once
+        assertEquals(2, table.getTerms());
+    }
+
+    @Test
+    public void testSort()
+    {
+        Query query = QueryFactory.create("SELECT ?book ?title WHERE { ?book ?p ?title } ORDER BY DESC(?book)");
+        ResultComparator comparator = new ResultComparator(query.getOrderBy());
+
+        List<Result> expected = read(ResultTest.SELECT_RESULT_7_BOOKS);
+        ResultTable table = new ResultTable();
+        table.addAll(expected);
+
+        Collections.sort(expected, comparator);
+        Collections.sort(table, comparator);
+
+        assertEquals(expected.size(), table.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i).toXML(), table.get(i).toXML());
+        }
+        assertTrue(table.get(0).toXML().contains("book7"));
+    }
+
+    @Test
+    public void testClear()
+    {
+        ResultTable table = new ResultTable();
+        table.addAll(read(ResultTest.SELECT_RESULT_7_BOOKS));
+        table.clear();
+
+        assertEquals(0, table.size());
+        assertEquals(0, table.getTerms());
+        assertEquals(0, table.getEstimatedSize());
+
+        table.addAll(read(SELECT_RESULT_UNBOUND));
+        assertEquals(2, table.size());
+    }
+}
@@ -115,7 +115,7 @@ public class ARQExtensionHandlerTest extends EasyMockSupport
     public void testARQExtension()
     {
         StringWriter writer = new StringWriter();
-        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, writer);
+        controller.executeQueryAcrossAllEndpoints(PROJECT_NAME, QueryString, null, null, writer, null);
         String result = writer.getBuffer().toString();
 
         System.out.println("result:"+result);
@@ -243,4 +243,12 @@ public class ARQExtensionHandlerTest extends EasyMockSupport
         
         assertTrue("Got all results", expected.isEmpty());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExtendedSelectGroupSpilled()
+    {
+        // every group is spilled to disk and grouped again from there
+        queryHandler.setSpillThreshold(1);
+        testExtendedSelectGroup();
+    }
+}
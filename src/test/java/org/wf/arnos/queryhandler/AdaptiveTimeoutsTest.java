@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class AdaptiveTimeoutsTest {
+
+    private static final String URL = "http://fast.example.org/sparql";
+
+    private static final int DEFAULT_TIMEOUT = 120000;
+
+    AdaptiveTimeouts timeouts = AdaptiveTimeouts.getInstance();
+
+    @Before
+    public void setUp()
+    {
+        timeouts.reset();
+        timeouts.setEnabled(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        timeouts.reset();
+        timeouts.setEnabled(false);
+        timeouts.setPercentile(AdaptiveTimeouts.DEFAULT_PERCENTILE);
+        timeouts.setMultiplier(AdaptiveTimeouts.DEFAULT_MULTIPLIER);
+        timeouts.setFloor(AdaptiveTimeouts.DEFAULT_FLOOR);
+        timeouts.setCeiling(0);
+    }
+
+    @Test
+    public void testLearnedTimeout()
+    {
+        System.out.println("testLearnedTimeout");
+
+        // too few samples to go on
+        for (int i = 1; i < AdaptiveTimeouts.MIN_SAMPLES; i++) timeouts.record(URL, 500);
+        assertEquals(DEFAULT_TIMEOUT, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        timeouts.record(URL, 1000);
+        assertEquals(AdaptiveTimeouts.MIN_SAMPLES, timeouts.getSamples(URL));
+        assertEquals(3000, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        timeouts.setPercentile(50);
+        assertEquals(1500, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        timeouts.setEnabled(false);
+        assertEquals(DEFAULT_TIMEOUT, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void testFloorAndCeiling()
+    {
+        System.out.println("testFloorAndCeiling");
+
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) timeouts.record(URL, 5);
+        assertEquals(AdaptiveTimeouts.DEFAULT_FLOOR, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        timeouts.setFloor(10);
+        assertEquals(15, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) timeouts.record(URL, 100000);
+        assertEquals(DEFAULT_TIMEOUT, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        timeouts.setCeiling(60000);
+        assertEquals(60000, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void testTimedOutRequests()
+    {
+        System.out.println("testTimedOutRequests");
+
+        timeouts.setFloor(10);
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) timeouts.record(URL, 100);
+        assertEquals(300, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        // failing before the timeout says nothing about the endpoint's speed
+        timeouts.recordFailure(URL, 50, 300);
+        assertEquals(AdaptiveTimeouts.MIN_SAMPLES, timeouts.getSamples(URL));
+
+        // a timed out request is a sample at the timeout, so the timeout grows
+        timeouts.recordFailure(URL, 320, 300);
+        assertEquals(AdaptiveTimeouts.MIN_SAMPLES + 1, timeouts.getSamples(URL));
+        assertEquals(900, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        // without a timeout nothing timed out
+        timeouts.recordFailure(URL, 100000, 0);
+        assertEquals(AdaptiveTimeouts.MIN_SAMPLES + 1, timeouts.getSamples(URL));
+    }
+
+    @Test
+    public void testEndpointTimeout()
+    {
+        System.out.println("testEndpointTimeout");
+
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) timeouts.record(URL, 1000);
+
+        timeouts.setEndpointTimeout(URL, 250);
+        assertEquals(250, timeouts.getEndpointTimeout(URL));
+        assertEquals(250, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+
+        timeouts.setEndpointTimeout(URL, 0);
+        assertEquals(0, timeouts.getEndpointTimeout(URL));
+        assertEquals(3000, timeouts.getReadTimeout(URL, DEFAULT_TIMEOUT));
+    }
+
+    @Test
+    public void testListTimeouts()
+    {
+        System.out.println("testListTimeouts");
+
+        for (int i = 0; i < AdaptiveTimeouts.MIN_SAMPLES; i++) timeouts.record(URL, 1000);
+
+        List<String> list = timeouts.listTimeouts();
+        assertEquals(1, list.size());
+        assertEquals(URL + " [samples=20, p50=1000, p99=1000, timeout=3000]", list.get(0));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidMultiplier()
+    {
+        System.out.println("testInvalidMultiplier");
+
+        timeouts.setMultiplier(0);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import com.hp.hpl.jena.query.ResultSet;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.Sparql;
+import org.wf.arnos.utils.handler.EndpointHandler;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class AsyncJenaQueryWrapperTest {
+
+    @Before
+    public void setUp() throws Exception
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        LocalServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        LocalServer.stop();
+    }
+
+    @Test
+    public void testExecQueryAsync() throws Exception
+    {
+        System.out.println("testExecQueryAsync");
+
+        RecordingCallback callback = new RecordingCallback();
+        AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL, callback);
+
+        assertTrue("Response received", callback.done.await(5, TimeUnit.SECONDS));
+        assertNull(callback.exception);
+        assertNotNull(callback.response);
+
+        // the response was compressed, and is read decompressed
+        assertEquals("gzip", ((EndpointHandler) LocalServer.handler).getLastEncoding());
+
+        ResultSet results = AsyncJenaQueryWrapper.getInstance().streamToResultSet(callback.response);
+
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        assertEquals(7, numResults);
+    }
+
+    @Test
+    public void testManyInFlight() throws Exception
+    {
+        System.out.println("testManyInFlight");
+
+        int requests = 50;
+        RecordingCallback [] callbacks = new RecordingCallback[requests];
+
+        // none of these calls should block on the endpoint
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < requests; i++)
+        {
+            callbacks[i] = new RecordingCallback();
+            AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL, callbacks[i]);
+        }
+        long sent = System.currentTimeMillis() - start;
+
+        for (int i = 0; i < requests; i++)
+        {
+            assertTrue("Response received", callbacks[i].done.await(10, TimeUnit.SECONDS));
+            assertNotNull(callbacks[i].response);
+            callbacks[i].response.close();
+        }
+        System.out.println("Sent " + requests + " requests in " + sent + "ms");
+    }
+
+    @Test
+    public void testStreamedResponse() throws Exception
+    {
+        System.out.println("testStreamedResponse");
+
+        // the response is handed over before the endpoint has sent all of it
+        long start = System.currentTimeMillis();
+        RecordingCallback callback = new RecordingCallback();
+        AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT4_URL + "slowbody", callback);
+
+        assertTrue("Response received", callback.done.await(5, TimeUnit.SECONDS));
+        assertTrue("Received before the body", System.currentTimeMillis() - start < 300);
+        assertNull(callback.exception);
+
+        ResultSet results = AsyncJenaQueryWrapper.getInstance().streamToResultSet(callback.response);
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        assertEquals(7, numResults);
+        assertTrue("Read the whole body", System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void testCancelRetry() throws Exception
+    {
+        System.out.println("testCancelRetry");
+
+        // the GET is refused as too long and re-sent as a POST, which hangs
+        RecordingCallback callback = new RecordingCallback();
+        Future<?> pending = AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT4_URL + "toolonghang", callback);
+        Thread.sleep(200);
+        assertEquals(1, callback.done.getCount());
+
+        // cancelling the caller's handle reaches the POST
+        assertTrue(pending.cancel(true));
+        assertTrue("Cancelled", callback.done.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(callback.exception instanceof CancellationException);
+    }
+
+    @Test
+    public void testExceptionHandling() throws Exception
+    {
+        System.out.println("testExceptionHandling");
+
+        RecordingCallback callback = new RecordingCallback();
+        AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, "http://localhost:7999/nothing", callback);
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(callback.exception);
+
+        callback = new RecordingCallback();
+        AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL+"error", callback);
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(callback.exception);
+
+        callback = new RecordingCallback();
+        AsyncJenaQueryWrapper.getInstance().execQueryAsync(Sparql.SELECT_QUERY_BOOKS, "xyz://"+Sparql.ENDPOINT4_URL, callback);
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(callback.exception);
+    }
+
+    /**
+     * Records the outcome of a request.
+     */
+    private static class RecordingCallback implements QueryResponseCallback
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        InputStream response;
+        Exception exception;
+
+        public void completed(InputStream in)
+        {
+            response = in;
+            done.countDown();
+        }
+
+        public void failed(Exception ex)
+        {
+            exception = ex;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.wf.arnos.controller.model.Endpoint;
+import org.wf.arnos.queryhandler.CircuitBreakers.State;
+import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class CircuitBreakersTest {
+
+    private static final String URL = "http://breaker.example.org/sparql";
+
+    CircuitBreakers breakers = CircuitBreakers.getInstance();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        LocalServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        LocalServer.stop();
+    }
+
+    @Before
+    public void setUp()
+    {
+        breakers.reset();
+        breakers.setEnabled(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        breakers.reset();
+        breakers.setEnabled(false);
+        breakers.setFailureThreshold(CircuitBreakers.DEFAULT_FAILURE_THRESHOLD);
+        breakers.setErrorRate(CircuitBreakers.DEFAULT_ERROR_RATE);
+        breakers.setMinimumRequests(CircuitBreakers.DEFAULT_MINIMUM_REQUESTS);
+        breakers.setOpenTimeout(CircuitBreakers.DEFAULT_OPEN_TIMEOUT);
+    }
+
+    @Test
+    public void testConsecutiveFailures()
+    {
+        System.out.println("testConsecutiveFailures");
+
+        breakers.setFailureThreshold(3);
+
+        breakers.recordFailure(URL);
+        breakers.recordFailure(URL);
+        breakers.recordSuccess(URL);
+        breakers.recordFailure(URL);
+        breakers.recordFailure(URL);
+        assertEquals(State.CLOSED, breakers.getState(URL));
+        assertTrue(breakers.allowRequest(URL));
+
+        breakers.recordFailure(URL);
+        assertEquals(State.OPEN, breakers.getState(URL));
+        assertFalse(breakers.isAvailable(URL));
+        assertFalse(breakers.allowRequest(URL));
+        assertEquals(1, breakers.getOpenCircuits());
+    }
+
+    @Test
+    public void testErrorRate()
+    {
+        System.out.println("testErrorRate");
+
+        breakers.setMinimumRequests(10);
+        breakers.setErrorRate(0.5);
+
+        // alternating failures never reach the consecutive threshold
+        for (int i = 0; i < 4; i++)
+        {
+            breakers.recordSuccess(URL);
+            breakers.recordFailure(URL);
+        }
+        assertEquals(State.CLOSED, breakers.getState(URL));
+
+        breakers.recordSuccess(URL);
+        breakers.recordFailure(URL);
+        assertEquals(State.OPEN, breakers.getState(URL));
+    }
+
+    @Test
+    public void testProbe() throws Exception
+    {
+        System.out.println("testProbe");
+
+        breakers.setOpenTimeout(50);
+        breakers.tripCircuit(URL);
+        assertFalse(breakers.allowRequest(URL));
+
+        Thread.sleep(60);
+
+        // a single probe is let through once the breaker has been open long enough
+        assertTrue(breakers.isAvailable(URL));
+        assertTrue(breakers.allowRequest(URL));
+        assertEquals(State.HALF_OPEN, breakers.getState(URL));
+        assertFalse(breakers.allowRequest(URL));
+
+        // a failed probe opens it for another period
+        breakers.recordFailure(URL);
+        assertEquals(State.OPEN, breakers.getState(URL));
+        assertFalse(breakers.allowRequest(URL));
+
+        Thread.sleep(60);
+
+        // a cancelled probe lets another through
+        assertTrue(breakers.allowRequest(URL));
+        breakers.recordCancelled(URL);
+        assertTrue(breakers.allowRequest(URL));
+
+        // a successful probe closes it
+        breakers.recordSuccess(URL);
+        assertEquals(State.CLOSED, breakers.getState(URL));
+        assertTrue(breakers.allowRequest(URL));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        System.out.println("testDisabled");
+
+        breakers.tripCircuit(URL);
+        breakers.setEnabled(false);
+        assertTrue(breakers.allowRequest(URL));
+        assertTrue(breakers.isAvailable(URL));
+    }
+
+    @Test
+    public void testFailingEndpointSkipped()
+    {
+        System.out.println("testFailingEndpointSkipped");
+
+        breakers.setFailureThreshold(2);
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT4_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+
+        // endpoint 4 times out twice
+        queryHandler.handleSelect("breakers", query, endpoints);
+        queryHandler.handleSelect("breakers", query, endpoints);
+        assertEquals(State.OPEN, breakers.getState(Sparql.ENDPOINT4_URL));
+        assertEquals(State.CLOSED, breakers.getState(Sparql.ENDPOINT1_URL));
+
+        // and is then skipped rather than waited for
+        long start = System.currentTimeMillis();
+        QueryFuture select = queryHandler.handleSelectAsync("breakers", query, endpoints);
+        queryHandler.waitFor(select);
+        long end = System.currentTimeMillis();
+
+        assertTrue("Endpoint skipped ("+(end-start)+")", end-start < 400);
+        assertEquals(1, select.getOpenCircuits().size());
+        assertEquals(Sparql.ENDPOINT4_URL, select.getOpenCircuits().get(0));
+        assertFalse(select.isPartial());
+    }
+
+    @Test
+    public void testOpenReplicaAvoided()
+    {
+        System.out.println("testOpenReplicaAvoided");
+
+        breakers.tripCircuit(Sparql.ENDPOINT4_URL);
+
+        Endpoint group = new Endpoint(Sparql.ENDPOINT4_URL);
+        group.addReplica(Sparql.ENDPOINT1_URL);
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(group);
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // whatever the balancer thinks, the replica whose circuit is open isn't used
+        for (int i = 0; i < 5; i++)
+        {
+            QueryFuture select = queryHandler.handleSelectAsync("breakers", QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT), endpoints);
+            String result = queryHandler.waitFor(select);
+            assertTrue(result.contains("<binding name=\"title\">"));
+            assertTrue(select.getOpenCircuits().isEmpty());
+        }
+    }
+}
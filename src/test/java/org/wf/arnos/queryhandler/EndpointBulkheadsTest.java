@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.wf.arnos.controller.model.Endpoint;
+import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class EndpointBulkheadsTest {
+
+    private static final String URL = "http://bulkhead.example.org/sparql";
+
+    EndpointBulkheads bulkheads = EndpointBulkheads.getInstance();
+
+    int defaultLimit;
+
+    long waitTimeout;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        LocalServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        LocalServer.stop();
+    }
+
+    @Before
+    public void setUp()
+    {
+        defaultLimit = bulkheads.getDefaultLimit();
+        waitTimeout = bulkheads.getWaitTimeout();
+    }
+
+    @After
+    public void tearDown()
+    {
+        bulkheads.reset();
+        bulkheads.setDefaultLimit(defaultLimit);
+        bulkheads.setWaitTimeout(waitTimeout);
+    }
+
+    @Test
+    public void testFailFast()
+    {
+        System.out.println("testFailFast");
+
+        bulkheads.setWaitTimeout(0);
+        bulkheads.setEndpointLimit(URL, 2);
+
+        EndpointBulkheads.Permit first = bulkheads.acquire(URL);
+        EndpointBulkheads.Permit second = bulkheads.acquire(URL);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(2, bulkheads.getActiveRequests(URL));
+
+        long rejected = bulkheads.getRejectedRequests();
+        assertNull(bulkheads.acquire(URL));
+        assertEquals(rejected + 1, bulkheads.getRejectedRequests());
+
+        // other endpoints are unaffected
+        EndpointBulkheads.Permit other = bulkheads.acquire(Sparql.ENDPOINT2_URL);
+        assertNotNull(other);
+        other.release();
+
+        first.release();
+        EndpointBulkheads.Permit third = bulkheads.acquire(URL);
+        assertNotNull(third);
+
+        // releasing a permit twice only returns it once
+        second.release();
+        second.release();
+        assertEquals(1, bulkheads.getActiveRequests(URL));
+        third.release();
+        assertEquals(0, bulkheads.getActiveRequests(URL));
+    }
+
+    @Test
+    public void testBoundedWait() throws InterruptedException
+    {
+        System.out.println("testBoundedWait");
+
+        bulkheads.setWaitTimeout(200);
+        bulkheads.setEndpointLimit(URL, 1);
+        final EndpointBulkheads.Permit held = bulkheads.acquire(URL);
+        assertNotNull(held);
+
+        long start = System.currentTimeMillis();
+        assertNull(bulkheads.acquire(URL));
+        assertTrue("Request should wait for a permit", System.currentTimeMillis() - start >= 150);
+
+        // a permit released while waiting is handed over
+        Thread releaser = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+                held.release();
+            }
+        };
+        releaser.start();
+        EndpointBulkheads.Permit handedOver = bulkheads.acquire(URL);
+        assertNotNull(handedOver);
+        releaser.join();
+        handedOver.release();
+    }
+
+    @Test
+    public void testLimits()
+    {
+        System.out.println("testLimits");
+
+        bulkheads.setWaitTimeout(0);
+        bulkheads.setDefaultLimit(3);
+        assertEquals(3, bulkheads.getEndpointLimit(URL));
+
+        bulkheads.setEndpointLimit(URL, 1);
+        assertEquals(1, bulkheads.getEndpointLimit(URL));
+        EndpointBulkheads.Permit first = bulkheads.acquire(URL);
+        assertNotNull(first);
+        assertNull(bulkheads.acquire(URL));
+
+        // changing the default doesn't override an endpoint's own limit
+        bulkheads.setDefaultLimit(4);
+        assertNull(bulkheads.acquire(URL));
+
+        bulkheads.clearEndpointLimit(URL);
+        assertEquals(4, bulkheads.getEndpointLimit(URL));
+        EndpointBulkheads.Permit second = bulkheads.acquire(URL);
+        assertNotNull(second);
+
+        // lowering the limit takes effect as permits are returned
+        bulkheads.setEndpointLimit(URL, 1);
+        first.release();
+        assertNull(bulkheads.acquire(URL));
+        second.release();
+        EndpointBulkheads.Permit third = bulkheads.acquire(URL);
+        assertNotNull(third);
+        third.release();
+
+        boolean listed = false;
+        for (String bulkhead : bulkheads.listBulkheads())
+        {
+            if (bulkhead.startsWith(URL + " [")) listed = true;
+        }
+        assertTrue("Bulkhead listed", listed);
+    }
+
+    @Test
+    public void testReset()
+    {
+        System.out.println("testReset");
+
+        bulkheads.setWaitTimeout(0);
+        bulkheads.setDefaultLimit(1);
+        EndpointBulkheads.Permit inFlight = bulkheads.acquire(URL);
+        assertNotNull(inFlight);
+
+        // a request in flight during a reset returns its permit to the discarded bulkhead
+        bulkheads.reset();
+        EndpointBulkheads.Permit fresh = bulkheads.acquire(URL);
+        assertNotNull(fresh);
+        inFlight.release();
+        assertEquals(1, bulkheads.getActiveRequests(URL));
+        assertNull(bulkheads.acquire(URL));
+
+        fresh.release();
+        assertEquals(0, bulkheads.getActiveRequests(URL));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidLimit()
+    {
+        System.out.println("testInvalidLimit");
+
+        bulkheads.setEndpointLimit(URL, 0);
+    }
+
+    @Test
+    public void testBusyEndpointSkipped()
+    {
+        System.out.println("testBusyEndpointSkipped");
+
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT3_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // fill endpoint 1's bulkhead
+        bulkheads.setWaitTimeout(0);
+        bulkheads.setEndpointLimit(Sparql.ENDPOINT1_URL, 1);
+        EndpointBulkheads.Permit held = bulkheads.acquire(Sparql.ENDPOINT1_URL);
+        assertNotNull(held);
+
+        String result = queryHandler.handleSelect("bulkheadProject", query, endpoints);
+        assertEquals("Only endpoint 3's results", 4, count(result));
+
+        held.release();
+        result = queryHandler.handleSelect("bulkheadProject", query, endpoints);
+        assertEquals("Results from both endpoints", 11, count(result));
+        assertEquals(0, bulkheads.getActiveRequests(Sparql.ENDPOINT1_URL));
+
+        executor.shutdown();
+    }
+
+    private static int count(final String result)
+    {
+        ResultSet results = JenaQueryWrapper.getInstance().stringToResultSet(result);
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        return numResults;
+    }
+}
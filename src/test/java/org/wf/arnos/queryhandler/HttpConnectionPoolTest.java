@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.Sparql;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class HttpConnectionPoolTest {
+
+    @Before
+    public void setUp() throws Exception
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        LocalServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        LocalServer.stop();
+    }
+
+    @Test
+    public void testConnectionReuse()
+    {
+        System.out.println("testConnectionReuse");
+
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
+        JenaQueryWrapper wrapper = JenaQueryWrapper.getInstance();
+
+        // warm up the pool against the freshly started server
+        assertNotNull(wrapper.execQuery(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL));
+
+        long requests = pool.getRequestCount();
+        long opened = pool.getConnectionsOpened();
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertNotNull(wrapper.execQuery(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL));
+        }
+
+        assertEquals(requests + 10, pool.getRequestCount());
+        assertTrue("Connections should be re-used", pool.getConnectionsOpened() - opened < 10);
+        assertEquals(0, pool.getLeasedConnections());
+        assertTrue(pool.getAvailableConnections() > 0);
+        assertFalse(pool.listHostStatistics().isEmpty());
+
+        pool.closeIdleConnections();
+        assertEquals(0, pool.getAvailableConnections());
+    }
+
+    @Test
+    public void testRetry()
+    {
+        System.out.println("testRetry");
+
+        HttpConnectionPool.StaleConnectionRetryHandler handler = HttpConnectionPool.getInstance().new StaleConnectionRetryHandler();
+
+        // a request that never reached the endpoint can always be sent again
+        HttpClientContext unsent = HttpClientContext.create();
+        assertTrue(handler.retryRequest(new NoHttpResponseException("stale"), 1, unsent));
+        assertTrue(handler.retryRequest(new SocketException("reset"), 1, unsent));
+        assertFalse(handler.retryRequest(new NoHttpResponseException("stale"), 2, unsent));
+        assertFalse(handler.retryRequest(new ConnectException("refused"), 1, unsent));
+        assertFalse(handler.retryRequest(new SocketTimeoutException("timeout"), 1, unsent));
+
+        // once sent, only idempotent requests are retried
+        HttpClientContext sent = HttpClientContext.create();
+        sent.setAttribute(HttpCoreContext.HTTP_REQ_SENT, Boolean.TRUE);
+        assertFalse(handler.retryRequest(new NoHttpResponseException("stale"), 1, sent));
+
+        sent.setAttribute(HttpConnectionPool.IDEMPOTENT, Boolean.TRUE);
+        assertTrue(handler.retryRequest(new NoHttpResponseException("stale"), 1, sent));
+    }
+
+    @Test
+    public void testSettings()
+    {
+        System.out.println("testSettings");
+
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
+
+        pool.setMaxConnectionsPerHost(5);
+        assertEquals(5, pool.getMaxConnectionsPerHost());
+        pool.setMaxConnectionsPerHost(HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+
+        pool.setMaxTotalConnections(50);
+        assertEquals(50, pool.getMaxTotalConnections());
+        pool.setMaxTotalConnections(HttpConnectionPool.DEFAULT_MAX_TOTAL_CONNECTIONS);
+
+        pool.setIdleTimeout(1000);
+        assertEquals(1000, pool.getIdleTimeout());
+        pool.setIdleTimeout(HttpConnectionPool.DEFAULT_IDLE_TIMEOUT);
+
+        pool.setKeepAlive(2000);
+        assertEquals(2000, pool.getKeepAlive());
+        pool.setKeepAlive(HttpConnectionPool.DEFAULT_KEEP_ALIVE);
+    }
+}
@@ -31,7 +31,9 @@
  */
 package org.wf.arnos.queryhandler;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import org.wf.arnos.utils.Sparql;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -45,6 +47,8 @@ import org.junit.Before;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.handler.EndpointHandler;
+import org.wf.arnos.queryhandler.format.ResultFormat;
 
 /**
  *
@@ -106,6 +110,56 @@ public class JenaQueryWrapperTest {
         assertEquals(result, actualResult);
     }
 
+    @Test
+    public void testCompression()
+    {
+        System.out.println("testCompression");
+
+        String query = Sparql.SELECT_QUERY_BOOKS;
+        String result = sparql.getResult(Sparql.ENDPOINT1_URL,query);
+        EndpointHandler handler = (EndpointHandler) LocalServer.handler;
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
+
+        assertTrue(pool.isCompression());
+        assertEquals(result, JenaQueryWrapper.getInstance().execQuery(query, Sparql.ENDPOINT1_URL));
+        assertEquals("gzip", handler.getLastEncoding());
+
+        try
+        {
+            pool.setCompression(false);
+            assertEquals(result, JenaQueryWrapper.getInstance().execQuery(query, Sparql.ENDPOINT1_URL));
+            assertNull(handler.getLastEncoding());
+        }
+        finally
+        {
+            pool.setCompression(true);
+        }
+    }
+
+    @Test
+    public void testGraphSyntax() throws IOException
+    {
+        System.out.println("testGraphSyntax");
+
+        EndpointHandler handler = (EndpointHandler) LocalServer.handler;
+
+        JenaQueryWrapper.getInstance().execQuery(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL);
+        assertEquals(ResultFormat.UPSTREAM_ACCEPT, handler.getLastAccept());
+
+        // graphs are asked for in an RDF syntax
+        String result = JenaQueryWrapper.getInstance().execQuery(Sparql.CONSTRUCT_QUERY_BOOKS, Sparql.ENDPOINT1_URL);
+        assertEquals(ResultFormat.GRAPH_ACCEPT, handler.getLastAccept());
+        assertEquals(7, JenaQueryWrapper.getInstance().stringToModel(result).size());
+
+        // a graph sent in turtle is read as turtle and handed on as RDF/XML
+        InputStream in = JenaQueryWrapper.getInstance().execQueryStream(Sparql.CONSTRUCT_QUERY_BOOKS, Sparql.ENDPOINT4_URL + "turtle");
+        assertEquals(7, JenaQueryWrapper.getInstance().streamToModel(in).size());
+
+        result = JenaQueryWrapper.getInstance().execQuery(Sparql.CONSTRUCT_QUERY_BOOKS, Sparql.ENDPOINT4_URL + "turtle");
+        assertTrue(result.contains("rdf:RDF"));
+        assertEquals(7, JenaQueryWrapper.getInstance().stringToModel(result).size());
+    }
+
     @Test
     public void testExecAsk()
     {
@@ -223,6 +277,46 @@ public class JenaQueryWrapperTest {
         assertNull(JenaQueryWrapper.getInstance().stringToResultSet(""));
     }
 
+    @Test
+    public void testStreamToResultSet() throws IOException
+    {
+        InputStream in = JenaQueryWrapper.getInstance().execQueryStream(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT1_URL);
+        assertNotNull(in);
+
+        ResultSet results = JenaQueryWrapper.getInstance().streamToResultSet(in);
+
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        in.close();
+        assertEquals(numResults,7);
+
+        assertNull(JenaQueryWrapper.getInstance().streamToResultSet(null));
+        assertNull(JenaQueryWrapper.getInstance().streamToResultSet(new ByteArrayInputStream(new byte[0])));
+        assertNull(JenaQueryWrapper.getInstance().execQueryStream(Sparql.SELECT_QUERY_BOOKS, "http://localhost:7999/nothing"));
+    }
+
+    @Test
+    public void testStreamToModel() throws IOException
+    {
+        InputStream in = JenaQueryWrapper.getInstance().execQueryStream(Sparql.CONSTRUCT_QUERY_BOOKS, Sparql.ENDPOINT1_URL);
+        assertNotNull(in);
+
+        Model actualModel = JenaQueryWrapper.getInstance().streamToModel(in);
+        in.close();
+
+        String result = sparql.getResult(Sparql.ENDPOINT1_URL, Sparql.CONSTRUCT_QUERY_BOOKS);
+        assertTrue(actualModel.isIsomorphicWith(JenaQueryWrapper.getInstance().stringToModel(result)));
+
+        actualModel  = JenaQueryWrapper.getInstance().streamToModel(null);
+        assertTrue(actualModel.isEmpty());
+        actualModel  = JenaQueryWrapper.getInstance().streamToModel(new ByteArrayInputStream(new byte[0]));
+        assertTrue(actualModel.isEmpty());
+    }
+
     @Test
     public void testconvertStreamToString() throws IOException
     {
@@ -293,4 +387,82 @@ public class JenaQueryWrapperTest {
         assertEquals(result, actualResult);
     }
 
+    @Test
+    public void testCancelRequest()
+    {
+        System.out.println("testCancelRequest");
+
+        String query = Sparql.SELECT_QUERY_BOOKS;
+
+        // a cancelled handle stops the request being sent
+        RequestHandle handle = new RequestHandle();
+        handle.cancel();
+        assertNull(JenaQueryWrapper.getInstance().execQueryStream(query, Sparql.ENDPOINT1_URL, handle));
+        assertEquals("", JenaQueryWrapper.getInstance().execQuery(query, Sparql.ENDPOINT1_URL, handle));
+
+        // endpoint 4 doesn't respond, cancel the request while it is waiting
+        final RequestHandle pending = new RequestHandle();
+        Thread canceller = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ex)
+                {
+                    return;
+                }
+                pending.cancel();
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        canceller.start();
+        InputStream in = JenaQueryWrapper.getInstance().execQueryStream(query, Sparql.ENDPOINT4_URL, pending);
+        long end = System.currentTimeMillis();
+
+        assertNull(in);
+        assertTrue(pending.isCancelled());
+        assertTrue("Request aborted straight away ("+(end-start)+")", end-start < 300);
+    }
+
+    @Test
+    public void testHandleReadTimeout()
+    {
+        System.out.println("testHandleReadTimeout");
+
+        // endpoint 4 doesn't respond, the handle's timeout beats the shared one
+        AdaptiveTimeouts.getInstance().setEndpointTimeout(Sparql.ENDPOINT4_URL, 5000);
+        RequestHandle handle = new RequestHandle();
+        handle.setReadTimeout(100);
+
+        try
+        {
+            long start = System.currentTimeMillis();
+            String result = JenaQueryWrapper.getInstance().execQuery(Sparql.SELECT_QUERY_BOOKS, Sparql.ENDPOINT4_URL, handle);
+            long end = System.currentTimeMillis();
+
+            assertEquals("", result);
+            assertTrue("Timed out early ("+(end-start)+")", end-start < 1000);
+        }
+        finally
+        {
+            AdaptiveTimeouts.getInstance().reset();
+        }
+    }
+
+    @Test
+    public void testIsReadOnly()
+    {
+        System.out.println("testIsReadOnly");
+
+        assertTrue(JenaQueryWrapper.isReadOnly(Sparql.SELECT_QUERY_BOOKS));
+        assertTrue(JenaQueryWrapper.isReadOnly(Sparql.CONSTRUCT_QUERY_BOOKS));
+        assertTrue(JenaQueryWrapper.isReadOnly(Sparql.ASK_QUERY_ALICE));
+        assertFalse(JenaQueryWrapper.isReadOnly(Sparql.UPDATE_QUERY));
+    }
+
 }
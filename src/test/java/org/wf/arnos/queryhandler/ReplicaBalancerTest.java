@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class ReplicaBalancerTest {
+
+    private static final String FAST = "http://fast.example.org/sparql";
+
+    private static final String SLOW = "http://slow.example.org/sparql";
+
+    ReplicaBalancer balancer = ReplicaBalancer.getInstance();
+
+    List<String> group = new ArrayList<String>();
+
+    @Before
+    public void setUp()
+    {
+        balancer.reset();
+        group.add(SLOW);
+        group.add(FAST);
+    }
+
+    @After
+    public void tearDown()
+    {
+        balancer.reset();
+        balancer.setSmoothing(ReplicaBalancer.DEFAULT_SMOOTHING);
+    }
+
+    @Test
+    public void testSingleReplica()
+    {
+        System.out.println("testSingleReplica");
+
+        List<String> single = new ArrayList<String>();
+        single.add(SLOW);
+        assertEquals(SLOW, balancer.choose(single));
+    }
+
+    @Test
+    public void testPrefersLowLatency() throws Exception
+    {
+        System.out.println("testPrefersLowLatency");
+
+        balancer.complete(SLOW, System.currentTimeMillis() - 1000, true);
+        balancer.complete(FAST, System.currentTimeMillis() - 10, true);
+
+        // with two replicas both are always compared
+        for (int i = 0; i < 20; i++) assertEquals(FAST, balancer.choose(group));
+    }
+
+    @Test
+    public void testPrefersIdle()
+    {
+        System.out.println("testPrefersIdle");
+
+        balancer.complete(SLOW, System.currentTimeMillis() - 100, true);
+        balancer.complete(FAST, System.currentTimeMillis() - 50, true);
+        assertEquals(FAST, balancer.choose(group));
+
+        // a queue of requests to the faster replica outweighs its latency
+        for (int i = 0; i < 3; i++) balancer.begin(FAST);
+        assertEquals(SLOW, balancer.choose(group));
+
+        // cancelled requests free the replica without affecting its latency
+        for (int i = 0; i < 3; i++) balancer.abort(FAST);
+        assertEquals(FAST, balancer.choose(group));
+    }
+
+    @Test
+    public void testFailurePenalty()
+    {
+        System.out.println("testFailurePenalty");
+
+        balancer.complete(SLOW, System.currentTimeMillis() - 1000, true);
+        balancer.complete(FAST, balancer.begin(FAST), false);
+
+        assertEquals(SLOW, balancer.choose(group));
+        assertTrue(balancer.getCost(FAST) >= ReplicaBalancer.DEFAULT_FAILURE_PENALTY);
+    }
+
+    @Test
+    public void testMovingAverage()
+    {
+        System.out.println("testMovingAverage");
+
+        balancer.setSmoothing(0.5);
+        balancer.complete(FAST, System.currentTimeMillis() - 100, true);
+        balancer.complete(FAST, System.currentTimeMillis() - 300, true);
+
+        assertEquals(201, balancer.getCost(FAST), 5);
+        assertEquals(ReplicaBalancer.DEFAULT_LATENCY + 1, balancer.getCost(SLOW), 0);
+        assertEquals(1, balancer.listReplicas().size());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class RequestCoalescerTest {
+
+    private static final String KEY = "project SELECT * WHERE {?s ?p ?o} http://example.org/sparql";
+
+    RequestCoalescer coalescer = RequestCoalescer.getInstance();
+
+    /**
+     * Remembers what a follower was told.
+     */
+    static class Recorder implements RequestCoalescer.Listener
+    {
+        String response;
+        boolean completed = false;
+        boolean abandoned = false;
+
+        public void completed(final String s)
+        {
+            response = s;
+            completed = true;
+        }
+
+        public void abandoned()
+        {
+            abandoned = true;
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        coalescer.reset();
+        coalescer.setEnabled(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        coalescer.reset();
+    }
+
+    @Test
+    public void testFollowersShareResponse()
+    {
+        System.out.println("testFollowersShareResponse");
+
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        RequestCoalescer.Flight flight = coalescer.join(KEY, new Recorder());
+        assertNotNull(flight);
+        assertNull(coalescer.join(KEY, first));
+        assertNull(coalescer.join(KEY, second));
+        assertEquals(1, coalescer.getInFlight());
+
+        flight.complete("response");
+
+        assertTrue(first.completed);
+        assertEquals("response", first.response);
+        assertEquals("response", second.response);
+        assertEquals(0, coalescer.getInFlight());
+        assertEquals(1, coalescer.getLeaders());
+        assertEquals(2, coalescer.getFollowers());
+
+        // a settled flight can't be settled again
+        flight.abandon();
+        assertFalse(first.abandoned);
+
+        // and the next request leads a new flight
+        assertNotNull(coalescer.join(KEY, new Recorder()));
+    }
+
+    @Test
+    public void testFailure()
+    {
+        System.out.println("testFailure");
+
+        Recorder follower = new Recorder();
+
+        RequestCoalescer.Flight flight = coalescer.join(KEY, new Recorder());
+        assertNull(coalescer.join(KEY, follower));
+
+        flight.complete(null);
+
+        assertTrue(follower.completed);
+        assertNull(follower.response);
+    }
+
+    @Test
+    public void testAbandon()
+    {
+        System.out.println("testAbandon");
+
+        Recorder follower = new Recorder();
+
+        RequestCoalescer.Flight flight = coalescer.join(KEY, new Recorder());
+        assertNull(coalescer.join(KEY, follower));
+
+        flight.abandon();
+
+        assertTrue(follower.abandoned);
+        assertFalse(follower.completed);
+        assertEquals(0, coalescer.getInFlight());
+
+        // the follower leads when it joins again
+        assertNotNull(coalescer.join(KEY, follower));
+    }
+
+    @Test
+    public void testDistinctKeys()
+    {
+        System.out.println("testDistinctKeys");
+
+        RequestCoalescer.Flight flight = coalescer.join(KEY, new Recorder());
+        RequestCoalescer.Flight other = coalescer.join(KEY + "2", new Recorder());
+        assertNotNull(flight);
+        assertNotNull(other);
+        assertEquals(2, coalescer.getInFlight());
+
+        flight.complete("response");
+        other.complete("response");
+        assertEquals(0, coalescer.getInFlight());
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class RequestHedgerTest {
+
+    private static final String URL = "http://hedge.example.org/sparql";
+
+    RequestHedger hedger = RequestHedger.getInstance();
+
+    QueryWrapperInterface wrapper = JenaQueryWrapper.getInstance();
+
+    List<String> replicas = new ArrayList<String>();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        LocalServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        LocalServer.stop();
+    }
+
+    @Before
+    public void setUp()
+    {
+        AdaptiveTimeouts.getInstance().reset();
+        hedger.reset();
+        hedger.setEnabled(true);
+        hedger.setBudget(1);
+        hedger.setDefaultDelay(100);
+    }
+
+    @After
+    public void tearDown()
+    {
+        AdaptiveTimeouts.getInstance().reset();
+        hedger.reset();
+        hedger.setEnabled(false);
+        hedger.setPercentile(RequestHedger.DEFAULT_PERCENTILE);
+        hedger.setBudget(RequestHedger.DEFAULT_BUDGET);
+        hedger.setDefaultDelay(RequestHedger.DEFAULT_DELAY);
+    }
+
+    @Test
+    public void testHedgeWins()
+    {
+        System.out.println("testHedgeWins");
+
+        // endpoint 4 never responds, its replica does
+        replicas.add(Sparql.ENDPOINT1_URL);
+
+        long start = System.currentTimeMillis();
+        String result = hedger.execQuery(wrapper, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.ENDPOINT4_URL, replicas, new RequestHandle());
+        long end = System.currentTimeMillis();
+
+        assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        assertTrue("Hedge answered ("+(end-start)+")", end-start < 400);
+        assertEquals(1, hedger.getRequests());
+        assertEquals(1, hedger.getHedges());
+        assertEquals(1, hedger.getHedgesWon());
+    }
+
+    @Test
+    public void testHedgeStream() throws Exception
+    {
+        System.out.println("testHedgeStream");
+
+        replicas.add(Sparql.ENDPOINT1_URL);
+
+        InputStream in = hedger.execQueryStream(wrapper, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.ENDPOINT4_URL, replicas, new RequestHandle());
+        assertNotNull(in);
+        String result = IOUtils.toString(in, "UTF-8");
+        in.close();
+
+        assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        assertEquals(1, hedger.getHedgesWon());
+    }
+
+    @Test
+    public void testFastEndpointNotHedged()
+    {
+        System.out.println("testFastEndpointNotHedged");
+
+        hedger.setDefaultDelay(1000);
+        replicas.add(Sparql.ENDPOINT3_URL);
+
+        String result = hedger.execQuery(wrapper, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.ENDPOINT1_URL, replicas, new RequestHandle());
+
+        assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        assertEquals(0, hedger.getHedges());
+    }
+
+    @Test
+    public void testBudget()
+    {
+        System.out.println("testBudget");
+
+        hedger.setBudget(0);
+        replicas.add(Sparql.ENDPOINT1_URL);
+
+        String result = hedger.execQuery(wrapper, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.ENDPOINT4_URL, replicas, new RequestHandle());
+
+        assertEquals("", result);
+        assertEquals(0, hedger.getHedges());
+        assertEquals(1, hedger.getHedgesDenied());
+
+        // 5% allows one hedge in twenty requests
+        hedger.setBudget(0.05);
+        hedger.setDefaultDelay(0);
+        for (int i = 0; i < 40; i++)
+        {
+            hedger.execQuery(wrapper, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.ENDPOINT3_URL, replicas, new RequestHandle());
+        }
+        assertTrue("Hedges within budget ("+hedger.getHedges()+")", hedger.getHedges() <= 2);
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        System.out.println("testCancel");
+
+        replicas.add(Sparql.ENDPOINT4_URL);
+
+        final RequestHandle handle = new RequestHandle();
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ie) { }
+                handle.cancel();
+            }
+        }.start();
+
+        // both the request and its hedge hang until cancelled
+        long start = System.currentTimeMillis();
+        String result = hedger.execQuery(wrapper, Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.ENDPOINT4_URL, replicas, handle);
+        long end = System.currentTimeMillis();
+
+        assertEquals("", result);
+        assertTrue("Cancelled ("+(end-start)+")", end-start < 400);
+        assertEquals(1, hedger.getHedges());
+        assertEquals(0, hedger.getHedgesWon());
+    }
+
+    @Test
+    public void testHedgeDelay()
+    {
+        System.out.println("testHedgeDelay");
+
+        assertEquals(100, hedger.getHedgeDelay(URL));
+
+        for (int i = 1; i <= RequestHedger.MIN_SAMPLES; i++) AdaptiveTimeouts.getInstance().record(URL, i * 10);
+
+        assertEquals(190, hedger.getHedgeDelay(URL));
+        hedger.setPercentile(50);
+        assertEquals(100, hedger.getHedgeDelay(URL));
+        hedger.setPercentile(100);
+        assertEquals(200, hedger.getHedgeDelay(URL));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidPercentile()
+    {
+        System.out.println("testInvalidPercentile");
+
+        hedger.setPercentile(101);
+    }
+}
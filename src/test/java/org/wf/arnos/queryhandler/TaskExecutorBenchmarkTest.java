@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.springframework.core.task.TaskExecutor;
+import org.wf.arnos.beans.TaskExecutorFactoryBean;
+import org.wf.arnos.controller.model.Endpoint;
+import org.wf.arnos.utils.LocalServer;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the bounded thread pool against virtual threads for endpoint tasks.
+ * Timings are printed rather than asserted, as they depend on the machine.
+ * On jvms without virtual threads both runs use the thread pool.
+ * Not part of the unit tests, remove the <code>@Ignore</code> to run it.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+@Ignore("Benchmark, run by hand")
+public class TaskExecutorBenchmarkTest {
+
+    // number of simulated endpoint calls
+    private static final int TASKS = 500;
+
+    // time (ms) each simulated endpoint call blocks for
+    private static final int LATENCY = 20;
+
+    // number of endpoints in the federated query
+    private static final int ENDPOINTS = 40;
+
+    @BeforeClass
+    public static void setUp() throws Exception
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        LocalServer.start();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        LocalServer.stop();
+    }
+
+    @Test
+    public void testBlockingTasks() throws InterruptedException
+    {
+        System.out.println("testBlockingTasks");
+
+        for (String mode : new String [] {TaskExecutorFactoryBean.MODE_POOL, TaskExecutorFactoryBean.MODE_VIRTUAL})
+        {
+            TaskExecutorFactoryBean factory = newFactory(mode);
+            TaskExecutor executor = factory.getObject();
+
+            final CountDownLatch done = new CountDownLatch(TASKS);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < TASKS; i++)
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            Thread.sleep(LATENCY);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+            long end = System.currentTimeMillis();
+
+            System.out.println(describe(factory, mode) + ": " + TASKS + " blocking tasks of " + LATENCY + "ms in " + (end - start) + "ms");
+            factory.destroy();
+        }
+    }
+
+    @Test
+    public void testFederatedSelect() throws Exception
+    {
+        System.out.println("testFederatedSelect");
+
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        for (int i = 0; i < ENDPOINTS; i++)
+        {
+            endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        }
+
+        // let every copy of the endpoint be queried at once, otherwise the
+        // copies refused by the bulkhead are left out of the result
+        EndpointBulkheads.getInstance().setEndpointLimit(Sparql.ENDPOINT1_URL, ENDPOINTS);
+
+        try
+        {
+            for (String mode : new String [] {TaskExecutorFactoryBean.MODE_POOL, TaskExecutorFactoryBean.MODE_VIRTUAL})
+            {
+                TaskExecutorFactoryBean factory = newFactory(mode);
+
+                ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+                queryHandler.setTaskExecutor(factory.getObject());
+
+                long start = System.currentTimeMillis();
+                QueryFuture pending = queryHandler.handleSelectAsync("benchmark", query, endpoints);
+                String result = pending.get();
+                long end = System.currentTimeMillis();
+
+                assertTrue(result.contains("<result>"));
+                assertFalse(pending.getMissingEndpoints().toString(), pending.isPartial());
+
+                System.out.println(describe(factory, mode) + ": SELECT across " + ENDPOINTS + " endpoints in " + (end - start) + "ms");
+                factory.destroy();
+            }
+        }
+        finally
+        {
+            EndpointBulkheads.getInstance().clearEndpointLimit(Sparql.ENDPOINT1_URL);
+        }
+    }
+
+    private static TaskExecutorFactoryBean newFactory(final String mode)
+    {
+        TaskExecutorFactoryBean factory = new TaskExecutorFactoryBean();
+        factory.setMode(mode);
+        factory.afterPropertiesSet();
+        return factory;
+    }
+
+    private static String describe(final TaskExecutorFactoryBean factory, final String mode)
+    {
+        return mode + (factory.isVirtual() || TaskExecutorFactoryBean.MODE_POOL.equals(mode) ? "" : " (unsupported, pool)");
+    }
+}
@@ -36,8 +36,13 @@ import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.xml.DOMConfigurator;
 import org.easymock.EasyMockSupport;
@@ -49,6 +54,9 @@ import org.wf.arnos.cachehandler.CacheHandlerInterface;
 import static org.junit.Assert.*;
 import org.wf.arnos.controller.model.Endpoint;
 import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.exception.ArnosRuntimeException;
+import org.wf.arnos.queryhandler.merge.MemoryBudget;
+import org.wf.arnos.queryhandler.merge.TopK;
 import org.wf.arnos.utils.LocalServer;
 
 /**
@@ -247,6 +255,45 @@ public class ThreadedQueryHandlerTest extends EasyMockSupport {
         assertEquals("Expeced number of ordered results",4,numResults);
     }
 
+    @Test
+    public void testHandleOrderedSelectWithOffset()
+    {
+        System.out.println("testHandleOrderedSelectWithOffset");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT2_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT3_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // each endpoint is asked for the first OFFSET + LIMIT results
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_PEOPLE_ORDERED_PAGE);
+        Query endpointQuery = queryHandler.pushDown(query);
+        assertEquals(QueryFactory.create(Sparql.SELECT_QUERY_PEOPLE_ORDERED_TOP), endpointQuery);
+        assertTrue(queryHandler.createEndpointResults(endpointQuery, new MemoryBudget(0, false)) instanceof TopK);
+
+        // unordered queries are sent as they are
+        Query unordered = QueryFactory.create(Sparql.SELECT_QUERY_PEOPLE);
+        assertSame(unordered, queryHandler.pushDown(unordered));
+        assertFalse(queryHandler.createEndpointResults(unordered, new MemoryBudget(0, false)) instanceof TopK);
+
+        List<String> all = new ArrayList<String>();
+        ResultSet results = JenaQueryWrapper.getInstance().stringToResultSet(
+                queryHandler.handleSelect(projectName, QueryFactory.create(Sparql.SELECT_QUERY_PEOPLE_ORDERED), endpoints));
+        while (results.hasNext()) all.add(new Result(results.next()).getValues().get(0));
+
+        List<String> page = new ArrayList<String>();
+        results = JenaQueryWrapper.getInstance().stringToResultSet(queryHandler.handleSelect(projectName, query, endpoints));
+        while (results.hasNext()) page.add(new Result(results.next()).getValues().get(0));
+
+        assertEquals(all.subList(1, 3), page);
+    }
+
     @Test
     public void testHandleDescribe()
     {
@@ -362,6 +409,81 @@ System.out.println("Expecting WARN message");
         assertEquals("Results non-distinct people",expectedResult,result);
     }
 
+    @Test
+    public void testHandleUpdateEmptyResponse()
+    {
+        System.out.println("testHandleUpdateEmptyResponse");
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // a successful update often has no content
+        String url = Sparql.ENDPOINT4_URL + "204";
+        CircuitBreakers breakers = CircuitBreakers.getInstance();
+        breakers.setEnabled(true);
+        try
+        {
+            for (int i = 0; i <= breakers.getFailureThreshold(); i++)
+            {
+                assertEquals("", queryHandler.handleUpdate(projectName, Sparql.UPDATE_QUERY, new Endpoint(url)));
+            }
+            assertEquals(CircuitBreakers.State.CLOSED, breakers.getState(url));
+        }
+        finally
+        {
+            breakers.reset();
+            breakers.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testHandleUpdateFailure()
+    {
+        System.out.println("testHandleUpdateFailure");
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        String url = Sparql.ENDPOINT4_URL + "500";
+        CircuitBreakers breakers = CircuitBreakers.getInstance();
+        breakers.setEnabled(true);
+        try
+        {
+            try
+            {
+                queryHandler.handleUpdate(projectName, Sparql.UPDATE_QUERY, new Endpoint(url));
+                fail("Failed update not reported");
+            }
+            catch (ArnosRuntimeException ex)
+            {
+                assertTrue(ex.getMessage().contains(url));
+            }
+
+            // an open circuit doesn't drop the update silently
+            breakers.tripCircuit(url);
+            try
+            {
+                queryHandler.handleUpdate(projectName, Sparql.UPDATE_QUERY, new Endpoint(url));
+                fail("Skipped update not reported");
+            }
+            catch (ArnosRuntimeException ex)
+            {
+                assertTrue(ex.getMessage().contains("circuit open"));
+            }
+        }
+        finally
+        {
+            breakers.reset();
+            breakers.setEnabled(false);
+        }
+    }
+
     @Test
     public void testTimeouts()
     {
@@ -449,6 +571,517 @@ System.out.println("Expecting WARN message");
         assertEquals("Results with endpoints 1 & 2",7,numResults);
     }
 
+    @Test
+    public void testStreamedResult() throws Exception
+    {
+        System.out.println("testStreamedResult");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT3_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        QueryFuture select = queryHandler.handleSelectAsync(projectName, selectQuery, endpoints);
+        StringWriter out = new StringWriter();
+        select.writeWithin(5, TimeUnit.SECONDS, out);
+
+        ResultSet results = ResultSetFactory.fromXML(out.toString());
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        assertEquals(Sparql.MAX_LIMIT, numResults);
+
+        // the result was written rather than kept
+        assertTrue(select.isDone());
+        assertEquals("", select.get());
+
+        // once merged as a string, the string is written
+        QueryFuture ask = queryHandler.handleAskAsync(projectName, askQuery, endpoints);
+        String merged = ask.get(5, TimeUnit.SECONDS);
+        out = new StringWriter();
+        ask.writeWithin(0, TimeUnit.SECONDS, out);
+        assertEquals(merged, out.toString());
+    }
+
+    @Test
+    public void testAsyncHandling() throws Exception
+    {
+        System.out.println("testAsyncHandling");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT2_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        Future<String> select = queryHandler.handleSelectAsync(projectName, selectQuery, endpoints);
+        Future<String> construct = queryHandler.handleConstructAsync(projectName, constructQuery, endpoints);
+        Future<String> ask = queryHandler.handleAskAsync(projectName, askQuery, endpoints);
+        Future<String> describe = queryHandler.handleDescribeAsync(projectName, describeQuery, endpoints);
+
+        ResultSet results = JenaQueryWrapper.getInstance().stringToResultSet(select.get(5, TimeUnit.SECONDS));
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        assertEquals(7, numResults);
+
+        assertEquals(7, StringUtils.countMatches(construct.get(5, TimeUnit.SECONDS), "rdf:about"));
+        assertTrue(ask.get(5, TimeUnit.SECONDS).contains("true"));
+        assertTrue(describe.get(5, TimeUnit.SECONDS).contains("J.K. Rowling"));
+
+        // with no endpoints the result is available straight away
+        Future<String> empty = queryHandler.handleSelectAsync(projectName, selectQuery, new ArrayList<Endpoint>());
+        assertTrue(empty.get(0, TimeUnit.MILLISECONDS).contains("<results></results>"));
+        assertTrue(empty.get().contains("<results></results>"));
+    }
+
+    @Test
+    public void testDeadline() throws Exception
+    {
+        System.out.println("testDeadline");
+
+        int deadline = maxtimeout / 3;
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT4_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+
+        // endpoint 4 never responds, so only endpoint 1's results are returned
+        long start = System.currentTimeMillis();
+        QueryFuture select = queryHandler.handleSelectAsync(projectName, query, endpoints);
+        String result = select.getWithin(deadline, TimeUnit.MILLISECONDS);
+        long end = System.currentTimeMillis();
+
+        assertTrue("Deadline honoured ("+(end-start)+")", end-start < maxtimeout);
+        assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        assertTrue(select.isPartial());
+        assertEquals(1, select.getMissingEndpoints().size());
+        assertEquals(Sparql.ENDPOINT4_URL, select.getMissingEndpoints().get(0));
+
+        // the blocking methods use the default deadline
+        queryHandler.setDefaultTimeout(deadline);
+        start = System.currentTimeMillis();
+        result = queryHandler.handleConstruct(projectName, constructQuery, endpoints);
+        end = System.currentTimeMillis();
+
+        assertTrue("Deadline honoured ("+(end-start)+")", end-start < maxtimeout);
+        assertEquals(7, StringUtils.countMatches(result, "rdf:about"));
+
+        start = System.currentTimeMillis();
+        result = queryHandler.handleAsk(projectName, askQuery, endpoints);
+        end = System.currentTimeMillis();
+
+        assertTrue("Deadline honoured ("+(end-start)+")", end-start < maxtimeout);
+        assertTrue(result.contains("true"));
+
+        // results that arrive in time are complete
+        endpoints.remove(1);
+        select = queryHandler.handleSelectAsync(projectName, query, endpoints);
+        result = select.getWithin(5, TimeUnit.SECONDS);
+        assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        assertFalse(select.isPartial());
+        assertTrue(select.getMissingEndpoints().isEmpty());
+    }
+
+    @Test
+    public void testEarlyTermination() throws Exception
+    {
+        System.out.println("testEarlyTermination");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT4_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT3_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(3);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // endpoint 4 never responds, but endpoints 1 and 3 have enough results between them
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS);
+        long start = System.currentTimeMillis();
+        QueryFuture select = queryHandler.handleSelectAsync(projectName, query, endpoints);
+        String result = select.get();
+        long end = System.currentTimeMillis();
+
+        assertTrue("Terminated early ("+(end-start)+")", end-start < maxtimeout);
+        assertEquals(Sparql.MAX_LIMIT, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        assertFalse(select.isPartial());
+
+        // ordered and distinct queries wait for every endpoint
+        assertNotNull(queryHandler.createRowSignal(query, select));
+        assertNull(queryHandler.createRowSignal(QueryFactory.create(Sparql.SELECT_QUERY_PEOPLE_ORDERED), select));
+        assertNull(queryHandler.createRowSignal(QueryFactory.create(Sparql.SELECT_QUERY_PEOPLE_DISTINCT), select));
+        assertNull(queryHandler.createRowSignal(QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT), select));
+    }
+
+    @Test
+    public void testSpilling()
+    {
+        System.out.println("testSpilling");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT2_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT3_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        String[] queries = {Sparql.SELECT_QUERY_BOOKS_NO_LIMIT, Sparql.SELECT_QUERY_PEOPLE_DISTINCT, Sparql.SELECT_QUERY_BOOKS_PAGE};
+        for (String q : queries)
+        {
+            Query query = QueryFactory.create(q);
+
+            queryHandler.setSpillThreshold(0);
+            String inMemory = queryHandler.handleSelect(projectName, query, endpoints);
+
+            // every result is spilled to disk
+            queryHandler.setSpillThreshold(1);
+            queryHandler.setSpillMapped(q.equals(Sparql.SELECT_QUERY_BOOKS_PAGE));
+            String spilled = queryHandler.handleSelect(projectName, query, endpoints);
+
+            assertTrue("Is valid xml", Sparql.validateXML(spilled));
+
+            // distinct results spilled to disk may come out in a different order
+            List<String> expected = new ArrayList<String>();
+            ResultSet results = JenaQueryWrapper.getInstance().stringToResultSet(inMemory);
+            while (results.hasNext()) expected.add(new Result(results.next()).toXML());
+
+            List<String> actual = new ArrayList<String>();
+            results = JenaQueryWrapper.getInstance().stringToResultSet(spilled);
+            while (results.hasNext()) actual.add(new Result(results.next()).toXML());
+
+            assertFalse(expected.isEmpty());
+            if (!query.isDistinct()) assertEquals(expected, actual);
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testHandleSelectWithOffset()
+    {
+        System.out.println("testHandleSelectWithOffset");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT2_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT3_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // the offset applies to the federated results, not to each endpoint's
+        Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_PAGE);
+        assertEquals(QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_TOP), queryHandler.pushDown(query));
+
+        List<String> all = new ArrayList<String>();
+        ResultSet results = JenaQueryWrapper.getInstance().stringToResultSet(
+                queryHandler.handleSelect(projectName, QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT), endpoints));
+        while (results.hasNext()) all.add(new Result(results.next()).getValues().get(0));
+
+        List<String> page = new ArrayList<String>();
+        results = JenaQueryWrapper.getInstance().stringToResultSet(queryHandler.handleSelect(projectName, query, endpoints));
+        while (results.hasNext()) page.add(new Result(results.next()).getValues().get(0));
+
+        assertEquals(all.subList(8, 11), page);
+    }
+
+    @Test
+    public void testHedging() throws Exception
+    {
+        System.out.println("testHedging");
+
+        // endpoint 4 never responds, but has a replica serving the same books
+        Endpoint hung = new Endpoint(Sparql.ENDPOINT4_URL);
+        hung.addReplica(Sparql.ENDPOINT1_URL);
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(hung);
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // make sure the request goes to endpoint 4 rather than its replica
+        ReplicaBalancer balancer = ReplicaBalancer.getInstance();
+        balancer.reset();
+        balancer.complete(Sparql.ENDPOINT1_URL, balancer.begin(Sparql.ENDPOINT1_URL), false);
+
+        RequestHedger hedger = RequestHedger.getInstance();
+        hedger.reset();
+        hedger.setEnabled(true);
+        hedger.setBudget(1);
+        hedger.setDefaultDelay(maxtimeout / 5);
+
+        try
+        {
+            Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+
+            long start = System.currentTimeMillis();
+            QueryFuture select = queryHandler.handleSelectAsync(projectName, query, endpoints);
+            String result = select.get();
+            long end = System.currentTimeMillis();
+
+            assertTrue("Hedge answered ("+(end-start)+")", end-start < maxtimeout);
+            assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+            assertFalse(select.isPartial());
+            assertEquals(1, hedger.getHedgesWon());
+
+            // without hedging the endpoint times out
+            hedger.setEnabled(false);
+            result = queryHandler.handleSelect(projectName, query, endpoints);
+            assertEquals(0, StringUtils.countMatches(result, "<binding name=\"title\">"));
+        }
+        finally
+        {
+            balancer.reset();
+            hedger.reset();
+            hedger.setEnabled(false);
+            hedger.setBudget(RequestHedger.DEFAULT_BUDGET);
+            hedger.setDefaultDelay(RequestHedger.DEFAULT_DELAY);
+        }
+    }
+
+    @Test
+    public void testReplicaBalancing() throws Exception
+    {
+        System.out.println("testReplicaBalancing");
+
+        // endpoint 4 has been failing, so its replica is used instead
+        Endpoint group = new Endpoint(Sparql.ENDPOINT4_URL);
+        group.addReplica(Sparql.ENDPOINT1_URL);
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(group);
+
+        ReplicaBalancer balancer = ReplicaBalancer.getInstance();
+        balancer.reset();
+        balancer.complete(Sparql.ENDPOINT4_URL, balancer.begin(Sparql.ENDPOINT4_URL), false);
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        try
+        {
+            Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+
+            long start = System.currentTimeMillis();
+            String result = queryHandler.handleSelect(projectName, query, endpoints);
+            long end = System.currentTimeMillis();
+
+            assertTrue("Replica answered ("+(end-start)+")", end-start < maxtimeout);
+            assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+            assertTrue(balancer.getCost(Sparql.ENDPOINT1_URL) < balancer.getCost(Sparql.ENDPOINT4_URL));
+        }
+        finally
+        {
+            balancer.reset();
+        }
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception
+    {
+        System.out.println("testReadTimeout");
+
+        // endpoint 4 hangs, so a short read timeout gives up on it early
+        Endpoint hung = new Endpoint(Sparql.ENDPOINT4_URL);
+        hung.setReadTimeout(maxtimeout / 5);
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(hung);
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        // a timeout set through JMX isn't touched by the project's endpoints
+        AdaptiveTimeouts.getInstance().reset();
+        AdaptiveTimeouts.getInstance().setEndpointTimeout(Sparql.ENDPOINT1_URL, maxtimeout * 2);
+
+        try
+        {
+            Query query = QueryFactory.create(Sparql.SELECT_QUERY_BOOKS_NO_LIMIT);
+
+            long start = System.currentTimeMillis();
+            String result = queryHandler.handleSelect(projectName, query, endpoints);
+            long end = System.currentTimeMillis();
+
+            assertTrue("Timed out early ("+(end-start)+")", end-start < maxtimeout);
+            assertEquals(7, StringUtils.countMatches(result, "<binding name=\"title\">"));
+
+            // the endpoint's timeout went with its request, not into the shared settings
+            assertEquals(0, AdaptiveTimeouts.getInstance().getEndpointTimeout(Sparql.ENDPOINT4_URL));
+            assertEquals(maxtimeout * 2, AdaptiveTimeouts.getInstance().getEndpointTimeout(Sparql.ENDPOINT1_URL));
+
+            // the timed out request counts towards the endpoint's latency
+            assertEquals(1, AdaptiveTimeouts.getInstance().getSamples(Sparql.ENDPOINT4_URL));
+            assertEquals(maxtimeout / 5, AdaptiveTimeouts.getInstance().getLatency(Sparql.ENDPOINT4_URL, 100));
+        }
+        finally
+        {
+            AdaptiveTimeouts.getInstance().reset();
+        }
+    }
+
+    @Test
+    public void testCancellation() throws Exception
+    {
+        System.out.println("testCancellation");
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT4_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        QueryFuture select = queryHandler.handleSelectAsync(projectName, selectQuery, endpoints);
+        Thread.sleep(50);
+
+        long start = System.currentTimeMillis();
+        assertTrue(select.cancel(true));
+        assertTrue(select.isCancelled());
+
+        // the request to endpoint 4 is aborted, freeing its thread well before the read timeout
+        while (executor.getActiveCount() > 0 && System.currentTimeMillis() - start < maxtimeout)
+        {
+            Thread.sleep(10);
+        }
+        long end = System.currentTimeMillis();
+        assertEquals(0, executor.getActiveCount());
+        assertTrue("Request aborted straight away ("+(end-start)+")", end-start < maxtimeout / 2);
+
+        // a completed query can't be cancelled
+        endpoints.remove(1);
+        select = queryHandler.handleSelectAsync(projectName, selectQuery, endpoints);
+        select.get(5, TimeUnit.SECONDS);
+        assertFalse(select.cancel(true));
+    }
+
+    @Test
+    public void testAskShortCircuit() throws Exception
+    {
+        System.out.println("testAskShortCircuit");
+
+        // endpoint 1 answers true, endpoint 4 never responds
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT4_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+
+        long start = System.currentTimeMillis();
+        QueryFuture ask = queryHandler.handleAskAsync(projectName, askQuery, endpoints);
+        String result = ask.get(5, TimeUnit.SECONDS);
+        long end = System.currentTimeMillis();
+
+        assertTrue(result.contains("<boolean>true</boolean>"));
+        assertFalse("A true answer isn't partial", ask.isPartial());
+        assertTrue("Answered without waiting for endpoint 4 ("+(end-start)+")", end-start < maxtimeout);
+
+        // without a true answer every endpoint is waited for
+        Query bob = QueryFactory.create(Sparql.ASK_QUERY_BOB);
+        endpoints.set(1, new Endpoint(Sparql.ENDPOINT3_URL));
+        result = queryHandler.handleAsk(projectName, bob, endpoints);
+        assertTrue(result.contains("<boolean>false</boolean>"));
+    }
+
+    @Test
+    public void testNonBlockingTransport()
+    {
+        System.out.println("testNonBlockingTransport");
+
+        int maxMultipleOfTimeoutToExpect = maxtimeout + (maxtimeout/2);
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        // endpoint 4 hangs, it must not hold up the single executor thread
+        endpoints.add(new Endpoint(Sparql.ENDPOINT4_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT1_URL));
+        endpoints.add(new Endpoint(Sparql.ENDPOINT2_URL));
+
+        ThreadedQueryHandler queryHandler = new ThreadedQueryHandler();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setMaxPoolSize(1);
+        executor.initialize();
+        queryHandler.setTaskExecutor(executor);
+        queryHandler.setNonBlocking(true);
+        assertTrue(queryHandler.isNonBlocking());
+
+        // start up the transport before timing anything
+        queryHandler.handleAsk(projectName, askQuery, endpoints.subList(1, 2));
+
+        long start = System.currentTimeMillis();
+        String result = queryHandler.handleSelect(projectName, selectQuery, endpoints);
+        long end = System.currentTimeMillis();
+
+        assertTrue("Max timeout within limits ("+(end-start)+")", end-start < maxMultipleOfTimeoutToExpect);
+
+        ResultSet results = JenaQueryWrapper.getInstance().stringToResultSet(result);
+
+        int numResults = 0;
+        while (results.hasNext())
+        {
+            results.next();
+            numResults++;
+        }
+        assertEquals("Results with endpoints 1 & 2",7,numResults);
+
+        result = queryHandler.handleConstruct(projectName, constructQuery, endpoints);
+        assertEquals(7,StringUtils.countMatches(result,"rdf:about"));
+
+        result = queryHandler.handleAsk(projectName, askQuery, endpoints);
+        assertTrue(result.contains("true"));
+    }
+
     @Test
     public void testCacheHandling()
     {
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import java.io.ByteArrayInputStream;
+import java.io.PushbackInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class ResultFormatTest {
+
+    @Test
+    public void testNegotiate()
+    {
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate(null));
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate(""));
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate("*/*"));
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate("image/png"));
+        assertEquals(ResultFormat.JSON, ResultFormat.negotiate("application/sparql-results+json"));
+        assertEquals(ResultFormat.JSON, ResultFormat.negotiate("application/json"));
+        assertEquals(ResultFormat.CSV, ResultFormat.negotiate("text/csv; charset=utf-8"));
+        assertEquals(ResultFormat.TSV, ResultFormat.negotiate("Text/Tab-Separated-Values"));
+
+        // highest quality wins, the first listed on a tie
+        assertEquals(ResultFormat.JSON, ResultFormat.negotiate("application/sparql-results+xml;q=0.5, application/sparql-results+json"));
+        assertEquals(ResultFormat.CSV, ResultFormat.negotiate("text/csv, application/sparql-results+json"));
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate("text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"));
+
+        // refused formats aren't used
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate("application/sparql-results+json;q=0"));
+        assertEquals(ResultFormat.XML, ResultFormat.negotiate("application/sparql-results+json;q=x"));
+    }
+
+    @Test
+    public void testSniff() throws Exception
+    {
+        assertEquals(ResultFormat.XML, ResultFormat.sniff("  <?xml version=\"1.0\"?>"));
+        assertEquals(ResultFormat.JSON, ResultFormat.sniff("\n{ \"head\": {} }"));
+        assertEquals(ResultFormat.TSV, ResultFormat.sniff("?book\t?title\n"));
+        assertEquals(ResultFormat.TSV, ResultFormat.sniff("﻿?book"));
+        assertNull(ResultFormat.sniff("true"));
+        assertNull(ResultFormat.sniff(""));
+
+        // nothing read while sniffing is lost
+        byte[] bytes = "﻿ \n{ \"head\": {} }".getBytes("UTF-8");
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(bytes), ResultFormat.SNIFF_LIMIT);
+        assertEquals(ResultFormat.JSON, ResultFormat.sniff(in));
+        byte[] read = new byte[bytes.length];
+        assertEquals(bytes.length, in.read(read));
+        assertArrayEquals(bytes, read);
+
+        in = new PushbackInputStream(new ByteArrayInputStream(new byte[0]), ResultFormat.SNIFF_LIMIT);
+        assertNull(ResultFormat.sniff(in));
+    }
+
+    @Test
+    public void testUpstreamAccept()
+    {
+        // the endpoint is asked for tsv before the others
+        assertEquals(ResultFormat.TSV, ResultFormat.negotiate(ResultFormat.UPSTREAM_ACCEPT));
+        assertFalse(ResultFormat.UPSTREAM_ACCEPT.contains(ResultFormat.CSV.getContentType()));
+    }
+
+    @Test
+    public void testRdfLanguage()
+    {
+        // graphs are asked for as RDF/XML first, which needs no conversion
+        assertTrue(ResultFormat.GRAPH_ACCEPT.startsWith(ResultFormat.RDF_XML + ","));
+        assertNull(ResultFormat.rdfLanguage(ResultFormat.RDF_XML));
+        assertNull(ResultFormat.rdfLanguage(null));
+        assertNull(ResultFormat.rdfLanguage(ResultFormat.TSV.getContentType()));
+
+        assertEquals("TURTLE", ResultFormat.rdfLanguage("text/turtle; charset=UTF-8"));
+        assertEquals("TURTLE", ResultFormat.rdfLanguage("application/x-turtle"));
+        assertEquals("N-TRIPLE", ResultFormat.rdfLanguage("application/n-triples"));
+        assertEquals("N3", ResultFormat.rdfLanguage("Text/N3"));
+    }
+}
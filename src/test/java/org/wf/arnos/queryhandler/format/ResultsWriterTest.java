@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.resultset.JSONInput;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class ResultsWriterTest {
+
+    private List<Result> read(ResultSet resultSet)
+    {
+        List<Result> results = new ArrayList<Result>();
+        while (resultSet.hasNext())
+        {
+            results.add(new Result(resultSet.next()));
+        }
+        return results;
+    }
+
+    private String write(ResultFormat format, List<String> vars, List<Result> results) throws Exception
+    {
+        StringWriter out = new StringWriter();
+        ResultsWriter writer = format.createWriter(out);
+        writer.start(vars);
+        for (Result r : results) writer.write(r);
+        writer.finish();
+        return out.toString();
+    }
+
+    /**
+     * Renders a row's terms, blank nodes being relabelled when read.
+     */
+    private List<String> terms(List<String> vars, List<Result> results)
+    {
+        List<String> terms = new ArrayList<String>();
+        for (Result r : results)
+        {
+            for (String var : vars)
+            {
+                Node n = r.getBinding().get(Var.alloc(var));
+                if (n == null) terms.add("");
+                else if (n.isBlank()) terms.add("_");
+                else terms.add(Result.toXML(n));
+            }
+        }
+        return terms;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        ResultSet resultSet = ResultSetFactory.fromXML(Sparql.SELECT_RESULT_7_BOOKS);
+        List<String> vars = resultSet.getResultVars();
+        List<Result> results = read(resultSet);
+        List<String> expected = terms(vars, results);
+
+        String xml = write(ResultFormat.XML, vars, results);
+        assertEquals(expected, terms(vars, read(ResultSetFactory.fromXML(xml))));
+
+        String json = write(ResultFormat.JSON, vars, results);
+        assertEquals(expected, terms(vars, read(JSONInput.fromJSON(new ByteArrayInputStream(json.getBytes("UTF-8"))))));
+
+        String tsv = write(ResultFormat.TSV, vars, results);
+        resultSet = TSVInput.fromTSV(new StringReader(tsv));
+        assertEquals(vars, resultSet.getResultVars());
+        assertEquals(expected, terms(vars, read(resultSet)));
+    }
+
+    @Test
+    public void testCSV() throws Exception
+    {
+        List<String> vars = new ArrayList<String>();
+        vars.add("book");
+        vars.add("title");
+
+        List<Result> results = read(TSVInput.fromTSV(new StringReader("?book\t?title\n"
+                + "<http://example.org/book/book1>\t\"Harry Potter, \\\"the first\\\"\"@en\n"
+                + "_:b0\t\n")));
+
+        assertEquals("book,title\r\n"
+                + "http://example.org/book/book1,\"Harry Potter, \"\"the first\"\"\"\r\n"
+                + "_:b0,\r\n", write(ResultFormat.CSV, vars, results));
+    }
+
+    @Test
+    public void testEscaping() throws Exception
+    {
+        List<String> vars = new ArrayList<String>();
+        vars.add("text");
+
+        List<Result> results = read(TSVInput.fromTSV(new StringReader("?text\n\"line\\none\\ttab \\\"quoted\\\" \\\\\"\n")));
+        assertEquals("line\none\ttab \"quoted\" \\", results.get(0).getBinding().get(Var.alloc("text")).getLiteralLexicalForm());
+
+        String tsv = write(ResultFormat.TSV, vars, results);
+        assertEquals("?text\n\"line\\none\\ttab \\\"quoted\\\" \\\\\"\n", tsv);
+
+        String json = write(ResultFormat.JSON, vars, results);
+        assertTrue(json.contains("\"value\":\"line\\none\\ttab \\\"quoted\\\" \\\\\""));
+        ResultSet resultSet = JSONInput.fromJSON(new ByteArrayInputStream(json.getBytes("UTF-8")));
+        assertEquals("line\none\ttab \"quoted\" \\", resultSet.nextBinding().get(Var.alloc("text")).getLiteralLexicalForm());
+    }
+
+    @Test
+    public void testBoolean() throws Exception
+    {
+        StringWriter out = new StringWriter();
+        ResultFormat.XML.createWriter(out).writeBoolean(true);
+        assertTrue(out.toString().contains("<boolean>true</boolean>"));
+
+        out = new StringWriter();
+        ResultFormat.JSON.createWriter(out).writeBoolean(false);
+        assertEquals("{\"head\":{},\"boolean\":false}", out.toString());
+
+        out = new StringWriter();
+        ResultFormat.TSV.createWriter(out).writeBoolean(true);
+        assertEquals("?_askResult\ntrue\n", out.toString());
+
+        out = new StringWriter();
+        ResultFormat.CSV.createWriter(out).writeBoolean(true);
+        assertEquals("_askResult\r\ntrue\r\n", out.toString());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.format;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import org.junit.Test;
+import org.wf.arnos.exception.ArnosRuntimeException;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class TSVInputTest {
+
+    @Test
+    public void testParseNode()
+    {
+        assertNull(TSVInput.parseNode(""));
+        assertEquals(Node.createURI("http://example.org/book/book1"), TSVInput.parseNode("<http://example.org/book/book1>"));
+        assertEquals(Node.createURI("http://example.org/café"), TSVInput.parseNode("<http://example.org/caf\\u00E9>"));
+        assertTrue(TSVInput.parseNode("_:b0").isBlank());
+        assertEquals("b0", TSVInput.parseNode("_:b0").getBlankNodeLabel());
+
+        assertEquals(Node.createLiteral("Harry Potter", "", null), TSVInput.parseNode("\"Harry Potter\""));
+        assertEquals(Node.createLiteral("Harry Potter", "en", null), TSVInput.parseNode("\"Harry Potter\"@en"));
+        assertEquals(Node.createLiteral("Harry Potter", "", XSDDatatype.XSDstring),
+                TSVInput.parseNode("\"Harry Potter\"^^<http://www.w3.org/2001/XMLSchema#string>"));
+        assertEquals(Node.createLiteral("it's", "", null), TSVInput.parseNode("'it\\'s'"));
+        assertEquals(Node.createLiteral("a \"b\"", "", null), TSVInput.parseNode("\"\"\"a \"b\\\"\"\"\""));
+
+        // turtle's bare forms
+        assertEquals(Node.createLiteral("42", "", XSDDatatype.XSDinteger), TSVInput.parseNode("42"));
+        assertEquals(Node.createLiteral("-4.2", "", XSDDatatype.XSDdecimal), TSVInput.parseNode("-4.2"));
+        assertEquals(Node.createLiteral("4.2E1", "", XSDDatatype.XSDdouble), TSVInput.parseNode("4.2E1"));
+        assertEquals(Node.createLiteral("true", "", XSDDatatype.XSDboolean), TSVInput.parseNode("true"));
+
+        try
+        {
+            TSVInput.parseNode("ex:book1");
+            fail("Prefixed name read");
+        }
+        catch (ArnosRuntimeException e)
+        {
+            // expected result
+        }
+    }
+
+    @Test
+    public void testFromTSV() throws Exception
+    {
+        String tsv = "?book\t?title\t?pages\n"
+                + "<http://example.org/book/book1>\t\"Harry Potter\"@en\t300\n"
+                + "<http://example.org/book/book2>\t\t\n"
+                + "\t\"Fantastic Beasts\"\n";
+
+        ResultSet resultSet = TSVInput.fromTSV(new ByteArrayInputStream(tsv.getBytes("UTF-8")));
+        assertEquals(3, resultSet.getResultVars().size());
+        assertEquals("book", resultSet.getResultVars().get(0));
+
+        Binding b = resultSet.nextBinding();
+        assertEquals("http://example.org/book/book1", b.get(Var.alloc("book")).getURI());
+        assertEquals("en", b.get(Var.alloc("title")).getLiteralLanguage());
+        assertEquals(XSDDatatype.XSDinteger.getURI(), b.get(Var.alloc("pages")).getLiteralDatatypeURI());
+
+        // empty fields are unbound
+        b = resultSet.nextBinding();
+        assertNull(b.get(Var.alloc("title")));
+        assertNull(b.get(Var.alloc("pages")));
+
+        b = resultSet.nextBinding();
+        assertNull(b.get(Var.alloc("book")));
+        assertEquals("Fantastic Beasts", b.get(Var.alloc("title")).getLiteralLexicalForm());
+        assertNull(b.get(Var.alloc("pages")));
+
+        assertFalse(resultSet.hasNext());
+
+        // no results
+        resultSet = TSVInput.fromTSV(new StringReader("?book\n"));
+        assertEquals(1, resultSet.getResultVars().size());
+        assertFalse(resultSet.hasNext());
+    }
+}
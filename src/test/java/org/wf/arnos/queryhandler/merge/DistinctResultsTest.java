@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+import org.wf.arnos.controller.model.sparql.Result;
+import static org.junit.Assert.*;
+import static org.wf.arnos.queryhandler.merge.SortedMergeTest.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class DistinctResultsTest {
+
+    static final List<String> VARS = Arrays.asList("n", "src");
+
+    @Test
+    public void testDropsDuplicates()
+    {
+        System.out.println("testDropsDuplicates");
+
+        List<List<Result>> endpoints = new ArrayList<List<Result>>();
+        endpoints.add(endpoint("a", 1, 2, 1, 3));
+        endpoints.add(endpoint("b", 2));
+        endpoints.add(endpoint("a", 3, 4));
+
+        assertEquals("1a 2a 3a 2b 4a", drain(new DistinctResults(new ConcatenatedResults(endpoints), VARS)));
+    }
+
+    @Test
+    public void testKeepsFirst()
+    {
+        System.out.println("testKeepsFirst");
+
+        List<Result> results = endpoint("x", 5, 5, 5);
+        DistinctResults distinct = new DistinctResults(results.iterator(), VARS);
+
+        assertSame(results.get(0), distinct.next());
+        assertFalse(distinct.hasNext());
+    }
+
+    @Test
+    public void testProjectedVariables()
+    {
+        System.out.println("testProjectedVariables");
+
+        // only the query's variables make a result distinct
+        List<Result> results = endpoint("a", 1, 2, 3);
+        assertEquals("1a", drain(new DistinctResults(results.iterator(), Arrays.asList("src"))));
+    }
+
+    @Test
+    public void testUnbound()
+    {
+        System.out.println("testUnbound");
+
+        List<Result> results = new ArrayList<Result>();
+        results.add(plain("1"));
+        results.add(unbound());
+        results.add(unbound());
+        results.add(plain("1"));
+
+        // a plain literal isn't the same term as an integer
+        results.add(result(1, "a"));
+
+        DistinctResults distinct = new DistinctResults(results.iterator(), Arrays.asList("n"));
+        assertSame(results.get(0), distinct.next());
+        assertSame(results.get(1), distinct.next());
+        assertSame(results.get(4), distinct.next());
+        assertFalse(distinct.hasNext());
+    }
+
+    @Test
+    public void testOrdered()
+    {
+        System.out.println("testOrdered");
+
+        List<Result> results = endpoint("a", 1, 1, 2, 3, 3, 3, 4);
+
+        // only the keys of results comparing equal are kept
+        assertEquals("1a 2a 3a 4a", drain(new DistinctResults(results.iterator(), VARS, ascending())));
+    }
+
+    @Test
+    public void testSpilled()
+    {
+        System.out.println("testSpilled");
+
+        List<Result> results = new ArrayList<Result>();
+        for (int i = 0; i < 50; i++) results.add(result(i % 20, "a"));
+
+        // room for a couple of keys, the rest are partitioned
+        MemoryBudget budget = new MemoryBudget(2 * MemoryBudget.estimate(results.get(0)), false);
+        DistinctResults distinct = new DistinctResults(results.iterator(), VARS, budget);
+
+        List<String> values = new ArrayList<String>();
+        while (distinct.hasNext()) values.add(drain(Arrays.asList(distinct.next()).iterator()));
+        distinct.close();
+
+        assertEquals(20, values.size());
+        assertEquals(20, new HashSet<String>(values).size());
+        assertEquals("0a", values.get(0));
+        assertEquals(0, budget.getUsed());
+    }
+
+    static Result plain(final String n)
+    {
+        BindingMap b = new BindingMap();
+        b.add(Var.alloc("n"), Node.createLiteral(n));
+        return new Result(new ResultBinding(ModelFactory.createDefaultModel(), b));
+    }
+
+    static Result unbound()
+    {
+        BindingMap b = new BindingMap();
+        b.add(Var.alloc("src"), Node.createLiteral("a"));
+        return new Result(new ResultBinding(ModelFactory.createDefaultModel(), b));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.expr.ExprVar;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import org.wf.arnos.controller.model.sparql.Result;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class SortedMergeTest {
+
+    /**
+     * Creates a result binding ?n to an integer and ?src to a label.
+     */
+    static Result result(final int n, final String src)
+    {
+        BindingMap b = new BindingMap();
+        b.add(Var.alloc("n"), Node.createLiteral(String.valueOf(n), null, XSDDatatype.XSDinteger));
+        b.add(Var.alloc("src"), Node.createLiteral(src));
+        return new Result(new ResultBinding(ModelFactory.createDefaultModel(), b));
+    }
+
+    static List<Result> endpoint(final String src, final int... values)
+    {
+        List<Result> results = new ArrayList<Result>();
+        for (int n : values) results.add(result(n, src));
+        return results;
+    }
+
+    static ResultComparator ascending()
+    {
+        List<SortCondition> conditions = new ArrayList<SortCondition>();
+        conditions.add(new SortCondition(new ExprVar("n"), Query.ORDER_ASCENDING));
+        return new ResultComparator(conditions);
+    }
+
+    /**
+     * @return ?n and ?src of each result, e.g. "1a 2b"
+     */
+    static String drain(final java.util.Iterator<Result> it)
+    {
+        StringBuilder s = new StringBuilder();
+        while (it.hasNext())
+        {
+            Result r = it.next();
+            if (s.length() > 0) s.append(' ');
+            s.append(r.getBinding().get(Var.alloc("n")).getLiteralLexicalForm());
+            s.append(r.getBinding().get(Var.alloc("src")).getLiteralLexicalForm());
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void testMerge()
+    {
+        System.out.println("testMerge");
+
+        List<List<Result>> endpoints = new ArrayList<List<Result>>();
+        endpoints.add(endpoint("a", 1, 4, 9));
+        endpoints.add(endpoint("b"));
+        endpoints.add(endpoint("c", 2, 3, 10, 11));
+
+        assertEquals("1a 2c 3c 4a 9a 10c 11c", drain(new SortedMerge(endpoints, ascending())));
+    }
+
+    @Test
+    public void testStableWithDuplicates()
+    {
+        System.out.println("testStableWithDuplicates");
+
+        List<List<Result>> endpoints = new ArrayList<List<Result>>();
+        endpoints.add(endpoint("x", 1, 2, 2));
+        endpoints.add(endpoint("x", 2, 3));
+        endpoints.add(endpoint("x", 2));
+
+        // none of the equal results are dropped
+        assertEquals("1x 2x 2x 2x 2x 3x", drain(new SortedMerge(endpoints, ascending())));
+
+        // and they keep endpoint order
+        SortedMerge merge = new SortedMerge(endpoints, ascending());
+        assertSame(endpoints.get(0).get(0), merge.next());
+        assertSame(endpoints.get(0).get(1), merge.next());
+        assertSame(endpoints.get(0).get(2), merge.next());
+        assertSame(endpoints.get(1).get(0), merge.next());
+        assertSame(endpoints.get(2).get(0), merge.next());
+        assertSame(endpoints.get(1).get(1), merge.next());
+    }
+
+    @Test
+    public void testUnsortedEndpoint()
+    {
+        System.out.println("testUnsortedEndpoint");
+
+        List<List<Result>> endpoints = new ArrayList<List<Result>>();
+        endpoints.add(endpoint("a", 5, 1, 3));
+        endpoints.add(endpoint("b", 2, 4));
+
+        assertFalse(SortedMerge.isSorted(endpoints.get(0), ascending()));
+        assertEquals("1a 2b 3a 4b 5a", drain(new SortedMerge(endpoints, ascending())));
+    }
+
+    @Test(expected=NoSuchElementException.class)
+    public void testEmpty()
+    {
+        System.out.println("testEmpty");
+
+        SortedMerge merge = new SortedMerge(new ArrayList<List<Result>>(), ascending());
+        assertFalse(merge.hasNext());
+        merge.next();
+    }
+
+    @Test
+    public void testConcatenation()
+    {
+        System.out.println("testConcatenation");
+
+        List<List<Result>> endpoints = new ArrayList<List<Result>>();
+        endpoints.add(endpoint("a"));
+        endpoints.add(endpoint("b", 3, 1));
+        endpoints.add(endpoint("c"));
+        endpoints.add(endpoint("d", 2));
+
+        assertEquals("3b 1b 2d", drain(new ConcatenatedResults(endpoints)));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+import org.wf.arnos.controller.model.sparql.Result;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class SpillFileTest {
+
+    static List<Result> terms()
+    {
+        List<Result> results = new ArrayList<Result>();
+
+        BindingMap b = new BindingMap();
+        b.add(Var.alloc("uri"), Node.createURI("http://example.org/book/book1"));
+        b.add(Var.alloc("blank"), Node.createAnon(new AnonId("b0")));
+        b.add(Var.alloc("plain"), Node.createLiteral("Harry Potter & the <Deathly> Hallows"));
+        results.add(new Result(new ResultBinding(ModelFactory.createDefaultModel(), b)));
+
+        b = new BindingMap();
+        b.add(Var.alloc("lang"), Node.createLiteral("café", "fr", null));
+        b.add(Var.alloc("typed"), Node.createLiteral("42", null, XSDDatatype.XSDinteger));
+        results.add(new Result(new ResultBinding(ModelFactory.createDefaultModel(), b)));
+
+        // longer than DataOutput.writeUTF allows
+        b = new BindingMap();
+        b.add(Var.alloc("long"), Node.createLiteral(StringUtils.repeat("x", 70000)));
+        results.add(new Result(new ResultBinding(ModelFactory.createDefaultModel(), b)));
+
+        // no bindings at all
+        results.add(new Result(new ResultBinding(ModelFactory.createDefaultModel(), new BindingMap())));
+
+        return results;
+    }
+
+    static Map<Var, Node> bindings(final Result r)
+    {
+        Map<Var, Node> bindings = new HashMap<Var, Node>();
+        Iterator<Var> vars = r.getBinding().vars();
+        while (vars.hasNext())
+        {
+            Var var = vars.next();
+            bindings.put(var, r.getBinding().get(var));
+        }
+        return bindings;
+    }
+
+    void roundTrip(final boolean mapped)
+    {
+        List<Result> results = terms();
+        SpillFile file = new SpillFile(mapped);
+        try
+        {
+            for (Result r : results) file.write(r);
+            assertEquals(results.size(), file.size());
+
+            // the file can be read more than once
+            for (int pass = 0; pass < 2; pass++)
+            {
+                Iterator<Result> it = file.iterator();
+                for (Result r : results)
+                {
+                    Result read = it.next();
+                    assertEquals(r.toXML().length(), read.toXML().length());
+                    assertEquals(bindings(r), bindings(read));
+                }
+                assertFalse(it.hasNext());
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        System.out.println("testRoundTrip");
+        roundTrip(false);
+    }
+
+    @Test
+    public void testMappedRoundTrip()
+    {
+        System.out.println("testMappedRoundTrip");
+        roundTrip(true);
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testWriteAfterRead()
+    {
+        System.out.println("testWriteAfterRead");
+
+        SpillFile file = new SpillFile(false);
+        try
+        {
+            file.iterator();
+            file.write(SortedMergeTest.result(1, "a"));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
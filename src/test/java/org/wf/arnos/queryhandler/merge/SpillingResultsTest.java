@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import org.wf.arnos.controller.model.sparql.Result;
+import org.wf.arnos.controller.model.sparql.ResultTable;
+import static org.junit.Assert.*;
+import static org.wf.arnos.queryhandler.merge.SortedMergeTest.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class SpillingResultsTest {
+
+    @Test
+    public void testInMemory()
+    {
+        System.out.println("testInMemory");
+
+        MemoryBudget budget = new MemoryBudget(1024 * 1024, false);
+        SpillingResults results = new SpillingResults(budget, ascending());
+        results.addAll(endpoint("a", 3, 1, 2));
+
+        assertEquals(0, results.getRuns());
+        assertEquals(3, results.size());
+        assertEquals("1a 2a 3a", drain(results.iterator()));
+
+        results.clear();
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testExternalSort()
+    {
+        System.out.println("testExternalSort");
+
+        // room for about two results, held in a table
+        ResultTable two = new ResultTable();
+        two.add(result(1, "a"));
+        two.add(result(2, "a"));
+        MemoryBudget budget = new MemoryBudget(two.getEstimatedSize(), false);
+        SpillingResults results = new SpillingResults(budget, ascending());
+        results.addAll(endpoint("a", 9, 4, 7, 1, 8, 2, 6, 5, 3));
+
+        assertTrue(results.getRuns() > 1);
+        assertEquals(9, results.size());
+        assertEquals("1a 2a 3a 4a 5a 6a 7a 8a 9a", drain(results.iterator()));
+
+        // and can be read again
+        assertEquals("1a 2a 3a 4a 5a 6a 7a 8a 9a", drain(results.iterator()));
+
+        results.clear();
+        assertEquals(0, budget.getUsed());
+        assertFalse(results.iterator().hasNext());
+    }
+
+    @Test
+    public void testStable()
+    {
+        System.out.println("testStable");
+
+        MemoryBudget budget = new MemoryBudget(1, true);
+        SpillingResults results = new SpillingResults(budget, ascending());
+        results.addAll(endpoint("x", 2, 1, 2, 2, 1));
+
+        // none of the equal results are lost across runs
+        assertEquals("1x 1x 2x 2x 2x", drain(results.iterator()));
+        results.clear();
+    }
+
+    @Test
+    public void testUnordered()
+    {
+        System.out.println("testUnordered");
+
+        MemoryBudget budget = new MemoryBudget(1, false);
+        SpillingResults results = new SpillingResults(budget, null);
+        List<Result> added = endpoint("a", 3, 1, 2);
+        results.addAll(added);
+
+        assertEquals(3, results.getRuns());
+        assertEquals("3a 1a 2a", drain(results.iterator()));
+        results.clear();
+    }
+
+    @Test
+    public void testSortedMerge()
+    {
+        System.out.println("testSortedMerge");
+
+        MemoryBudget budget = new MemoryBudget(1, false);
+        List<SpillingResults> endpoints = new ArrayList<SpillingResults>();
+        endpoints.add(new SpillingResults(budget, ascending()));
+        endpoints.add(new SpillingResults(budget, ascending()));
+        endpoints.get(0).addAll(endpoint("a", 5, 1, 3));
+        endpoints.get(1).addAll(endpoint("b", 4, 2));
+
+        Iterator<Result> merged = new SortedMerge(endpoints, ascending());
+        assertEquals("1a 2b 3a 4b 5a", drain(merged));
+
+        for (SpillingResults results : endpoints) results.clear();
+        assertEquals(0, budget.getUsed());
+    }
+}
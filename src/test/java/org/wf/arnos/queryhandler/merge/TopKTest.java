@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.merge;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.wf.arnos.controller.model.sparql.Result;
+import static org.junit.Assert.*;
+import static org.wf.arnos.queryhandler.merge.SortedMergeTest.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class TopKTest {
+
+    @Test
+    public void testKeepsFirstK()
+    {
+        System.out.println("testKeepsFirstK");
+
+        TopK topK = new TopK(3, ascending());
+        topK.addAll(endpoint("a", 9, 4, 7, 1, 8, 2, 6));
+
+        assertEquals(3, topK.size());
+        assertEquals("1a 2a 4a", drain(topK.iterator()));
+    }
+
+    @Test
+    public void testFewerThanK()
+    {
+        System.out.println("testFewerThanK");
+
+        TopK topK = new TopK(10, ascending());
+        topK.addAll(endpoint("a", 3, 1, 2));
+
+        assertEquals("1a 2a 3a", drain(topK.iterator()));
+
+        topK.clear();
+        assertTrue(topK.isEmpty());
+    }
+
+    @Test
+    public void testStableWithDuplicates()
+    {
+        System.out.println("testStableWithDuplicates");
+
+        List<Result> added = endpoint("x", 2, 1, 2, 2, 3);
+        TopK topK = new TopK(3, ascending());
+        topK.addAll(added);
+
+        // the earliest of the equal results are kept, in the order they were added
+        List<Result> kept = new ArrayList<Result>(topK);
+        assertSame(added.get(1), kept.get(0));
+        assertSame(added.get(0), kept.get(1));
+        assertSame(added.get(2), kept.get(2));
+    }
+
+    @Test
+    public void testZero()
+    {
+        System.out.println("testZero");
+
+        TopK topK = new TopK(0, ascending());
+        assertFalse(topK.add(result(1, "a")));
+        assertTrue(topK.isEmpty());
+    }
+
+    @Test
+    public void testMerge()
+    {
+        System.out.println("testMerge");
+
+        List<TopK> endpoints = new ArrayList<TopK>();
+        endpoints.add(new TopK(2, ascending()));
+        endpoints.add(new TopK(2, ascending()));
+        endpoints.get(0).addAll(endpoint("a", 5, 3, 1));
+        endpoints.get(1).addAll(endpoint("b", 4, 2, 6));
+
+        assertEquals("1a 2b 3a 4b", drain(new SortedMerge(endpoints, ascending())));
+    }
+}
@@ -32,6 +32,7 @@
 package org.wf.arnos.queryhandler.task;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -46,6 +47,7 @@ import org.wf.arnos.controller.model.sparql.Result;
 import org.wf.arnos.queryhandler.JenaQueryWrapper;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
 import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.RequestHandle;
 import org.wf.arnos.utils.Sparql;
 import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
@@ -112,11 +114,11 @@ public class AbstractResponseTaskTest extends EasyMockSupport {
         expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
         expect(mockThreadedQueryHandler.getCache()).andReturn(cache).anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(selectResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(selectResult));
 
-        expect(mockQueryWrapper.stringToResultSet(selectResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToResultSet(selectResult));
+        expect(mockQueryWrapper.streamToResultSet((InputStream) notNull()))
+                .andAnswer(MockStreams.parseResultSet());
 
         replayAll();
 
@@ -180,7 +182,7 @@ public class AbstractResponseTaskTest extends EasyMockSupport {
         expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
         expect(mockThreadedQueryHandler.getCache()).andReturn(cache).anyTimes();
 
-        expect(mockQueryWrapper.execQuery(Sparql.ENDPOINT1_URL, askQuery)).andReturn(askResult);
+        expect(mockQueryWrapper.execQuery(eq(Sparql.ENDPOINT1_URL), eq(askQuery), (RequestHandle) notNull())).andReturn(askResult);
         expect(mockQueryWrapper.stringToBoolean(askResult))
                 .andReturn(true);
 
@@ -45,8 +45,10 @@ import org.wf.arnos.cachehandler.SimpleCacheHandlerTest;
 import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
 import org.wf.arnos.utils.Sparql;
+import org.wf.arnos.queryhandler.CircuitBreakers;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
 import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.RequestHandle;
 
 /**
  *
@@ -100,7 +102,7 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
                 .andReturn(false)
                 .anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andReturn(askResult);
 
         expect(mockQueryWrapper.stringToBoolean(askResult))
@@ -126,7 +128,7 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
                 .andReturn(false)
                 .anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andReturn(askResult.replace(">", "\n "));
 
         expect(mockQueryWrapper.stringToBoolean((String) notNull()))
@@ -143,6 +145,57 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
     }
 
 
+    @Test
+    public void testAnswerSignal()
+    {
+        System.out.println("testAnswerSignal");
+
+        List <Boolean> askResults = new LinkedList<Boolean>();
+        CountDownLatch answerSignal = new CountDownLatch(1);
+
+        FetchBooleanResponseTask fetcher = new FetchBooleanResponseTask(mockThreadedQueryHandler,
+                askResults,
+                Sparql.ENDPOINT1_URL,
+                askQuery,
+                projectName,
+                doneSignal,
+                answerSignal)
+        {
+            @Override
+            protected QueryWrapperInterface getQueryWrapper()
+            {
+                return mockQueryWrapper;
+            }
+        };
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull())).andReturn(askResult);
+        expect(mockQueryWrapper.stringToBoolean(askResult)).andReturn(false);
+
+        replayAll();
+
+        fetcher.run();
+
+        verifyAll();
+
+        // a false answer doesn't settle the query
+        assertEquals("Answer not signalled", 1, answerSignal.getCount());
+
+        resetAll();
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull())).andReturn(askResult);
+        expect(mockQueryWrapper.stringToBoolean(askResult)).andReturn(true);
+
+        replayAll();
+
+        fetcher.run();
+
+        verifyAll();
+
+        assertEquals("Answer signalled", 0, answerSignal.getCount());
+    }
+
     @Test
     public void testMockUseOfCache()
     {
@@ -171,7 +224,7 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
 
         expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).andReturn(askResult);
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull())).andReturn(askResult);
 
         mockCache.put((String)anyObject(), (List)anyObject(), (String)anyObject(), (String)anyObject());
 
@@ -248,7 +301,7 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
         expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
         expect(mockThreadedQueryHandler.getCache()).andReturn(cache).anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andReturn(askResult);
 
         expect(mockQueryWrapper.stringToBoolean(askResult))
@@ -312,6 +365,67 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
         assertTrue("Got the expected result", askResults.get(1));
     }
 
+    @Test
+    public void testOpenCircuitNotCached()
+    {
+        System.out.println("testOpenCircuitNotCached");
+
+        CacheHandlerInterface cache = null;
+        try
+        {
+            cache = new SimpleCacheHandler(new File(SimpleCacheHandlerTest.CACHE_SETTINGS));
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+            fail("Unable to create cache");
+        }
+        cache.flushAll(projectName);
+
+        CircuitBreakers breakers = CircuitBreakers.getInstance();
+        breakers.setEnabled(true);
+        breakers.tripCircuit(Sparql.ENDPOINT1_URL);
+
+        List <Boolean> askResults = new LinkedList<Boolean>();
+
+        FetchBooleanResponseTask fetcher = new FetchBooleanResponseTask(mockThreadedQueryHandler,
+                askResults,
+                askQuery,
+                Sparql.ENDPOINT1_URL,
+                projectName,
+                doneSignal)
+        {
+            @Override
+            protected QueryWrapperInterface getQueryWrapper()
+            {
+                return mockQueryWrapper;
+            }
+        };
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
+        expect(mockThreadedQueryHandler.getCache()).andReturn(cache).anyTimes();
+
+        // the endpoint is skipped, so neither queried nor parsed
+        replayAll();
+
+        try
+        {
+            fetcher.run();
+
+            verifyAll();
+
+            assertTrue("Circuit open", fetcher.isCircuitOpen());
+            assertEquals("No answer from a skipped endpoint", 0, askResults.size());
+            assertFalse("Nothing cached", cache.contains(projectName, fetcher.cacheKey));
+            assertEquals("Latch correctly set", 0, doneSignal.getCount());
+        }
+        finally
+        {
+            breakers.reset();
+            breakers.setEnabled(false);
+        }
+    }
+
     @Test
     public void testExceptionThrowing()
     {
@@ -339,7 +453,7 @@ public class FetchBooleanResponseTaskTest extends EasyMockSupport
 
         Exception expectedException = new RuntimeException();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andThrow(expectedException);
 
         replayAll();
@@ -34,6 +34,7 @@ package org.wf.arnos.queryhandler.task;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import java.io.File;
+import java.io.InputStream;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -49,6 +50,7 @@ import org.easymock.EasyMockSupport;
 import org.wf.arnos.utils.Sparql;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
 import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.RequestHandle;
 
 /**
  *
@@ -102,11 +104,11 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
 
         expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
         
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(constructResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(constructResult));
 
-        expect(mockQueryWrapper.stringToModel(constructResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToModel(constructResult));
+        expect(mockQueryWrapper.streamToModel((InputStream) notNull()))
+                .andAnswer(MockStreams.parseModel());
 
         replayAll();
 
@@ -127,11 +129,11 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
 
         expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
         
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(constructResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(constructResult));
 
-        expect(mockQueryWrapper.stringToModel(constructResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToModel(constructResult));
+        expect(mockQueryWrapper.streamToModel((InputStream) notNull()))
+                .andAnswer(MockStreams.parseModel());
 
         replayAll();
 
@@ -165,11 +167,11 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
         String emptyDescribe = Sparql.DESCRIBE_RESULT_EMPTY_BOOK;
         expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(emptyDescribe);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(emptyDescribe));
 
-        expect(mockQueryWrapper.stringToModel(emptyDescribe))
-                .andReturn(JenaQueryWrapper.getInstance().stringToModel(emptyDescribe));
+        expect(mockQueryWrapper.streamToModel((InputStream) notNull()))
+                .andAnswer(MockStreams.parseModel());
 
         replayAll();
 
@@ -214,11 +216,11 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
         expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
         mockCache.put((String)anyObject(), (List)anyObject(), (String)anyObject(), (String)anyObject());
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(constructResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(constructResult));
 
-        expect(mockQueryWrapper.stringToModel(constructResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToModel(constructResult));
+        expect(mockQueryWrapper.streamToModel((InputStream) notNull()))
+                .andAnswer(MockStreams.parseModel());
 
         replayAll();
 
@@ -292,11 +294,11 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
         expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
         expect(mockThreadedQueryHandler.getCache()).andReturn(cache).anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(constructResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(constructResult));
 
-        expect(mockQueryWrapper.stringToModel(constructResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToModel(constructResult));
+        expect(mockQueryWrapper.streamToModel((InputStream) notNull()))
+                .andAnswer(MockStreams.parseModel());
 
         replayAll();
 
@@ -387,7 +389,7 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
 
         Exception expectedException = new RuntimeException();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andThrow(expectedException);
 
         replayAll();
@@ -425,8 +427,11 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
                 .andReturn(false)
                 .anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
-                .andReturn("");
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
+                .andReturn(MockStreams.stream(""));
+
+        expect(mockQueryWrapper.streamToModel((InputStream) notNull()))
+                .andAnswer(MockStreams.parseModel());
 
         model = ModelFactory.createDefaultModel();
 
@@ -445,7 +450,7 @@ public class FetchModelResponseTaskTest extends EasyMockSupport
                 .andReturn(false)
                 .anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andReturn(null);
 
         model = ModelFactory.createDefaultModel();
@@ -32,6 +32,7 @@
 package org.wf.arnos.queryhandler.task;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -45,9 +46,12 @@ import org.wf.arnos.queryhandler.JenaQueryWrapper;
 import org.wf.arnos.utils.Sparql;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
 import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.RequestCoalescer;
+import org.wf.arnos.queryhandler.RequestHandle;
 import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
 import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
 import org.wf.arnos.controller.model.sparql.Result;
 
 /**
@@ -101,11 +105,11 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
 
         expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(selectResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(selectResult));
 
-        expect(mockQueryWrapper.stringToResultSet(selectResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToResultSet(selectResult));
+        expect(mockQueryWrapper.streamToResultSet((InputStream) notNull()))
+                .andAnswer(MockStreams.parseResultSet());
 
         replayAll();
 
@@ -149,11 +153,11 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
         
         mockCache.put((String)anyObject(), (List)anyObject(), (String)anyObject(), (String)anyObject());
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(selectResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(selectResult));
 
-        expect(mockQueryWrapper.stringToResultSet(selectResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToResultSet(selectResult));
+        expect(mockQueryWrapper.streamToResultSet((InputStream) notNull()))
+                .andAnswer(MockStreams.parseResultSet());
         
         replayAll();
 
@@ -227,11 +231,11 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
         expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
         expect(mockThreadedQueryHandler.getCache()).andReturn(cache).anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
-                andReturn(selectResult);
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
+                andReturn(MockStreams.stream(selectResult));
 
-        expect(mockQueryWrapper.stringToResultSet(selectResult))
-                .andReturn(JenaQueryWrapper.getInstance().stringToResultSet(selectResult));
+        expect(mockQueryWrapper.streamToResultSet((InputStream) notNull()))
+                .andAnswer(MockStreams.parseResultSet());
 
         replayAll();
 
@@ -270,6 +274,79 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
         assertTrue(cache.contains(projectName, fetcher.cacheKey));
     }
 
+    @Test
+    public void testCoalescing() throws Exception
+    {
+        System.out.println("testCoalescing");
+
+        final RequestCoalescer coalescer = RequestCoalescer.getInstance();
+        coalescer.reset();
+
+        CacheHandlerInterface mockCache = createMock(CacheHandlerInterface.class);
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
+        expect(mockThreadedQueryHandler.getCache()).andReturn(mockCache).anyTimes();
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false).anyTimes();
+
+        // only the leader caches the response
+        mockCache.put((String)anyObject(), (List)anyObject(), (String)anyObject(), (String)anyObject());
+
+        // the endpoint is queried once, responding after the other tasks have joined
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
+                .andAnswer(new IAnswer<InputStream>()
+                {
+                    public InputStream answer() throws Exception
+                    {
+                        for (int i = 0; i < 100 && coalescer.getFollowers() < 2; i++) Thread.sleep(10);
+                        return MockStreams.stream(selectResult);
+                    }
+                });
+
+        expect(mockQueryWrapper.streamToResultSet((InputStream) notNull()))
+                .andAnswer(MockStreams.parseResultSet()).times(3);
+
+        replayAll();
+
+        CountDownLatch allDone = new CountDownLatch(3);
+        List<List<Result>> results = new LinkedList<List<Result>>();
+        List<Thread> threads = new LinkedList<Thread>();
+        for (int i = 0; i < 3; i++)
+        {
+            List<Result> taskResults = new LinkedList<Result>();
+            results.add(taskResults);
+            threads.add(new Thread(new FetchResultSetResponseTask(mockThreadedQueryHandler,
+                    taskResults,
+                    Sparql.ENDPOINT1_URL,
+                    selectQuery,
+                    projectName,
+                    allDone)
+            {
+                @Override
+                protected QueryWrapperInterface getQueryWrapper()
+                {
+                    return mockQueryWrapper;
+                }
+            }));
+        }
+
+        threads.get(0).start();
+        for (int i = 0; i < 100 && coalescer.getLeaders() < 1; i++) Thread.sleep(10);
+        threads.get(1).start();
+        threads.get(2).start();
+        for (Thread t : threads) t.join();
+
+        verifyAll();
+
+        assertEquals(1, coalescer.getLeaders());
+        assertEquals(2, coalescer.getFollowers());
+        assertEquals(0, coalescer.getInFlight());
+        for (List<Result> taskResults : results)
+        {
+            assertEquals("Got expected number of results", 7, taskResults.size());
+        }
+        assertEquals("Latch correctly set", 0, allDone.getCount());
+    }
+
     @Test
     public void testInstantiation()
     {
@@ -317,7 +394,7 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
 
         Exception expectedException = new RuntimeException();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andThrow(expectedException);
 
         replayAll();
@@ -354,8 +431,11 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
                 .andReturn(false)
                 .anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
-                .andReturn("");
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
+                .andReturn(MockStreams.stream(""));
+
+        expect(mockQueryWrapper.streamToResultSet((InputStream) notNull()))
+                .andAnswer(MockStreams.parseResultSet());
 
         replayAll();
 
@@ -372,7 +452,7 @@ public class FetchResultSetResponseTaskTest extends EasyMockSupport
                 .andReturn(false)
                 .anyTimes();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andReturn(null);
 
         replayAll();
@@ -42,6 +42,7 @@ import org.easymock.EasyMockSupport;
 import org.wf.arnos.utils.Sparql;
 import org.wf.arnos.queryhandler.QueryHandlerInterface;
 import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.RequestHandle;
 
 /**
  *
@@ -92,7 +93,7 @@ public class FetchUpdateResponseTaskTest extends EasyMockSupport
 
         expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
         
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull())).
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull())).
                 andReturn(queryResult);
 
         replayAll();
@@ -157,7 +158,7 @@ public class FetchUpdateResponseTaskTest extends EasyMockSupport
 
         Exception expectedException = new RuntimeException();
 
-        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull()))
+        expect(mockQueryWrapper.execQuery((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
                 .andThrow(expectedException);
 
         replayAll();
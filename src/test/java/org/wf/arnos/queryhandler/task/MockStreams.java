@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.task;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import org.easymock.IAnswer;
+import org.wf.arnos.queryhandler.JenaQueryWrapper;
+import static org.easymock.EasyMock.getCurrentArguments;
+
+/**
+ * Helpers for mocking the streaming methods of the query wrapper.
+ * The answers delegate to the real wrapper so that the task reads the stream
+ * it was given, just as it would when talking to an endpoint.
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+final class MockStreams
+{
+    private MockStreams()
+    {
+    }
+
+    /**
+     * @param s Endpoint response
+     * @return Response as a stream
+     */
+    static InputStream stream(final String s)
+    {
+        try
+        {
+            return new ByteArrayInputStream(s.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return Answer parsing the stream passed to <code>streamToResultSet</code>
+     */
+    static IAnswer<ResultSet> parseResultSet()
+    {
+        return new IAnswer<ResultSet>()
+        {
+            public ResultSet answer()
+            {
+                return JenaQueryWrapper.getInstance().streamToResultSet((InputStream) getCurrentArguments()[0]);
+            }
+        };
+    }
+
+    /**
+     * @return Answer parsing the stream passed to <code>streamToModel</code>
+     */
+    static IAnswer<Model> parseModel()
+    {
+        return new IAnswer<Model>()
+        {
+            public Model answer()
+            {
+                return JenaQueryWrapper.getInstance().streamToModel((InputStream) getCurrentArguments()[0]);
+            }
+        };
+    }
+}
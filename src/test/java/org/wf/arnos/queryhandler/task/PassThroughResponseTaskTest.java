@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2009, University of Bristol
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1) Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2) Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3) Neither the name of the University of Bristol nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.wf.arnos.queryhandler.task;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.apache.log4j.xml.DOMConfigurator;
+import org.easymock.EasyMockSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.wf.arnos.cachehandler.CacheHandlerInterface;
+import org.wf.arnos.queryhandler.QueryHandlerInterface;
+import org.wf.arnos.queryhandler.QueryWrapperInterface;
+import org.wf.arnos.queryhandler.RequestHandle;
+import org.wf.arnos.utils.Sparql;
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author Chris Bailey (c.bailey@bristol.ac.uk)
+ */
+public class PassThroughResponseTaskTest extends EasyMockSupport
+{
+    String selectQuery = Sparql.SELECT_QUERY_BOOKS;
+    String selectResult = new Sparql().getResult(Sparql.ENDPOINT1_URL, selectQuery);
+
+    QueryHandlerInterface mockThreadedQueryHandler;
+
+    QueryWrapperInterface mockQueryWrapper;
+
+    CountDownLatch doneSignal;
+
+    String projectName = "testProject";
+
+    @Before
+    public void setUp()
+    {
+        DOMConfigurator.configure("./src/main/webapp/WEB-INF/log4j.xml");
+        mockQueryWrapper = createMock(QueryWrapperInterface.class);
+        mockThreadedQueryHandler = createMock(QueryHandlerInterface.class);
+        doneSignal = new CountDownLatch(1);
+    }
+
+    private PassThroughResponseTask createTask(StringWriter writer)
+    {
+        return new PassThroughResponseTask(mockThreadedQueryHandler,
+                writer,
+                selectQuery,
+                Sparql.ENDPOINT1_URL,
+                projectName,
+                doneSignal)
+        {
+            @Override
+            protected QueryWrapperInterface getQueryWrapper()
+            {
+                return mockQueryWrapper;
+            }
+        };
+    }
+
+    @Test
+    public void testRun()
+    {
+        System.out.println("testRun");
+
+        StringWriter writer = new StringWriter();
+        PassThroughResponseTask fetcher = createTask(writer);
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
+
+        // the response is copied, never parsed
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
+                .andReturn(MockStreams.stream(selectResult));
+
+        replayAll();
+
+        fetcher.run();
+
+        verifyAll();
+
+        assertTrue("Response written", fetcher.isWritten());
+        assertEquals("Response passed through unchanged", selectResult, writer.toString());
+        assertEquals("Latch correctly set", 0, doneSignal.getCount());
+    }
+
+    @Test
+    public void testEndpointFailure()
+    {
+        System.out.println("testEndpointFailure");
+
+        StringWriter writer = new StringWriter();
+        PassThroughResponseTask fetcher = createTask(writer);
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(false).anyTimes();
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
+                .andReturn(null);
+
+        replayAll();
+
+        fetcher.run();
+
+        verifyAll();
+
+        assertFalse("Nothing written", fetcher.isWritten());
+        assertEquals("", writer.toString());
+        assertEquals("Latch correctly set", 0, doneSignal.getCount());
+    }
+
+    @Test
+    public void testMockUseOfCache()
+    {
+        System.out.println("testMockUseOfCache");
+
+        CacheHandlerInterface mockCache = createMock(CacheHandlerInterface.class);
+
+        StringWriter writer = new StringWriter();
+        PassThroughResponseTask fetcher = createTask(writer);
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
+        expect(mockThreadedQueryHandler.getCache()).andReturn(mockCache).anyTimes();
+
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(false);
+
+        // the response is cached as it's copied
+        mockCache.put((String) notNull(), (List) notNull(), (String) notNull(), eq(selectResult));
+
+        expect(mockQueryWrapper.execQueryStream((String) notNull(), (String) notNull(), (RequestHandle) notNull()))
+                .andReturn(MockStreams.stream(selectResult));
+
+        replayAll();
+
+        fetcher.run();
+
+        verifyAll();
+
+        assertEquals(selectResult, writer.toString());
+
+        // run the query again, check the query wrapper is not called
+        resetAll();
+
+        expect(mockThreadedQueryHandler.hasCache()).andReturn(true).anyTimes();
+        expect(mockThreadedQueryHandler.getCache()).andReturn(mockCache).anyTimes();
+
+        expect(mockCache.contains((String) notNull(), (String) notNull())).andReturn(true);
+        expect(mockCache.get((String) notNull(), (String) notNull())).andReturn(selectResult);
+
+        replayAll();
+
+        writer.getBuffer().setLength(0);
+        fetcher.run();
+
+        verifyAll();
+
+        assertTrue("Response written", fetcher.isWritten());
+        assertEquals(selectResult, writer.toString());
+    }
+}
@@ -81,6 +81,19 @@ public class Sparql {
         + "WHERE \n"
         + "  { ?book dc:title ?title }";
 
+    public static final String SELECT_QUERY_BOOKS_PAGE = "PREFIX books:   <http://example.org/book/>\n"
+        + "PREFIX dc:      <http://purl.org/dc/elements/1.1/>\n"
+        + "SELECT ?book ?title\n"
+        + "WHERE \n"
+        + "  { ?book dc:title ?title }    LIMIT 3 OFFSET 8";
+
+    // SELECT_QUERY_BOOKS_PAGE as sent to each endpoint
+    public static final String SELECT_QUERY_BOOKS_TOP = "PREFIX books:   <http://example.org/book/>\n"
+        + "PREFIX dc:      <http://purl.org/dc/elements/1.1/>\n"
+        + "SELECT ?book ?title\n"
+        + "WHERE \n"
+        + "  { ?book dc:title ?title }    LIMIT 11";
+
     public static final String SELECT_QUERY_PEOPLE = "PREFIX people:   <http://example.org/people/>\n"
         + "PREFIX dc:      <http://purl.org/dc/elements/1.1/>\n"
         + "SELECT ?name\n"
@@ -99,6 +112,19 @@ public class Sparql {
         + "WHERE \n"
         + "  { ?name dc:title ?title } ORDER BY ?name ?title   LIMIT "+MAX_LIMIT;
 
+    public static final String SELECT_QUERY_PEOPLE_ORDERED_PAGE = "PREFIX people:   <http://example.org/people/>\n"
+        + "PREFIX dc:      <http://purl.org/dc/elements/1.1/>\n"
+        + "SELECT DISTINCT ?name\n"
+        + "WHERE \n"
+        + "  { ?name dc:title ?title } ORDER BY ?name ?title   LIMIT 2 OFFSET 1";
+
+    // SELECT_QUERY_PEOPLE_ORDERED_PAGE as sent to each endpoint
+    public static final String SELECT_QUERY_PEOPLE_ORDERED_TOP = "PREFIX people:   <http://example.org/people/>\n"
+        + "PREFIX dc:      <http://purl.org/dc/elements/1.1/>\n"
+        + "SELECT DISTINCT ?name\n"
+        + "WHERE \n"
+        + "  { ?name dc:title ?title } ORDER BY ?name ?title   LIMIT 3";
+
     public static final String SELECT_RESULT_7_BOOKS = "<?xml version=\"1.0\"?>\n"
         + "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n"
         + "  <head>\n"
@@ -495,21 +521,27 @@ public class Sparql {
         // select
         endpoint1Mapping.put(SELECT_QUERY_BOOKS,SELECT_RESULT_7_BOOKS);
         endpoint1Mapping.put(SELECT_QUERY_BOOKS_NO_LIMIT,SELECT_RESULT_7_BOOKS);
+        endpoint1Mapping.put(SELECT_QUERY_BOOKS_TOP,SELECT_RESULT_7_BOOKS);
         endpoint1Mapping.put(SELECT_QUERY_PEOPLE,SELECT_RESULT_2_PEOPLE);
         endpoint1Mapping.put(SELECT_QUERY_PEOPLE_DISTINCT,SELECT_RESULT_2_PEOPLE);
         endpoint1Mapping.put(SELECT_QUERY_PEOPLE_ORDERED,SELECT_RESULT_2_PEOPLE);
+        endpoint1Mapping.put(SELECT_QUERY_PEOPLE_ORDERED_TOP,SELECT_RESULT_2_PEOPLE);
         
         endpoint2Mapping.put(SELECT_QUERY_BOOKS,SELECT_RESULT_EMPTY_BOOKS);
         endpoint2Mapping.put(SELECT_QUERY_BOOKS_NO_LIMIT,SELECT_RESULT_EMPTY_BOOKS);
+        endpoint2Mapping.put(SELECT_QUERY_BOOKS_TOP,SELECT_RESULT_EMPTY_BOOKS);
         endpoint2Mapping.put(SELECT_QUERY_PEOPLE,SELECT_RESULT_4_PEOPLE);
         endpoint2Mapping.put(SELECT_QUERY_PEOPLE_DISTINCT,SELECT_RESULT_4_PEOPLE);
         endpoint2Mapping.put(SELECT_QUERY_PEOPLE_ORDERED,SELECT_RESULT_4_PEOPLE);
+        endpoint2Mapping.put(SELECT_QUERY_PEOPLE_ORDERED_TOP,SELECT_RESULT_4_PEOPLE);
 
         endpoint3Mapping.put(SELECT_QUERY_BOOKS,SELECT_RESULT_4_ADDITIONAL_BOOKS);
         endpoint3Mapping.put(SELECT_QUERY_BOOKS_NO_LIMIT,SELECT_RESULT_4_ADDITIONAL_BOOKS);
+        endpoint3Mapping.put(SELECT_QUERY_BOOKS_TOP,SELECT_RESULT_4_ADDITIONAL_BOOKS);
         endpoint3Mapping.put(SELECT_QUERY_PEOPLE,SELECT_RESULT_EMPTY_PEOPLE);
         endpoint3Mapping.put(SELECT_QUERY_PEOPLE_DISTINCT,SELECT_RESULT_EMPTY_PEOPLE);
         endpoint3Mapping.put(SELECT_QUERY_PEOPLE_ORDERED,SELECT_RESULT_EMPTY_PEOPLE);
+        endpoint3Mapping.put(SELECT_QUERY_PEOPLE_ORDERED_TOP,SELECT_RESULT_EMPTY_PEOPLE);
 
         // construct
         endpoint1Mapping.put(CONSTRUCT_QUERY_BOOKS,CONSTRUCT_RESULT_7_BOOKS);
@@ -31,9 +31,16 @@
  */
 package org.wf.arnos.utils.handler;
 
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -50,6 +57,10 @@ public class EndpointHandler extends AbstractHandler
     {
         private Sparql sparql;
 
+        private volatile String lastEncoding;
+
+        private volatile String lastAccept;
+
         public EndpointHandler(Sparql sparql)
         {
             this. sparql = sparql;
@@ -59,6 +70,7 @@ public class EndpointHandler extends AbstractHandler
             throws IOException, ServletException
         {
             String query = request.getParameter("query");
+            lastAccept = request.getHeader("Accept");
 
             System.out.println("Target is " +target + " sparql is " +sparql.getClass());
 
@@ -70,7 +82,8 @@ public class EndpointHandler extends AbstractHandler
 
             String result = "";
 
-            if (query.equals(Sparql.UPDATE_QUERY))
+            // endpoint 4's variants answer updates as they do queries
+            if (query.equals(Sparql.UPDATE_QUERY) && !thisEndpoint.startsWith(Sparql.ENDPOINT4_URL))
             {
                 result = Sparql.UPDATE_QUERY_RESULT;
             }
@@ -85,6 +98,48 @@ public class EndpointHandler extends AbstractHandler
                     }
                 } catch (InterruptedException ex) { }
             }
+            else if (thisEndpoint.startsWith(Sparql.ENDPOINT4_URL+"slowbody"))
+            {
+                // half the results are sent straight away, the rest shortly after
+                String body = sparql.getResult(Sparql.ENDPOINT1_URL, query);
+                response.getWriter().print(body.substring(0, body.length() / 2));
+                response.getWriter().flush();
+                try
+                {
+                    Thread.sleep(300);
+                } catch (InterruptedException ex) { }
+                result = body.substring(body.length() / 2);
+                response.getWriter().print(result);
+                ((Request)request).setHandled(true);
+                return;
+            }
+            else if (thisEndpoint.startsWith(Sparql.ENDPOINT4_URL+"turtle"))
+            {
+                // endpoint 1's graph, in turtle
+                Model model = ModelFactory.createDefaultModel();
+                model.read(new StringReader(sparql.getResult(Sparql.ENDPOINT1_URL, query)), null);
+                StringWriter turtle = new StringWriter();
+                model.write(turtle, "TURTLE");
+                result = turtle.toString();
+                response.setContentType("text/turtle");
+            }
+            else if (thisEndpoint.startsWith(Sparql.ENDPOINT4_URL+"toolonghang"))
+            {
+                // GET requests are refused, the POST that follows hangs
+                if ("GET".equals(request.getMethod()))
+                {
+                    response.sendError(HttpServletResponse.SC_REQUEST_URI_TOO_LONG);
+                    ((Request)request).setHandled(true);
+                    return;
+                }
+                try
+                {
+                    synchronized (this)
+                    {
+                        this.wait(60 * 1000);
+                    }
+                } catch (InterruptedException ex) { }
+            }
             else if (thisEndpoint.startsWith(Sparql.ENDPOINT4_URL+"toolong"))
             {
                 response.setStatus(HttpServletResponse.SC_REQUEST_URI_TOO_LONG);
@@ -115,8 +170,52 @@ public class EndpointHandler extends AbstractHandler
                 }
             }
 
+            // results are compressed if the request allows it
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            lastEncoding = null;
+            if (acceptEncoding != null && result.length() > 0)
+            {
+                OutputStream out = null;
+                if (acceptEncoding.contains("gzip"))
+                {
+                    lastEncoding = "gzip";
+                    response.setHeader("Content-Encoding", lastEncoding);
+                    out = new GZIPOutputStream(response.getOutputStream());
+                }
+                else if (acceptEncoding.contains("deflate"))
+                {
+                    lastEncoding = "deflate";
+                    response.setHeader("Content-Encoding", lastEncoding);
+                    out = new DeflaterOutputStream(response.getOutputStream());
+                }
+
+                if (out != null)
+                {
+                    out.write(result.getBytes("UTF-8"));
+                    out.close();
+                    ((Request)request).setHandled(true);
+                    return;
+                }
+            }
+
             response.getWriter().print(result);
 
             ((Request)request).setHandled(true);
         }
+
+        /**
+         * @return Accept header of the last request
+         */
+        public String getLastAccept()
+        {
+            return lastAccept;
+        }
+
+        /**
+         * @return Content encoding of the last response, <code>null</code> if it wasn't compressed
+         */
+        public String getLastEncoding()
+        {
+            return lastEncoding;
+        }
 }